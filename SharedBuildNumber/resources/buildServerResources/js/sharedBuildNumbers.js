@@ -1,5 +1,5 @@
 /*
- * main.js from TeamCityPlugins modified Tuesday, September 11, 2012 00:23:06 CDT (-0500).
+ * main.js from TeamCityPlugins modified Tuesday, October 30, 2012 10:18:52 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -41,6 +41,128 @@ function deleteSharedBuildNumber(id)
 	return false;
 }
 
+var sharedBuildNumbersPaging = null;
+
+function initSharedBuildNumbersPaging(sort, direction, limit, offset)
+{
+	sharedBuildNumbersPaging = {
+		sort: sort,
+		direction: direction,
+		limit: limit,
+		first: offset + 1,
+		prefix: '',
+		contains: '',
+		loading: false
+	};
+}
+
+function loadMoreSharedBuildNumbers()
+{
+	var paging = sharedBuildNumbersPaging;
+	if(paging == null)
+		return true;
+
+	if(!paging.loading)
+		fetchSharedBuildNumbers($j('#sharedBuildNumbers tbody tr:last').attr('data-cursor'));
+	return false;
+}
+
+function filterSharedBuildNumbers(form)
+{
+	var paging = sharedBuildNumbersPaging;
+	if(paging == null || paging.loading)
+		return false;
+
+	paging.prefix = form.elements['prefix'].value.trim();
+	paging.contains = form.elements['contains'].value.trim();
+	paging.first = 1;
+
+	$j('#sharedBuildNumbers tbody').empty();
+	fetchSharedBuildNumbers(null);
+	return false;
+}
+
+function fetchSharedBuildNumbers(cursor)
+{
+	var paging = sharedBuildNumbersPaging;
+	var data = {
+		action: 'json',
+		sort: paging.sort,
+		direction: paging.direction,
+		limit: paging.limit,
+		prefix: paging.prefix,
+		contains: paging.contains
+	};
+	if(cursor)
+		data.cursor = cursor;
+
+	// the browser revalidates cached pages with their entity tags, so a page that has not changed is not sent again
+	paging.loading = true;
+	$j.ajax({
+		url: window['base_uri'] + '/admin/adminSharedBuildNumbers.html',
+		data: data,
+		dataType: 'json',
+		success: function(page)
+		{
+			appendSharedBuildNumbers(page);
+		},
+		complete: function()
+		{
+			paging.loading = false;
+		}
+	});
+}
+
+function appendSharedBuildNumbers(page)
+{
+	var paging = sharedBuildNumbersPaging;
+	var tbody = $j('#sharedBuildNumbers tbody');
+
+	for(var i = 0; i < page.buildNumbers.length; i++)
+	{
+		var buildNumber = page.buildNumbers[i];
+		var cursor = paging.sort == 'name' && buildNumber.name != null ?
+				buildNumber.id + ':' + buildNumber.name : String(buildNumber.id);
+		var edit = ' title="Click to edit" onclick="return editSharedBuildNumber(event, ' + buildNumber.id + ');"';
+
+		var row = $j('<tr></tr>').attr('data-cursor', cursor);
+		row.append('<td class="highlight sharedBuildNumberId"' + edit + '>' + buildNumber.id + '</td>');
+		row.append('<td class="highlight sharedBuildNumberName"' + edit + '>' + escapeSharedBuildNumberHtml(buildNumber.name) + '</td>');
+		row.append('<td class="highlight sharedBuildNumberFormat"' + edit + '>' + escapeSharedBuildNumberHtml(buildNumber.format) + '</td>');
+		row.append('<td class="highlight sharedBuildNumberCounter"' + edit + '>' + buildNumber.counter + '</td>');
+		row.append('<td class="highlight sharedBuildNumberParameter"' + edit + '>%' + page.parameterPrefix + buildNumber.id + '%</td>');
+		row.append('<td class="highlight edit" title="Click to edit"><a href="' + window['base_uri'] + '/admin/admin.html?item=sharedBuildNumbers&amp;action=edit&amp;id=' + buildNumber.id + '">edit</a></td>');
+		row.append('<td class="highlight edit"><a href="#" onclick="return deleteSharedBuildNumber(' + buildNumber.id + ');" title="Click to delete">delete</a></td>');
+		tbody.append(row);
+
+		row.find('td.highlight').each(
+				function(j, element) {
+					BS.TableHighlighting.createInitElementFunction.call(this, element, 'Click to edit');
+				}
+		);
+	}
+
+	var shown = tbody.children('tr').length;
+	if(paging.prefix.length > 0 || paging.contains.length > 0)
+		$j('#sharedBuildNumbersShowing').text('Showing ' + shown + ' matching shared build numbers.');
+	else if(shown > 0)
+		$j('#sharedBuildNumbersShowing').text('Showing ' + paging.first + ' to ' + (paging.first + shown - 1) + ' of ' + page.total + '.');
+	else
+		$j('#sharedBuildNumbersShowing').text('There are no shared build numbers on this page.');
+
+	if(page.next == null)
+		$j('#sharedBuildNumbersMore').hide();
+	else
+		$j('#sharedBuildNumbersMore').show();
+}
+
+function escapeSharedBuildNumberHtml(value)
+{
+	if(value == null)
+		return '';
+	return String(value).replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;').replace(/"/g, '&quot;');
+}
+
 function submitSharedBuildNumberForm()
 {
 	var form = document.getElementById('sharedBuildNumberForm');
@@ -1,5 +1,5 @@
 <%--
-  ~ addBuildNumber.jsp from TeamCityPlugins modified Tuesday, September 11, 2012 15:06:05 CDT (-0500).
+  ~ addBuildNumber.jsp from TeamCityPlugins modified Friday, November 2, 2012 15:42:08 CDT (-0500).
   ~
   ~ Copyright 2010-2012 the original author or authors.
   ~
@@ -77,6 +77,38 @@
 				It is not recommended that you decrease the build counter, as proper behavior is not guaranteed.
 			</span>
 		</p>
+		<p>
+			<form:label path="allowGaps">Allow gaps:</form:label>
+			<form:checkbox path="allowGaps" /><form:errors path="allowGaps" cssClass="error" />
+			<span class="smallNote">
+				If checked, counter values are reserved in blocks and only the end of each block is saved to disk,
+				which makes starting builds faster under heavy load. Values left over in the current block are skipped
+				when the server restarts, so the build counter may have gaps.
+			</span>
+		</p>
+		<p>
+			<form:label path="blockSize">Block size:</form:label>
+			<form:input path="blockSize" type="number" size="10" maxlength="10" min="1" step="1" /><form:errors path="blockSize" cssClass="error" />
+			<span class="smallNote">
+				The number of counter values reserved at a time when gaps are allowed. Larger blocks save to disk less
+				often but leave larger gaps after a restart.
+			</span>
+		</p>
+		<p>
+			<form:label path="durability">Durability:</form:label>
+			<form:select path="durability">
+				<form:option value="" label="Server default" />
+				<form:option value="SYNC" label="Sync" />
+				<form:option value="GROUP" label="Group" />
+				<form:option value="ASYNC" label="Async" />
+			</form:select><form:errors path="durability" cssClass="error" />
+			<span class="smallNote">
+				How each increment is saved to disk. Sync saves it before the build starts. Group does the same, but
+				waits a moment so that builds starting together share one write. Async only saves the counter in the
+				background, so starting a build does no disk I/O, but the last few increments may be lost if the server
+				crashes. Server default uses the teamcity.sharedBuildNumber.durability internal property.
+			</span>
+		</p>
 
 		<div class="saveButtonsBlock">
 			<input type="button" value="Cancel" class="btn cancel" onclick="BS.openUrl(event, '/admin/admin.html?item=sharedBuildNumbers'); return false">
@@ -1,5 +1,5 @@
 <%--
-  ~ list.jsp from TeamCityPlugins modified Monday, September 10, 2012 23:53:28 CDT (-0500).
+  ~ list.jsp from TeamCityPlugins modified Tuesday, October 30, 2012 10:18:52 CDT (-0500).
   ~
   ~ Copyright 2010-2012 the original author or authors.
   ~
@@ -27,17 +27,29 @@
 		%><%@ taglib prefix="afn" uri="/WEB-INF/functions/authz"
 		%><%@ taglib prefix="graph" tagdir="/WEB-INF/tags/graph" %>
 <jsp:useBean id="numResults" scope="request" type="java.lang.Integer" />
-<jsp:useBean id="buildNumbers" scope="request" type="java.util.SortedSet<net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber>" />
+<jsp:useBean id="buildNumbers" scope="request" type="java.util.List<net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber>" />
 <jsp:useBean id="sortedBy" scope="request" type="java.lang.String" />
 <jsp:useBean id="sortClass" scope="request" type="java.lang.String" />
 <jsp:useBean id="sortChange" scope="request" type="java.lang.String" />
 <jsp:useBean id="sbnParameterPrefix" scope="request" type="java.lang.String" />
+<jsp:useBean id="offset" scope="request" type="java.lang.Integer" />
+<jsp:useBean id="limit" scope="request" type="java.lang.Integer" />
+<jsp:useBean id="previousOffset" scope="request" type="java.lang.Integer" />
+<jsp:useBean id="nextOffset" scope="request" type="java.lang.Integer" />
+<c:set var="pageUrl" value="/admin/admin.html?item=sharedBuildNumbers&sort=${sortedBy}&direction=${sortClass == 'sortedDesc' ? 'desc' : 'asc'}&limit=${limit}" />
 
 <div id="sharedBuildNumbersTable" class="refreshable">
 	<div id="sharedBuildNumbersTableInner" class="refreshableInner">
 		<div id="sharedBuildNumbersListContainer">
 			<div>You have ${numResults} shared build numbers.</div>
-			<c:if test="${numResults > 0}"><table id="sharedBuildNumbers" class="dark sortable userList borderBottom" cellpadding="0" cellspacing="0">
+			<c:if test="${numResults > 0}"><form id="sharedBuildNumbersFilter" action="#" onsubmit="return filterSharedBuildNumbers(this);">
+				<label for="sharedBuildNumbersPrefix">Name starts with:</label>
+				<input type="text" id="sharedBuildNumbersPrefix" name="prefix" />
+				<label for="sharedBuildNumbersContains">Name contains:</label>
+				<input type="text" id="sharedBuildNumbersContains" name="contains" />
+				<input type="submit" class="btn btn_mini" value="Filter" />
+			</form>
+			<table id="sharedBuildNumbers" class="dark sortable userList borderBottom" cellpadding="0" cellspacing="0">
 				<thead>
 					<tr>
 						<c:choose>
@@ -65,7 +77,7 @@
 				</thead>
 				<tbody>
 				<c:forEach items="${buildNumbers}" var="buildNumber">
-					<tr>
+					<tr data-cursor="${buildNumber.id}<c:if test="${sortedBy == 'name' && buildNumber.name != null}">:<c:out value="${buildNumber.name}" /></c:if>">
 						<td class="highlight sharedBuildNumberId" title="Click to edit" onclick="return editSharedBuildNumber(event, ${buildNumber.id});">${buildNumber.id}</td>
 						<td class="highlight sharedBuildNumberName" title="Click to edit" onclick="return editSharedBuildNumber(event, ${buildNumber.id});">${buildNumber.name}</td>
 						<td class="highlight sharedBuildNumberFormat" title="Click to edit" onclick="return editSharedBuildNumber(event, ${buildNumber.id});">${buildNumber.format}</td>
@@ -93,7 +105,17 @@
 					highlightableElements.mouseover();
 				})();
 
+				initSharedBuildNumbersPaging('${sortedBy}', '${sortClass == 'sortedDesc' ? 'desc' : 'asc'}', ${limit}, ${offset});
+
 			</script></c:if>
+			<c:if test="${numResults > 0 || previousOffset >= 0}"><p class="sharedBuildNumbersPager">
+				<span id="sharedBuildNumbersShowing"><c:choose>
+					<c:when test="${fn:length(buildNumbers) > 0}">Showing ${offset + 1} to ${offset + fn:length(buildNumbers)} of ${numResults}.</c:when>
+					<c:otherwise>There are no shared build numbers on this page.</c:otherwise>
+				</c:choose></span>
+				<c:if test="${previousOffset >= 0}"><a href="<c:url value="${pageUrl}&offset=${previousOffset}" />">&laquo; Previous</a></c:if>
+				<a id="sharedBuildNumbersMore" href="<c:url value="${pageUrl}&offset=${nextOffset}" />" onclick="return loadMoreSharedBuildNumbers();"<c:if test="${nextOffset < 0}"> style="display: none;"</c:if>>Load more &raquo;</a>
+			</p></c:if>
 			<p>
 				<a class="btn" href="<c:url value="/admin/admin.html?item=sharedBuildNumbers&action=add" />">
 					<span class="addNew">Create shared build number</span>
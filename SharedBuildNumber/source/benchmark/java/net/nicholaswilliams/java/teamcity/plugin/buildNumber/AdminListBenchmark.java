@@ -0,0 +1,129 @@
+/*
+ * AdminListBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Compares listing shared build numbers by name for the admin page by wrapping and sorting all of them into a
+ * {@link TreeSet} on every request, as the admin page used to, against reading one page of 50 from the configuration's
+ * {@link SharedBuildNumberIndex name index}. The index is built once per configuration and not counted, since every
+ * later configuration keeps it up to date instead of building it again.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class AdminListBenchmark extends Benchmark
+{
+	private static final int[] SIZES = { 100, 1000, 5000, 20000 };
+
+	private static final int PAGE_SIZE = 50;
+
+	private static final Comparator<SharedBuildNumber> FORMER_NAME_ORDER = new Comparator<SharedBuildNumber>()
+	{
+		@Override
+		public int compare(SharedBuildNumber left, SharedBuildNumber right)
+		{
+			if(left.getName() == null && right.getName() == null)
+				return 0;
+
+			return left.getName() == null ? -1 : left.getName().compareTo(right.getName());
+		}
+	};
+
+	private static volatile int sink;
+
+	@Override
+	public String getName()
+	{
+		return "Admin list by name";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		out.println(String.format("%-10s %-12s %14s %14s", "entries", "method", "lists/s", "us/list"));
+
+		for(final int size : AdminListBenchmark.SIZES)
+		{
+			final ConfigurationEntity configuration = new ConfigurationEntity();
+			for(int id = 1; id <= size; id++)
+			{
+				SharedBuildNumberEntity buildNumber = new SharedBuildNumberEntity();
+				buildNumber.setId(id);
+				// names are unique, since the former ordering dropped build numbers with equal names
+				buildNumber.setName("Build Number " + Integer.toString(id * 7919 % 100003, 36) + " " + id);
+				buildNumber.setFormat("1.0.{0}");
+				configuration.addOrUpdateBuildNumber(buildNumber);
+			}
+			configuration.getBuildNumbersByName();
+
+			double sorting = Benchmark.measureThroughput(1, new Operation() {
+				@Override
+				public void execute(int thread)
+				{
+					TreeSet<SharedBuildNumber> set = new TreeSet<SharedBuildNumber>(
+							AdminListBenchmark.FORMER_NAME_ORDER
+					);
+					for(SharedBuildNumberEntity entity : configuration.getBuildNumbers())
+						set.add(new SharedBuildNumber(entity));
+					AdminListBenchmark.sink += set.size();
+				}
+			});
+
+			double paging = Benchmark.measureThroughput(1, new Operation() {
+				private int offset;
+
+				@Override
+				public void execute(int thread)
+				{
+					List<SharedBuildNumberEntity> page = configuration.getBuildNumbersByName().getPage(
+							false, this.offset, AdminListBenchmark.PAGE_SIZE
+					);
+					List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>(page.size());
+					for(SharedBuildNumberEntity entity : page)
+						list.add(new SharedBuildNumber(entity));
+					AdminListBenchmark.sink += list.size();
+
+					this.offset = (this.offset + AdminListBenchmark.PAGE_SIZE) % size;
+				}
+			});
+
+			out.println(String.format(
+					"%-10d %-12s %14.0f %14.2f", size, "full sort", sorting, 1000000.0D / sorting
+			));
+			out.println(String.format(
+					"%-10d %-12s %14.0f %14.2f", size, "index page", paging, 1000000.0D / paging
+			));
+
+			this.record("entries=" + size + " method=full-sort", "throughput", sorting, "ops/s");
+			this.record("entries=" + size + " method=index-page", "throughput", paging, "ops/s");
+		}
+	}
+}
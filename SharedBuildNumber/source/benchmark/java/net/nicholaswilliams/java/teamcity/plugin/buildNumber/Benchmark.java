@@ -0,0 +1,199 @@
+/*
+ * Benchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Base class for the plugin's micro-benchmarks. This is intentionally a tiny harness (fixed warm-up, fixed
+ * measurement period, per-thread operation counters) so that benchmarks can run from the Ant build without any
+ * additional libraries. Besides printing a table, every benchmark {@link #record records} its measurements, which the
+ * suite writes to a JSON file so that the results of two builds can be diffed.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public abstract class Benchmark
+{
+	protected static final long DEFAULT_WARM_UP_MILLIS = Long.getLong("benchmark.warmUpMillis", 1000L);
+
+	protected static final long DEFAULT_MEASUREMENT_MILLIS = Long.getLong("benchmark.measurementMillis", 3000L);
+
+	private final List<Result> results = new ArrayList<Result>();
+
+	public abstract String getName();
+
+	public abstract void run(File workDirectory, PrintStream out) throws Exception;
+
+	/**
+	 * Records a measurement for the JSON results. The scenario and metric together identify the measurement within
+	 * the benchmark, so they must be the same from one run to the next for the results to be comparable.
+	 *
+	 * @param scenario The parameters the measurement was taken with, for example {@code threads=4 mode=batch}
+	 * @param metric The quantity measured, for example {@code throughput}
+	 * @param value The measured value
+	 * @param unit The unit of the measured value, for example {@code ops/s}
+	 */
+	protected final void record(String scenario, String metric, double value, String unit)
+	{
+		this.results.add(new Result(scenario, metric, value, unit));
+	}
+
+	public final List<Result> getResults()
+	{
+		return Collections.unmodifiableList(this.results);
+	}
+
+	/**
+	 * Executes the operation repeatedly on the given number of threads, first for the warm-up period and then for the
+	 * measurement period, and returns the number of operations completed per second during the measurement period.
+	 *
+	 * @param threads The number of threads to execute the operation on
+	 * @param operation The operation to benchmark
+	 * @return the measured throughput in operations per second.
+	 * @throws Exception if the operation throws an exception on any thread.
+	 */
+	protected static double measureThroughput(int threads, final Operation operation) throws Exception
+	{
+		return Benchmark.measureThroughput(
+				threads, Benchmark.DEFAULT_WARM_UP_MILLIS, Benchmark.DEFAULT_MEASUREMENT_MILLIS, operation
+		);
+	}
+
+	protected static double measureThroughput(int threads, long warmUpMillis, long measurementMillis,
+											  final Operation operation) throws Exception
+	{
+		final Phase phase = new Phase();
+		final long[] operations = new long[threads];
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final CountDownLatch started = new CountDownLatch(threads);
+
+		Thread[] workers = new Thread[threads];
+		for(int i = 0; i < threads; i++)
+		{
+			final int thread = i;
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					long count = 0;
+					started.countDown();
+					try
+					{
+						int current;
+						while((current = phase.value) != Phase.STOPPED)
+						{
+							operation.execute(thread);
+							if(current == Phase.MEASURING)
+								count++;
+						}
+					}
+					catch(Exception e)
+					{
+						failure.compareAndSet(null, e);
+					}
+					operations[thread] = count;
+				}
+			}, "Benchmark-" + i);
+			workers[i].start();
+		}
+
+		started.await();
+		Thread.sleep(warmUpMillis);
+		phase.value = Phase.MEASURING;
+		long start = System.nanoTime();
+		Thread.sleep(measurementMillis);
+		phase.value = Phase.STOPPED;
+		long elapsed = System.nanoTime() - start;
+
+		for(Thread worker : workers)
+			worker.join();
+
+		if(failure.get() != null)
+			throw failure.get();
+
+		long total = 0;
+		for(long count : operations)
+			total += count;
+
+		return total / (elapsed / 1000000000.0D);
+	}
+
+	public static final class Result
+	{
+		private final String scenario;
+
+		private final String metric;
+
+		private final double value;
+
+		private final String unit;
+
+		private Result(String scenario, String metric, double value, String unit)
+		{
+			this.scenario = scenario;
+			this.metric = metric;
+			this.value = value;
+			this.unit = unit;
+		}
+
+		public String getScenario()
+		{
+			return this.scenario;
+		}
+
+		public String getMetric()
+		{
+			return this.metric;
+		}
+
+		public double getValue()
+		{
+			return this.value;
+		}
+
+		public String getUnit()
+		{
+			return this.unit;
+		}
+	}
+
+	public static interface Operation
+	{
+		public void execute(int thread) throws Exception;
+	}
+
+	private static final class Phase
+	{
+		static final int WARMING_UP = 0;
+
+		static final int MEASURING = 1;
+
+		static final int STOPPED = 2;
+
+		volatile int value = Phase.WARMING_UP;
+	}
+}
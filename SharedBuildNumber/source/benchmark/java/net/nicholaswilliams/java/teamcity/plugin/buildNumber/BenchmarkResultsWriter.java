@@ -0,0 +1,126 @@
+/*
+ * BenchmarkResultsWriter.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the measurements recorded by the benchmarks to a JSON file, one measurement per line in the order the
+ * benchmarks ran, so that the files of two builds can be compared with an ordinary diff as well as parsed. The file
+ * also records the JVM, the machine and the harness timings the measurements were taken with, since measurements
+ * taken under different conditions are not comparable.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class BenchmarkResultsWriter
+{
+	private BenchmarkResultsWriter()
+	{
+
+	}
+
+	public static void write(File file, List<Benchmark> benchmarks) throws IOException
+	{
+		StringBuilder builder = new StringBuilder("{\n");
+		BenchmarkResultsWriter.appendProperty(builder, "javaVersion", System.getProperty("java.version"));
+		BenchmarkResultsWriter.appendProperty(builder, "javaVm", System.getProperty("java.vm.name"));
+		BenchmarkResultsWriter.appendProperty(
+				builder, "os", System.getProperty("os.name") + " " + System.getProperty("os.arch")
+		);
+		builder.append("\t\"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+		builder.append("\t\"warmUpMillis\": ").append(Benchmark.DEFAULT_WARM_UP_MILLIS).append(",\n");
+		builder.append("\t\"measurementMillis\": ").append(Benchmark.DEFAULT_MEASUREMENT_MILLIS).append(",\n");
+		builder.append("\t\"results\": [");
+
+		boolean first = true;
+		for(Benchmark benchmark : benchmarks)
+		{
+			for(Benchmark.Result result : benchmark.getResults())
+			{
+				builder.append(first ? "\n\t\t{ " : ",\n\t\t{ ");
+				first = false;
+
+				builder.append("\"benchmark\": ");
+				BenchmarkResultsWriter.appendString(builder, benchmark.getClass().getSimpleName());
+				builder.append(", \"scenario\": ");
+				BenchmarkResultsWriter.appendString(builder, result.getScenario());
+				builder.append(", \"metric\": ");
+				BenchmarkResultsWriter.appendString(builder, result.getMetric());
+				builder.append(", \"value\": ");
+				BenchmarkResultsWriter.appendNumber(builder, result.getValue());
+				builder.append(", \"unit\": ");
+				BenchmarkResultsWriter.appendString(builder, result.getUnit());
+				builder.append(" }");
+			}
+		}
+
+		builder.append(first ? "]\n}\n" : "\n\t]\n}\n");
+
+		FileUtils.writeStringToFile(file, builder.toString(), "UTF-8");
+	}
+
+	private static void appendProperty(StringBuilder builder, String name, String value)
+	{
+		builder.append("\t\"").append(name).append("\": ");
+		BenchmarkResultsWriter.appendString(builder, value);
+		builder.append(",\n");
+	}
+
+	/**
+	 * JSON has no representation for infinite or undefined numbers, so a measurement that produced one is written
+	 * as null.
+	 */
+	private static void appendNumber(StringBuilder builder, double value)
+	{
+		if(Double.isNaN(value) || Double.isInfinite(value))
+			builder.append("null");
+		else
+			builder.append(String.format(Locale.US, "%.4f", value));
+	}
+
+	private static void appendString(StringBuilder builder, String value)
+	{
+		if(value == null)
+		{
+			builder.append("null");
+			return;
+		}
+
+		builder.append('"');
+		for(int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				builder.append('\\').append(c);
+			else if(c < 0x20)
+				builder.append(String.format("\\u%04x", (int)c));
+			else
+				builder.append(c);
+		}
+		builder.append('"');
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * BenchmarkStubs.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates stand-ins for the TeamCity interfaces the benchmarks need, without a mocking library on the benchmark class
+ * path. A stub answers each method by name from a map: with the {@link Answer} mapped to the method's name if there is
+ * one, with the value mapped to it otherwise, and with null, false or zero for methods that are not mapped. Stubs
+ * are only as thread safe as their answers.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class BenchmarkStubs
+{
+	private static final Map<Class<?>, Object> PRIMITIVE_DEFAULTS = new HashMap<Class<?>, Object>();
+
+	static
+	{
+		BenchmarkStubs.PRIMITIVE_DEFAULTS.put(boolean.class, false);
+		BenchmarkStubs.PRIMITIVE_DEFAULTS.put(byte.class, (byte)0);
+		BenchmarkStubs.PRIMITIVE_DEFAULTS.put(char.class, (char)0);
+		BenchmarkStubs.PRIMITIVE_DEFAULTS.put(short.class, (short)0);
+		BenchmarkStubs.PRIMITIVE_DEFAULTS.put(int.class, 0);
+		BenchmarkStubs.PRIMITIVE_DEFAULTS.put(long.class, 0L);
+		BenchmarkStubs.PRIMITIVE_DEFAULTS.put(float.class, 0.0F);
+		BenchmarkStubs.PRIMITIVE_DEFAULTS.put(double.class, 0.0D);
+	}
+
+	private BenchmarkStubs()
+	{
+
+	}
+
+	/**
+	 * @param type The interface to stub
+	 * @param answers The values or {@link Answer answers} to return, by method name
+	 * @return a new stub of the interface.
+	 */
+	public static <T> T stub(final Class<T> type, final Map<String, ?> answers)
+	{
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] arguments)
+			{
+				String name = method.getName();
+				Object answer = answers.get(name);
+				if(answer instanceof Answer)
+					return ((Answer)answer).answer(arguments);
+				if(answer != null)
+					return answer;
+
+				if(name.equals("hashCode") && method.getParameterTypes().length == 0)
+					return System.identityHashCode(proxy);
+				if(name.equals("equals") && method.getParameterTypes().length == 1)
+					return proxy == arguments[0];
+				if(name.equals("toString") && method.getParameterTypes().length == 0)
+					return "Stub " + type.getSimpleName();
+
+				return BenchmarkStubs.PRIMITIVE_DEFAULTS.get(method.getReturnType());
+			}
+		}));
+	}
+
+	public static interface Answer
+	{
+		public Object answer(Object[] arguments);
+	}
+}
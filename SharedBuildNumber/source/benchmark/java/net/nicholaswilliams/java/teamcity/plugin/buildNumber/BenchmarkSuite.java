@@ -0,0 +1,91 @@
+/*
+ * BenchmarkSuite.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs every registered benchmark in order. The first argument, if present, is the working directory in which
+ * benchmarks may create files; otherwise the system temporary directory is used. Any further arguments are the simple
+ * class names of the benchmarks to run, in which case all others are skipped. The measurements of the benchmarks that
+ * ran are written as JSON to the file named by the {@code benchmark.results} system property, or to
+ * {@value #DEFAULT_RESULTS_FILE_NAME} in the working directory.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class BenchmarkSuite
+{
+	private static final String DEFAULT_RESULTS_FILE_NAME = "benchmark-results.json";
+
+	private BenchmarkSuite()
+	{
+
+	}
+
+	static List<Benchmark> getBenchmarks()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new JournalGroupCommitBenchmark());
+		benchmarks.add(new ConfigurationReadContentionBenchmark());
+		benchmarks.add(new BuildNumberFormatBenchmark());
+		benchmarks.add(new ConfigurationLoadBenchmark());
+		benchmarks.add(new BuildStartLatencyBenchmark());
+		benchmarks.add(new ReferenceScanBenchmark());
+		benchmarks.add(new QueueReservationBenchmark());
+		benchmarks.add(new AdminListBenchmark());
+		benchmarks.add(new IncrementThroughputBenchmark());
+		benchmarks.add(new ConfigurationPersistenceBenchmark());
+		benchmarks.add(new SortedListingBenchmark());
+		benchmarks.add(new UpdateParametersBenchmark());
+		return benchmarks;
+	}
+
+	public static void main(String... arguments) throws Exception
+	{
+		File workDirectory = new File(arguments.length > 0 ? arguments[0] : System.getProperty("java.io.tmpdir"));
+		if(!workDirectory.isDirectory() && !workDirectory.mkdirs())
+			throw new IOException("Could not create benchmark directory " + workDirectory + ".");
+
+		List<String> selected = Arrays.asList(arguments).subList(Math.min(1, arguments.length), arguments.length);
+
+		List<Benchmark> ran = new ArrayList<Benchmark>();
+		for(Benchmark benchmark : BenchmarkSuite.getBenchmarks())
+		{
+			if(!selected.isEmpty() && !selected.contains(benchmark.getClass().getSimpleName()))
+				continue;
+
+			System.out.println("# " + benchmark.getName());
+			benchmark.run(workDirectory, System.out);
+			System.out.println();
+			ran.add(benchmark);
+		}
+
+		String results = System.getProperty("benchmark.results");
+		File resultsFile = results == null || results.trim().length() == 0 ?
+				new File(workDirectory, BenchmarkSuite.DEFAULT_RESULTS_FILE_NAME) : new File(results);
+		BenchmarkResultsWriter.write(resultsFile, ran);
+		System.out.println("Results written to " + resultsFile + ".");
+	}
+}
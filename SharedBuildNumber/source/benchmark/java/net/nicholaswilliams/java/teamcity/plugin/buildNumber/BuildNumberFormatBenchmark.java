@@ -0,0 +1,100 @@
+/*
+ * BuildNumberFormatBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Compares formatting build numbers by searching and replacing the placeholders with a new {@link SimpleDateFormat}
+ * on every call against formatting them with a compiled {@link BuildNumberTemplate}.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class BuildNumberFormatBenchmark extends Benchmark
+{
+	private static final int[] THREADS = { 1, 4, 16 };
+
+	private static final String[][] FORMATS = {
+			{ "1.0.0.{0}", null },
+			{ "2.1.{d}.{0}", "yyyyMMdd" },
+			{ "{D}-{0}-beta", "yyyy-MM-dd'T'HH:mm:ss" }
+	};
+
+	private static volatile int sink;
+
+	@Override
+	public String getName()
+	{
+		return "Build number formatting";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		out.println(String.format("%-24s %-10s %-10s %14s", "format", "threads", "method", "formats/s"));
+
+		for(String[] format : BuildNumberFormatBenchmark.FORMATS)
+		{
+			final String pattern = format[0];
+			final String dateFormat = format[1];
+			final BuildNumberTemplate template = BuildNumberTemplate.compile(pattern, dateFormat);
+
+			for(int threads : BuildNumberFormatBenchmark.THREADS)
+			{
+				final int[] counters = new int[threads];
+
+				double replacing = Benchmark.measureThroughput(threads, new Operation() {
+					@Override
+					public void execute(int thread)
+					{
+						String number = pattern.replace("{0}", Integer.toString(++counters[thread]));
+						if(number.toLowerCase().contains("{d}"))
+						{
+							String date = new SimpleDateFormat(dateFormat).format(new Date());
+							number = number.replace("{d}", date).replace("{D}", date);
+						}
+						BuildNumberFormatBenchmark.sink = number.length();
+					}
+				});
+
+				double compiled = Benchmark.measureThroughput(threads, new Operation() {
+					@Override
+					public void execute(int thread)
+					{
+						String number = template.format(++counters[thread]);
+						BuildNumberFormatBenchmark.sink = number.length();
+					}
+				});
+
+				out.println(String.format("%-24s %-10d %-10s %14.0f", pattern, threads, "replace", replacing));
+				out.println(String.format("%-24s %-10d %-10s %14.0f", pattern, threads, "compiled", compiled));
+
+				this.record("format=" + pattern + " threads=" + threads + " method=replace", "throughput", replacing,
+							"ops/s");
+				this.record("format=" + pattern + " threads=" + threads + " method=compiled", "throughput", compiled,
+							"ops/s");
+			}
+		}
+	}
+}
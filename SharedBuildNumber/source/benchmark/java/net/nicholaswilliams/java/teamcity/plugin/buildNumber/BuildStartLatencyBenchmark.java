@@ -0,0 +1,134 @@
+/*
+ * BuildStartLatencyBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Measures how long the shared build number work of a build start takes as the number of shared build numbers the
+ * build references grows, on a real service and journal. The "per number" mode increments each referenced number
+ * with its own call, as the build start processor used to, so every number waits for a journal flush of its own; the
+ * "batch" mode increments them all with a single call that waits for one flush. Both are measured with one build
+ * starting at a time and with several builds starting concurrently.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class BuildStartLatencyBenchmark extends Benchmark
+{
+	private static final int[] REFERENCED = { 1, 2, 4, 8 };
+
+	private static final int MAX_REFERENCED = 8;
+
+	private static final int[] THREADS = { 1, 4 };
+
+	@Override
+	public String getName()
+	{
+		return "Build start latency by referenced shared build numbers";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		File configDirectory = new File(workDirectory, "build-start");
+		if(configDirectory.exists())
+			FileUtils.deleteDirectory(configDirectory);
+		FileUtils.forceMkdir(configDirectory);
+
+		final PluginConfigurationServiceDefault service = new PluginConfigurationServiceDefault(
+				new ServerPaths(workDirectory.getPath(), configDirectory.getPath(), workDirectory.getPath())
+		);
+		service.initialize();
+
+		try
+		{
+			int[] ids = new int[BuildStartLatencyBenchmark.MAX_REFERENCED];
+			for(int i = 0; i < ids.length; i++)
+			{
+				SharedBuildNumber buildNumber = new SharedBuildNumber(service.getNextBuildNumberId());
+				buildNumber.setName("Benchmark Build Number " + i);
+				buildNumber.setFormat("1." + i + ".{0}");
+				service.saveSharedBuildNumber(buildNumber);
+				ids[i] = buildNumber.getId();
+			}
+
+			out.println(String.format(
+					"%-12s %-12s %8s %14s %16s", "referenced", "mode", "threads", "starts/s", "ms/start"
+			));
+
+			for(int referenced : BuildStartLatencyBenchmark.REFERENCED)
+			{
+				final int[] referencedIds = new int[referenced];
+				final Set<Integer> referencedIdSet = new LinkedHashSet<Integer>();
+				for(int i = 0; i < referenced; i++)
+				{
+					referencedIds[i] = ids[i];
+					referencedIdSet.add(ids[i]);
+				}
+
+				for(int threads : BuildStartLatencyBenchmark.THREADS)
+				{
+					double perNumber = Benchmark.measureThroughput(threads, new Operation() {
+						@Override
+						public void execute(int thread) throws Exception
+						{
+							for(int id : referencedIds)
+								service.getAndIncrementFormattedSharedBuildNumber(id);
+						}
+					});
+
+					double batch = Benchmark.measureThroughput(threads, new Operation() {
+						@Override
+						public void execute(int thread) throws Exception
+						{
+							service.getAndIncrementFormattedSharedBuildNumbers(referencedIdSet);
+						}
+					});
+
+					out.println(String.format(
+							"%-12d %-12s %8d %14.0f %16.3f", referenced, "per number", threads, perNumber,
+							threads * 1000.0D / perNumber
+					));
+					out.println(String.format(
+							"%-12d %-12s %8d %14.0f %16.3f", referenced, "batch", threads, batch,
+							threads * 1000.0D / batch
+					));
+
+					String scenario = "referenced=" + referenced + " threads=" + threads;
+					this.record(scenario + " mode=per-number", "throughput", perNumber, "ops/s");
+					this.record(scenario + " mode=batch", "throughput", batch, "ops/s");
+				}
+			}
+		}
+		finally
+		{
+			service.destroy();
+			FileUtils.deleteDirectory(configDirectory);
+		}
+	}
+}
@@ -0,0 +1,529 @@
+/*
+ * BuildStartLoadSimulator.java from TeamCityPlugins modified Thursday, November 1, 2012 16:05:12 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.BuildStartContext;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.EventDispatcher;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates the build starts of a busy server against a real service, journal and build start processor, for sizing
+ * a server before more builds are moved onto it. Each of the simulated threads starts builds of randomly chosen
+ * {@link SimulatedBuildType simulated build types}, either as fast as it can or at random arrival times averaging the
+ * configured arrival rate; in the latter case latency is measured from when each build was due to start, so a server
+ * that falls behind shows it in the percentiles. The build types reference shared build numbers according to the
+ * configured mix of reference counts.
+ * <p>
+ * Every number issued during the run is checked: no number may be issued twice, each thread must see the numbers of
+ * every shared build number increase, and the numbers of each shared build number must be exactly the consecutive
+ * values from its starting counter to its final counter, so that none were lost. The simulator fails if any check
+ * does.
+ * <p>
+ * The simulation is configured with system properties: {@code simulation.threads}, {@code simulation.arrivalRate}
+ * (builds per second across all threads, or 0 to start builds as fast as possible), {@code simulation.warmUpSeconds},
+ * {@code simulation.durationSeconds}, {@code simulation.sharedBuildNumbers}, {@code simulation.buildTypes},
+ * {@code simulation.referenceMix} (comma-separated {@code referenced:weight} pairs, for example
+ * {@code 0:40,1:40,4:20}), {@code simulation.customizedPercent} (the percentage of build types started with custom
+ * parameters) and {@code simulation.seed}. The only argument, if present, is the directory to run in; otherwise a
+ * temporary directory is used.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class BuildStartLoadSimulator
+{
+	private final int threads = Integer.getInteger("simulation.threads", 16);
+
+	private final double arrivalRate = Double.parseDouble(System.getProperty("simulation.arrivalRate", "200"));
+
+	private final long warmUpMillis = Long.getLong("simulation.warmUpSeconds", 5L) * 1000L;
+
+	private final long durationMillis = Long.getLong("simulation.durationSeconds", 30L) * 1000L;
+
+	private final int sharedBuildNumbers = Integer.getInteger("simulation.sharedBuildNumbers", 20);
+
+	private final int buildTypeCount = Integer.getInteger("simulation.buildTypes", 200);
+
+	private final String referenceMix = System.getProperty("simulation.referenceMix", "0:40,1:40,2:15,4:5");
+
+	private final int customizedPercent = Integer.getInteger("simulation.customizedPercent", 10);
+
+	private final long seed = Long.getLong("simulation.seed", 42L);
+
+	private BuildStartLoadSimulator()
+	{
+
+	}
+
+	public static void main(String... arguments) throws Exception
+	{
+		boolean temporary = arguments.length == 0;
+		File workDirectory = temporary ?
+				new File(System.getProperty("java.io.tmpdir"), "shared-build-number-simulation-" + System.nanoTime()) :
+				new File(arguments[0]);
+
+		try
+		{
+			new BuildStartLoadSimulator().run(workDirectory, System.out);
+		}
+		finally
+		{
+			if(temporary)
+				FileUtils.deleteDirectory(workDirectory);
+		}
+	}
+
+	private void run(File workDirectory, PrintStream out) throws Exception
+	{
+		File configDirectory = new File(workDirectory, "simulation");
+		if(configDirectory.exists())
+			FileUtils.deleteDirectory(configDirectory);
+		FileUtils.forceMkdir(configDirectory);
+
+		PluginConfigurationServiceDefault service = new PluginConfigurationServiceDefault(
+				new ServerPaths(workDirectory.getPath(), configDirectory.getPath(), workDirectory.getPath())
+		);
+		service.initialize();
+
+		EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+		ReferencedParameterCache referencedParameterCache = new ReferencedParameterCache(dispatcher);
+		QueuedBuildNumberReservations reservations = new QueuedBuildNumberReservations(
+				dispatcher, service, referencedParameterCache
+		);
+		BuildNumberPropertiesProvider provider = new BuildNumberPropertiesProvider(
+				BenchmarkStubs.stub(ExtensionHolder.class, Collections.<String, Object>emptyMap()), service,
+				new ChainBuildNumberCache(dispatcher), referencedParameterCache, reservations
+		);
+
+		try
+		{
+			int[] ids = this.createSharedBuildNumbers(service);
+			SimulatedBuildType[] buildTypes = this.createBuildTypes(ids);
+
+			out.println(String.format(
+					"threads=%d arrivalRate=%s warmUp=%ds duration=%ds sharedBuildNumbers=%d buildTypes=%d " +
+					"referenceMix=%s customized=%d%% seed=%d", this.threads,
+					this.arrivalRate > 0.0D ? this.arrivalRate + "/s" : "unlimited", this.warmUpMillis / 1000L,
+					this.durationMillis / 1000L, this.sharedBuildNumbers, this.buildTypeCount, this.referenceMix,
+					this.customizedPercent, this.seed
+			));
+
+			Worker[] workers = this.simulate(provider, buildTypes, ids);
+
+			this.report(out, service, workers);
+
+			List<String> failures = this.verify(service, workers, ids);
+			if(!failures.isEmpty())
+			{
+				for(String failure : failures)
+					out.println("FAILED: " + failure);
+				throw new IllegalStateException(failures.size() + " verification(s) failed.");
+			}
+			out.println("Verified that no shared build number was issued twice, lost or issued out of order.");
+		}
+		finally
+		{
+			reservations.destroy();
+			service.destroy();
+			FileUtils.deleteDirectory(configDirectory);
+		}
+	}
+
+	/**
+	 * Every shared build number's format ends with its counter, so that the issued counters can be read back from the
+	 * formatted numbers. Every fifth one allows gaps, so its increments reserve blocks under its lock.
+	 */
+	private int[] createSharedBuildNumbers(PluginConfigurationService service) throws IOException
+	{
+		int[] ids = new int[this.sharedBuildNumbers];
+		for(int i = 0; i < ids.length; i++)
+		{
+			SharedBuildNumber buildNumber = new SharedBuildNumber(service.getNextBuildNumberId());
+			buildNumber.setName("Simulated Build Number " + i);
+			if(i % 2 == 0)
+			{
+				buildNumber.setFormat("1." + i + ".{0}");
+			}
+			else
+			{
+				buildNumber.setFormat("2.{d}.{0}");
+				buildNumber.setDateFormat("yyyyMMdd");
+			}
+			buildNumber.setAllowGaps(i % 5 == 4);
+			service.saveSharedBuildNumber(buildNumber);
+			ids[i] = buildNumber.getId();
+		}
+		return ids;
+	}
+
+	private SimulatedBuildType[] createBuildTypes(int[] ids)
+	{
+		List<int[]> mix = new ArrayList<int[]>();
+		int totalWeight = 0;
+		for(String entry : this.referenceMix.split(","))
+		{
+			String[] parts = entry.trim().split(":");
+			int referenced = Math.min(Integer.parseInt(parts[0].trim()), ids.length);
+			int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+			mix.add(new int[] { referenced, weight });
+			totalWeight += weight;
+		}
+		if(totalWeight <= 0)
+			throw new IllegalArgumentException("The reference mix [" + this.referenceMix + "] has no weight.");
+
+		Random random = new Random(this.seed);
+		int[] shuffled = ids.clone();
+		SimulatedBuildType[] buildTypes = new SimulatedBuildType[this.buildTypeCount];
+		for(int i = 0; i < buildTypes.length; i++)
+		{
+			int choice = random.nextInt(totalWeight);
+			int referenced = 0;
+			for(int[] entry : mix)
+			{
+				choice -= entry[1];
+				if(choice < 0)
+				{
+					referenced = entry[0];
+					break;
+				}
+			}
+
+			// a partial Fisher-Yates shuffle picks the referenced numbers without repeating any
+			for(int j = 0; j < referenced; j++)
+			{
+				int k = j + random.nextInt(shuffled.length - j);
+				int swap = shuffled[j];
+				shuffled[j] = shuffled[k];
+				shuffled[k] = swap;
+			}
+
+			buildTypes[i] = new SimulatedBuildType(
+					i, Arrays.copyOf(shuffled, referenced), random.nextInt(100) < this.customizedPercent
+			);
+		}
+		return buildTypes;
+	}
+
+	private Worker[] simulate(BuildNumberPropertiesProvider provider, SimulatedBuildType[] buildTypes, int[] ids)
+			throws Exception
+	{
+		long start = System.nanoTime();
+		long measureFrom = start + this.warmUpMillis * 1000000L;
+		long stopAt = measureFrom + this.durationMillis * 1000000L;
+		// each thread starts its share of the builds, so its mean interval is the arrival rate's divided among them
+		long meanIntervalNanos = this.arrivalRate > 0.0D ? (long)(this.threads * 1.0E9D / this.arrivalRate) : 0L;
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean.isThreadContentionMonitoringSupported())
+			threadBean.setThreadContentionMonitoringEnabled(true);
+
+		AtomicLong promotionIds = new AtomicLong();
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Worker[] workers = new Worker[this.threads];
+		Thread[] threads = new Thread[this.threads];
+		for(int i = 0; i < workers.length; i++)
+		{
+			workers[i] = new Worker(
+					provider, buildTypes, ids, new Random(this.seed + i + 1), promotionIds, failure, start,
+					measureFrom, stopAt, meanIntervalNanos
+			);
+			threads[i] = new Thread(workers[i], "Simulated-Build-Start-" + i);
+			threads[i].start();
+		}
+
+		for(Thread thread : threads)
+			thread.join();
+
+		if(failure.get() != null)
+			throw new IllegalStateException("A simulated build start failed.", failure.get());
+
+		return workers;
+	}
+
+	private void report(PrintStream out, PluginConfigurationServiceDefault service, Worker[] workers)
+	{
+		LatencyHistogram latency = new LatencyHistogram();
+		LatencyHistogram serviceTime = new LatencyHistogram();
+		long builds = 0L;
+		for(Worker worker : workers)
+		{
+			latency.add(worker.latency);
+			serviceTime.add(worker.serviceTime);
+			builds += worker.builds;
+		}
+
+		out.println();
+		out.println(String.format(
+				"builds started: %d, measured: %d, throughput: %.1f builds/s", builds, latency.getCount(),
+				latency.getCount() / (this.durationMillis / 1000.0D)
+		));
+		out.println(String.format("%-28s %10s %10s %10s %10s %12s", "", "p50 (ms)", "p99 (ms)", "p99.9 (ms)",
+								  "max (ms)", "count"));
+		BuildStartLoadSimulator.print(out, "build start latency", latency.getCount(), latency.getPercentile(50.0D),
+									  latency.getPercentile(99.0D), latency.getPercentile(99.9D),
+									  latency.getMaximum());
+		BuildStartLoadSimulator.print(out, "build start service time", serviceTime.getCount(),
+									  serviceTime.getPercentile(50.0D), serviceTime.getPercentile(99.0D),
+									  serviceTime.getPercentile(99.9D), serviceTime.getMaximum());
+
+		SharedBuildNumberMetrics.LatencySummary increment = service.getMetrics().getIncrementLatency();
+		BuildStartLoadSimulator.print(out, "increment (incl. journal)", increment.getCount(), increment.getMedian(),
+									  increment.getPercentile99(), increment.getPercentile999(),
+									  increment.getMaximum());
+
+		SharedBuildNumberMetrics.LatencySummary lockWait = service.getMetrics().getConfigurationLockWait();
+		BuildStartLoadSimulator.print(out, "configuration lock wait", lockWait.getCount(), lockWait.getMedian(),
+									  lockWait.getPercentile99(), lockWait.getPercentile999(), lockWait.getMaximum());
+
+		long blocked = 0L;
+		long blockedMillis = 0L;
+		for(Worker worker : workers)
+		{
+			blocked += worker.blocked;
+			blockedMillis += worker.blockedMillis;
+		}
+		out.println(String.format(
+				"monitor contention: the simulated threads blocked %d times for %d ms in total", blocked, blockedMillis
+		));
+	}
+
+	private static void print(PrintStream out, String name, long count, long p50, long p99, long p999, long maximum)
+	{
+		out.println(String.format(
+				"%-28s %10.3f %10.3f %10.3f %10.3f %12d", name, p50 / 1000000.0D, p99 / 1000000.0D,
+				p999 / 1000000.0D, maximum / 1000000.0D, count
+		));
+	}
+
+	private List<String> verify(PluginConfigurationService service, Worker[] workers, int[] ids)
+	{
+		List<String> failures = new ArrayList<String>();
+		for(Worker worker : workers)
+			failures.addAll(worker.failures);
+
+		for(int i = 0; i < ids.length; i++)
+		{
+			int total = 0;
+			for(Worker worker : workers)
+				total += worker.issuedCounts[i];
+
+			int[] issued = new int[total];
+			int offset = 0;
+			for(Worker worker : workers)
+			{
+				System.arraycopy(worker.issued[i], 0, issued, offset, worker.issuedCounts[i]);
+				offset += worker.issuedCounts[i];
+			}
+			Arrays.sort(issued);
+
+			// new shared build numbers start counting at 1
+			for(int j = 0; j < issued.length; j++)
+			{
+				if(issued[j] != j + 1)
+				{
+					failures.add(String.format(
+							"Shared build number %d issued %s where %d was expected.", ids[i],
+							j > 0 && issued[j] == issued[j - 1] ? "duplicate " + issued[j] : issued[j], j + 1
+					));
+					break;
+				}
+			}
+
+			SharedBuildNumber buildNumber = service.getSharedBuildNumber(ids[i]);
+			if(buildNumber == null || buildNumber.getCounter() != total + 1)
+			{
+				failures.add(String.format(
+						"Shared build number %d has counter %s after issuing %d numbers.", ids[i],
+						buildNumber == null ? "null" : buildNumber.getCounter(), total
+				));
+			}
+		}
+
+		return failures;
+	}
+
+	private static final class Worker implements Runnable
+	{
+		private final BuildNumberPropertiesProvider provider;
+
+		private final SimulatedBuildType[] buildTypes;
+
+		private final int[] ids;
+
+		private final Random random;
+
+		private final AtomicLong promotionIds;
+
+		private final AtomicReference<Throwable> failure;
+
+		private final long start;
+
+		private final long measureFrom;
+
+		private final long stopAt;
+
+		private final long meanIntervalNanos;
+
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+		private final int[][] issued;
+
+		private final int[] issuedCounts;
+
+		private final List<String> failures = new ArrayList<String>();
+
+		private long builds;
+
+		private long blocked;
+
+		private long blockedMillis;
+
+		private Worker(BuildNumberPropertiesProvider provider, SimulatedBuildType[] buildTypes, int[] ids,
+					   Random random, AtomicLong promotionIds, AtomicReference<Throwable> failure, long start,
+					   long measureFrom, long stopAt, long meanIntervalNanos)
+		{
+			this.provider = provider;
+			this.buildTypes = buildTypes;
+			this.ids = ids;
+			this.random = random;
+			this.promotionIds = promotionIds;
+			this.failure = failure;
+			this.start = start;
+			this.measureFrom = measureFrom;
+			this.stopAt = stopAt;
+			this.meanIntervalNanos = meanIntervalNanos;
+
+			this.issued = new int[ids.length][16];
+			this.issuedCounts = new int[ids.length];
+		}
+
+		@Override
+		public void run()
+		{
+			ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			ThreadInfo before = threadBean.getThreadInfo(Thread.currentThread().getId());
+
+			try
+			{
+				long due = this.start;
+				while(true)
+				{
+					if(this.meanIntervalNanos > 0L)
+					{
+						// exponential intervals make the arrivals of all of the threads together a Poisson process
+						due += (long)(-Math.log(1.0D - this.random.nextDouble()) * this.meanIntervalNanos);
+						long now;
+						while((now = System.nanoTime()) < due)
+							LockSupport.parkNanos(due - now);
+					}
+					else
+					{
+						due = System.nanoTime();
+					}
+
+					if(due >= this.stopAt)
+						break;
+
+					SimulatedBuildType buildType = this.buildTypes[this.random.nextInt(this.buildTypes.length)];
+					BuildStartContext context = buildType.newBuildStartContext(this.promotionIds.incrementAndGet());
+
+					long started = System.nanoTime();
+					this.provider.updateParameters(context);
+					long finished = System.nanoTime();
+
+					this.builds++;
+					if(due >= this.measureFrom)
+					{
+						this.latency.record(finished - due);
+						this.serviceTime.record(finished - started);
+					}
+
+					this.check(buildType, context.getSharedParameters());
+				}
+			}
+			catch(Throwable e)
+			{
+				this.failure.compareAndSet(null, e);
+			}
+
+			ThreadInfo after = threadBean.getThreadInfo(Thread.currentThread().getId());
+			this.blocked = after.getBlockedCount() - before.getBlockedCount();
+			this.blockedMillis = after.getBlockedTime() - before.getBlockedTime();
+		}
+
+		/**
+		 * Records the counters issued to a build, and checks that the build got a number for every shared build
+		 * number it references and that this thread has not seen any of the numbers go backward.
+		 */
+		private void check(SimulatedBuildType buildType, Map<String, String> sharedParameters)
+		{
+			for(int id : buildType.getReferencedIds())
+			{
+				String value = sharedParameters.get(BuildNumberPropertiesProvider.PARAMETER_PREFIX + id);
+				if(value == null)
+				{
+					this.failures.add("A build got no number for shared build number " + id + ".");
+					continue;
+				}
+
+				int counter = Integer.parseInt(value.substring(value.lastIndexOf('.') + 1));
+				int index = Arrays.binarySearch(this.ids, id);
+
+				int count = this.issuedCounts[index];
+				if(count > 0 && this.issued[index][count - 1] >= counter)
+				{
+					this.failures.add(String.format(
+							"Shared build number %d went from %d to %d on one thread.", id,
+							this.issued[index][count - 1], counter
+					));
+				}
+
+				if(count == this.issued[index].length)
+					this.issued[index] = Arrays.copyOf(this.issued[index], count << 1);
+				this.issued[index][count] = counter;
+				this.issuedCounts[index] = count + 1;
+			}
+		}
+	}
+}
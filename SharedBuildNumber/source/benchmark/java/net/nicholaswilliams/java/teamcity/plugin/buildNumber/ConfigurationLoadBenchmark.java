@@ -0,0 +1,150 @@
+/*
+ * ConfigurationLoadBenchmark.java from TeamCityPlugins modified Saturday, November 3, 2012 14:07:52 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import org.apache.commons.io.FileUtils;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Compares the time it takes to load synthetic configurations of increasing size at startup: with schema validation
+ * followed by the streaming {@link ConfigurationFileReader}; with the streaming reader alone, as when the file's
+ * checksum matches the last validated one; and from the binary {@link ConfigurationSnapshot}, which normally replaces
+ * parsing at startup, including reading and checksumming the XML file to confirm that the snapshot is current.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ConfigurationLoadBenchmark extends Benchmark
+{
+	private static final int[] SIZES = { 100, 10000, 100000 };
+
+	private static volatile int sink;
+
+	@Override
+	public String getName()
+	{
+		return "Configuration loading";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		final Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
+				new StreamSource(this.getClass().getResourceAsStream(PluginConfigurationService.CONFIG_XSD_FILE_NAME))
+		);
+
+		final ConfigurationFileReader reader = new ConfigurationFileReader();
+
+		final File file = new File(workDirectory, "configuration-load-benchmark.xml");
+		File snapshotFile = new File(workDirectory, "configuration-load-benchmark.snapshot");
+		final ConfigurationSnapshot snapshot = new ConfigurationSnapshot(snapshotFile);
+		ConfigurationFileWriter writer = new ConfigurationFileWriter(
+				file, PluginFileUtils.readLines(this.getClass(), "shared-build-number-config.xml.dist").subList(0, 22)
+		);
+
+		out.println(String.format("%-10s %-14s %14s", "entries", "method", "ms/load"));
+
+		try
+		{
+			for(int size : ConfigurationLoadBenchmark.SIZES)
+			{
+				ConfigurationEntity generated = SyntheticConfiguration.create(size);
+				writer.prepare(generated);
+				writer.commit();
+				final byte[] content = FileUtils.readFileToByteArray(file);
+				snapshot.write(generated, ConfigurationFileWatcher.checksum(content), content.length);
+				int iterations = Math.max(2, 500000 / size / 100);
+
+				double validated = ConfigurationLoadBenchmark.measureMillis(iterations, new Operation() {
+					@Override
+					public void execute(int thread) throws Exception
+					{
+						Validator validator = schema.newValidator();
+						validator.setErrorHandler(new ConfigurationErrorHandler());
+						validator.validate(new StreamSource(new ByteArrayInputStream(content)));
+						ConfigurationEntity configuration = reader.read(new ByteArrayInputStream(content));
+						ConfigurationLoadBenchmark.sink = configuration.getBuildNumbers().size();
+					}
+				});
+
+				double streaming = ConfigurationLoadBenchmark.measureMillis(iterations, new Operation() {
+					@Override
+					public void execute(int thread) throws Exception
+					{
+						ConfigurationLoadBenchmark.sink = (int)ConfigurationFileWatcher.checksum(content);
+						ConfigurationEntity configuration = reader.read(new ByteArrayInputStream(content));
+						ConfigurationLoadBenchmark.sink = configuration.getBuildNumbers().size();
+					}
+				});
+
+				double binary = ConfigurationLoadBenchmark.measureMillis(iterations, new Operation() {
+					@Override
+					public void execute(int thread) throws Exception
+					{
+						byte[] source = FileUtils.readFileToByteArray(file);
+						ConfigurationEntity configuration = snapshot.read(
+								ConfigurationFileWatcher.checksum(source), source.length
+						);
+						ConfigurationLoadBenchmark.sink = configuration.getBuildNumbers().size();
+					}
+				});
+
+				out.println(String.format("%-10d %-14s %14.2f", size, "validate+sax", validated));
+				out.println(String.format("%-10d %-14s %14.2f", size, "sax", streaming));
+				out.println(String.format("%-10d %-14s %14.2f", size, "snapshot", binary));
+
+				this.record("entries=" + size + " method=validate+sax", "time", validated, "ms/op");
+				this.record("entries=" + size + " method=sax", "time", streaming, "ms/op");
+				this.record("entries=" + size + " method=snapshot", "time", binary, "ms/op");
+			}
+		}
+		finally
+		{
+			if(file.exists())
+				FileUtils.forceDelete(file);
+			if(snapshotFile.exists())
+				FileUtils.forceDelete(snapshotFile);
+		}
+	}
+
+	/**
+	 * Loading a large file takes far longer than the harness's measurement period, so loads are timed one by one
+	 * after a single warm-up load instead.
+	 */
+	private static double measureMillis(int iterations, Operation operation) throws Exception
+	{
+		operation.execute(0);
+
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			operation.execute(0);
+
+		return (System.nanoTime() - start) / 1000000.0D / iterations;
+	}
+}
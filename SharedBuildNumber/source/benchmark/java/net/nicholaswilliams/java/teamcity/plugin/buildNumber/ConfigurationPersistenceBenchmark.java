@@ -0,0 +1,134 @@
+/*
+ * ConfigurationPersistenceBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Measures how long a real service takes to save its configuration and to load it again, at configuration sizes from
+ * a handful of shared build numbers to far more than any server is known to have. The "xml" load parses the
+ * configuration file and writes a new binary snapshot, as the first start after the file changed does; the "snapshot"
+ * load reads the current snapshot, as every other start does.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ConfigurationPersistenceBenchmark extends Benchmark
+{
+	private static final int[] SIZES = { 10, 1000, 100000 };
+
+	@Override
+	public String getName()
+	{
+		return "Configuration saving and loading";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		out.println(String.format("%-10s %-14s %14s", "entries", "operation", "ms/operation"));
+
+		for(int size : ConfigurationPersistenceBenchmark.SIZES)
+		{
+			File configDirectory = new File(workDirectory, "configuration-persistence");
+			if(configDirectory.exists())
+				FileUtils.deleteDirectory(configDirectory);
+			FileUtils.forceMkdir(configDirectory);
+
+			SyntheticConfiguration.write(configDirectory, size);
+
+			final File snapshotFile = new File(configDirectory, PluginConfigurationService.CONFIG_SNAPSHOT_FILE_NAME);
+			final PluginConfigurationServiceDefault service = new PluginConfigurationServiceDefault(
+					new ServerPaths(workDirectory.getPath(), configDirectory.getPath(), workDirectory.getPath())
+			);
+			service.initialize();
+
+			try
+			{
+				double save = ConfigurationPersistenceBenchmark.measureMillis(new Operation() {
+					@Override
+					public void execute(int thread) throws Exception
+					{
+						service.saveConfiguration();
+					}
+				});
+
+				double xml = ConfigurationPersistenceBenchmark.measureMillis(new Operation() {
+					@Override
+					public void execute(int thread) throws Exception
+					{
+						if(snapshotFile.exists())
+							FileUtils.forceDelete(snapshotFile);
+						service.loadConfiguration();
+					}
+				});
+
+				double snapshot = ConfigurationPersistenceBenchmark.measureMillis(new Operation() {
+					@Override
+					public void execute(int thread) throws Exception
+					{
+						service.loadConfiguration();
+					}
+				});
+
+				out.println(String.format("%-10d %-14s %14.3f", size, "save", save));
+				out.println(String.format("%-10d %-14s %14.3f", size, "load xml", xml));
+				out.println(String.format("%-10d %-14s %14.3f", size, "load snapshot", snapshot));
+
+				this.record("entries=" + size + " operation=save", "time", save, "ms/op");
+				this.record("entries=" + size + " operation=load-xml", "time", xml, "ms/op");
+				this.record("entries=" + size + " operation=load-snapshot", "time", snapshot, "ms/op");
+			}
+			finally
+			{
+				service.destroy();
+				FileUtils.deleteDirectory(configDirectory);
+			}
+		}
+	}
+
+	/**
+	 * Saving or loading a large configuration takes longer than the harness's measurement period, so operations are
+	 * timed one by one after a single warm-up operation, until the measurement period has passed and at least two
+	 * operations have been timed.
+	 */
+	private static double measureMillis(Operation operation) throws Exception
+	{
+		operation.execute(0);
+
+		int iterations = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do
+		{
+			operation.execute(0);
+			iterations++;
+			elapsed = System.nanoTime() - start;
+		}
+		while(iterations < 2 || elapsed < Benchmark.DEFAULT_MEASUREMENT_MILLIS * 1000000L);
+
+		return elapsed / 1000000.0D / iterations;
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * ConfigurationReadContentionBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Measures the latency of configuration reads (a name lookup and a page of the sorted listing, as the parameter
+ * autocomplete and the admin page do) while other threads continuously increment a shared build number. The
+ * "read-write lock" mode reproduces the former locking, where every read took the read lock and every increment held
+ * the write lock across its file write; the "snapshot" mode uses the service's lock-free copy-on-write snapshots as
+ * they are. Readers pause briefly between reads, like real request threads, so that they do not starve the
+ * incrementing threads.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ConfigurationReadContentionBenchmark extends Benchmark
+{
+	private static final int READERS = 4;
+
+	private static final int INCREMENTERS = 2;
+
+	private static final long READER_PAUSE_NANOSECONDS = 20000L;
+
+	@Override
+	public String getName()
+	{
+		return "Configuration read latency under increments";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		File configDirectory = new File(workDirectory, "read-contention");
+		if(configDirectory.exists())
+			FileUtils.deleteDirectory(configDirectory);
+		FileUtils.forceMkdir(configDirectory);
+
+		PluginConfigurationServiceDefault service = new PluginConfigurationServiceDefault(
+				new ServerPaths(workDirectory.getPath(), configDirectory.getPath(), workDirectory.getPath())
+		);
+		service.initialize();
+
+		try
+		{
+			out.println(String.format(
+					"%-16s %10s %12s %10s %10s %10s %10s %10s", "mode", "reads", "increments", "p50 (us)", "p90 (us)",
+					"p99 (us)", "p99.9 (us)", "max (us)"
+			));
+
+			this.measure(service, true, out);
+			this.measure(service, false, out);
+		}
+		finally
+		{
+			service.destroy();
+			FileUtils.deleteDirectory(configDirectory);
+		}
+	}
+
+	private void measure(final PluginConfigurationServiceDefault service, final boolean locked, PrintStream out)
+			throws Exception
+	{
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final LatencyHistogram[] histograms = new LatencyHistogram[ConfigurationReadContentionBenchmark.READERS];
+		final AtomicLong increments = new AtomicLong();
+		final long deadline = System.nanoTime() + (Benchmark.DEFAULT_WARM_UP_MILLIS +
+												   Benchmark.DEFAULT_MEASUREMENT_MILLIS) * 1000000L;
+		final long measureFrom = System.nanoTime() + Benchmark.DEFAULT_WARM_UP_MILLIS * 1000000L;
+
+		Thread[] threads = new Thread[ConfigurationReadContentionBenchmark.READERS +
+									  ConfigurationReadContentionBenchmark.INCREMENTERS];
+
+		for(int i = 0; i < ConfigurationReadContentionBenchmark.READERS; i++)
+		{
+			final LatencyHistogram histogram = histograms[i] = new LatencyHistogram();
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					long now;
+					while((now = System.nanoTime()) < deadline)
+					{
+						if(locked)
+							lock.readLock().lock();
+						try
+						{
+							service.getSharedBuildNumberName(1);
+							service.getSharedBuildNumbersSortedByName(false, 0, 50);
+						}
+						finally
+						{
+							if(locked)
+								lock.readLock().unlock();
+						}
+
+						if(now >= measureFrom)
+							histogram.record(System.nanoTime() - now);
+
+						LockSupport.parkNanos(ConfigurationReadContentionBenchmark.READER_PAUSE_NANOSECONDS);
+					}
+				}
+			}, "Benchmark-Reader-" + i);
+		}
+
+		for(int i = 0; i < ConfigurationReadContentionBenchmark.INCREMENTERS; i++)
+		{
+			threads[ConfigurationReadContentionBenchmark.READERS + i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						while(System.nanoTime() < deadline)
+						{
+							if(locked)
+								lock.writeLock().lock();
+							try
+							{
+								service.getAndIncrementFormattedSharedBuildNumber(1);
+								increments.incrementAndGet();
+							}
+							finally
+							{
+								if(locked)
+									lock.writeLock().unlock();
+							}
+						}
+					}
+					catch(Exception e)
+					{
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "Benchmark-Incrementer-" + i);
+		}
+
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+
+		if(failure.get() != null)
+			throw failure.get();
+
+		LatencyHistogram all = new LatencyHistogram();
+		for(LatencyHistogram histogram : histograms)
+			all.add(histogram);
+
+		out.println(String.format(
+				"%-16s %10d %12d %10.1f %10.1f %10.1f %10.1f %10.1f", locked ? "read-write lock" : "snapshot",
+				all.getCount(), increments.get(), all.getPercentile(50.0D) / 1000.0D,
+				all.getPercentile(90.0D) / 1000.0D, all.getPercentile(99.0D) / 1000.0D,
+				all.getPercentile(99.9D) / 1000.0D, all.getMaximum() / 1000.0D
+		));
+
+		String scenario = locked ? "mode=read-write-lock" : "mode=snapshot";
+		this.record(scenario, "p50", all.getPercentile(50.0D) / 1000.0D, "us");
+		this.record(scenario, "p99", all.getPercentile(99.0D) / 1000.0D, "us");
+		this.record(scenario, "p99.9", all.getPercentile(99.9D) / 1000.0D, "us");
+		this.record(scenario, "max", all.getMaximum() / 1000.0D, "us");
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * IncrementThroughputBenchmark.java from TeamCityPlugins modified Friday, November 2, 2012 15:42:08 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Measures how many single shared build numbers a real service and journal can increment per second as the number of
+ * threads incrementing them at the same time grows. In the "shared" mode every thread increments the same number, so
+ * the threads contend for its lock and share journal flushes; in the "distinct" mode every thread increments a number
+ * of its own, so they only share journal flushes. Both modes are measured with every {@link Durability}.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class IncrementThroughputBenchmark extends Benchmark
+{
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	private static final int MAX_THREADS = 64;
+
+	@Override
+	public String getName()
+	{
+		return "Increment throughput by thread count";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		File configDirectory = new File(workDirectory, "increment-throughput");
+		if(configDirectory.exists())
+			FileUtils.deleteDirectory(configDirectory);
+		FileUtils.forceMkdir(configDirectory);
+
+		final PluginConfigurationServiceDefault service = new PluginConfigurationServiceDefault(
+				new ServerPaths(workDirectory.getPath(), configDirectory.getPath(), workDirectory.getPath())
+		);
+		service.initialize();
+
+		try
+		{
+			final int[] ids = new int[IncrementThroughputBenchmark.MAX_THREADS];
+			for(int i = 0; i < ids.length; i++)
+			{
+				SharedBuildNumber buildNumber = new SharedBuildNumber(service.getNextBuildNumberId());
+				buildNumber.setName("Benchmark Build Number " + i);
+				buildNumber.setFormat("1." + i + ".{0}");
+				service.saveSharedBuildNumber(buildNumber);
+				ids[i] = buildNumber.getId();
+			}
+
+			out.println(String.format(
+					"%-10s %-10s %-10s %14s %14s", "durability", "threads", "mode", "increments/s", "us/increment"
+			));
+
+			for(Durability durability : Durability.values())
+			{
+				for(int id : ids)
+				{
+					SharedBuildNumber buildNumber = service.getSharedBuildNumber(id);
+					buildNumber.setDurability(durability);
+					service.saveSharedBuildNumber(buildNumber);
+				}
+
+				this.measure(service, ids, durability, out);
+			}
+		}
+		finally
+		{
+			service.destroy();
+			FileUtils.deleteDirectory(configDirectory);
+		}
+	}
+
+	private void measure(final PluginConfigurationServiceDefault service, final int[] ids, Durability durability,
+						 PrintStream out) throws Exception
+	{
+		for(int threads : IncrementThroughputBenchmark.THREADS)
+		{
+			double shared = Benchmark.measureThroughput(threads, new Operation() {
+				@Override
+				public void execute(int thread) throws Exception
+				{
+					service.getAndIncrementFormattedSharedBuildNumber(ids[0]);
+				}
+			});
+
+			double distinct = Benchmark.measureThroughput(threads, new Operation() {
+				@Override
+				public void execute(int thread) throws Exception
+				{
+					service.getAndIncrementFormattedSharedBuildNumber(ids[thread]);
+				}
+			});
+
+			out.println(String.format(
+					"%-10s %-10d %-10s %14.0f %14.2f", durability, threads, "shared", shared,
+					threads * 1000000.0D / shared
+			));
+			out.println(String.format(
+					"%-10s %-10d %-10s %14.0f %14.2f", durability, threads, "distinct", distinct,
+					threads * 1000000.0D / distinct
+			));
+
+			String scenario = "durability=" + durability + " threads=" + threads;
+			this.record(scenario + " mode=shared", "throughput", shared, "ops/s");
+			this.record(scenario + " mode=distinct", "throughput", distinct, "ops/s");
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * JournalGroupCommitBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures increment journal throughput as the number of concurrently incrementing threads grows, for a few group
+ * commit flush windows. The average batch size shows how many increments shared each fsync.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class JournalGroupCommitBenchmark extends Benchmark
+{
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	private static final long[] FLUSH_WINDOWS_MICROSECONDS = { 0L, 100L, 1000L };
+
+	@Override
+	public String getName()
+	{
+		return "Increment journal group commit";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		out.println(String.format("%-10s %-12s %14s %12s", "threads", "window (us)", "appends/s", "avg batch"));
+
+		for(long window : JournalGroupCommitBenchmark.FLUSH_WINDOWS_MICROSECONDS)
+		{
+			for(int threads : JournalGroupCommitBenchmark.THREADS)
+			{
+				File file = File.createTempFile("benchmark", ".journal", workDirectory);
+				if(!file.delete())
+					throw new IllegalStateException("Could not delete " + file + ".");
+
+				final IncrementJournal journal = new IncrementJournal(file);
+				journal.setFlushWindow(window, TimeUnit.MICROSECONDS);
+				journal.open();
+
+				try
+				{
+					final int[] counters = new int[threads];
+					double throughput = Benchmark.measureThroughput(threads, new Operation() {
+						@Override
+						public void execute(int thread) throws Exception
+						{
+							journal.append(thread + 1, ++counters[thread]);
+						}
+					});
+
+					double batch = journal.getFlushCount() == 0 ? 0.0D :
+							(double)journal.getFlushedRecordCount() / journal.getFlushCount();
+
+					out.println(String.format("%-10d %-12d %14.0f %12.2f", threads, window, throughput, batch));
+
+					String scenario = "threads=" + threads + " window=" + window;
+					this.record(scenario, "throughput", throughput, "ops/s");
+					this.record(scenario, "batch", batch, "records/flush");
+				}
+				finally
+				{
+					journal.close();
+					if(!file.delete())
+						file.deleteOnExit();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * LatencyHistogram.java from TeamCityPlugins modified Thursday, October 11, 2012 22:31:09 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+/**
+ * A fixed-size, log-linear latency histogram: each power-of-two range of nanoseconds is split into 16 equal buckets, so
+ * recorded values are kept to within about 6% without storing individual samples. Not thread-safe; give each thread
+ * its own histogram and {@link #add(LatencyHistogram) add} them together afterwards.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << LatencyHistogram.SUB_BUCKET_BITS;
+
+	private final long[] buckets = new long[64 * LatencyHistogram.SUB_BUCKETS];
+
+	private long count;
+
+	private long maximum;
+
+	public void record(long nanoseconds)
+	{
+		long value = Math.max(0L, nanoseconds);
+		this.buckets[LatencyHistogram.indexOf(value)]++;
+		this.count++;
+		if(value > this.maximum)
+			this.maximum = value;
+	}
+
+	public void add(LatencyHistogram other)
+	{
+		for(int i = 0; i < this.buckets.length; i++)
+			this.buckets[i] += other.buckets[i];
+		this.count += other.count;
+		this.maximum = Math.max(this.maximum, other.maximum);
+	}
+
+	public long getCount()
+	{
+		return this.count;
+	}
+
+	public long getMaximum()
+	{
+		return this.maximum;
+	}
+
+	/**
+	 * @param percentile The percentile to return, between 0 and 100
+	 * @return the (upper bound of the bucket of the) recorded value at the given percentile, in nanoseconds.
+	 */
+	public long getPercentile(double percentile)
+	{
+		if(this.count == 0)
+			return 0L;
+
+		long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0D * this.count));
+		long seen = 0;
+		for(int i = 0; i < this.buckets.length; i++)
+		{
+			seen += this.buckets[i];
+			if(seen >= rank)
+				return Math.min(LatencyHistogram.upperBoundOf(i), this.maximum);
+		}
+
+		return this.maximum;
+	}
+
+	private static int indexOf(long value)
+	{
+		if(value < LatencyHistogram.SUB_BUCKETS)
+			return (int)value;
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - LatencyHistogram.SUB_BUCKET_BITS;
+		int subBucket = (int)(value >>> shift) & (LatencyHistogram.SUB_BUCKETS - 1);
+		return (shift + 1) * LatencyHistogram.SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBoundOf(int index)
+	{
+		if(index < LatencyHistogram.SUB_BUCKETS)
+			return index;
+
+		int shift = index / LatencyHistogram.SUB_BUCKETS - 1;
+		long subBucket = index % LatencyHistogram.SUB_BUCKETS;
+		return ((LatencyHistogram.SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * QueueReservationBenchmark.java from TeamCityPlugins modified Saturday, November 3, 2012 15:18:26 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.EventDispatcher;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Measures the shared build number work left on the build start path when the numbers are reserved while builds wait
+ * in the queue, on a real service and journal. A simulated queue holds {@value #QUEUE_DEPTH} builds: every build
+ * added to it reserves its numbers, and builds leave it one at a time, every {@value #PACING_MILLIS} ms, the same way
+ * in both modes. The "synchronous" mode increments the numbers when each build starts, as the build start processor
+ * does without reservations; the "reserved" mode only takes the reservation made while the build was queued. Only the
+ * build start itself is timed. Only numbers that allow gaps are reserved for, so every number in this benchmark
+ * allows gaps in both modes.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class QueueReservationBenchmark extends Benchmark
+{
+	private static final int[] REFERENCED = { 1, 4, 8 };
+
+	private static final int MAX_REFERENCED = 8;
+
+	private static final int QUEUE_DEPTH = 16;
+
+	private static final long PACING_MILLIS = 2L;
+
+	private static final int STARTS = 500;
+
+	@Override
+	public String getName()
+	{
+		return "Build start latency with queue-time reservations";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		File configDirectory = new File(workDirectory, "queue-reservation");
+		if(configDirectory.exists())
+			FileUtils.deleteDirectory(configDirectory);
+		FileUtils.forceMkdir(configDirectory);
+
+		PluginConfigurationServiceDefault service = new PluginConfigurationServiceDefault(
+				new ServerPaths(workDirectory.getPath(), configDirectory.getPath(), workDirectory.getPath())
+		);
+		service.initialize();
+
+		EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+		QueuedBuildNumberReservations reservations = new QueuedBuildNumberReservations(
+				dispatcher, service, new ReferencedParameterCache(dispatcher)
+		);
+
+		try
+		{
+			int[] ids = new int[QueueReservationBenchmark.MAX_REFERENCED];
+			for(int i = 0; i < ids.length; i++)
+			{
+				SharedBuildNumber buildNumber = new SharedBuildNumber(service.getNextBuildNumberId());
+				buildNumber.setName("Benchmark Build Number " + i);
+				buildNumber.setFormat("1." + i + ".{0}");
+				buildNumber.setAllowGaps(true);
+				service.saveSharedBuildNumber(buildNumber);
+				ids[i] = buildNumber.getId();
+			}
+
+			out.println(String.format(
+					"%-12s %-12s %12s %12s %12s %14s", "referenced", "mode", "p50 us", "p99 us", "max us",
+					"saved us/start"
+			));
+
+			long promotionId = 0L;
+			for(int referenced : QueueReservationBenchmark.REFERENCED)
+			{
+				Set<Integer> referencedIds = new LinkedHashSet<Integer>();
+				for(int i = 0; i < referenced; i++)
+					referencedIds.add(ids[i]);
+
+				// warm up both paths before measuring either of them
+				QueueReservationBenchmark.simulate(service, null, referencedIds, promotionId);
+				promotionId += QueueReservationBenchmark.STARTS + QueueReservationBenchmark.QUEUE_DEPTH;
+				QueueReservationBenchmark.simulate(service, reservations, referencedIds, promotionId);
+				promotionId += QueueReservationBenchmark.STARTS + QueueReservationBenchmark.QUEUE_DEPTH;
+
+				LatencyHistogram synchronous =
+						QueueReservationBenchmark.simulate(service, null, referencedIds, promotionId);
+				promotionId += QueueReservationBenchmark.STARTS + QueueReservationBenchmark.QUEUE_DEPTH;
+				LatencyHistogram reserved =
+						QueueReservationBenchmark.simulate(service, reservations, referencedIds, promotionId);
+				promotionId += QueueReservationBenchmark.STARTS + QueueReservationBenchmark.QUEUE_DEPTH;
+
+				this.print(out, referenced, "synchronous", synchronous, "");
+				this.print(out, referenced, "reserved", reserved, String.format(
+						"%.1f", (synchronous.getPercentile(50.0D) - reserved.getPercentile(50.0D)) / 1000.0D
+				));
+			}
+		}
+		finally
+		{
+			reservations.destroy();
+			service.destroy();
+			FileUtils.deleteDirectory(configDirectory);
+		}
+	}
+
+	/**
+	 * Runs the simulated queue, reserving numbers as builds are queued if reservations are given, and returns the
+	 * latencies of the build starts.
+	 */
+	private static LatencyHistogram simulate(PluginConfigurationService service,
+											 QueuedBuildNumberReservations reservations, Set<Integer> ids,
+											 long firstPromotionId) throws Exception
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		long queued = firstPromotionId;
+		long started = firstPromotionId;
+		for(int i = 0; i < QueueReservationBenchmark.STARTS; i++)
+		{
+			while(queued - started < QueueReservationBenchmark.QUEUE_DEPTH)
+			{
+				if(reservations != null)
+					reservations.reserve(queued, ids);
+				queued++;
+			}
+
+			Thread.sleep(QueueReservationBenchmark.PACING_MILLIS);
+
+			long start = System.nanoTime();
+			if(reservations == null)
+				service.getAndIncrementFormattedSharedBuildNumbers(ids);
+			else if(reservations.take(started, ids).size() != ids.size())
+				throw new IllegalStateException("The reservation for build " + started + " was incomplete.");
+			histogram.record(System.nanoTime() - start);
+
+			started++;
+		}
+
+		// the builds still queued are removed from the queue without starting
+		if(reservations != null)
+		{
+			for(long promotionId = started; promotionId < queued; promotionId++)
+				reservations.release(promotionId);
+		}
+
+		return histogram;
+	}
+
+	private void print(PrintStream out, int referenced, String mode, LatencyHistogram histogram, String saved)
+	{
+		out.println(String.format(
+				"%-12d %-12s %12.1f %12.1f %12.1f %14s", referenced, mode, histogram.getPercentile(50.0D) / 1000.0D,
+				histogram.getPercentile(99.0D) / 1000.0D, histogram.getMaximum() / 1000.0D, saved
+		));
+
+		String scenario = "referenced=" + referenced + " mode=" + mode;
+		this.record(scenario, "p50", histogram.getPercentile(50.0D) / 1000.0D, "us");
+		this.record(scenario, "p99", histogram.getPercentile(99.0D) / 1000.0D, "us");
+		this.record(scenario, "max", histogram.getMaximum() / 1000.0D, "us");
+	}
+}
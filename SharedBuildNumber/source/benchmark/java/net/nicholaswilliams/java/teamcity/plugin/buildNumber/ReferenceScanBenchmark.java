@@ -0,0 +1,151 @@
+/*
+ * ReferenceScanBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.parameters.ReferencesResolverUtil;
+import org.apache.commons.lang.math.NumberUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares finding the shared build numbers referenced by a build's parameters by tokenizing every value with
+ * {@link ReferencesResolverUtil} and parsing the IDs out of the reference names, as builds used to, against the
+ * {@link SharedBuildNumberReferenceScanner}. The parameter maps are generated to look like those of real builds:
+ * mostly plain values and references to other parameters, with a shared build number referenced by about one value in
+ * a hundred.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ReferenceScanBenchmark extends Benchmark
+{
+	private static final int[] SIZES = { 500, 1000, 2500, 5000 };
+
+	private static volatile int sink;
+
+	@Override
+	public String getName()
+	{
+		return "Shared build number reference scanning";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		out.println(String.format("%-10s %-10s %14s %14s", "entries", "method", "scans/s", "us/scan"));
+
+		for(int size : ReferenceScanBenchmark.SIZES)
+		{
+			final Collection<String> values = ReferenceScanBenchmark.getParameters(size).values();
+
+			double tokenizing = Benchmark.measureThroughput(1, new Operation() {
+				@Override
+				public void execute(int thread)
+				{
+					Set<String> parameters = new HashSet<String>(values);
+					Set<Integer> ids = new HashSet<Integer>();
+					for(String parameter : parameters)
+					{
+						for(String reference : ReferencesResolverUtil.getReferences(parameter))
+						{
+							if(!reference.startsWith(BuildNumberPropertiesProvider.PARAMETER_PREFIX))
+								continue;
+
+							String id = reference.replace(BuildNumberPropertiesProvider.PARAMETER_PREFIX, "");
+							if(NumberUtils.isDigits(id))
+								ids.add(Integer.parseInt(id));
+						}
+					}
+					ReferenceScanBenchmark.sink = ids.size();
+				}
+			});
+
+			double scanning = Benchmark.measureThroughput(1, new Operation() {
+				@Override
+				public void execute(int thread)
+				{
+					SharedBuildNumberIdSet ids = new SharedBuildNumberIdSet();
+					SharedBuildNumberReferenceScanner.scan(values, ids);
+					ReferenceScanBenchmark.sink = ids.size();
+				}
+			});
+
+			out.println(String.format(
+					"%-10d %-10s %14.0f %14.2f", size, "tokenize", tokenizing, 1000000.0D / tokenizing
+			));
+			out.println(String.format(
+					"%-10d %-10s %14.0f %14.2f", size, "scanner", scanning, 1000000.0D / scanning
+			));
+
+			this.record("parameters=" + size + " method=tokenize", "throughput", tokenizing, "ops/s");
+			this.record("parameters=" + size + " method=scanner", "throughput", scanning, "ops/s");
+		}
+	}
+
+	private static Map<String, String> getParameters(int size)
+	{
+		Map<String, String> parameters = new HashMap<String, String>(size * 2);
+		for(int i = 0; i < size; i++)
+		{
+			String value;
+			switch(i % 10)
+			{
+				case 0:
+					value = i % 100 == 0 ? "%sharedBuildNumber.id" + (i / 100 + 1) + "%" : "true";
+					break;
+				case 1:
+					value = "%teamcity.build.checkoutDir%/modules/module" + i + "/target";
+					break;
+				case 2:
+					value = "-Xmx512m -XX:MaxPermSize=256m -Dbuild.counter=%build.counter% -Dmodule=" + i;
+					break;
+				case 3:
+					value = "http://repository.example.com/artifactory/libs-release-local/com/example/module" + i;
+					break;
+				case 4:
+					value = "clean install -DskipTests=%skip.tests% -P%maven.profile%,release";
+					break;
+				case 5:
+					value = "C:\\Program Files\\Java\\jdk1.6.0_37\\bin;%env.PATH%";
+					break;
+				case 6:
+					value = "Build completed at 100%% for configuration " + i;
+					break;
+				case 7:
+					value = Integer.toString(i * 37);
+					break;
+				case 8:
+					value = "%system.teamcity.projectName% :: %system.teamcity.buildConfName%";
+					break;
+				default:
+					value = "";
+					break;
+			}
+			parameters.put("parameter." + i, value);
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * SimulatedBuildType.java from TeamCityPlugins modified Saturday, November 3, 2012 17:36:18 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.parameters.ParametersProvider;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildStartContext;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SRunnerContext;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A build type whose builds can be started against {@link BuildNumberPropertiesProvider} without a TeamCity server.
+ * Its parameters are shaped like those of a real build: {@value #PARAMETERS} build parameters, most of them
+ * environment variables, system properties and TeamCity's own, some referencing other parameters, and
+ * {@value #RUNNERS} build steps of {@value #RUNNER_PARAMETERS} parameters each. The shared build numbers it references
+ * are referenced by its build number format and by build parameters, and one of them by its last build step too.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class SimulatedBuildType
+{
+	private static final int PARAMETERS = 150;
+
+	private static final int RUNNERS = 3;
+
+	private static final int RUNNER_PARAMETERS = 20;
+
+	private final int[] referencedIds;
+
+	private final String fullName;
+
+	private final String rawBuildNumber;
+
+	private final SBuildType buildType;
+
+	private final ParametersProvider parametersProvider;
+
+	private final List<SRunnerContext> runnerContexts;
+
+	private final Map<String, String> customParameters;
+
+	/**
+	 * @param index The index of the build type, from which its ID and the ID of its project are derived
+	 * @param referencedIds The IDs of the shared build numbers the build type references
+	 * @param customized Whether builds of the build type are started with custom parameters, which keeps the build
+	 *                   start processor from caching the shared build numbers the build type references
+	 */
+	public SimulatedBuildType(int index, int[] referencedIds, boolean customized)
+	{
+		this.referencedIds = referencedIds.clone();
+
+		final String buildTypeId = "bt" + index;
+		final String projectId = "project" + (index / 10);
+		this.fullName = "Project " + (index / 10) + " :: Build Type " + index;
+		this.rawBuildNumber = referencedIds.length == 0 ? "%build.counter%" :
+				"%" + BuildNumberPropertiesProvider.PARAMETER_PREFIX + referencedIds[0] + "%";
+
+		final Map<String, String> parameters = SimulatedBuildType.getParameters(index, referencedIds);
+		Map<String, Object> providerAnswers = new HashMap<String, Object>();
+		providerAnswers.put("getAll", parameters);
+		providerAnswers.put("get", new BenchmarkStubs.Answer() {
+			@Override
+			public Object answer(Object[] arguments)
+			{
+				return parameters.get((String)arguments[0]);
+			}
+		});
+		this.parametersProvider = BenchmarkStubs.stub(ParametersProvider.class, providerAnswers);
+
+		Map<String, Object> buildTypeAnswers = new HashMap<String, Object>();
+		buildTypeAnswers.put("getBuildTypeId", buildTypeId);
+		buildTypeAnswers.put("getProjectId", projectId);
+		buildTypeAnswers.put("getParametersProvider", this.parametersProvider);
+		this.buildType = BenchmarkStubs.stub(SBuildType.class, buildTypeAnswers);
+
+		List<SRunnerContext> runnerContexts = new ArrayList<SRunnerContext>(SimulatedBuildType.RUNNERS);
+		for(int runner = 0; runner < SimulatedBuildType.RUNNERS; runner++)
+		{
+			Map<String, Object> runnerAnswers = new HashMap<String, Object>();
+			runnerAnswers.put("getParameters", SimulatedBuildType.getRunnerParameters(
+					runner, runner == SimulatedBuildType.RUNNERS - 1 && referencedIds.length > 0 ?
+							referencedIds[referencedIds.length - 1] : 0
+			));
+			runnerContexts.add(BenchmarkStubs.stub(SRunnerContext.class, runnerAnswers));
+		}
+		this.runnerContexts = Collections.unmodifiableList(runnerContexts);
+
+		this.customParameters = customized ? Collections.singletonMap("release.candidate", "true") :
+				Collections.<String, String>emptyMap();
+	}
+
+	/**
+	 * @return the IDs of the shared build numbers the build type references. The array is shared and must not be
+	 *         modified.
+	 */
+	public int[] getReferencedIds()
+	{
+		return this.referencedIds;
+	}
+
+	/**
+	 * Creates the context of a new build of this build type, whose shared parameters start out empty and collect the
+	 * parameters added to the context, including the build number.
+	 *
+	 * @param promotionId The ID of the build's promotion
+	 * @return the context of the new build.
+	 */
+	public BuildStartContext newBuildStartContext(long promotionId)
+	{
+		Map<String, Object> promotionAnswers = new HashMap<String, Object>();
+		promotionAnswers.put("getId", promotionId);
+		promotionAnswers.put("getCustomParameters", this.customParameters);
+		promotionAnswers.put("findTops", new BuildPromotion[0]);
+		BuildPromotion promotion = BenchmarkStubs.stub(BuildPromotion.class, promotionAnswers);
+
+		final Map<String, String> sharedParameters = new HashMap<String, String>();
+
+		Map<String, Object> buildAnswers = new HashMap<String, Object>();
+		buildAnswers.put("getFullName", this.fullName);
+		buildAnswers.put("getBuildType", this.buildType);
+		buildAnswers.put("getBuildPromotion", promotion);
+		buildAnswers.put("getParametersProvider", this.parametersProvider);
+		buildAnswers.put("getRawBuildNumber", this.rawBuildNumber);
+		SRunningBuild build = BenchmarkStubs.stub(SRunningBuild.class, buildAnswers);
+
+		Map<String, Object> contextAnswers = new HashMap<String, Object>();
+		contextAnswers.put("getBuild", build);
+		contextAnswers.put("getRunnerContexts", this.runnerContexts);
+		contextAnswers.put("getSharedParameters", sharedParameters);
+		contextAnswers.put("addSharedParameter", new BenchmarkStubs.Answer() {
+			@Override
+			public Object answer(Object[] arguments)
+			{
+				sharedParameters.put((String)arguments[0], (String)arguments[1]);
+				return null;
+			}
+		});
+		return BenchmarkStubs.stub(BuildStartContext.class, contextAnswers);
+	}
+
+	private static Map<String, String> getParameters(int index, int[] referencedIds)
+	{
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		parameters.put("env.JAVA_HOME", "/usr/lib/jvm/java-6-openjdk");
+		parameters.put("env.PATH", "/usr/local/bin:/usr/bin:/bin:/usr/lib/jvm/java-6-openjdk/bin:/opt/ant/bin");
+		parameters.put("system.teamcity.buildType.id", "bt" + index);
+		parameters.put("system.teamcity.projectName", "Project " + (index / 10));
+		parameters.put("teamcity.build.checkoutDir", "/opt/buildAgent/work/" + Integer.toHexString(index * 7919));
+		parameters.put("teamcity.build.workingDir", "%teamcity.build.checkoutDir%");
+		parameters.put("dep.bt" + (index + 1) + ".build.number", "%dep.bt" + (index + 1) + ".system.build.number%");
+
+		for(int i = 0; i < referencedIds.length; i++)
+		{
+			String reference = "%" + BuildNumberPropertiesProvider.PARAMETER_PREFIX + referencedIds[i] + "%";
+			parameters.put("system.version.part" + i, reference);
+		}
+
+		for(int i = parameters.size(); i < SimulatedBuildType.PARAMETERS; i++)
+		{
+			switch(i % 4)
+			{
+				case 0:
+					parameters.put("env.BUILD_SETTING_" + i, "value-" + i);
+					break;
+				case 1:
+					parameters.put(
+							"system.build.property" + i, "-Dproperty" + i + "=%env.BUILD_SETTING_" + (i - 1) + "%"
+					);
+					break;
+				case 2:
+					parameters.put("teamcity.build.option" + i, i % 3 == 0 ? "true" : "false");
+					break;
+				default:
+					parameters.put("deploy.target" + i, "https://deploy.example.com/releases/" + i + "/artifacts.zip");
+					break;
+			}
+		}
+
+		return Collections.unmodifiableMap(parameters);
+	}
+
+	private static Map<String, String> getRunnerParameters(int runner, int referencedId)
+	{
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		parameters.put("teamcity.step.mode", "default");
+		parameters.put("use.custom.script", "true");
+		parameters.put("script.content", referencedId == 0 ?
+				"#!/bin/sh\nant -f build.xml -Dbuild.number=%build.number% dist\n" :
+				"#!/bin/sh\nant -f build.xml -Dversion=%" + BuildNumberPropertiesProvider.PARAMETER_PREFIX +
+						referencedId + "% dist\n"
+		);
+
+		for(int i = parameters.size(); i < SimulatedBuildType.RUNNER_PARAMETERS; i++)
+			parameters.put("runner" + runner + ".setting" + i, "%system.build.property" + (i * 4 + 1) + "% -verbose");
+
+		return Collections.unmodifiableMap(parameters);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * SortedListingBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Measures the service's sorted listing methods, one page of {@value #PAGE_SIZE} at a time from the middle of the
+ * list, on real services loaded with configurations of increasing size: paging by offset and by cursor in ID and in
+ * name order, and finding shared build numbers whose names start with or contain a string.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class SortedListingBenchmark extends Benchmark
+{
+	private static final int[] SIZES = { 1000, 100000 };
+
+	private static final int PAGE_SIZE = 50;
+
+	private static volatile int sink;
+
+	@Override
+	public String getName()
+	{
+		return "Sorted listing";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		out.println(String.format("%-10s %-16s %14s %14s", "entries", "method", "pages/s", "us/page"));
+
+		for(final int size : SortedListingBenchmark.SIZES)
+		{
+			File configDirectory = new File(workDirectory, "sorted-listing");
+			if(configDirectory.exists())
+				FileUtils.deleteDirectory(configDirectory);
+			FileUtils.forceMkdir(configDirectory);
+
+			SyntheticConfiguration.write(configDirectory, size);
+
+			final PluginConfigurationServiceDefault service = new PluginConfigurationServiceDefault(
+					new ServerPaths(workDirectory.getPath(), configDirectory.getPath(), workDirectory.getPath())
+			);
+			service.initialize();
+
+			try
+			{
+				final int middleId = size / 2;
+				final String middleName = service.getSharedBuildNumberName(middleId);
+
+				this.measure(out, size, "id offset", new Operation() {
+					@Override
+					public void execute(int thread)
+					{
+						SortedListingBenchmark.sink += service.getSharedBuildNumbersSortedById(
+								false, middleId, SortedListingBenchmark.PAGE_SIZE
+						).size();
+					}
+				});
+
+				this.measure(out, size, "name offset", new Operation() {
+					@Override
+					public void execute(int thread)
+					{
+						SortedListingBenchmark.sink += service.getSharedBuildNumbersSortedByName(
+								false, middleId, SortedListingBenchmark.PAGE_SIZE
+						).size();
+					}
+				});
+
+				this.measure(out, size, "id cursor", new Operation() {
+					@Override
+					public void execute(int thread)
+					{
+						SortedListingBenchmark.sink += service.getSharedBuildNumbersSortedByIdAfter(
+								middleId, false, SortedListingBenchmark.PAGE_SIZE
+						).size();
+					}
+				});
+
+				this.measure(out, size, "name cursor", new Operation() {
+					@Override
+					public void execute(int thread)
+					{
+						SortedListingBenchmark.sink += service.getSharedBuildNumbersSortedByNameAfter(
+								middleName, middleId, false, SortedListingBenchmark.PAGE_SIZE
+						).size();
+					}
+				});
+
+				this.measure(out, size, "name prefix", new Operation() {
+					@Override
+					public void execute(int thread)
+					{
+						SortedListingBenchmark.sink += service.findSharedBuildNumbersSortedByName(
+								"Synthetic Build Number 5", null, null, null, false, SortedListingBenchmark.PAGE_SIZE
+						).size();
+					}
+				});
+
+				this.measure(out, size, "name contains", new Operation() {
+					@Override
+					public void execute(int thread)
+					{
+						SortedListingBenchmark.sink += service.findSharedBuildNumbersSortedById(
+								null, "Number 77", null, false, SortedListingBenchmark.PAGE_SIZE
+						).size();
+					}
+				});
+			}
+			finally
+			{
+				service.destroy();
+				FileUtils.deleteDirectory(configDirectory);
+			}
+		}
+	}
+
+	private void measure(PrintStream out, int size, String method, Operation operation) throws Exception
+	{
+		double throughput = Benchmark.measureThroughput(1, operation);
+
+		out.println(String.format("%-10d %-16s %14.0f %14.2f", size, method, throughput, 1000000.0D / throughput));
+
+		this.record("entries=" + size + " method=" + method.replace(' ', '-'), "throughput", throughput, "ops/s");
+	}
+}
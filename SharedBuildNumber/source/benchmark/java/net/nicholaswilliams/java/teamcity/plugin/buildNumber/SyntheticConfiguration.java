@@ -0,0 +1,101 @@
+/*
+ * SyntheticConfiguration.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Generates configurations of any size for the benchmarks, mixing the kinds of build numbers found in real
+ * configurations: half of them have a plain format and the other half a date format, and every third one allows gaps.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class SyntheticConfiguration
+{
+	private SyntheticConfiguration()
+	{
+
+	}
+
+	/**
+	 * @param size The number of shared build numbers, which are given the IDs 1 through size
+	 * @return a new configuration with the given number of shared build numbers.
+	 */
+	public static ConfigurationEntity create(int size)
+	{
+		SettingsEntity settings = new SettingsEntity();
+		settings.setBuildNumberIdSequence(size + 1);
+
+		ConfigurationEntity configuration = new ConfigurationEntity();
+		configuration.setLastUpdate(new DateTime());
+		configuration.setSettings(settings);
+
+		for(int i = 1; i <= size; i++)
+		{
+			SharedBuildNumberEntity buildNumber = new SharedBuildNumberEntity();
+			buildNumber.setId(i);
+			buildNumber.setName("Synthetic Build Number " + i);
+			buildNumber.setDescription("A synthetic build number used for measuring how long the configuration loads.");
+			if(i % 2 == 0)
+			{
+				buildNumber.setFormat("1.0." + i + ".{0}");
+			}
+			else
+			{
+				buildNumber.setFormat("2.{d}.{0}");
+				buildNumber.setDateFormat("yyyyMMdd");
+			}
+			buildNumber.setAllowGaps(i % 3 == 0);
+			configuration.addOrUpdateBuildNumber(buildNumber);
+		}
+
+		return configuration;
+	}
+
+	/**
+	 * Writes a configuration file with the given number of shared build numbers to a configuration directory, where a
+	 * service created afterward will load it when it is initialized.
+	 *
+	 * @param configDirectory The TeamCity configuration directory
+	 * @param size The number of shared build numbers
+	 * @throws IOException if the file could not be written.
+	 */
+	public static void write(File configDirectory, int size) throws IOException
+	{
+		List<String> header = PluginFileUtils.readLines(
+				SyntheticConfiguration.class, "shared-build-number-config.xml.dist"
+		).subList(0, 22);
+
+		ConfigurationFileWriter writer = new ConfigurationFileWriter(
+				new File(configDirectory, PluginConfigurationService.CONFIG_XML_FILE_NAME), header
+		);
+		writer.prepare(SyntheticConfiguration.create(size));
+		writer.commit();
+	}
+}
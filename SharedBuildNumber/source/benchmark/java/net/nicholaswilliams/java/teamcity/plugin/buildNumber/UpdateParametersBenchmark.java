@@ -0,0 +1,147 @@
+/*
+ * UpdateParametersBenchmark.java from TeamCityPlugins modified Thursday, November 1, 2012 11:26:40 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.EventDispatcher;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the whole build start processor, {@link BuildNumberPropertiesProvider#updateParameters}, on a real service
+ * and journal, with {@link SimulatedBuildType simulated builds} whose parameters are shaped like those of real builds.
+ * Builds that reference no shared build numbers show the cost every other build pays; the "cached" builds have the
+ * shared build numbers their build types reference cached, while the "customized" builds are started with custom
+ * parameters, so their parameters are scanned every time.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class UpdateParametersBenchmark extends Benchmark
+{
+	private static final int[] REFERENCED = { 0, 1, 4 };
+
+	private static final int MAX_REFERENCED = 4;
+
+	private static final int[] THREADS = { 1, 4 };
+
+	private static final int BUILD_TYPES = 16;
+
+	@Override
+	public String getName()
+	{
+		return "Build start processor";
+	}
+
+	@Override
+	public void run(File workDirectory, PrintStream out) throws Exception
+	{
+		File configDirectory = new File(workDirectory, "update-parameters");
+		if(configDirectory.exists())
+			FileUtils.deleteDirectory(configDirectory);
+		FileUtils.forceMkdir(configDirectory);
+
+		PluginConfigurationServiceDefault service = new PluginConfigurationServiceDefault(
+				new ServerPaths(workDirectory.getPath(), configDirectory.getPath(), workDirectory.getPath())
+		);
+		service.initialize();
+
+		EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+		ReferencedParameterCache referencedParameterCache = new ReferencedParameterCache(dispatcher);
+		QueuedBuildNumberReservations reservations = new QueuedBuildNumberReservations(
+				dispatcher, service, referencedParameterCache
+		);
+		final BuildNumberPropertiesProvider provider = new BuildNumberPropertiesProvider(
+				BenchmarkStubs.stub(ExtensionHolder.class, Collections.<String, Object>emptyMap()), service,
+				new ChainBuildNumberCache(dispatcher), referencedParameterCache, reservations
+		);
+
+		try
+		{
+			int[] ids = new int[UpdateParametersBenchmark.MAX_REFERENCED];
+			for(int i = 0; i < ids.length; i++)
+			{
+				SharedBuildNumber buildNumber = new SharedBuildNumber(service.getNextBuildNumberId());
+				buildNumber.setName("Benchmark Build Number " + i);
+				buildNumber.setFormat("1." + i + ".{0}");
+				service.saveSharedBuildNumber(buildNumber);
+				ids[i] = buildNumber.getId();
+			}
+
+			out.println(String.format(
+					"%-12s %-12s %8s %14s %16s", "referenced", "parameters", "threads", "starts/s", "ms/start"
+			));
+
+			final AtomicLong promotionIds = new AtomicLong();
+			int index = 0;
+			for(int referenced : UpdateParametersBenchmark.REFERENCED)
+			{
+				int[] referencedIds = new int[referenced];
+				System.arraycopy(ids, 0, referencedIds, 0, referenced);
+
+				for(boolean customized : new boolean[] { false, true })
+				{
+					final SimulatedBuildType[] buildTypes =
+							new SimulatedBuildType[UpdateParametersBenchmark.BUILD_TYPES];
+					for(int i = 0; i < buildTypes.length; i++)
+						buildTypes[i] = new SimulatedBuildType(index++, referencedIds, customized);
+
+					for(int threads : UpdateParametersBenchmark.THREADS)
+					{
+						double throughput = Benchmark.measureThroughput(threads, new Operation() {
+							@Override
+							public void execute(int thread)
+							{
+								long promotionId = promotionIds.incrementAndGet();
+								SimulatedBuildType buildType = buildTypes[(int)(promotionId % buildTypes.length)];
+								provider.updateParameters(buildType.newBuildStartContext(promotionId));
+							}
+						});
+
+						String parameters = customized ? "customized" : "cached";
+						out.println(String.format(
+								"%-12d %-12s %8d %14.0f %16.3f", referenced, parameters, threads, throughput,
+								threads * 1000.0D / throughput
+						));
+
+						this.record(
+								"referenced=" + referenced + " parameters=" + parameters + " threads=" + threads,
+								"throughput", throughput, "ops/s"
+						);
+					}
+				}
+			}
+		}
+		finally
+		{
+			reservations.destroy();
+			service.destroy();
+			FileUtils.deleteDirectory(configDirectory);
+		}
+	}
+}
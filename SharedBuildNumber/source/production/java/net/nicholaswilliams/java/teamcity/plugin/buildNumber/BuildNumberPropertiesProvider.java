@@ -1,5 +1,5 @@
 /*
- * BuildNumberPropertiesProvider.java from TeamCityPlugins modified Friday, September 21, 2012 23:20:06 CDT (-0500).
+ * BuildNumberPropertiesProvider.java from TeamCityPlugins modified Saturday, November 3, 2012 17:36:18 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -22,25 +22,27 @@ import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.agent.ServerProvidedProperties;
 import jetbrains.buildServer.parameters.ProcessingResult;
-import jetbrains.buildServer.parameters.ReferencesResolverUtil;
 import jetbrains.buildServer.parameters.impl.CompositeParametersProviderImpl;
 import jetbrains.buildServer.parameters.impl.MapParametersProviderImpl;
 import jetbrains.buildServer.parameters.impl.ParametersResolverUtil;
 import jetbrains.buildServer.parameters.impl.ReferenceResolver;
+import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.BuildStartContext;
 import jetbrains.buildServer.serverSide.BuildStartContextProcessor;
 import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.SRunnerContext;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.parameters.AbstractParameterDescriptionProvider;
 import jetbrains.buildServer.serverSide.parameters.BuildParametersProvider;
 import jetbrains.buildServer.serverSide.parameters.ParameterDescriptionProvider;
-import org.apache.commons.lang.math.NumberUtils;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -67,10 +69,24 @@ public class BuildNumberPropertiesProvider extends AbstractParameterDescriptionP
 
 	private PluginConfigurationService configurationService;
 
+	private ChainBuildNumberCache chainBuildNumberCache;
+
+	private ReferencedParameterCache referencedParameterCache;
+
+	private QueuedBuildNumberReservations queuedBuildNumberReservations;
+
+	private volatile AvailableParameters availableParameters = new AvailableParameters(-1L, new int[0], new String[0]);
+
 	public BuildNumberPropertiesProvider(@NotNull ExtensionHolder extensionHolder,
-										 @NotNull PluginConfigurationService configurationService)
+										 @NotNull PluginConfigurationService configurationService,
+										 @NotNull ChainBuildNumberCache chainBuildNumberCache,
+										 @NotNull ReferencedParameterCache referencedParameterCache,
+										 @NotNull QueuedBuildNumberReservations queuedBuildNumberReservations)
 	{
 		this.configurationService = configurationService;
+		this.chainBuildNumberCache = chainBuildNumberCache;
+		this.referencedParameterCache = referencedParameterCache;
+		this.queuedBuildNumberReservations = queuedBuildNumberReservations;
 
 		extensionHolder.registerExtension(
 				BuildParametersProvider.class, BuildNumberPropertiesProvider.class.getName(), this
@@ -87,10 +103,7 @@ public class BuildNumberPropertiesProvider extends AbstractParameterDescriptionP
 	@Override
 	public Collection<String> getParametersAvailableOnAgent(@NotNull final SBuild build)
 	{
-		TreeSet<String> parameters = new TreeSet<String>();
-		for(int id : this.configurationService.getAllSharedBuildNumberIds())
-			parameters.add(BuildNumberPropertiesProvider.PARAMETER_PREFIX + id);
-		return parameters;
+		return this.getAvailableParameters().parameterNames;
 	}
 
 	@NotNull
@@ -103,12 +116,36 @@ public class BuildNumberPropertiesProvider extends AbstractParameterDescriptionP
 	@Override
 	public String describe(@NotNull String parameterName)
 	{
-		if(!parameterName.startsWith(BuildNumberPropertiesProvider.PARAMETER_PREFIX))
-			return null;
+		int id = SharedBuildNumberReferenceScanner.parseId(parameterName);
 
-		Integer id = this.extractBuildIdFromParameter(parameterName);
+		return id == 0 ? null : this.getAvailableParameters().getName(id);
+	}
+
+	/**
+	 * The parameter autocomplete and the build parameters pages ask for the available parameters and their
+	 * descriptions far more often than shared build numbers change, so both are derived once per configuration
+	 * generation and shared by every caller until the generation changes. Two callers that notice a new generation at
+	 * the same time may both rebuild them, which is harmless.
+	 */
+	private AvailableParameters getAvailableParameters()
+	{
+		// the generation is read first, so parameters derived from a newer configuration are at worst rebuilt again
+		long generation = this.configurationService.getConfigurationGeneration();
+
+		AvailableParameters parameters = this.availableParameters;
+		if(parameters.generation != generation)
+		{
+			int[] ids = this.configurationService.getAllSharedBuildNumberIds().clone();
+			Arrays.sort(ids);
 
-		return id == null ? null : this.configurationService.getSharedBuildNumberName(id);
+			String[] names = new String[ids.length];
+			for(int i = 0; i < ids.length; i++)
+				names[i] = this.configurationService.getSharedBuildNumberName(ids[i]);
+
+			parameters = new AvailableParameters(generation, ids, names);
+			this.availableParameters = parameters;
+		}
+		return parameters;
 	}
 
 	@Override
@@ -120,7 +157,8 @@ public class BuildNumberPropertiesProvider extends AbstractParameterDescriptionP
 				"Processing build [" + runningBuild.getFullName() + "] for shared build number parameters."
 		);
 
-		if(runningBuild.getBuildType() == null)
+		SBuildType buildType = runningBuild.getBuildType();
+		if(buildType == null)
 		{
 			if(BuildNumberPropertiesProvider.logger.isDebugEnabled())
 			{
@@ -131,100 +169,165 @@ public class BuildNumberPropertiesProvider extends AbstractParameterDescriptionP
 			return;
 		}
 
-		Set<String> parameters = new HashSet<String>();
-		parameters.addAll(runningBuild.getParametersProvider().getAll().values());
+		BuildPromotion promotion = runningBuild.getBuildPromotion();
 
-		Collection<? extends SRunnerContext> runnerContexts = buildStartContext.getRunnerContexts();
-		for(SRunnerContext runnerContext : runnerContexts)
+		// custom parameters given to this one build could reference numbers its build type does not
+		Map<String, String> customParameters = promotion.getCustomParameters();
+		boolean cacheable = customParameters.isEmpty();
+		String buildTypeId = cacheable ? buildType.getBuildTypeId() : null;
+		int[] ids = cacheable ? this.referencedParameterCache.get(buildTypeId) : null;
+		Collection<? extends SRunnerContext> runnerContexts = null;
+
+		if(ids == null)
 		{
-			parameters.addAll(runnerContext.getParameters().values());
+			long generation = this.referencedParameterCache.getGeneration();
+
+			// only the build type's own settings are scanned, never the parameters of the agent or the dependencies
+			// the build happens to get, so that every build of the build type references the same numbers
+			SharedBuildNumberIdSet referenced = new SharedBuildNumberIdSet();
+			SharedBuildNumberReferenceScanner.scan(buildType.getParametersProvider().getAll().values(), referenced);
+			SharedBuildNumberReferenceScanner.scan(customParameters.values(), referenced);
+
+			runnerContexts = buildStartContext.getRunnerContexts();
+			for(SRunnerContext runnerContext : runnerContexts)
+			{
+				SharedBuildNumberReferenceScanner.scan(runnerContext.getParameters().values(), referenced);
+			}
+
+			ids = referenced.toArray();
+
+			if(cacheable)
+				this.referencedParameterCache.put(buildTypeId, buildType.getProjectId(), ids, generation);
 		}
 
-		Set<String> pluginParameters = this.extractSharedBuildNumberParameters(parameters);
-		if(pluginParameters.isEmpty())
+		if(ids.length == 0)
 		{
+			// a reservation made while the build was queued is returned even though the build no longer references it
+			if(!this.queuedBuildNumberReservations.isEmpty())
+				this.queuedBuildNumberReservations.release(promotion.getId());
+
 			if(BuildNumberPropertiesProvider.logger.isDebugEnabled())
 			{
 				BuildNumberPropertiesProvider.logger.debug(
-						"No shared build number parameters found in " + parameters + "."
+						"No shared build number parameters referenced by build [" + runningBuild.getFullName() + "]."
 				);
 			}
 			return;
 		}
 
-		this.updateSharedParameters(buildStartContext, pluginParameters);
+		if(runnerContexts == null)
+			runnerContexts = buildStartContext.getRunnerContexts();
+
+		this.updateSharedParameters(buildStartContext, promotion, ids);
 
 		this.updateBuildNumber(buildStartContext, runningBuild, runnerContexts);
 	}
 
-	@NotNull
-	private Set<String> extractSharedBuildNumberParameters(@NotNull final Collection<String> parameters)
+	private void updateSharedParameters(@NotNull BuildStartContext buildStartContext,
+										  @NotNull BuildPromotion promotion,
+										  @NotNull int[] referencedIds)
 	{
-		Set<String> pluginParameters = new HashSet<String>();
+		// increment every referenced number at once, so that the build waits for one persist instead of one per number
+		Set<Integer> ids = new HashSet<Integer>(referencedIds.length * 2);
+		for(int id : referencedIds)
+			ids.add(id);
+
+		// numbers reserved while the build was queued were persisted then, so they only have to be taken
+		Map<Integer, String> buildNumbers = new HashMap<Integer, String>(
+				this.queuedBuildNumberReservations.take(promotion.getId(), ids)
+		);
+		ids.removeAll(buildNumbers.keySet());
+
+		// a failed increment only costs the build the numbers it was for; reserved numbers and numbers from other
+		// increments are still added, so that none of them is lost
+		Set<Integer> failedIds = new HashSet<Integer>();
+
+		Set<Integer> chainIds = this.extractIncrementOnceForChainIds(ids);
+		if(!chainIds.isEmpty() && promotion.isPartOfBuildChain())
+		{
+			ids.removeAll(chainIds);
+			try
+			{
+				buildNumbers.putAll(this.chainBuildNumberCache.getAndIncrementFormattedSharedBuildNumbers(
+						BuildNumberPropertiesProvider.getChainId(promotion), chainIds, this.configurationService
+				));
+			}
+			catch(IOException e)
+			{
+				BuildNumberPropertiesProvider.logger.warn(
+						"Could not increment build numbers for IDs " + chainIds + " once for the chain.", e
+				);
+				failedIds.addAll(chainIds);
+			}
+		}
 
-		for(String parameter : parameters)
+		if(!ids.isEmpty())
 		{
-			Collection<String> references = ReferencesResolverUtil.getReferences(parameter);
-			for(String reference : references)
+			try
+			{
+				buildNumbers.putAll(this.configurationService.getAndIncrementFormattedSharedBuildNumbers(ids));
+			}
+			catch(IOException e)
 			{
-				if(reference.startsWith(BuildNumberPropertiesProvider.PARAMETER_PREFIX))
-					pluginParameters.add(reference);
+				BuildNumberPropertiesProvider.logger.warn("Could not increment build numbers for IDs " + ids + ".", e);
+				failedIds.addAll(ids);
 			}
 		}
 
-		return pluginParameters;
+		for(int id : referencedIds)
+		{
+			String buildNumber = buildNumbers.get(id);
+			if(buildNumber == null)
+			{
+				// failed increments have already been logged
+				if(!failedIds.contains(id))
+					BuildNumberPropertiesProvider.logger.warn("No shared build number found for ID [" + id + "].");
+				continue;
+			}
+
+			if(BuildNumberPropertiesProvider.logger.isDebugEnabled())
+			{
+				BuildNumberPropertiesProvider.logger.debug(
+						"Next shared build number for ID [" + id + "] is [" + buildNumber + "]."
+				);
+			}
+
+			buildStartContext.addSharedParameter(BuildNumberPropertiesProvider.PARAMETER_PREFIX + id, buildNumber);
+		}
 	}
 
-	@Nullable
-	private Integer extractBuildIdFromParameter(String parameter)
+	@NotNull
+	private Set<Integer> extractIncrementOnceForChainIds(@NotNull Set<Integer> ids)
 	{
-		String idString = parameter.replace(BuildNumberPropertiesProvider.PARAMETER_PREFIX, "");
+		Set<Integer> chainIds = new HashSet<Integer>();
 
-		return NumberUtils.isDigits(idString) ? Integer.parseInt(idString) : null;
+		for(int id : ids)
+		{
+			SharedBuildNumber buildNumber = this.configurationService.getSharedBuildNumber(id);
+			if(buildNumber != null && buildNumber.isIncrementOnceForChain())
+				chainIds.add(id);
+		}
+
+		return chainIds;
 	}
 
-	private void updateSharedParameters(@NotNull BuildStartContext buildStartContext,
-										  @NotNull Set<String> pluginParameters)
+	/**
+	 * A build can belong to several chains when more than one top build depends on it; the top with the lowest
+	 * promotion ID is used so that the choice is the same every time.
+	 */
+	private static long getChainId(@NotNull BuildPromotion promotion)
 	{
-		for(String parameter : pluginParameters)
+		long chainId = promotion.getId();
+
+		BuildPromotion[] tops = promotion.findTops();
+		if(tops.length > 0)
 		{
-			Integer id = this.extractBuildIdFromParameter(parameter);
-			if(id != null)
-			{
-				try
-				{
-					String buildNumber = this.configurationService.getAndIncrementFormattedSharedBuildNumber(id);
-
-					if(buildNumber == null)
-					{
-						BuildNumberPropertiesProvider.logger.warn("No shared build number found for ID [" + id + "].");
-						continue;
-					}
-
-					if(BuildNumberPropertiesProvider.logger.isDebugEnabled())
-					{
-						BuildNumberPropertiesProvider.logger.debug(
-								"Next shared build number for ID [" + id + "] is [" + buildNumber + "]."
-						);
-					}
-
-					buildStartContext.addSharedParameter(parameter, buildNumber);
-				}
-				catch(IOException e)
-				{
-					BuildNumberPropertiesProvider.logger.warn(
-							"Could not increment build number for ID [" + id + "].", e
-					);
-				}
-			}
-			else
-			{
-				BuildNumberPropertiesProvider.logger.warn(
-						"Shared build number parameter [" + parameter +
-						"] was not formatted correctly; ID could not be extracted."
-				);
-			}
+			chainId = tops[0].getId();
+			for(int i = 1; i < tops.length; i++)
+				chainId = Math.min(chainId, tops[i].getId());
 		}
+
+		return chainId;
 	}
 
 	private void updateBuildNumber(@NotNull BuildStartContext buildStartContext, @NotNull SRunningBuild runningBuild,
@@ -265,4 +368,37 @@ public class BuildNumberPropertiesProvider extends AbstractParameterDescriptionP
 			);
 		}
 	}
+
+	private static final class AvailableParameters
+	{
+		private final long generation;
+
+		private final int[] ids;
+
+		private final String[] names;
+
+		private final Collection<String> parameterNames;
+
+		private AvailableParameters(long generation, int[] ids, String[] names)
+		{
+			this.generation = generation;
+			this.ids = ids;
+			this.names = names;
+
+			TreeSet<String> parameterNames = new TreeSet<String>();
+			for(int id : ids)
+				parameterNames.add(BuildNumberPropertiesProvider.PARAMETER_PREFIX + id);
+			this.parameterNames = Collections.unmodifiableSortedSet(parameterNames);
+		}
+
+		/**
+		 * @param id The shared build number ID, which the IDs are binary searched for so that nothing is boxed
+		 * @return the name of the shared build number, or null if there is no shared build number with the ID.
+		 */
+		private String getName(int id)
+		{
+			int index = Arrays.binarySearch(this.ids, id);
+			return index < 0 ? null : this.names[index];
+		}
+	}
 }
@@ -0,0 +1,146 @@
+/*
+ * BuildNumberTemplate.java from TeamCityPlugins modified Sunday, October 14, 2012 16:04:12 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A shared build number format compiled into a sequence of literal, counter ({0}) and date ({d} or {D}) segments, so
+ * that formatting a build number is a single pass with no searching or replacing. Templates are immutable and safe
+ * to use from any number of threads; the date is formatted with a {@link FastDateFormat}, which accepts the same
+ * patterns as {@link java.text.SimpleDateFormat}.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class BuildNumberTemplate
+{
+	private static final int COUNTER_LENGTH_ESTIMATE = 10;
+
+	private final String[] literals;
+
+	private final boolean[] dates;
+
+	private final FastDateFormat dateFormat;
+
+	private final int lengthEstimate;
+
+	private BuildNumberTemplate(String[] literals, boolean[] dates, FastDateFormat dateFormat, int lengthEstimate)
+	{
+		this.literals = literals;
+		this.dates = dates;
+		this.dateFormat = dateFormat;
+		this.lengthEstimate = lengthEstimate;
+	}
+
+	/**
+	 * Compiles the given build number format.
+	 *
+	 * @param format The build number format
+	 * @param dateFormat The date format, required only if the build number format contains {d}
+	 * @return the compiled template.
+	 * @throws IllegalArgumentException if the format contains {d} and the date format is missing or invalid.
+	 */
+	public static BuildNumberTemplate compile(String format, String dateFormat)
+	{
+		List<String> literals = new ArrayList<String>();
+		List<Boolean> dates = new ArrayList<Boolean>();
+		boolean hasDate = false;
+
+		int start = 0;
+		for(int i = 0; i < format.length() - 2; i++)
+		{
+			if(format.charAt(i) != '{' || format.charAt(i + 2) != '}')
+				continue;
+
+			char placeholder = format.charAt(i + 1);
+			if(placeholder == '0' || placeholder == 'd' || placeholder == 'D')
+			{
+				boolean date = placeholder != '0';
+				hasDate |= date;
+
+				literals.add(format.substring(start, i));
+				dates.add(date);
+				start = i + 3;
+				i += 2;
+			}
+		}
+		literals.add(format.substring(start));
+
+		FastDateFormat compiledDateFormat = null;
+		if(hasDate)
+		{
+			if(dateFormat == null)
+				throw new IllegalArgumentException("The build number format uses {d} but has no date format.");
+			compiledDateFormat = FastDateFormat.getInstance(dateFormat);
+		}
+
+		int lengthEstimate = format.length();
+		boolean[] datesArray = new boolean[dates.size()];
+		for(int i = 0; i < datesArray.length; i++)
+		{
+			datesArray[i] = dates.get(i);
+			lengthEstimate += datesArray[i] ?
+							  compiledDateFormat.getMaxLengthEstimate() : BuildNumberTemplate.COUNTER_LENGTH_ESTIMATE;
+		}
+
+		return new BuildNumberTemplate(
+				literals.toArray(new String[literals.size()]), datesArray, compiledDateFormat, lengthEstimate
+		);
+	}
+
+	/**
+	 * Formats a build number, using the current time for {d}. The clock is only read if the template has a date.
+	 *
+	 * @param counter The counter value to use for {0}
+	 * @return the formatted build number.
+	 */
+	public String format(int counter)
+	{
+		return this.format(counter, this.dateFormat == null ? 0L : System.currentTimeMillis());
+	}
+
+	/**
+	 * Formats a build number.
+	 *
+	 * @param counter The counter value to use for {0}
+	 * @param time The time to use for {d}, in milliseconds since the epoch
+	 * @return the formatted build number.
+	 */
+	public String format(int counter, long time)
+	{
+		StringBuilder builder = new StringBuilder(this.lengthEstimate);
+
+		builder.append(this.literals[0]);
+		for(int i = 0; i < this.dates.length; i++)
+		{
+			if(this.dates[i])
+				builder.append(this.dateFormat.format(time));
+			else
+				builder.append(counter);
+			builder.append(this.literals[i + 1]);
+		}
+
+		return builder.toString();
+	}
+}
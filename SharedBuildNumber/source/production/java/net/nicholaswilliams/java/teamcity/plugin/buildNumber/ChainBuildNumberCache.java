@@ -0,0 +1,252 @@
+/*
+ * ChainBuildNumberCache.java from TeamCityPlugins modified Saturday, October 20, 2012 14:21:08 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the shared build numbers handed out to each build chain, so that shared build numbers marked to increment
+ * once for a chain are incremented by the first build of the chain to start and reused by every other build in it. A
+ * chain is identified by the promotion ID of its top build. A chain's numbers are forgotten when its top build
+ * finishes or is interrupted, when they are older than the time to live (for chains whose top never runs), or when
+ * more than the maximum number of chains are cached, in which case the oldest chains are forgotten first.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ChainBuildNumberCache extends BuildServerAdapter
+{
+	private static final Logger logger = Logger.getInstance("jetbrains.buildServer.PLUGIN.sharedBuildNumber.CHAIN");
+
+	private static final String TIME_TO_LIVE_PROPERTY = "teamcity.sharedBuildNumber.chainCache.timeToLiveMinutes";
+
+	private static final String MAX_CHAINS_PROPERTY = "teamcity.sharedBuildNumber.chainCache.maxChains";
+
+	// insertion order is creation order, so the eldest entries are also the first to expire
+	private final LinkedHashMap<Long, Chain> chains = new LinkedHashMap<Long, Chain>();
+
+	private volatile long timeToLiveMillis;
+
+	private volatile int maxChains;
+
+	public ChainBuildNumberCache(@NotNull EventDispatcher<BuildServerListener> eventDispatcher)
+	{
+		this.timeToLiveMillis = TimeUnit.MINUTES.toMillis(
+				TeamCityProperties.getLong(ChainBuildNumberCache.TIME_TO_LIVE_PROPERTY, 720L)
+		);
+		this.maxChains = TeamCityProperties.getInteger(ChainBuildNumberCache.MAX_CHAINS_PROPERTY, 10000);
+
+		eventDispatcher.addListener(this);
+	}
+
+	public long getTimeToLive(@NotNull TimeUnit unit)
+	{
+		return unit.convert(this.timeToLiveMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void setTimeToLive(long timeToLive, @NotNull TimeUnit unit)
+	{
+		if(timeToLive <= 0)
+			throw new IllegalArgumentException("The time to live must be positive.");
+
+		this.timeToLiveMillis = unit.toMillis(timeToLive);
+	}
+
+	public int getMaxChains()
+	{
+		return this.maxChains;
+	}
+
+	public void setMaxChains(int maxChains)
+	{
+		if(maxChains < 1)
+			throw new IllegalArgumentException("The maximum number of chains must be at least 1.");
+
+		this.maxChains = maxChains;
+	}
+
+	/**
+	 * @return the number of chains currently cached.
+	 */
+	public int size()
+	{
+		synchronized(this.chains)
+		{
+			return this.chains.size();
+		}
+	}
+
+	/**
+	 * Returns the formatted shared build numbers for the given chain, incrementing (with a single call to the
+	 * configuration service) only those the chain has not been given yet. Builds of the same chain that start at the
+	 * same time wait for each other here, so that each number is incremented only once for the chain.
+	 *
+	 * @param chainId The promotion ID of the top build of the chain
+	 * @param ids The IDs of the shared build numbers to get
+	 * @param configurationService Increments the numbers the chain does not have yet
+	 * @return the formatted build numbers, keyed by ID. IDs with no shared build number are left out.
+	 * @throws IOException if the increments could not be persisted.
+	 */
+	@NotNull
+	public Map<Integer, String> getAndIncrementFormattedSharedBuildNumbers(
+			long chainId, @NotNull Set<Integer> ids, @NotNull PluginConfigurationService configurationService
+	) throws IOException
+	{
+		Chain chain = this.getChain(chainId);
+
+		synchronized(chain)
+		{
+			Set<Integer> missing = new HashSet<Integer>();
+			for(int id : ids)
+			{
+				if(!chain.buildNumbers.containsKey(id))
+					missing.add(id);
+			}
+
+			if(!missing.isEmpty())
+			{
+				chain.buildNumbers.putAll(configurationService.getAndIncrementFormattedSharedBuildNumbers(missing));
+			}
+			else if(ChainBuildNumberCache.logger.isDebugEnabled())
+			{
+				ChainBuildNumberCache.logger.debug(
+						"Reusing shared build numbers " + ids + " for chain " + chainId + "."
+				);
+			}
+
+			Map<Integer, String> buildNumbers = new HashMap<Integer, String>(ids.size() * 2);
+			for(int id : ids)
+			{
+				String buildNumber = chain.buildNumbers.get(id);
+				if(buildNumber != null)
+					buildNumbers.put(id, buildNumber);
+			}
+			return buildNumbers;
+		}
+	}
+
+	/**
+	 * Forgets the shared build numbers of the given chain.
+	 *
+	 * @param chainId The promotion ID of the top build of the chain
+	 */
+	public void evict(long chainId)
+	{
+		synchronized(this.chains)
+		{
+			this.chains.remove(chainId);
+		}
+	}
+
+	@Override
+	public void buildFinished(SRunningBuild build)
+	{
+		this.evictChainOf(build);
+	}
+
+	@Override
+	public void buildInterrupted(SRunningBuild build)
+	{
+		this.evictChainOf(build);
+	}
+
+	private void evictChainOf(SRunningBuild build)
+	{
+		synchronized(this.chains)
+		{
+			if(this.chains.isEmpty())
+				return;
+		}
+
+		// only a top build can identify a chain, and it is always the last build of the chain to finish
+		this.evict(build.getBuildPromotion().getId());
+	}
+
+	private Chain getChain(long chainId)
+	{
+		long now = System.currentTimeMillis();
+
+		synchronized(this.chains)
+		{
+			Iterator<Chain> iterator = this.chains.values().iterator();
+			while(iterator.hasNext())
+			{
+				Chain eldest = iterator.next();
+				if(now - eldest.created < this.timeToLiveMillis)
+					break;
+
+				iterator.remove();
+				this.forgotten(eldest);
+			}
+
+			Chain chain = this.chains.get(chainId);
+			if(chain == null)
+			{
+				iterator = this.chains.values().iterator();
+				while(this.chains.size() >= this.maxChains && iterator.hasNext())
+				{
+					Chain eldest = iterator.next();
+					iterator.remove();
+					this.forgotten(eldest);
+				}
+
+				chain = new Chain(chainId, now);
+				this.chains.put(chainId, chain);
+			}
+			return chain;
+		}
+	}
+
+	private void forgotten(Chain chain)
+	{
+		if(ChainBuildNumberCache.logger.isDebugEnabled())
+			ChainBuildNumberCache.logger.debug("Forgot the shared build numbers of chain " + chain.id + ".");
+	}
+
+	private static final class Chain
+	{
+		private final long id;
+
+		private final long created;
+
+		private final Map<Integer, String> buildNumbers = new HashMap<Integer, String>();
+
+		private Chain(long id, long created)
+		{
+			this.id = id;
+			this.created = created;
+		}
+	}
+}
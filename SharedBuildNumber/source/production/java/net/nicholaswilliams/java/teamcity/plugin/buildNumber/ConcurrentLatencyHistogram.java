@@ -0,0 +1,136 @@
+/*
+ * ConcurrentLatencyHistogram.java from TeamCityPlugins modified Wednesday, October 31, 2012 16:42:05 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear latency histogram that any number of threads can record into at once. Each power-of-two
+ * range of nanoseconds is split into 16 equal buckets, so recorded values are kept to within about 6% without storing
+ * individual samples. Recording only increments preallocated atomic counters, so it allocates nothing and is cheap
+ * enough to leave on in production. Reads are not atomic with respect to concurrent recording, so a percentile read
+ * while values are being recorded may be off by the few values recorded during the read.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class ConcurrentLatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << ConcurrentLatencyHistogram.SUB_BUCKET_BITS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64 * ConcurrentLatencyHistogram.SUB_BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	private final AtomicLong maximum = new AtomicLong();
+
+	/**
+	 * @param nanoseconds The latency to record; negative values are recorded as zero
+	 */
+	public void record(long nanoseconds)
+	{
+		long value = Math.max(0L, nanoseconds);
+		this.buckets.incrementAndGet(ConcurrentLatencyHistogram.indexOf(value));
+		this.count.incrementAndGet();
+		this.total.addAndGet(value);
+
+		long maximum = this.maximum.get();
+		while(value > maximum && !this.maximum.compareAndSet(maximum, value))
+			maximum = this.maximum.get();
+	}
+
+	public long getCount()
+	{
+		return this.count.get();
+	}
+
+	/**
+	 * @return the sum of every recorded value, in nanoseconds.
+	 */
+	public long getTotal()
+	{
+		return this.total.get();
+	}
+
+	/**
+	 * @return the largest recorded value, in nanoseconds.
+	 */
+	public long getMaximum()
+	{
+		return this.maximum.get();
+	}
+
+	/**
+	 * @param percentile The percentile to return, between 0 and 100
+	 * @return the (upper bound of the bucket of the) recorded value at the given percentile, in nanoseconds.
+	 */
+	public long getPercentile(double percentile)
+	{
+		long[] buckets = new long[this.buckets.length()];
+		long count = 0;
+		for(int i = 0; i < buckets.length; i++)
+		{
+			buckets[i] = this.buckets.get(i);
+			count += buckets[i];
+		}
+
+		if(count == 0)
+			return 0L;
+
+		long maximum = this.maximum.get();
+		long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0D * count));
+		long seen = 0;
+		for(int i = 0; i < buckets.length; i++)
+		{
+			seen += buckets[i];
+			if(seen >= rank)
+				return Math.min(ConcurrentLatencyHistogram.upperBoundOf(i), maximum);
+		}
+
+		return maximum;
+	}
+
+	private static int indexOf(long value)
+	{
+		if(value < ConcurrentLatencyHistogram.SUB_BUCKETS)
+			return (int)value;
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - ConcurrentLatencyHistogram.SUB_BUCKET_BITS;
+		int subBucket = (int)(value >>> shift) & (ConcurrentLatencyHistogram.SUB_BUCKETS - 1);
+		return (shift + 1) * ConcurrentLatencyHistogram.SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBoundOf(int index)
+	{
+		if(index < ConcurrentLatencyHistogram.SUB_BUCKETS)
+			return index;
+
+		int shift = index / ConcurrentLatencyHistogram.SUB_BUCKETS - 1;
+		long subBucket = index % ConcurrentLatencyHistogram.SUB_BUCKETS;
+		return ((ConcurrentLatencyHistogram.SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * ConfigurationFileReader.java from TeamCityPlugins modified Friday, November 2, 2012 15:42:08 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.jetbrains.annotations.NotNull;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the configuration XML file in a single streaming pass, filling the configuration entities directly as the
+ * elements go by instead of mapping them through reflection. The reader does not validate the file against the
+ * schema, and only rejects content it cannot interpret; validation is left to the caller. Elements it does not
+ * recognize are ignored. Instances are thread safe.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ConfigurationFileReader
+{
+	private static final DateTimeFormatter DATE_TIME_FORMATTER = ISODateTimeFormat.dateTime();
+
+	private static final DateTimeFormatter BACKUP_DATE_TIME_FORMATTER = ISODateTimeFormat.dateTimeNoMillis();
+
+	private final SAXParserFactory factory;
+
+	public ConfigurationFileReader()
+	{
+		this.factory = SAXParserFactory.newInstance();
+		this.factory.setNamespaceAware(true);
+		this.factory.setValidating(false);
+	}
+
+	/**
+	 * Parses the configuration from the given stream, which is not closed.
+	 *
+	 * @param stream The configuration XML
+	 * @return the parsed configuration.
+	 * @throws IOException if the stream could not be read.
+	 * @throws SAXException if the content is not well-formed or could not be interpreted.
+	 */
+	@NotNull
+	public ConfigurationEntity read(@NotNull InputStream stream) throws IOException, SAXException
+	{
+		SAXParser parser;
+		try
+		{
+			synchronized(this.factory)
+			{
+				parser = this.factory.newSAXParser();
+			}
+		}
+		catch(ParserConfigurationException e)
+		{
+			throw new SAXException("Could not configure the configuration XML parser.", e);
+		}
+
+		Handler handler = new Handler();
+		parser.parse(new InputSource(stream), handler);
+
+		if(handler.configuration == null)
+			throw new SAXException("The configuration XML contains no configuration.");
+
+		return handler.configuration;
+	}
+
+	private static final class Handler extends DefaultHandler
+	{
+		private final StringBuilder text = new StringBuilder();
+
+		private Locator locator;
+
+		private int depth;
+
+		private String section;
+
+		private ConfigurationEntity configuration;
+
+		private SharedBuildNumberEntity buildNumber;
+
+		@Override
+		public void setDocumentLocator(Locator locator)
+		{
+			this.locator = locator;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+				throws SAXException
+		{
+			this.depth++;
+			this.text.setLength(0);
+
+			switch(this.depth)
+			{
+				case 1:
+					if(!"shared-build-number-config".equals(localName))
+						throw this.error("Unexpected root element <" + qName + ">.");
+					this.configuration = new ConfigurationEntity();
+					break;
+
+				case 2:
+					this.section = localName;
+					if("settings".equals(localName))
+						this.configuration.setSettings(new SettingsEntity());
+					break;
+
+				case 3:
+					if("build-numbers".equals(this.section) && "build-number".equals(localName))
+						this.buildNumber = this.startBuildNumber(attributes);
+					break;
+
+				default:
+					break;
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException
+		{
+			String value = this.text.toString().trim();
+			this.text.setLength(0);
+
+			switch(this.depth)
+			{
+				case 2:
+					if("last-update".equals(localName))
+						this.configuration.setLastUpdate(this.parseDateTime(value));
+					this.section = null;
+					break;
+
+				case 3:
+					if("settings".equals(this.section) && "buildNumberIdSequence".equals(localName))
+					{
+						this.configuration.getSettings().setBuildNumberIdSequence(this.parseInt(localName, value));
+					}
+					else if(this.buildNumber != null && "build-number".equals(localName))
+					{
+						this.configuration.addOrUpdateBuildNumber(this.buildNumber);
+						this.buildNumber = null;
+					}
+					break;
+
+				case 4:
+					if(this.buildNumber != null)
+						this.setBuildNumberProperty(localName, value);
+					break;
+
+				default:
+					break;
+			}
+
+			this.depth--;
+		}
+
+		@Override
+		public void characters(char[] characters, int start, int length)
+		{
+			this.text.append(characters, start, length);
+		}
+
+		private SharedBuildNumberEntity startBuildNumber(Attributes attributes) throws SAXException
+		{
+			SharedBuildNumberEntity buildNumber = new SharedBuildNumberEntity();
+
+			String id = attributes.getValue("id");
+			if(id == null)
+				throw this.error("The build number is missing its id attribute.");
+			buildNumber.setId(this.parseInt("id", id));
+
+			String value = attributes.getValue("incrementOnceForChain");
+			if(value != null)
+				buildNumber.setIncrementOnceForChain(this.parseBoolean("incrementOnceForChain", value));
+
+			value = attributes.getValue("allowGaps");
+			if(value != null)
+				buildNumber.setAllowGaps(this.parseBoolean("allowGaps", value));
+
+			value = attributes.getValue("blockSize");
+			if(value != null)
+				buildNumber.setBlockSize(this.parseInt("blockSize", value));
+
+			value = attributes.getValue("durability");
+			if(value != null)
+				buildNumber.setDurability(this.parseDurability(value));
+
+			return buildNumber;
+		}
+
+		private void setBuildNumberProperty(String name, String value) throws SAXException
+		{
+			if("name".equals(name))
+				this.buildNumber.setName(value);
+			else if("description".equals(name))
+				this.buildNumber.setDescription(value);
+			else if("format".equals(name))
+				this.buildNumber.setFormat(value);
+			else if("dateFormat".equals(name))
+				this.buildNumber.setDateFormat(value);
+			else if("counter".equals(name))
+				this.buildNumber.setCounter(this.parseInt(name, value));
+		}
+
+		private Durability parseDurability(String value) throws SAXException
+		{
+			try
+			{
+				return Durability.parse(value);
+			}
+			catch(IllegalArgumentException e)
+			{
+				throw this.error("The value [" + value + "] of durability is not a durability.");
+			}
+		}
+
+		private int parseInt(String name, String value) throws SAXException
+		{
+			try
+			{
+				return Integer.parseInt(value.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw this.error("The value [" + value + "] of " + name + " is not an integer.");
+			}
+		}
+
+		private boolean parseBoolean(String name, String value) throws SAXException
+		{
+			String trimmed = value.trim();
+			if("true".equals(trimmed) || "1".equals(trimmed))
+				return true;
+			if("false".equals(trimmed) || "0".equals(trimmed))
+				return false;
+
+			throw this.error("The value [" + value + "] of " + name + " is not a boolean.");
+		}
+
+		private DateTime parseDateTime(String value) throws SAXException
+		{
+			try
+			{
+				return ConfigurationFileReader.DATE_TIME_FORMATTER.parseDateTime(value);
+			}
+			catch(IllegalArgumentException e)
+			{
+				try
+				{
+					return ConfigurationFileReader.BACKUP_DATE_TIME_FORMATTER.parseDateTime(value);
+				}
+				catch(IllegalArgumentException e1)
+				{
+					throw this.error("The value [" + value + "] of last-update is not an ISO-8601 date and time.");
+				}
+			}
+		}
+
+		private SAXParseException error(String message)
+		{
+			return new SAXParseException(message, this.locator);
+		}
+	}
+}
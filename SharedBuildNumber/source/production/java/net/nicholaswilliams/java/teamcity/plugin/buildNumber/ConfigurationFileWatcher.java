@@ -0,0 +1,234 @@
+/*
+ * ConfigurationFileWatcher.java from TeamCityPlugins modified Monday, October 15, 2012 14:31:05 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.configuration.ChangeListener;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Watches the configuration file for external changes for the whole lifetime of the plugin, using a single daemon
+ * thread that checks the file's modification time and length at a short interval. When those change, the content
+ * checksum is compared against the checksums of the plugin's own recent writes, which are announced beforehand with
+ * {@link #expectOwnWrite(long)}, so that saving the configuration never triggers a reload and the watcher never
+ * needs to be stopped around a save. Only content that the plugin did not write itself is reported to the listener.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ConfigurationFileWatcher
+{
+	private static final Logger logger = Logger.getInstance("jetbrains.buildServer.PLUGIN.sharedBuildNumber.WATCHER");
+
+	private static final int MAX_OWN_WRITES = 16;
+
+	private final File file;
+
+	private final ChangeListener listener;
+
+	private final LinkedHashSet<Long> ownWrites = new LinkedHashSet<Long>();
+
+	private volatile long pollInterval = 100L;
+
+	private long lastModified;
+
+	private long length;
+
+	private long checksum;
+
+	private Thread thread;
+
+	private volatile boolean running;
+
+	public ConfigurationFileWatcher(@NotNull File file, @NotNull ChangeListener listener)
+	{
+		this.file = file;
+		this.listener = listener;
+	}
+
+	public long getPollInterval(TimeUnit unit)
+	{
+		return unit.convert(this.pollInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public void setPollInterval(long pollInterval, TimeUnit unit)
+	{
+		if(pollInterval <= 0L)
+			throw new IllegalArgumentException("The poll interval must be positive.");
+
+		this.pollInterval = Math.max(1L, unit.toMillis(pollInterval));
+	}
+
+	public synchronized boolean isRunning()
+	{
+		return this.thread != null;
+	}
+
+	/**
+	 * Records the current state of the file as already seen and starts watching it. Does nothing if already started.
+	 */
+	public synchronized void start()
+	{
+		if(this.thread != null)
+			return;
+
+		this.lastModified = this.file.lastModified();
+		this.length = this.file.length();
+		this.checksum = this.readChecksum();
+
+		this.running = true;
+		this.thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ConfigurationFileWatcher.this.watch();
+			}
+		}, "Shared Build Number Configuration Watcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void stop()
+	{
+		Thread thread;
+		synchronized(this)
+		{
+			thread = this.thread;
+			this.thread = null;
+			this.running = false;
+		}
+
+		if(thread != null && thread != Thread.currentThread())
+		{
+			thread.interrupt();
+			try
+			{
+				thread.join();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Announces that the plugin is about to write the given content to the file, so that the change is not reported.
+	 * Must be called before the write begins.
+	 *
+	 * @param checksum The {@link #checksum(byte[]) checksum} of the content about to be written
+	 */
+	public synchronized void expectOwnWrite(long checksum)
+	{
+		this.ownWrites.remove(checksum);
+		this.ownWrites.add(checksum);
+
+		if(this.ownWrites.size() > ConfigurationFileWatcher.MAX_OWN_WRITES)
+			this.ownWrites.remove(this.ownWrites.iterator().next());
+	}
+
+	/**
+	 * Checks the file once, notifying the listener if its content changed and was not written by the plugin.
+	 *
+	 * @return {@code true} if the listener was notified.
+	 */
+	boolean check()
+	{
+		synchronized(this)
+		{
+			long lastModified = this.file.lastModified();
+			long length = this.file.length();
+			if(lastModified == this.lastModified && length == this.length)
+				return false;
+
+			this.lastModified = lastModified;
+			this.length = length;
+
+			long checksum = this.readChecksum();
+			if(checksum == this.checksum)
+				return false;
+
+			this.checksum = checksum;
+
+			if(this.ownWrites.contains(checksum))
+			{
+				if(ConfigurationFileWatcher.logger.isDebugEnabled())
+					ConfigurationFileWatcher.logger.debug("Ignoring the plugin's own write to the configuration file.");
+				return false;
+			}
+		}
+
+		// the listener is called without holding the monitor so that it may save the configuration itself
+		this.listener.changeOccured(this.file.getPath());
+
+		return true;
+	}
+
+	private void watch()
+	{
+		while(this.running)
+		{
+			try
+			{
+				Thread.sleep(this.pollInterval);
+				this.check();
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+			catch(RuntimeException e)
+			{
+				ConfigurationFileWatcher.logger.warn("Failed to handle a change to the configuration file.", e);
+			}
+		}
+	}
+
+	private long readChecksum()
+	{
+		if(!this.file.exists())
+			return -1L;
+
+		try
+		{
+			return ConfigurationFileWatcher.checksum(FileUtils.readFileToByteArray(this.file));
+		}
+		catch(IOException e)
+		{
+			ConfigurationFileWatcher.logger.warn("Failed to read the configuration file to check it for changes.", e);
+			return -1L;
+		}
+	}
+
+	public static long checksum(byte[] content)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return crc.getValue();
+	}
+}
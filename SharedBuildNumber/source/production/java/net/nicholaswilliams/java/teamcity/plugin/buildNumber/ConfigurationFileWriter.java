@@ -0,0 +1,309 @@
+/*
+ * ConfigurationFileWriter.java from TeamCityPlugins modified Saturday, November 3, 2012 11:20:47 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.joda.time.format.ISODateTimeFormat;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the configuration XML file with a StAX stream writer, build numbers in ID order. A configuration is first
+ * {@link #prepare(ConfigurationEntity) encoded} into a buffer that is kept and reused from one save to the next, and
+ * then {@link #commit() committed} by writing the buffer to a temporary file, forcing it to disk and renaming it over
+ * the configuration file, so that the configuration file is never seen half written. Where the platform cannot rename
+ * over an existing file, the old file is kept as a backup until the new one is in place, and {@link #recover()} puts
+ * back whichever survived a crash in between. Instances are not thread safe; saves must be serialized by the caller.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ConfigurationFileWriter
+{
+	private static final String ENCODING = "UTF-8";
+
+	private static final String NEW_LINE = IOUtils.LINE_SEPARATOR;
+
+	private static final String CDATA_END = "]]>";
+
+	private static final Comparator<SharedBuildNumberEntity> ID_COMPARATOR = new Comparator<SharedBuildNumberEntity>()
+	{
+		@Override
+		public int compare(SharedBuildNumberEntity left, SharedBuildNumberEntity right)
+		{
+			int id1 = left.getId();
+			int id2 = right.getId();
+
+			return id1 < id2 ? -1 : (id2 < id1 ? 1 : 0);
+		}
+	};
+
+	private final File file;
+
+	private final File temporaryFile;
+
+	private final byte[] header;
+
+	private final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+	private final Buffer buffer = new Buffer();
+
+	private boolean prepared;
+
+	/**
+	 * @param file The configuration file
+	 * @param header The lines preceding the configuration, up to and including the root element's start tag
+	 */
+	public ConfigurationFileWriter(@NotNull File file, @NotNull List<String> header)
+	{
+		this.file = file;
+		this.temporaryFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+		StringBuilder builder = new StringBuilder();
+		for(String line : header)
+			builder.append(line).append(ConfigurationFileWriter.NEW_LINE);
+		try
+		{
+			this.header = builder.toString().getBytes(ConfigurationFileWriter.ENCODING);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException("The " + ConfigurationFileWriter.ENCODING + " encoding is not supported.", e);
+		}
+	}
+
+	/**
+	 * Encodes the given configuration into the buffer, replacing whatever was prepared before.
+	 *
+	 * @param configuration The configuration to encode
+	 * @return the {@link ConfigurationFileWatcher#checksum(byte[]) checksum} of the encoded file content.
+	 * @throws IOException if the configuration could not be encoded.
+	 */
+	public long prepare(@NotNull ConfigurationEntity configuration) throws IOException
+	{
+		this.prepared = false;
+		this.buffer.reset();
+		this.buffer.write(this.header);
+
+		try
+		{
+			XMLStreamWriter writer = this.factory.createXMLStreamWriter(this.buffer, ConfigurationFileWriter.ENCODING);
+
+			this.newLine(writer, 1);
+			this.writeElement(writer, "last-update", ISODateTimeFormat.dateTime().print(configuration.getLastUpdate()));
+			this.newLine(writer, 0);
+
+			this.newLine(writer, 1);
+			this.writeSettings(writer, configuration.getSettings());
+			this.newLine(writer, 0);
+
+			this.newLine(writer, 1);
+			this.writeBuildNumbers(writer, configuration.getBuildNumbers());
+			this.newLine(writer, 0);
+			this.newLine(writer, 0);
+
+			writer.flush();
+			writer.close();
+		}
+		catch(XMLStreamException e)
+		{
+			throw new IOException("Could not encode the configuration XML.", e);
+		}
+
+		// the root element was opened in the header, outside of the stream writer, so it must be closed the same way
+		this.buffer.write(("</shared-build-number-config>" + ConfigurationFileWriter.NEW_LINE +
+						   ConfigurationFileWriter.NEW_LINE).getBytes(ConfigurationFileWriter.ENCODING));
+		this.prepared = true;
+
+		return this.buffer.checksum();
+	}
+
+	/**
+	 * Atomically replaces the configuration file with the configuration last prepared.
+	 *
+	 * @throws IOException if the file could not be written or renamed.
+	 */
+	public void commit() throws IOException
+	{
+		if(!this.prepared)
+			throw new IllegalStateException("No configuration has been prepared.");
+
+		FileOutputStream stream = FileUtils.openOutputStream(this.temporaryFile);
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			ByteBuffer content = this.buffer.toByteBuffer();
+			while(content.hasRemaining())
+				channel.write(content);
+			channel.force(true);
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		PluginFileUtils.replaceFile(this.temporaryFile, this.file);
+	}
+
+	/**
+	 * Restores the configuration file if a crash interrupted a commit after the file was moved aside. Must be called
+	 * before the configuration file is read.
+	 *
+	 * @return {@code true} if the configuration file was missing and has been recovered.
+	 * @throws IOException if the configuration file could not be recovered.
+	 */
+	public boolean recover() throws IOException
+	{
+		return PluginFileUtils.recoverReplacedFile(this.temporaryFile, this.file);
+	}
+
+	private void writeSettings(XMLStreamWriter writer, SettingsEntity settings) throws XMLStreamException
+	{
+		writer.writeStartElement("settings");
+		this.newLine(writer, 2);
+		this.writeElement(writer, "buildNumberIdSequence", Integer.toString(settings.getBuildNumberIdSequence()));
+		this.newLine(writer, 1);
+		writer.writeEndElement();
+	}
+
+	private void writeBuildNumbers(XMLStreamWriter writer, Collection<SharedBuildNumberEntity> buildNumbers)
+			throws XMLStreamException
+	{
+		SharedBuildNumberEntity[] sorted = buildNumbers.toArray(new SharedBuildNumberEntity[buildNumbers.size()]);
+		Arrays.sort(sorted, ConfigurationFileWriter.ID_COMPARATOR);
+
+		writer.writeStartElement("build-numbers");
+		this.newLine(writer, 0);
+
+		for(int i = 0; i < sorted.length; i++)
+		{
+			SharedBuildNumberEntity number = sorted[i];
+
+			if(i > 0)
+				this.newLine(writer, 0);
+			writer.writeCharacters("\t\t");
+
+			writer.writeStartElement("build-number");
+			writer.writeAttribute("id", Integer.toString(number.getId()));
+			writer.writeAttribute("incrementOnceForChain", Boolean.toString(number.isIncrementOnceForChain()));
+			writer.writeAttribute("allowGaps", Boolean.toString(number.isAllowGaps()));
+			writer.writeAttribute("blockSize", Integer.toString(number.getBlockSize()));
+			if(number.getDurability() != null)
+				writer.writeAttribute("durability", number.getDurability().name());
+
+			this.newLine(writer, 3);
+			this.writeCDataElement(writer, "name", number.getName());
+			this.newLine(writer, 3);
+			this.writeCDataElement(writer, "description", number.getDescription());
+			this.newLine(writer, 3);
+			this.writeCDataElement(writer, "format", number.getFormat());
+			if(number.getDateFormat() != null && number.getDateFormat().trim().length() > 0)
+			{
+				this.newLine(writer, 3);
+				this.writeElement(writer, "dateFormat", number.getDateFormat());
+			}
+
+			this.newLine(writer, 2);
+			writer.writeEndElement();
+			this.newLine(writer, 0);
+		}
+
+		if(sorted.length == 0)
+			this.newLine(writer, 0);
+
+		writer.writeCharacters("\t");
+		writer.writeEndElement();
+	}
+
+	private void writeElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException
+	{
+		writer.writeStartElement(name);
+		writer.writeCharacters(value);
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Writes an element whose text is a CDATA section. Text containing the CDATA terminator is split across several
+	 * adjacent sections, which a parser joins back together.
+	 */
+	private void writeCDataElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException
+	{
+		writer.writeStartElement(name);
+
+		String remaining = value == null ? "" : value;
+		int index;
+		while((index = remaining.indexOf(ConfigurationFileWriter.CDATA_END)) >= 0)
+		{
+			writer.writeCData(remaining.substring(0, index + 2));
+			remaining = remaining.substring(index + 2);
+		}
+		writer.writeCData(remaining);
+
+		writer.writeEndElement();
+	}
+
+	private void newLine(XMLStreamWriter writer, int indent) throws XMLStreamException
+	{
+		writer.writeCharacters(ConfigurationFileWriter.NEW_LINE);
+		for(int i = 0; i < indent; i++)
+			writer.writeCharacters("\t");
+	}
+
+	/**
+	 * A byte array output stream that exposes its array, so that it can be checksummed and written without copying.
+	 */
+	private static final class Buffer extends ByteArrayOutputStream
+	{
+		Buffer()
+		{
+			super(8192);
+		}
+
+		long checksum()
+		{
+			CRC32 crc = new CRC32();
+			crc.update(this.buf, 0, this.count);
+			return crc.getValue();
+		}
+
+		ByteBuffer toByteBuffer()
+		{
+			return ByteBuffer.wrap(this.buf, 0, this.count);
+		}
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ * ConfigurationSnapshot.java from TeamCityPlugins modified Saturday, November 3, 2012 13:02:19 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import com.intellij.openapi.diagnostic.Logger;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a compact binary copy of the configuration next to the configuration XML file, so that the server can start
+ * without parsing the XML. The XML file remains the source of truth: the snapshot records the
+ * {@link ConfigurationFileWatcher#checksum(byte[]) checksum} and length of the XML content it was made from, and is
+ * only {@link #read(long, long) read} while both still match, however the file's modification time changes. The
+ * snapshot is a header (magic number, format version, body length, body CRC32, XML checksum and XML length) followed
+ * by the body: the last update, the settings and then every build number in ID order, with length-prefixed UTF-8
+ * strings and plain int counters. The whole file is read with a single memory-mapped read. Writing reuses one buffer
+ * and {@link PluginFileUtils#replaceFile(File, File) replaces} the file, so instances must not be written to
+ * concurrently.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ConfigurationSnapshot
+{
+	private static final Logger logger = Logger.getInstance("jetbrains.buildServer.PLUGIN.sharedBuildNumber.SNAPSHOT");
+
+	private static final int MAGIC = 0x53424e53;
+
+	private static final int VERSION = 2;
+
+	private static final int HEADER_LENGTH = 4 + 4 + 4 + 8 + 8 + 8;
+
+	private static final String ENCODING = "UTF-8";
+
+	private static final int FLAG_INCREMENT_ONCE_FOR_CHAIN = 0x01;
+
+	private static final int FLAG_ALLOW_GAPS = 0x02;
+
+	// two bits holding the ordinal of the build number's durability plus one, or zero if it uses the server default
+	private static final int FLAG_DURABILITY_SHIFT = 2;
+
+	private static final int FLAG_DURABILITY_MASK = 0x0C;
+
+	private static final Comparator<SharedBuildNumberEntity> ID_COMPARATOR = new Comparator<SharedBuildNumberEntity>()
+	{
+		@Override
+		public int compare(SharedBuildNumberEntity left, SharedBuildNumberEntity right)
+		{
+			int id1 = left.getId();
+			int id2 = right.getId();
+
+			return id1 < id2 ? -1 : (id2 < id1 ? 1 : 0);
+		}
+	};
+
+	private final File file;
+
+	private final File temporaryFile;
+
+	private final Buffer buffer = new Buffer();
+
+	private final DataOutputStream output = new DataOutputStream(this.buffer);
+
+	public ConfigurationSnapshot(@NotNull File file)
+	{
+		this.file = file;
+		this.temporaryFile = new File(file.getParentFile(), file.getName() + ".tmp");
+	}
+
+	/**
+	 * Reads the snapshot if it was made from the given XML content, first recovering it if a crash interrupted the
+	 * last write.
+	 *
+	 * @param sourceChecksum The {@link ConfigurationFileWatcher#checksum(byte[]) checksum} of the current content of
+	 *                       the configuration XML file
+	 * @param sourceLength The length of the current content of the configuration XML file
+	 * @return the configuration, or {@code null} if there is no snapshot, or it is stale, unreadable or corrupt.
+	 */
+	@Nullable
+	public ConfigurationEntity read(long sourceChecksum, long sourceLength)
+	{
+		try
+		{
+			PluginFileUtils.recoverReplacedFile(this.temporaryFile, this.file);
+			if(!this.file.exists())
+				return null;
+
+			FileInputStream stream = FileUtils.openInputStream(this.file);
+			try
+			{
+				FileChannel channel = stream.getChannel();
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+
+				return this.decode(mapped, sourceChecksum, sourceLength);
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		catch(IOException e)
+		{
+			ConfigurationSnapshot.logger.warn("Could not read the configuration snapshot. Ignoring it.", e);
+			return null;
+		}
+		catch(BufferUnderflowException e)
+		{
+			ConfigurationSnapshot.logger.warn("The configuration snapshot is truncated. Ignoring it.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the snapshot with one of the given configuration. The checksum and length must be those of the exact
+	 * XML content the configuration was read from or written to, so that any other content makes the snapshot stale.
+	 *
+	 * @param configuration The configuration, which must match the given content of the XML file
+	 * @param sourceChecksum The {@link ConfigurationFileWatcher#checksum(byte[]) checksum} of the XML content
+	 * @param sourceLength The length of the XML content
+	 * @throws IOException if the snapshot could not be written.
+	 */
+	public void write(@NotNull ConfigurationEntity configuration, long sourceChecksum, long sourceLength)
+			throws IOException
+	{
+		this.buffer.reset();
+		this.output.write(new byte[ConfigurationSnapshot.HEADER_LENGTH]);
+
+		DateTime lastUpdate = configuration.getLastUpdate();
+		this.output.writeBoolean(lastUpdate != null);
+		if(lastUpdate != null)
+		{
+			this.output.writeLong(lastUpdate.getMillis());
+			this.writeString(lastUpdate.getZone().getID());
+		}
+
+		SettingsEntity settings = configuration.getSettings();
+		this.output.writeBoolean(settings != null);
+		if(settings != null)
+			this.output.writeInt(settings.getBuildNumberIdSequence());
+
+		SharedBuildNumberEntity[] sorted = configuration.getBuildNumbers().toArray(
+				new SharedBuildNumberEntity[configuration.getBuildNumbers().size()]
+		);
+		Arrays.sort(sorted, ConfigurationSnapshot.ID_COMPARATOR);
+
+		this.output.writeInt(sorted.length);
+		for(SharedBuildNumberEntity buildNumber : sorted)
+		{
+			this.output.writeInt(buildNumber.getId());
+			this.output.writeByte(
+					(buildNumber.isIncrementOnceForChain() ? ConfigurationSnapshot.FLAG_INCREMENT_ONCE_FOR_CHAIN : 0) |
+					(buildNumber.isAllowGaps() ? ConfigurationSnapshot.FLAG_ALLOW_GAPS : 0) |
+					(buildNumber.getDurability() == null ? 0 :
+							(buildNumber.getDurability().ordinal() + 1) << ConfigurationSnapshot.FLAG_DURABILITY_SHIFT)
+			);
+			this.output.writeInt(buildNumber.getBlockSize());
+			this.output.writeInt(buildNumber.getCounter());
+			this.writeString(buildNumber.getName());
+			this.writeString(buildNumber.getDescription());
+			this.writeString(buildNumber.getFormat());
+			this.writeString(buildNumber.getDateFormat());
+		}
+		this.output.flush();
+
+		ByteBuffer content = this.buffer.toByteBuffer();
+		int bodyLength = content.limit() - ConfigurationSnapshot.HEADER_LENGTH;
+		content.putInt(ConfigurationSnapshot.MAGIC);
+		content.putInt(ConfigurationSnapshot.VERSION);
+		content.putInt(bodyLength);
+		content.putLong(this.buffer.checksum(ConfigurationSnapshot.HEADER_LENGTH));
+		content.putLong(sourceChecksum);
+		content.putLong(sourceLength);
+		content.rewind();
+
+		FileOutputStream stream = FileUtils.openOutputStream(this.temporaryFile);
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			while(content.hasRemaining())
+				channel.write(content);
+			channel.force(true);
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		PluginFileUtils.replaceFile(this.temporaryFile, this.file);
+	}
+
+	/**
+	 * Deletes the snapshot, so that the next start parses the XML file.
+	 */
+	public void delete()
+	{
+		if(this.file.exists() && !this.file.delete())
+			ConfigurationSnapshot.logger.warn("Could not delete the configuration snapshot " + this.file + ".");
+	}
+
+	private ConfigurationEntity decode(ByteBuffer buffer, long sourceChecksum, long sourceLength)
+			throws UnsupportedEncodingException
+	{
+		if(buffer.remaining() < ConfigurationSnapshot.HEADER_LENGTH || buffer.getInt() != ConfigurationSnapshot.MAGIC)
+		{
+			ConfigurationSnapshot.logger.warn("The configuration snapshot is not a snapshot. Ignoring it.");
+			return null;
+		}
+
+		int version = buffer.getInt();
+		if(version != ConfigurationSnapshot.VERSION)
+		{
+			ConfigurationSnapshot.logger.info("Ignoring a version " + version + " configuration snapshot.");
+			return null;
+		}
+
+		int bodyLength = buffer.getInt();
+		long checksum = buffer.getLong();
+		long madeFromChecksum = buffer.getLong();
+		long madeFromLength = buffer.getLong();
+
+		if(madeFromChecksum != sourceChecksum || madeFromLength != sourceLength)
+		{
+			if(ConfigurationSnapshot.logger.isDebugEnabled())
+				ConfigurationSnapshot.logger.debug("The configuration snapshot was made from a different XML file.");
+			return null;
+		}
+
+		if(bodyLength != buffer.remaining())
+		{
+			ConfigurationSnapshot.logger.warn("The configuration snapshot has the wrong length. Ignoring it.");
+			return null;
+		}
+
+		byte[] body = new byte[bodyLength];
+		buffer.get(body);
+
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if(crc.getValue() != checksum)
+		{
+			ConfigurationSnapshot.logger.warn("The configuration snapshot checksum does not match. Ignoring it.");
+			return null;
+		}
+
+		ByteBuffer input = ByteBuffer.wrap(body);
+		ConfigurationEntity configuration = new ConfigurationEntity();
+
+		if(input.get() != 0)
+		{
+			long millis = input.getLong();
+			configuration.setLastUpdate(new DateTime(millis, DateTimeZone.forID(this.readString(input))));
+		}
+
+		if(input.get() != 0)
+		{
+			SettingsEntity settings = new SettingsEntity();
+			settings.setBuildNumberIdSequence(input.getInt());
+			configuration.setSettings(settings);
+		}
+
+		int count = input.getInt();
+		for(int i = 0; i < count; i++)
+		{
+			SharedBuildNumberEntity buildNumber = new SharedBuildNumberEntity();
+			buildNumber.setId(input.getInt());
+			int flags = input.get();
+			buildNumber.setIncrementOnceForChain((flags & ConfigurationSnapshot.FLAG_INCREMENT_ONCE_FOR_CHAIN) != 0);
+			buildNumber.setAllowGaps((flags & ConfigurationSnapshot.FLAG_ALLOW_GAPS) != 0);
+			int durability = (flags & ConfigurationSnapshot.FLAG_DURABILITY_MASK) >>
+					ConfigurationSnapshot.FLAG_DURABILITY_SHIFT;
+			if(durability > 0)
+				buildNumber.setDurability(Durability.values()[durability - 1]);
+			buildNumber.setBlockSize(input.getInt());
+			buildNumber.setCounter(input.getInt());
+			buildNumber.setName(this.readString(input));
+			buildNumber.setDescription(this.readString(input));
+			buildNumber.setFormat(this.readString(input));
+			buildNumber.setDateFormat(this.readString(input));
+			configuration.addOrUpdateBuildNumber(buildNumber);
+		}
+
+		return configuration;
+	}
+
+	private void writeString(String value) throws IOException
+	{
+		if(value == null)
+		{
+			this.output.writeInt(-1);
+		}
+		else
+		{
+			byte[] bytes = value.getBytes(ConfigurationSnapshot.ENCODING);
+			this.output.writeInt(bytes.length);
+			this.output.write(bytes);
+		}
+	}
+
+	private String readString(ByteBuffer input) throws UnsupportedEncodingException
+	{
+		int length = input.getInt();
+		if(length < 0)
+			return null;
+		if(length > input.remaining())
+			throw new BufferUnderflowException();
+
+		String value = new String(input.array(), input.arrayOffset() + input.position(), length,
+								  ConfigurationSnapshot.ENCODING);
+		input.position(input.position() + length);
+		return value;
+	}
+
+	/**
+	 * A byte array output stream that exposes its array, so that it can be checksummed and written without copying.
+	 */
+	private static final class Buffer extends ByteArrayOutputStream
+	{
+		Buffer()
+		{
+			super(8192);
+		}
+
+		long checksum(int offset)
+		{
+			CRC32 crc = new CRC32();
+			crc.update(this.buf, offset, this.count - offset);
+			return crc.getValue();
+		}
+
+		ByteBuffer toByteBuffer()
+		{
+			return ByteBuffer.wrap(this.buf, 0, this.count);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * CounterStore.java from TeamCityPlugins modified Saturday, November 3, 2012 16:32:14 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A memory-mapped store holding the counter of every shared build number, separately from the rarely changing
+ * metadata in the XML configuration file. Each shared build number ID owns one fixed-width slot at a fixed offset
+ * (the counter followed by its bitwise complement, so that an unwritten or damaged slot can be recognized), and
+ * counters are updated in place in the mapping. Counters in the store only ever move forward.<br />
+ * <br />
+ * A damaged slot is never mistaken for an unset counter: the slots found damaged when the store is opened are
+ * reported by {@link #getDamagedIds()}, reading one fails, and it can only be overwritten with {@link #repair}.
+ * <br />
+ * Updates are not forced to disk individually; durability of each increment comes from the {@link IncrementJournal},
+ * and the store is forced whenever the journal is checkpointed.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class CounterStore
+{
+	private static final Logger logger = Logger.getInstance("jetbrains.buildServer.PLUGIN.sharedBuildNumber.COUNTERS");
+
+	private static final int MAGIC = 0x53424E43;
+
+	private static final int VERSION = 1;
+
+	static final int HEADER_LENGTH = 16;
+
+	static final int SLOT_LENGTH = 8;
+
+	private static final int INITIAL_SLOTS = 256;
+
+	private final File file;
+
+	private RandomAccessFile randomAccessFile;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer buffer;
+
+	private int slotCount;
+
+	private boolean created;
+
+	private final Set<Integer> damagedIds = new TreeSet<Integer>();
+
+	public CounterStore(@NotNull File file)
+	{
+		this.file = file;
+	}
+
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return this.channel != null;
+	}
+
+	/**
+	 * @return {@code true} if the store file did not exist and was created the last time the store was opened, in
+	 * 		   which case existing counters need to be imported into it.
+	 */
+	public synchronized boolean wasCreated()
+	{
+		return this.created;
+	}
+
+	public synchronized void open() throws IOException
+	{
+		if(this.channel != null)
+			return;
+
+		if(CounterStore.logger.isDebugEnabled())
+			CounterStore.logger.debug("Opening counter store " + this.file.getPath() + ".");
+
+		this.created = !this.file.exists() || this.file.length() == 0;
+
+		this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+		this.channel = this.randomAccessFile.getChannel();
+
+		if(this.created)
+		{
+			ByteBuffer header = ByteBuffer.allocate(CounterStore.HEADER_LENGTH);
+			header.putInt(CounterStore.MAGIC).putInt(CounterStore.VERSION).flip();
+
+			this.channel.truncate(0);
+			this.channel.write(header, 0);
+			this.map(CounterStore.INITIAL_SLOTS);
+			this.buffer.force();
+			this.channel.force(true);
+		}
+		else
+		{
+			// a store shorter than its header, such as one truncated while it was being created, is not read at all
+			ByteBuffer header = ByteBuffer.allocate(CounterStore.HEADER_LENGTH);
+			if(this.channel.size() >= CounterStore.HEADER_LENGTH)
+				this.channel.read(header, 0);
+			header.flip();
+
+			if(header.remaining() < CounterStore.HEADER_LENGTH || header.getInt() != CounterStore.MAGIC ||
+			   header.getInt() != CounterStore.VERSION)
+			{
+				this.close();
+				throw new IOException("File [" + this.file.getPath() + "] is not a valid counter store.");
+			}
+
+			long slots = (this.channel.size() - CounterStore.HEADER_LENGTH) / CounterStore.SLOT_LENGTH;
+			this.map((int)Math.max(slots, CounterStore.INITIAL_SLOTS));
+
+			for(int id = 0; id < this.slotCount; id++)
+			{
+				if(this.isSlotDamaged(id))
+					this.damagedIds.add(id);
+			}
+
+			if(!this.damagedIds.isEmpty())
+			{
+				CounterStore.logger.warn(
+						"Counter store " + this.file.getPath() + " has damaged slots for shared build numbers " +
+								this.damagedIds + "."
+				);
+			}
+		}
+	}
+
+	/**
+	 * @return the IDs of the shared build numbers whose slots were found damaged when the store was opened and have
+	 * 		   not been repaired or cleared since.
+	 */
+	public synchronized Set<Integer> getDamagedIds()
+	{
+		return Collections.unmodifiableSet(new TreeSet<Integer>(this.damagedIds));
+	}
+
+	/**
+	 * @param id The shared build number ID
+	 * @return the stored counter for the given ID, or zero if no counter is stored for it.
+	 * @throws IOException if the slot for the given ID is damaged, in which case the stored counter is unknown.
+	 */
+	public synchronized int get(int id) throws IOException
+	{
+		this.assertOpen();
+
+		if(id < 0 || id >= this.slotCount)
+			return 0;
+
+		if(this.isSlotDamaged(id))
+		{
+			throw new IOException(
+					"The counter slot for shared build number [" + id + "] in counter store " + this.file.getPath() +
+							" is damaged."
+			);
+		}
+
+		return this.buffer.getInt(CounterStore.HEADER_LENGTH + id * CounterStore.SLOT_LENGTH);
+	}
+
+	/**
+	 * Stores the given counter for the given ID if it is greater than the counter already stored.
+	 *
+	 * @param id The shared build number ID
+	 * @param counter The new counter value
+	 * @return {@code true} if the stored counter was advanced.
+	 * @throws IOException if the slot for the given ID is damaged, or if the store needed to grow and could not be
+	 * 					   remapped.
+	 */
+	public synchronized boolean advance(int id, int counter) throws IOException
+	{
+		if(id < 0)
+			throw new IllegalArgumentException("The shared build number ID cannot be negative.");
+
+		if(counter <= this.get(id))
+			return false;
+
+		if(id >= this.slotCount)
+		{
+			int slots = this.slotCount;
+			while(slots <= id)
+				slots = slots > Integer.MAX_VALUE / 2 ? id + 1 : slots * 2;
+			this.map(slots);
+		}
+
+		this.write(id, counter, ~counter);
+
+		return true;
+	}
+
+	/**
+	 * Overwrites the slot for the given ID with the given counter, whatever the slot holds. This should only be used
+	 * to restore a damaged slot from a counter known to be current, such as one replayed from the increment journal.
+	 *
+	 * @param id The shared build number ID
+	 * @param counter The recovered counter value
+	 */
+	public synchronized void repair(int id, int counter)
+	{
+		this.assertOpen();
+
+		if(id >= 0 && id < this.slotCount)
+		{
+			this.write(id, counter, ~counter);
+			this.damagedIds.remove(id);
+		}
+	}
+
+	/**
+	 * Removes the counter stored for the given ID. This should only be called once the shared build number itself has
+	 * been durably removed from the configuration.
+	 *
+	 * @param id The shared build number ID
+	 */
+	public synchronized void clear(int id)
+	{
+		this.assertOpen();
+
+		if(id >= 0 && id < this.slotCount)
+		{
+			this.write(id, 0, 0);
+			this.damagedIds.remove(id);
+		}
+	}
+
+	/**
+	 * Forces all counter updates made so far to disk. Does nothing if the store is not open.
+	 */
+	public synchronized void force()
+	{
+		if(this.buffer != null)
+			this.buffer.force();
+	}
+
+	public synchronized void close()
+	{
+		if(this.buffer != null)
+			this.buffer.force();
+
+		if(this.randomAccessFile != null)
+		{
+			try
+			{
+				this.randomAccessFile.close();
+			}
+			catch(IOException e)
+			{
+				CounterStore.logger.warn("Failed to close counter store.", e);
+			}
+		}
+
+		// the mapping itself is released when the buffer is garbage collected
+		this.randomAccessFile = null;
+		this.channel = null;
+		this.buffer = null;
+		this.slotCount = 0;
+		this.damagedIds.clear();
+	}
+
+	private void write(int id, int counter, int check)
+	{
+		int offset = CounterStore.HEADER_LENGTH + id * CounterStore.SLOT_LENGTH;
+		this.buffer.putInt(offset, counter);
+		this.buffer.putInt(offset + 4, check);
+	}
+
+	private boolean isSlotDamaged(int id)
+	{
+		int offset = CounterStore.HEADER_LENGTH + id * CounterStore.SLOT_LENGTH;
+		int counter = this.buffer.getInt(offset);
+		int check = this.buffer.getInt(offset + 4);
+
+		return (counter != 0 || check != 0) && check != ~counter;
+	}
+
+	private void map(int slots) throws IOException
+	{
+		if(this.buffer != null)
+			this.buffer.force();
+
+		long length = CounterStore.HEADER_LENGTH + (long)slots * CounterStore.SLOT_LENGTH;
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		this.slotCount = slots;
+	}
+
+	private void assertOpen()
+	{
+		if(this.channel == null)
+			throw new IllegalStateException("The counter store has not been opened.");
+	}
+}
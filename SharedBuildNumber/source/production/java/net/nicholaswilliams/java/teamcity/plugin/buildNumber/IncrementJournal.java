@@ -0,0 +1,777 @@
+/*
+ * IncrementJournal.java from TeamCityPlugins modified Saturday, November 3, 2012 10:05:31 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead journal of counter increments. Each increment is recorded as a small, fixed-width,
+ * checksummed record (ID, new counter value, timestamp, CRC32) instead of rewriting the whole configuration file. The
+ * journal is {@link #checkpoint(Checkpoint) checkpointed} into the {@link CounterStore} and truncated periodically.
+ * On replay, a torn or corrupt record (and anything after it) is detected, discarded and truncated away.<br />
+ * <br />
+ * Appends are group-committed: concurrent callers queue their records, and one of them (the leader) writes the whole
+ * queued batch with a single write and a single fsync. Every caller returns only once the batch containing its record
+ * is durable. The leader can optionally wait a short flush window for more records to arrive, and takes at most
+ * {@link #setMaxBatchSize(int) maxBatchSize} records per flush. Callers that append {@link #append(int, int, boolean)
+ * grouped} records ask the leader to wait at least the {@link #setGroupWindow(long, TimeUnit) group window} instead,
+ * so that concurrent appends reliably share a flush.<br />
+ * <br />
+ * Every append records its own outcome, so a caller is only told its records are durable if the batches containing
+ * them were actually written and synced. A failed write is rolled back to the end of the last good batch before
+ * anything else is appended, so that acknowledged records never follow torn data. If it cannot be rolled back, every
+ * further append fails until the journal is {@link #checkpoint(Checkpoint) checkpointed}.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class IncrementJournal
+{
+	private static final Logger logger = Logger.getInstance("jetbrains.buildServer.PLUGIN.sharedBuildNumber.JOURNAL");
+
+	private static final int MAGIC = 0x53424E4A;
+
+	private static final int VERSION = 1;
+
+	static final int HEADER_LENGTH = 8;
+
+	static final int RECORD_LENGTH = 20;
+
+	private static final int CHECKSUMMED_LENGTH = 16;
+
+	private final File file;
+
+	private final ByteBuffer recordBuffer = ByteBuffer.allocate(IncrementJournal.RECORD_LENGTH);
+
+	private final CRC32 checksum = new CRC32();
+
+	private final CRC32 batchChecksum = new CRC32();
+
+	private final ReentrantLock queueLock = new ReentrantLock();
+
+	private final Condition queueChanged = this.queueLock.newCondition();
+
+	private int[] pendingIds = new int[16];
+
+	private int[] pendingCounters = new int[16];
+
+	private int pendingCount;
+
+	private long enqueuedSequence;
+
+	private long flushedSequence;
+
+	private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+	private boolean flushInProgress;
+
+	private long flushWindowNanos;
+
+	private long groupWindowNanos;
+
+	private int maxBatchSize = 256;
+
+	private ByteBuffer batchBuffer = ByteBuffer.allocate(256 * IncrementJournal.RECORD_LENGTH);
+
+	private long flushCount;
+
+	private long flushedRecordCount;
+
+	private RandomAccessFile randomAccessFile;
+
+	private FileChannel channel;
+
+	private int recordCount;
+
+	private IOException unrecoveredFailure;
+
+	public IncrementJournal(@NotNull File file)
+	{
+		this.file = file;
+	}
+
+	@NotNull
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	public long getFlushWindow(@NotNull TimeUnit unit)
+	{
+		return unit.convert(this.flushWindowNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets how long the leader of a group commit waits for more records to join its batch before flushing. The
+	 * default is zero, which still batches naturally: records that arrive while a flush is in progress are all
+	 * written by the next flush.
+	 *
+	 * @param window The flush window, which must not be negative
+	 * @param unit The unit of the flush window
+	 */
+	public void setFlushWindow(long window, @NotNull TimeUnit unit)
+	{
+		if(window < 0)
+			throw new IllegalArgumentException("The flush window cannot be negative.");
+
+		this.queueLock.lock();
+		try
+		{
+			this.flushWindowNanos = unit.toNanos(window);
+		}
+		finally
+		{
+			this.queueLock.unlock();
+		}
+	}
+
+	public long getGroupWindow(@NotNull TimeUnit unit)
+	{
+		return unit.convert(this.groupWindowNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets how long the leader of a group commit waits for more records to join its batch when it is flushing grouped
+	 * records. The longer of this and the flush window is used.
+	 *
+	 * @param window The group window, which must not be negative
+	 * @param unit The unit of the group window
+	 */
+	public void setGroupWindow(long window, @NotNull TimeUnit unit)
+	{
+		if(window < 0)
+			throw new IllegalArgumentException("The group window cannot be negative.");
+
+		this.queueLock.lock();
+		try
+		{
+			this.groupWindowNanos = unit.toNanos(window);
+		}
+		finally
+		{
+			this.queueLock.unlock();
+		}
+	}
+
+	public int getMaxBatchSize()
+	{
+		return this.maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize)
+	{
+		if(maxBatchSize < 1)
+			throw new IllegalArgumentException("The maximum batch size must be at least 1.");
+
+		this.queueLock.lock();
+		try
+		{
+			this.maxBatchSize = maxBatchSize;
+		}
+		finally
+		{
+			this.queueLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of flushes (write plus fsync) performed since this journal was created.
+	 */
+	public long getFlushCount()
+	{
+		this.queueLock.lock();
+		try
+		{
+			return this.flushCount;
+		}
+		finally
+		{
+			this.queueLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of records made durable since this journal was created.
+	 */
+	public long getFlushedRecordCount()
+	{
+		this.queueLock.lock();
+		try
+		{
+			return this.flushedRecordCount;
+		}
+		finally
+		{
+			this.queueLock.unlock();
+		}
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return this.channel != null;
+	}
+
+	public synchronized void open() throws IOException
+	{
+		if(this.channel != null)
+			return;
+
+		if(IncrementJournal.logger.isDebugEnabled())
+			IncrementJournal.logger.debug("Opening increment journal " + this.file.getPath() + ".");
+
+		this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+		this.channel = this.randomAccessFile.getChannel();
+
+		if(this.channel.size() < IncrementJournal.HEADER_LENGTH)
+		{
+			ByteBuffer header = ByteBuffer.allocate(IncrementJournal.HEADER_LENGTH);
+			header.putInt(IncrementJournal.MAGIC).putInt(IncrementJournal.VERSION).flip();
+
+			this.channel.truncate(0);
+			this.channel.write(header, 0);
+			this.channel.force(true);
+		}
+		else
+		{
+			ByteBuffer header = ByteBuffer.allocate(IncrementJournal.HEADER_LENGTH);
+			this.channel.read(header, 0);
+			header.flip();
+
+			int magic = header.getInt();
+			int version = header.getInt();
+			if(magic != IncrementJournal.MAGIC || version != IncrementJournal.VERSION)
+			{
+				this.close();
+				throw new IOException("File [" + this.file.getPath() + "] is not a valid increment journal.");
+			}
+		}
+
+		this.recordCount = 0;
+		this.channel.position(IncrementJournal.HEADER_LENGTH);
+	}
+
+	/**
+	 * Reads every valid record in the journal and returns the highest counter value recorded for each shared build
+	 * number ID. If a torn or corrupt record is found, it and everything after it is discarded and the journal is
+	 * truncated at the last good record, so that new appends follow the valid data.
+	 *
+	 * @return the latest counter value for each journaled ID.
+	 * @throws IOException if the journal cannot be read.
+	 */
+	@NotNull
+	public synchronized Map<Integer, Integer> replay() throws IOException
+	{
+		this.assertOpen();
+
+		Map<Integer, Integer> counters = new HashMap<Integer, Integer>();
+
+		long size = this.channel.size();
+		long position = IncrementJournal.HEADER_LENGTH;
+		int records = 0;
+
+		while(position + IncrementJournal.RECORD_LENGTH <= size)
+		{
+			this.recordBuffer.clear();
+			while(this.recordBuffer.hasRemaining())
+			{
+				if(this.channel.read(this.recordBuffer, position + this.recordBuffer.position()) < 0)
+					break;
+			}
+			if(this.recordBuffer.hasRemaining())
+				break;
+
+			this.recordBuffer.flip();
+			int id = this.recordBuffer.getInt();
+			int counter = this.recordBuffer.getInt();
+			this.recordBuffer.getLong();
+			int storedChecksum = this.recordBuffer.getInt();
+
+			if(storedChecksum != IncrementJournal.computeChecksum(this.checksum, this.recordBuffer.array(), 0))
+			{
+				IncrementJournal.logger.warn(
+						"Discarding corrupt journal record at offset " + position + " in " + this.file.getPath() + "."
+				);
+				break;
+			}
+
+			Integer existing = counters.get(id);
+			if(existing == null || existing < counter)
+				counters.put(id, counter);
+
+			position += IncrementJournal.RECORD_LENGTH;
+			records++;
+		}
+
+		if(position < size)
+		{
+			IncrementJournal.logger.warn(
+					"Truncating " + (size - position) + " bytes of torn journal data from " + this.file.getPath() + "."
+			);
+			this.channel.truncate(position);
+			this.channel.force(true);
+		}
+
+		this.recordCount = records;
+		this.channel.position(position);
+
+		return counters;
+	}
+
+	/**
+	 * Durably appends a counter record without waiting the group window. See {@link #append(int, int, boolean)}.
+	 *
+	 * @param id The shared build number ID
+	 * @param counter The new counter value
+	 * @throws IOException if the batch containing this record could not be written or synced.
+	 */
+	public void append(int id, int counter) throws IOException
+	{
+		this.append(id, counter, false);
+	}
+
+	/**
+	 * Durably appends a counter record. Returns only after the batch containing this record has been written and
+	 * synced to disk.
+	 *
+	 * @param id The shared build number ID
+	 * @param counter The new counter value
+	 * @param grouped Whether a flush led by this caller should wait the group window for concurrent records
+	 * @throws IOException if the batch containing this record could not be written or synced.
+	 * @throws IllegalStateException if the journal is not open.
+	 */
+	public void append(int id, int counter, boolean grouped) throws IOException
+	{
+		synchronized(this)
+		{
+			this.assertOpen();
+		}
+
+		this.queueLock.lock();
+		try
+		{
+			this.enqueue(id, counter);
+			this.queueChanged.signalAll();
+
+			this.awaitDurable(this.enqueuedSequence, this.enqueuedSequence, grouped);
+		}
+		finally
+		{
+			this.queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Durably appends several counter records at once without waiting the group window. See
+	 * {@link #append(int[], int[], int, boolean)}.
+	 *
+	 * @param ids The shared build number IDs
+	 * @param counters The new counter values, in the same order as the IDs
+	 * @param count The number of records to append from the start of the arrays
+	 * @throws IOException if any batch containing these records could not be written or synced.
+	 */
+	public void append(@NotNull int[] ids, @NotNull int[] counters, int count) throws IOException
+	{
+		this.append(ids, counters, count, false);
+	}
+
+	/**
+	 * Durably appends several counter records at once. The records are queued together, so they normally share a
+	 * single flush, and this returns only after every one of them has been written and synced to disk.
+	 *
+	 * @param ids The shared build number IDs
+	 * @param counters The new counter values, in the same order as the IDs
+	 * @param count The number of records to append from the start of the arrays
+	 * @param grouped Whether a flush led by this caller should wait the group window for concurrent records
+	 * @throws IOException if any batch containing these records could not be written or synced.
+	 * @throws IllegalStateException if the journal is not open.
+	 */
+	public void append(@NotNull int[] ids, @NotNull int[] counters, int count, boolean grouped) throws IOException
+	{
+		if(count < 0 || count > ids.length || count > counters.length)
+			throw new IllegalArgumentException("The record count is out of range.");
+		if(count == 0)
+			return;
+
+		synchronized(this)
+		{
+			this.assertOpen();
+		}
+
+		this.queueLock.lock();
+		try
+		{
+			long first = this.enqueuedSequence + 1;
+			for(int i = 0; i < count; i++)
+				this.enqueue(ids[i], counters[i]);
+			this.queueChanged.signalAll();
+
+			this.awaitDurable(first, this.enqueuedSequence, grouped);
+		}
+		finally
+		{
+			this.queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a record. Must be called with the queue lock held.
+	 */
+	private void enqueue(int id, int counter)
+	{
+		if(this.pendingCount == this.pendingIds.length)
+		{
+			int[] ids = new int[this.pendingIds.length * 2];
+			int[] counters = new int[ids.length];
+			System.arraycopy(this.pendingIds, 0, ids, 0, this.pendingCount);
+			System.arraycopy(this.pendingCounters, 0, counters, 0, this.pendingCount);
+			this.pendingIds = ids;
+			this.pendingCounters = counters;
+		}
+
+		this.pendingIds[this.pendingCount] = id;
+		this.pendingCounters[this.pendingCount] = counter;
+		this.pendingCount++;
+
+		this.enqueuedSequence++;
+	}
+
+	/**
+	 * Waits, flushing as the leader whenever no other flush is in progress, until the flushes of the records with the
+	 * given sequence numbers have finished. Must be called with the queue lock held.
+	 *
+	 * @throws IOException if the flush of any of the records failed.
+	 */
+	private void awaitDurable(long first, long last, boolean grouped) throws IOException
+	{
+		Waiter waiter = new Waiter(first, last);
+		this.waiters.add(waiter);
+
+		while(this.flushedSequence < last && waiter.failure == null)
+		{
+			if(this.flushInProgress)
+				this.queueChanged.awaitUninterruptibly();
+			else
+				this.flushAsLeader(grouped);
+		}
+
+		if(waiter.failure != null)
+			throw new IOException("Failed to flush the increment journal.", waiter.failure);
+	}
+
+	/**
+	 * Records the outcome of the batch ending with the given sequence number with every append that has records in it,
+	 * and forgets the appends that have no records left to flush. Must be called with the queue lock held.
+	 */
+	private void completeBatch(long batchEnd, IOException failure)
+	{
+		this.flushedSequence = batchEnd;
+
+		if(failure != null)
+		{
+			for(Waiter waiter : this.waiters)
+			{
+				if(waiter.first > batchEnd)
+					break;
+				if(waiter.failure == null)
+					waiter.failure = failure;
+			}
+		}
+
+		while(!this.waiters.isEmpty() &&
+			  (this.waiters.peek().last <= batchEnd || this.waiters.peek().failure != null))
+			this.waiters.poll();
+	}
+
+	/**
+	 * Writes the next batch of queued records with one write and one fsync. Must be called with the queue lock held;
+	 * the lock is released while the batch is actually written.
+	 *
+	 * @param grouped Whether to wait the group window, if it is longer than the flush window
+	 */
+	private void flushAsLeader(boolean grouped)
+	{
+		this.flushInProgress = true;
+
+		try
+		{
+			long window = grouped ? Math.max(this.flushWindowNanos, this.groupWindowNanos) : this.flushWindowNanos;
+			if(window > 0)
+			{
+				long remaining = window;
+				while(remaining > 0 && this.pendingCount < this.maxBatchSize)
+				{
+					try
+					{
+						remaining = this.queueChanged.awaitNanos(remaining);
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+
+			int batchSize = Math.min(this.pendingCount, this.maxBatchSize);
+			long batchEnd = this.enqueuedSequence - this.pendingCount + batchSize;
+
+			if(this.batchBuffer.capacity() < batchSize * IncrementJournal.RECORD_LENGTH)
+				this.batchBuffer = ByteBuffer.allocate(this.maxBatchSize * IncrementJournal.RECORD_LENGTH);
+
+			ByteBuffer batch = this.batchBuffer;
+			batch.clear();
+			long timestamp = System.currentTimeMillis();
+			for(int i = 0; i < batchSize; i++)
+			{
+				int offset = batch.position();
+				batch.putInt(this.pendingIds[i]).putInt(this.pendingCounters[i]).putLong(timestamp);
+				batch.putInt(IncrementJournal.computeChecksum(this.batchChecksum, batch.array(), offset));
+			}
+			batch.flip();
+
+			this.pendingCount -= batchSize;
+			System.arraycopy(this.pendingIds, batchSize, this.pendingIds, 0, this.pendingCount);
+			System.arraycopy(this.pendingCounters, batchSize, this.pendingCounters, 0, this.pendingCount);
+
+			this.queueLock.unlock();
+			IOException failure = null;
+			try
+			{
+				this.writeBatch(batch, batchSize);
+			}
+			catch(IOException e)
+			{
+				failure = e;
+			}
+			catch(RuntimeException e)
+			{
+				failure = new IOException("Unexpected error writing the increment journal.", e);
+			}
+			finally
+			{
+				this.queueLock.lock();
+			}
+
+			if(failure == null)
+			{
+				this.flushCount++;
+				this.flushedRecordCount += batchSize;
+			}
+			else
+			{
+				IncrementJournal.logger.warn("Failed to flush " + batchSize + " increment journal records.", failure);
+			}
+
+			this.completeBatch(batchEnd, failure);
+		}
+		finally
+		{
+			this.flushInProgress = false;
+			this.queueChanged.signalAll();
+		}
+	}
+
+	/**
+	 * Writes and syncs a batch after the last good record. If the write or the sync fails, the journal is truncated
+	 * back to where the batch started.
+	 */
+	private synchronized void writeBatch(ByteBuffer batch, int batchSize) throws IOException
+	{
+		this.assertOpen();
+
+		if(this.unrecoveredFailure != null)
+		{
+			throw new IOException(
+					"The increment journal could not be rolled back after a failed write and must be checkpointed " +
+							"before more records are appended.", this.unrecoveredFailure
+			);
+		}
+
+		long position = this.channel.position();
+		boolean written = false;
+		try
+		{
+			this.write(this.channel, batch);
+			written = true;
+		}
+		finally
+		{
+			if(!written)
+				this.rollBack(position);
+		}
+
+		this.recordCount += batchSize;
+	}
+
+	/**
+	 * Writes the whole buffer at the channel's position and syncs the channel.
+	 *
+	 * @param channel The journal's channel
+	 * @param batch The records to write
+	 * @throws IOException if the records could not be written or synced.
+	 */
+	protected void write(@NotNull FileChannel channel, @NotNull ByteBuffer batch) throws IOException
+	{
+		while(batch.hasRemaining())
+			channel.write(batch);
+		channel.force(false);
+	}
+
+	/**
+	 * Discards whatever a failed write left after the given position. Must be called while synchronized.
+	 */
+	private void rollBack(long position)
+	{
+		try
+		{
+			if(this.channel.size() > position)
+				this.channel.truncate(position);
+			this.channel.position(position);
+		}
+		catch(IOException e)
+		{
+			IncrementJournal.logger.error(
+					"Could not roll back a failed write to " + this.file.getPath() + ". Refusing further appends " +
+							"until the journal is checkpointed.", e
+			);
+			this.unrecoveredFailure = e;
+		}
+	}
+
+	public synchronized int getRecordCount()
+	{
+		return this.recordCount;
+	}
+
+	/**
+	 * Discards every record in the journal. This should only be called after the journaled counters have been safely
+	 * persisted elsewhere. Does nothing if the journal is not open.
+	 *
+	 * @throws IOException if the journal cannot be truncated.
+	 */
+	public synchronized void truncate() throws IOException
+	{
+		if(this.channel == null)
+			return;
+
+		this.channel.truncate(IncrementJournal.HEADER_LENGTH);
+		this.channel.force(true);
+		this.channel.position(IncrementJournal.HEADER_LENGTH);
+
+		this.recordCount = 0;
+		this.unrecoveredFailure = null;
+	}
+
+	/**
+	 * @return whether a failed write could not be rolled back, so that nothing can be appended until the journal is
+	 *         {@link #checkpoint(Checkpoint) checkpointed}.
+	 */
+	public synchronized boolean needsCheckpoint()
+	{
+		return this.unrecoveredFailure != null;
+	}
+
+	/**
+	 * Runs the given checkpoint and then truncates the journal, without letting any batch be written in between. Every
+	 * record already in the journal must be covered by whatever the checkpoint persists. Does nothing if the journal is
+	 * not open.
+	 *
+	 * @param checkpoint Persists the journaled counters elsewhere
+	 * @throws IOException if the checkpoint fails or the journal cannot be truncated.
+	 */
+	public synchronized void checkpoint(@NotNull Checkpoint checkpoint) throws IOException
+	{
+		if(this.channel == null)
+			return;
+
+		checkpoint.checkpoint();
+		this.truncate();
+	}
+
+	public synchronized void close()
+	{
+		if(this.randomAccessFile != null)
+		{
+			try
+			{
+				this.randomAccessFile.close();
+			}
+			catch(IOException e)
+			{
+				IncrementJournal.logger.warn("Failed to close increment journal.", e);
+			}
+		}
+
+		this.randomAccessFile = null;
+		this.channel = null;
+		this.recordCount = 0;
+		this.unrecoveredFailure = null;
+	}
+
+	private static int computeChecksum(CRC32 checksum, byte[] record, int offset)
+	{
+		checksum.reset();
+		checksum.update(record, offset, IncrementJournal.CHECKSUMMED_LENGTH);
+		return (int)checksum.getValue();
+	}
+
+	private void assertOpen()
+	{
+		if(this.channel == null)
+			throw new IllegalStateException("The increment journal has not been opened.");
+	}
+
+	public static interface Checkpoint
+	{
+		public void checkpoint() throws IOException;
+	}
+
+	/**
+	 * The sequence numbers of one append's records and whether any of them failed to flush.
+	 */
+	private static final class Waiter
+	{
+		private final long first;
+
+		private final long last;
+
+		private IOException failure;
+
+		private Waiter(long first, long last)
+		{
+			this.first = first;
+			this.last = last;
+		}
+	}
+}
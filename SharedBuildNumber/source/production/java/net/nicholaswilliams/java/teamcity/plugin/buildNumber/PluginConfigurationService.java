@@ -1,5 +1,5 @@
 /*
- * PluginConfigurationService.java from TeamCityPlugins modified Friday, September 7, 2012 22:41:25 CDT (-0500).
+ * PluginConfigurationService.java from TeamCityPlugins modified Wednesday, October 31, 2012 16:42:05 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -23,7 +23,9 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.SortedSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Specifies an interface for managing the configuration for this plugin.
@@ -38,16 +40,106 @@ public interface PluginConfigurationService
 
 	public static final String CONFIG_XML_FILE_NAME = "shared-build-number-config.xml";
 
+	public static final String CONFIG_JOURNAL_FILE_NAME = "shared-build-number-config.journal";
+
+	public static final String CONFIG_COUNTERS_FILE_NAME = "shared-build-number-counters.dat";
+
+	public static final String CONFIG_VALIDATED_FILE_NAME = "shared-build-number-config.validated";
+
+	public static final String CONFIG_SNAPSHOT_FILE_NAME = "shared-build-number-config.snapshot";
+
 	public int getNextBuildNumberId() throws IOException;
 
+	/**
+	 * @return a number that changes whenever shared build numbers are added, changed, deleted or reloaded from the
+	 *         configuration file, so that anything derived from them knows when it must be derived again. Changes
+	 *         to counters alone do not change the generation.
+	 */
+	public long getConfigurationGeneration();
+
+	/**
+	 * @return the time, in milliseconds since the epoch, at which any shared build number or any counter last changed.
+	 */
+	public long getLastModified();
+
+	/**
+	 * @return the metrics collected by this service.
+	 */
+	@NotNull
+	public SharedBuildNumberMetrics getMetrics();
+
 	@NotNull
 	public int[] getAllSharedBuildNumberIds();
 
+	public int getSharedBuildNumberCount();
+
+	/**
+	 * @param descending Whether to order the shared build numbers from the highest ID down
+	 * @param offset The number of shared build numbers to skip
+	 * @param limit The maximum number of shared build numbers to return
+	 * @return a page of the shared build numbers, ordered by ID.
+	 */
 	@NotNull
-	public SortedSet<SharedBuildNumber> getAllSharedBuildNumbersSortedById(boolean descending);
+	public List<SharedBuildNumber> getSharedBuildNumbersSortedById(boolean descending, int offset, int limit);
 
+	/**
+	 * @param descending Whether to order the shared build numbers from the last name down
+	 * @param offset The number of shared build numbers to skip
+	 * @param limit The maximum number of shared build numbers to return
+	 * @return a page of the shared build numbers, ordered by name and then by ID, with unnamed ones first.
+	 */
 	@NotNull
-	public SortedSet<SharedBuildNumber> getAllSharedBuildNumbersSortedByName(boolean descending);
+	public List<SharedBuildNumber> getSharedBuildNumbersSortedByName(boolean descending, int offset, int limit);
+
+	/**
+	 * @param afterId The ID of the last shared build number of the previous page, which need not exist any more
+	 * @param descending Whether to order the shared build numbers from the highest ID down
+	 * @param limit The maximum number of shared build numbers to return
+	 * @return the page of shared build numbers ordered by ID that follows the given ID.
+	 */
+	@NotNull
+	public List<SharedBuildNumber> getSharedBuildNumbersSortedByIdAfter(int afterId, boolean descending, int limit);
+
+	/**
+	 * @param afterName The name of the last shared build number of the previous page
+	 * @param afterId The ID of the last shared build number of the previous page, which need not exist any more
+	 * @param descending Whether to order the shared build numbers from the last name down
+	 * @param limit The maximum number of shared build numbers to return
+	 * @return the page of shared build numbers ordered by name and then by ID that follows the given name and ID.
+	 */
+	@NotNull
+	public List<SharedBuildNumber> getSharedBuildNumbersSortedByNameAfter(@Nullable String afterName, int afterId,
+																		  boolean descending, int limit);
+
+	/**
+	 * @param namePrefix If not empty, only shared build numbers whose names start with it, ignoring case, are returned
+	 * @param nameContains If not empty, only shared build numbers whose names contain it, ignoring case, are returned
+	 * @param afterId The ID of the last shared build number of the previous page, or null for the first page
+	 * @param descending Whether to order the shared build numbers from the highest ID down
+	 * @param limit The maximum number of shared build numbers to return
+	 * @return a page of the matching shared build numbers, ordered by ID.
+	 */
+	@NotNull
+	public List<SharedBuildNumber> findSharedBuildNumbersSortedById(@Nullable String namePrefix,
+																	@Nullable String nameContains,
+																	@Nullable Integer afterId, boolean descending,
+																	int limit);
+
+	/**
+	 * @param namePrefix If not empty, only shared build numbers whose names start with it, ignoring case, are returned
+	 * @param nameContains If not empty, only shared build numbers whose names contain it, ignoring case, are returned
+	 * @param afterName The name of the last shared build number of the previous page
+	 * @param afterId The ID of the last shared build number of the previous page, or null for the first page
+	 * @param descending Whether to order the shared build numbers from the last name down
+	 * @param limit The maximum number of shared build numbers to return
+	 * @return a page of the matching shared build numbers, ordered by name and then by ID, with unnamed ones first.
+	 */
+	@NotNull
+	public List<SharedBuildNumber> findSharedBuildNumbersSortedByName(@Nullable String namePrefix,
+																	  @Nullable String nameContains,
+																	  @Nullable String afterName,
+																	  @Nullable Integer afterId, boolean descending,
+																	  int limit);
 
 	@Nullable
 	public SharedBuildNumber getSharedBuildNumber(int id);
@@ -60,5 +152,16 @@ public interface PluginConfigurationService
 	@Nullable
 	public String getAndIncrementFormattedSharedBuildNumber(int id) throws IOException;
 
+	/**
+	 * Increments several shared build numbers at once, persisting all of the increments together.
+	 *
+	 * @param ids The IDs of the shared build numbers to increment
+	 * @return the formatted build numbers, keyed by ID. IDs with no shared build number are left out.
+	 * @throws IOException if the increments could not be persisted.
+	 */
+	@NotNull
+	public Map<Integer, String> getAndIncrementFormattedSharedBuildNumbers(@NotNull Set<Integer> ids)
+			throws IOException;
+
 	public void saveSharedBuildNumber(@NotNull SharedBuildNumber sharedBuildNumber) throws IOException;
 }
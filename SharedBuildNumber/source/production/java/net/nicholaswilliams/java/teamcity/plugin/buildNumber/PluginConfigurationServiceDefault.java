@@ -1,5 +1,5 @@
 /*
- * PluginConfigurationServiceDefault.java from TeamCityPlugins modified Saturday, September 22, 2012 00:04:00 CDT (-0500).
+ * PluginConfigurationServiceDefault.java from TeamCityPlugins modified Saturday, November 3, 2012 14:41:09 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -20,42 +20,44 @@ package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
 
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.configuration.ChangeListener;
-import jetbrains.buildServer.configuration.FileWatcher;
 import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
-import org.apache.commons.beanutils.ConvertUtils;
-import org.apache.commons.digester3.Digester;
-import org.apache.commons.digester3.binder.DigesterLoader;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.joda.time.DateTime;
-import org.joda.time.format.ISODateTimeFormat;
 import org.springframework.beans.FatalBeanException;
 import org.springframework.util.Assert;
 import org.xml.sax.SAXException;
 
 import javax.xml.XMLConstants;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Default class for managing the configuration for this plugin.
@@ -70,29 +72,103 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 
 	private static final String DIST_CONFIG_XML_FILE_NAME = "shared-build-number-config.xml.dist";
 
+	private static final String JOURNAL_MAX_RECORDS_PROPERTY = "teamcity.sharedBuildNumber.journal.maxRecords";
+
+	private static final String JOURNAL_COMPACTION_INTERVAL_PROPERTY =
+			"teamcity.sharedBuildNumber.journal.compactionIntervalSeconds";
+
+	private static final String JOURNAL_FLUSH_WINDOW_PROPERTY =
+			"teamcity.sharedBuildNumber.journal.flushWindowMicroseconds";
+
+	private static final String JOURNAL_MAX_BATCH_PROPERTY = "teamcity.sharedBuildNumber.journal.maxBatchSize";
+
+	private static final String DURABILITY_PROPERTY = "teamcity.sharedBuildNumber.durability";
+
+	private static final String GROUP_WINDOW_PROPERTY =
+			"teamcity.sharedBuildNumber.durability.groupWindowMicroseconds";
+
+	private static final String ASYNC_FLUSH_INTERVAL_PROPERTY =
+			"teamcity.sharedBuildNumber.durability.asyncFlushIntervalMilliseconds";
+
+	private static final String CONFIG_WATCHER_POLL_INTERVAL_PROPERTY =
+			"teamcity.sharedBuildNumber.configWatcher.pollIntervalMilliseconds";
+
+	private static final int BUILD_NUMBER_LOCK_STRIPES = 64;
+
 	private final File xsdFile;
 
 	private final File configFile;
 
-	private final DigesterLoader digesterLoader;
+	private final File validatedFile;
+
+	private final ConfigurationSnapshot snapshot;
+
+	private final IncrementJournal journal;
+
+	private final CounterStore counterStore;
+
+	private final AtomicBoolean journalCompactionPending = new AtomicBoolean();
+
+	private volatile int journalMaxRecords = 1000;
+
+	private final ConcurrentHashMap<Integer, Integer> dirtyCounters = new ConcurrentHashMap<Integer, Integer>();
+
+	private volatile Durability defaultDurability = Durability.SYNC;
 
-	private final ReentrantReadWriteLock configLock;
+	private final ConfigurationFileReader configFileReader;
 
-	private FileWatcher configFileWatcher;
+	private Schema schema;
 
-	private List<String> configFileHeader;
+	private long schemaChecksum;
 
-	private ConfigurationEntity configuration;
+	private volatile long validatedChecksum = -1L;
+
+	private final ReentrantLock configLock;
+
+	private final ReentrantLock saveLock;
+
+	private final ReentrantLock[] buildNumberLocks;
+
+	private ConfigurationFileWatcher configFileWatcher;
+
+	private ScheduledExecutorService journalCompactor;
+
+	private ScheduledExecutorService asyncWriter;
+
+	private ConfigurationFileWriter configFileWriter;
+
+	private volatile ConfigurationEntity configuration;
+
+	private volatile long configurationGeneration;
+
+	private volatile long lastModified = System.currentTimeMillis();
+
+	private final SharedBuildNumberMetrics metrics = new SharedBuildNumberMetrics();
 
 	public PluginConfigurationServiceDefault(@NotNull ServerPaths serverPaths)
 	{
 		File configDirectory = PluginFileUtils.getCanonicalFile(new File(serverPaths.getConfigDir()));
 		this.xsdFile = new File(configDirectory, PluginConfigurationService.CONFIG_XSD_FILE_NAME);
 		this.configFile = new File(configDirectory, PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		this.validatedFile = new File(configDirectory, PluginConfigurationService.CONFIG_VALIDATED_FILE_NAME);
+		this.snapshot = new ConfigurationSnapshot(
+				new File(configDirectory, PluginConfigurationService.CONFIG_SNAPSHOT_FILE_NAME)
+		);
+		this.journal = new IncrementJournal(
+				new File(configDirectory, PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME)
+		);
+		this.counterStore = new CounterStore(
+				new File(configDirectory, PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME)
+		);
 
-		this.digesterLoader = DigesterLoader.newLoader(new ConfigurationDigesterModule());
+		this.configFileReader = new ConfigurationFileReader();
 
-		this.configLock = new ReentrantReadWriteLock();
+		this.configLock = new ReentrantLock();
+		this.saveLock = new ReentrantLock();
+
+		this.buildNumberLocks = new ReentrantLock[PluginConfigurationServiceDefault.BUILD_NUMBER_LOCK_STRIPES];
+		for(int i = 0; i < this.buildNumberLocks.length; i++)
+			this.buildNumberLocks[i] = new ReentrantLock();
 	}
 
 	protected void finalize() throws Throwable
@@ -103,125 +179,273 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 	}
 
 	@Override
-	public synchronized int getNextBuildNumberId() throws IOException
+	public int getNextBuildNumberId() throws IOException
 	{
-		PluginConfigurationServiceDefault.logger.info(
-				"Getting next shared build number ID and incrementing the sequence."
-		);
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+		{
+			PluginConfigurationServiceDefault.logger.debug(
+					"Getting next shared build number ID and incrementing the sequence."
+			);
+		}
 
-		this.configLock.writeLock().lock();
+		// the sequence is atomic and shared by every snapshot, so only the save itself needs to be serialized
+		SettingsEntity settings = this.configuration.getSettings();
 
-		try
-		{
-			SettingsEntity settings = this.configuration.getSettings();
+		int nextBuildNumberId = settings.getAndIncrementBuildNumberIdSequence();
 
-			int nextBuildNumberId = settings.getAndIncrementBuildNumberIdSequence();
+		this.saveConfiguration();
 
-			this.saveConfiguration();
+		return nextBuildNumberId;
+	}
 
-			return nextBuildNumberId;
-		}
-		finally
+	/**
+	 * Acquires the configuration lock, recording how long the caller had to wait for it.
+	 */
+	private void lockConfiguration()
+	{
+		if(this.configLock.tryLock())
 		{
-			this.configLock.writeLock().unlock();
+			this.metrics.recordConfigurationLockWait(0L);
+			return;
 		}
+
+		long start = System.nanoTime();
+		this.configLock.lock();
+		this.metrics.recordConfigurationLockWait(System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the lock guarding changes to the given shared build number. Locks are striped by ID, so changes to
+	 * unrelated shared build numbers almost never wait for each other.
+	 *
+	 * @param id The shared build number ID
+	 * @return the lock for the shared build number.
+	 */
+	protected ReentrantLock getBuildNumberLock(int id)
+	{
+		return this.buildNumberLocks[(id & Integer.MAX_VALUE) % this.buildNumberLocks.length];
+	}
+
+	@Override
+	public long getConfigurationGeneration()
+	{
+		return this.configurationGeneration;
+	}
+
+	@Override
+	public long getLastModified()
+	{
+		return this.lastModified;
+	}
+
+	@Override
+	@NotNull
+	public SharedBuildNumberMetrics getMetrics()
+	{
+		return this.metrics;
 	}
 
 	@Override
 	@NotNull
 	public int[] getAllSharedBuildNumberIds()
 	{
-		this.configLock.readLock().lock();
+		Collection<SharedBuildNumberEntity> buildNumbers = this.configuration.getBuildNumbers();
+		int[] ids = new int[buildNumbers.size()];
 
-		try
-		{
-			Collection<SharedBuildNumberEntity> buildNumbers = this.configuration.getBuildNumbers();
-			int[] ids = new int[buildNumbers.size()];
+		int i = 0;
+		for(SharedBuildNumberEntity buildNumber : buildNumbers)
+			ids[i++] = buildNumber.getId();
+		return ids;
+	}
 
-			int i = 0;
-			for(SharedBuildNumberEntity buildNumber : buildNumbers)
-				ids[i++] = buildNumber.getId();
-			return ids;
-		}
-		finally
+	@Override
+	public int getSharedBuildNumberCount()
+	{
+		return this.configuration.getBuildNumbers().size();
+	}
+
+	@Override
+	@NotNull
+	public List<SharedBuildNumber> getSharedBuildNumbersSortedById(boolean descending, int offset, int limit)
+	{
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+			PluginConfigurationServiceDefault.logger.debug("Getting shared build numbers ordered by ID.");
+
+		return PluginConfigurationServiceDefault.translate(
+				this.configuration.getBuildNumbersById().getPage(descending, offset, limit)
+		);
+	}
+
+	@Override
+	@NotNull
+	public List<SharedBuildNumber> getSharedBuildNumbersSortedByName(boolean descending, int offset, int limit)
+	{
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+			PluginConfigurationServiceDefault.logger.debug("Getting shared build numbers ordered by name.");
+
+		return PluginConfigurationServiceDefault.translate(
+				this.configuration.getBuildNumbersByName().getPage(descending, offset, limit)
+		);
+	}
+
+	@Override
+	@NotNull
+	public List<SharedBuildNumber> getSharedBuildNumbersSortedByIdAfter(int afterId, boolean descending, int limit)
+	{
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
 		{
-			this.configLock.readLock().unlock();
+			PluginConfigurationServiceDefault.logger.debug(
+					"Getting shared build numbers ordered by ID after [" + afterId + "]."
+			);
 		}
+
+		SharedBuildNumberEntity key = new SharedBuildNumberEntity();
+		key.setId(afterId);
+
+		return PluginConfigurationServiceDefault.translate(
+				this.configuration.getBuildNumbersById().getPageAfter(key, descending, limit)
+		);
 	}
 
 	@Override
 	@NotNull
-	public SortedSet<SharedBuildNumber> getAllSharedBuildNumbersSortedById(final boolean descending)
+	public List<SharedBuildNumber> getSharedBuildNumbersSortedByNameAfter(@Nullable String afterName, int afterId,
+																		  boolean descending, int limit)
 	{
 		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
-			PluginConfigurationServiceDefault.logger.debug("Getting all shared build numbers ordered by ID.");
+		{
+			PluginConfigurationServiceDefault.logger.debug(
+					"Getting shared build numbers ordered by name after [" + afterName + "] [" + afterId + "]."
+			);
+		}
 
-		this.configLock.readLock().lock();
+		SharedBuildNumberEntity key = new SharedBuildNumberEntity();
+		key.setId(afterId);
+		key.setName(afterName);
 
-		try
-		{
-			return this.getTranslatedSet(this.configuration.getBuildNumbers(), new Comparator<SharedBuildNumber>()
-			{
-				@Override
-				public int compare(SharedBuildNumber left, SharedBuildNumber right)
-				{
-					int id1 = left.getId();
-					int id2 = right.getId();
+		return PluginConfigurationServiceDefault.translate(
+				this.configuration.getBuildNumbersByName().getPageAfter(key, descending, limit)
+		);
+	}
 
-					if(descending)
-						return id1 < id2 ? 1 : (id2 < id1 ? -1 : 0);
-					else
-						return id1 < id2 ? -1 : (id2 < id1 ? 1 : 0);
-				}
-			});
+	@Override
+	@NotNull
+	public List<SharedBuildNumber> findSharedBuildNumbersSortedById(@Nullable String namePrefix,
+																	@Nullable String nameContains,
+																	@Nullable Integer afterId, boolean descending,
+																	int limit)
+	{
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+		{
+			PluginConfigurationServiceDefault.logger.debug(
+					"Finding shared build numbers ordered by ID with names starting with [" + namePrefix +
+					"] and containing [" + nameContains + "]."
+			);
 		}
-		finally
+
+		SharedBuildNumberEntity key = null;
+		if(afterId != null)
 		{
-			this.configLock.readLock().unlock();
+			key = new SharedBuildNumberEntity();
+			key.setId(afterId);
 		}
+
+		return this.find(false, namePrefix, nameContains, key, descending, limit);
 	}
 
 	@Override
 	@NotNull
-	public SortedSet<SharedBuildNumber> getAllSharedBuildNumbersSortedByName(final boolean descending)
+	public List<SharedBuildNumber> findSharedBuildNumbersSortedByName(@Nullable String namePrefix,
+																	  @Nullable String nameContains,
+																	  @Nullable String afterName,
+																	  @Nullable Integer afterId, boolean descending,
+																	  int limit)
 	{
 		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
-			PluginConfigurationServiceDefault.logger.debug("Getting all shared build numbers ordered by name.");
+		{
+			PluginConfigurationServiceDefault.logger.debug(
+					"Finding shared build numbers ordered by name with names starting with [" + namePrefix +
+					"] and containing [" + nameContains + "]."
+			);
+		}
 
-		this.configLock.readLock().lock();
+		SharedBuildNumberEntity key = null;
+		if(afterId != null)
+		{
+			key = new SharedBuildNumberEntity();
+			key.setId(afterId);
+			key.setName(afterName);
+		}
 
-		try
+		return this.find(true, namePrefix, nameContains, key, descending, limit);
+	}
+
+	/**
+	 * Narrows the shared build numbers down with the indexes before ordering them. A name prefix is a range of the
+	 * name index, which a search ordered by name can page through directly. A name part is looked up in the
+	 * substring index, or matched against the names in the prefix range if there is one. Only what is left after
+	 * narrowing is sorted.
+	 */
+	private List<SharedBuildNumber> find(boolean byName, String namePrefix, String nameContains,
+										 SharedBuildNumberEntity after, boolean descending, int limit)
+	{
+		ConfigurationEntity configuration = this.configuration;
+
+		SharedBuildNumberIndex index = byName ? configuration.getBuildNumbersByName() :
+											   configuration.getBuildNumbersById();
+		List<SharedBuildNumberEntity> candidates = null;
+
+		boolean hasPrefix = namePrefix != null && namePrefix.length() > 0;
+		if(hasPrefix)
 		{
-			return this.getTranslatedSet(this.configuration.getBuildNumbers(), new Comparator<SharedBuildNumber>()
+			SharedBuildNumberIndex range = configuration.getBuildNumbersByName().getNamePrefixRange(namePrefix);
+			if(byName)
+				index = range;
+			else
+				candidates = range.getPage(false, 0, range.size());
+		}
+
+		if(nameContains != null && nameContains.length() > 0)
+		{
+			if(hasPrefix)
 			{
-				@Override
-				public int compare(SharedBuildNumber left, SharedBuildNumber right)
-				{
-					if(left.getName() == null && right.getName() == null)
-						return 0;
+				List<SharedBuildNumberEntity> inRange = candidates == null ?
+						index.getPage(false, 0, index.size()) : candidates;
 
-					if(descending)
-						return right.getName() == null ? -1 : right.getName().compareTo(left.getName());
-					else
-						return left.getName() == null ? -1 : left.getName().compareTo(right.getName());
+				String lowerCase = nameContains.toLowerCase(Locale.ROOT);
+				candidates = new ArrayList<SharedBuildNumberEntity>();
+				for(SharedBuildNumberEntity buildNumber : inRange)
+				{
+					if(buildNumber.getName().toLowerCase(Locale.ROOT).contains(lowerCase))
+						candidates.add(buildNumber);
 				}
-			});
+			}
+			else
+			{
+				candidates = configuration.getBuildNumbersByNameSubstring().find(nameContains);
+			}
 		}
-		finally
+
+		if(candidates != null)
 		{
-			this.configLock.readLock().unlock();
+			index = new SharedBuildNumberIndex(
+					byName ? SharedBuildNumberIndex.NAME_ORDER : SharedBuildNumberIndex.ID_ORDER, candidates
+			);
 		}
+
+		return PluginConfigurationServiceDefault.translate(
+				after == null ? index.getPage(descending, 0, limit) : index.getPageAfter(after, descending, limit)
+		);
 	}
 
-	private SortedSet<SharedBuildNumber> getTranslatedSet(Collection<SharedBuildNumberEntity> buildNumbers,
-														  Comparator<SharedBuildNumber> comparator)
+	private static List<SharedBuildNumber> translate(List<SharedBuildNumberEntity> buildNumbers)
 	{
-		TreeSet<SharedBuildNumber> set = new TreeSet<SharedBuildNumber>(comparator);
+		List<SharedBuildNumber> translated = new ArrayList<SharedBuildNumber>(buildNumbers.size());
 
 		for(SharedBuildNumberEntity entity : buildNumbers)
-			set.add(new SharedBuildNumber(entity));
+			translated.add(new SharedBuildNumber(entity));
 
-		return set;
+		return translated;
 	}
 
 	@Override
@@ -231,84 +455,187 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
 			PluginConfigurationServiceDefault.logger.debug("Getting shared build number [" + id + "].");
 
-		this.configLock.readLock().lock();
-
-		try
-		{
-			SharedBuildNumberEntity entity = this.configuration.getBuildNumber(id);
-			return entity == null ? null : new SharedBuildNumber(entity);
-		}
-		finally
-		{
-			this.configLock.readLock().unlock();
-		}
+		SharedBuildNumberEntity entity = this.configuration.getBuildNumber(id);
+		return entity == null ? null : new SharedBuildNumber(entity);
 	}
 
 	@Override
 	@NotNull
 	public String getSharedBuildNumberName(int id)
 	{
-		this.configLock.readLock().lock();
+		SharedBuildNumberEntity entity = this.configuration.getBuildNumber(id);
+		return entity == null ? "" : entity.getName();
+	}
+
+	@Override
+	public void deleteSharedBuildNumber(int id) throws IOException
+	{
+		ReentrantLock buildNumberLock = this.getBuildNumberLock(id);
+		buildNumberLock.lock();
 
 		try
 		{
-			SharedBuildNumberEntity entity = this.configuration.getBuildNumber(id);
-			return entity == null ? "" : entity.getName();
+			this.lockConfiguration();
+
+			try
+			{
+				ConfigurationEntity configuration = this.configuration.copy();
+				configuration.removeBuildNumber(id);
+				this.publishConfiguration(configuration);
+			}
+			finally
+			{
+				this.configLock.unlock();
+			}
+
+			this.metrics.forgetBuildNumber(id);
+
+			this.saveConfiguration();
+
+			if(this.counterStore.isOpen())
+				this.counterStore.clear(id);
+
+			this.dirtyCounters.remove(id);
 		}
 		finally
 		{
-			this.configLock.readLock().unlock();
+			buildNumberLock.unlock();
 		}
 	}
 
 	@Override
-	public void deleteSharedBuildNumber(int id) throws IOException
+	@Nullable
+	public String getAndIncrementFormattedSharedBuildNumber(int id) throws IOException
 	{
-		this.configLock.writeLock().lock();
+		long start = System.nanoTime();
 
-		try
+		SharedBuildNumberEntity buildNumber = this.configuration.getBuildNumber(id);
+		if(buildNumber == null)
+			return null;
+
+		// the counter is shared by every snapshot containing this build number, so no lock is needed to increment it
+		int counter = buildNumber.getAndIncrementCounter();
+		this.lastModified = System.currentTimeMillis();
+		this.metrics.recordIncrement(id);
+
+		Durability durability = this.getDurability(buildNumber);
+		if(durability == Durability.ASYNC)
 		{
-			this.configuration.removeBuildNumber(id);
-			this.saveConfiguration();
+			this.markCounterDirty(id, counter + 1);
 		}
-		finally
+		else if(buildNumber.isAllowGaps())
+		{
+			this.reserveCounter(buildNumber, counter);
+		}
+		else
 		{
-			this.configLock.writeLock().unlock();
+			// journaled outside of any lock so that concurrent increments can share a single journal flush
+			this.persistCounter(id, counter + 1, durability == Durability.GROUP);
 		}
+
+		long formatStart = System.nanoTime();
+		String formatted = buildNumber.getTemplate().format(counter);
+		long end = System.nanoTime();
+
+		this.metrics.recordFormatLatency(end - formatStart);
+		this.metrics.recordIncrementLatency(end - start);
+
+		return formatted;
 	}
 
 	@Override
-	@Nullable
-	public String getAndIncrementFormattedSharedBuildNumber(int id) throws IOException
+	@NotNull
+	public Map<Integer, String> getAndIncrementFormattedSharedBuildNumbers(@NotNull Set<Integer> ids)
+			throws IOException
 	{
-		this.configLock.writeLock().lock();
-		this.configLock.readLock().lock();
+		long start = System.nanoTime();
 
-		try
+		ConfigurationEntity configuration = this.configuration;
+
+		Map<Integer, String> buildNumbers = new HashMap<Integer, String>(ids.size() * 2);
+		int[] persistIds = new int[ids.size()];
+		int[] persistCounters = new int[ids.size()];
+		int persistCount = 0;
+		boolean grouped = true;
+
+		for(int id : ids)
 		{
-			SharedBuildNumberEntity buildNumber = this.configuration.getBuildNumber(id);
+			SharedBuildNumberEntity buildNumber = configuration.getBuildNumber(id);
 			if(buildNumber == null)
-				return null;
+				continue;
 
 			int counter = buildNumber.getAndIncrementCounter();
-			this.saveConfiguration();
-			this.configLock.writeLock().unlock();
+			this.metrics.recordIncrement(id);
 
-			String number = buildNumber.getFormat().replace("{0}", Integer.toString(counter));
-
-			if(number.toLowerCase().contains("{d}"))
+			Durability durability = this.getDurability(buildNumber);
+			if(durability == Durability.ASYNC)
+			{
+				this.markCounterDirty(id, counter + 1);
+			}
+			else if(buildNumber.isAllowGaps())
+			{
+				this.reserveCounter(buildNumber, counter);
+			}
+			else
 			{
-				String date = new SimpleDateFormat(buildNumber.getDateFormat()).format(new Date());
-				number = number.replace("{d}", date).replace("{D}", date);
+				persistIds[persistCount] = id;
+				persistCounters[persistCount] = counter + 1;
+				persistCount++;
+				grouped &= durability == Durability.GROUP;
 			}
 
-			return number;
+			long formatStart = System.nanoTime();
+			buildNumbers.put(id, buildNumber.getTemplate().format(counter));
+			this.metrics.recordFormatLatency(System.nanoTime() - formatStart);
+		}
+
+		if(!buildNumbers.isEmpty())
+			this.lastModified = System.currentTimeMillis();
+
+		// one journal append for all of the increments, so that they share a flush instead of waiting for one each; it
+		// only waits the group window if none of the increments wanted a synchronous flush
+		if(persistCount > 0)
+			this.persistCounters(persistIds, persistCounters, persistCount, grouped);
+
+		if(!buildNumbers.isEmpty())
+			this.metrics.recordIncrementLatency(System.nanoTime() - start);
+
+		return buildNumbers;
+	}
+
+	/**
+	 * Makes sure the given counter value of a shared build number that allows gaps falls within the block of values
+	 * reserved for it, reserving and journaling the next block if it does not. Only the high-water mark of each block
+	 * is persisted, so most increments need no disk I/O at all; the values left over in the current block are skipped
+	 * when the server restarts. A new block is always flushed without waiting the group window, because the build
+	 * number's lock is held while it is journaled.
+	 *
+	 * @param buildNumber The shared build number whose counter was incremented
+	 * @param counter The counter value just taken
+	 * @throws IOException if the new block could not be journaled.
+	 */
+	protected void reserveCounter(SharedBuildNumberEntity buildNumber, int counter) throws IOException
+	{
+		if(counter < buildNumber.getReservedCounter())
+			return;
+
+		ReentrantLock buildNumberLock = this.getBuildNumberLock(buildNumber.getId());
+		buildNumberLock.lock();
+
+		try
+		{
+			// another increment may have reserved a block covering this value while we waited for the lock
+			if(counter < buildNumber.getReservedCounter())
+				return;
+
+			int reserved = counter + Math.max(buildNumber.getBlockSize(), 1);
+
+			this.persistCounter(buildNumber.getId(), reserved, false);
+			buildNumber.advanceReservedCounter(reserved);
 		}
 		finally
 		{
-			if(this.configLock.writeLock().isHeldByCurrentThread())
-				this.configLock.writeLock().unlock();
-			this.configLock.readLock().unlock();
+			buildNumberLock.unlock();
 		}
 	}
 
@@ -321,35 +648,53 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 				"Saving shared build number [" + sharedBuildNumber.getId() + "]."
 		);
 
-		this.configLock.writeLock().lock();
+		ReentrantLock buildNumberLock = this.getBuildNumberLock(sharedBuildNumber.getId());
+		buildNumberLock.lock();
 
 		try
 		{
-			SharedBuildNumberEntity entity = this.configuration.getBuildNumber(sharedBuildNumber.getId());
-			if(entity == null)
-				entity = new SharedBuildNumberEntity();
+			SharedBuildNumberEntity existing = this.configuration.getBuildNumber(sharedBuildNumber.getId());
 
-			if(entity.getCounter() > sharedBuildNumber.getCounter())
+			if(existing != null && existing.getCounter() > sharedBuildNumber.getCounter())
 			{
 				throw new IllegalArgumentException(
 						"You cannot decrease the counter number; if changed, it can only be increased."
 				);
 			}
 
+			SharedBuildNumberEntity entity = new SharedBuildNumberEntity();
 			entity.setId(sharedBuildNumber.getId());
 			entity.setName(sharedBuildNumber.getName());
 			entity.setDescription(sharedBuildNumber.getDescription());
 			entity.setFormat(sharedBuildNumber.getFormat());
 			entity.setDateFormat(sharedBuildNumber.getDateFormat());
 			entity.setIncrementOnceForChain(sharedBuildNumber.isIncrementOnceForChain());
+			entity.setAllowGaps(sharedBuildNumber.isAllowGaps());
+			entity.setBlockSize(sharedBuildNumber.getBlockSize());
+			entity.setDurability(sharedBuildNumber.getDurability());
 			entity.setCounter(sharedBuildNumber.getCounter());
 
-			this.configuration.addOrUpdateBuildNumber(entity);
+			if(this.counterStore.isOpen())
+				this.counterStore.advance(entity.getId(), entity.getCounter());
+
+			this.lockConfiguration();
+
+			try
+			{
+				ConfigurationEntity configuration = this.configuration.copy();
+				configuration.addOrUpdateBuildNumber(entity);
+				this.publishConfiguration(configuration);
+			}
+			finally
+			{
+				this.configLock.unlock();
+			}
+
 			this.saveConfiguration();
 		}
 		finally
 		{
-			this.configLock.writeLock().unlock();
+			buildNumberLock.unlock();
 		}
 	}
 
@@ -360,57 +705,177 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 				"Observed change in configuration file. Reloading configuration."
 		);
 
-		this.configLock.writeLock().lock();
+		long start = System.nanoTime();
+		this.reloadConfiguration();
+		this.metrics.recordReload(System.nanoTime() - start);
+	}
+
+	/**
+	 * Parses and validates the changed configuration file into a new snapshot without holding the configuration lock,
+	 * then publishes it in a short critical section. Counters and the ID sequence are merged with the current snapshot
+	 * as it is published, so they never go backwards. If the file cannot be read or is invalid, or the configuration
+	 * was saved while the file was being parsed, the current configuration is kept. Once published, the reloaded
+	 * configuration replaces the binary snapshot used at startup.
+	 *
+	 * @return {@code true} if the reloaded configuration was published.
+	 */
+	protected boolean reloadConfiguration()
+	{
+		ConfigurationEntity current = this.configuration;
 
+		byte[] content;
+		long checksum;
+		ConfigurationEntity configuration;
 		try
 		{
-			this.configFileWatcher.stop();
+			content = this.readConfigurationFile();
+			checksum = ConfigurationFileWatcher.checksum(content);
+			configuration = this.parseConfiguration(content, checksum);
 
-			this.loadConfiguration();
+			if(this.counterStore.isOpen())
+				this.mergeStoredCounters(configuration);
+		}
+		catch(FatalBeanException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn(
+					"Could not reload the changed configuration file. Keeping the current configuration.", e
+			);
+			return false;
+		}
+		catch(IOException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn(
+					"Could not merge the stored counters into the changed configuration. Keeping the current " +
+							"configuration.", e
+			);
+			return false;
+		}
+
+		this.lockConfiguration();
+
+		try
+		{
+			// a save in the meantime has rewritten the file from the current snapshot, so what was parsed is stale
+			if(this.configuration != current)
+			{
+				PluginConfigurationServiceDefault.logger.info(
+						"The configuration was saved while the changed file was being reloaded. Keeping the saved " +
+								"configuration."
+				);
+				return false;
+			}
 
-			this.configFileWatcher.start();
+			this.publishConfiguration(configuration);
+		}
+		finally
+		{
+			this.configLock.unlock();
+		}
+
+		this.metrics.setConfigurationBytes(content.length);
+		this.readJournalMaxRecords();
+
+		this.saveLock.lock();
+
+		try
+		{
+			// a save since the publish has already written a snapshot of a newer configuration
+			if(this.configuration == configuration)
+				this.writeSnapshot(configuration, checksum, content.length);
 		}
 		finally
 		{
-			this.configLock.writeLock().unlock();
+			this.saveLock.unlock();
+		}
+
+		try
+		{
+			this.replayJournal();
+		}
+		catch(IOException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn(
+					"Could not replay the increment journal into the reloaded configuration.", e
+			);
 		}
+
+		return true;
 	}
 
 	public void initialize()
 	{
 		PluginConfigurationServiceDefault.logger.info("Initializing the advanced shared build number plugin.");
 
-		this.configLock.writeLock().lock();
+		this.lockConfiguration();
 
 		PluginConfigurationServiceDefault.logger.debug("");
 
 		try
 		{
-			if(!this.xsdFile.exists() || !this.xsdFile.canRead())
+			if(!this.xsdFile.exists() || !this.xsdFile.canRead() || !PluginFileUtils.contentEquals(
+					this.getClass(), PluginConfigurationService.CONFIG_XSD_FILE_NAME, this.xsdFile
+			))
 				this.copyXsdFileToDestination();
 
 			this.loadDefaultConfigFileHeader();
 
+			this.recoverConfigFile();
+
 			if(!this.configFile.exists())
 				this.copyDefaultConfigFileToDestination();
 			else if(!this.configFile.canRead() || !this.configFile.canWrite())
 				throw new FatalBeanException("Existing configuration in place, but not readable and writable");
 
-			this.initializeXmlDigesterLoader();
+			this.initializeSchema();
 
 			this.loadConfiguration();
 
+			this.initializeCounterStore();
+
 			this.initializeFileWatcher();
+
+			this.initializeJournal();
+
+			this.initializeDurability();
 		}
 		finally
 		{
-			this.configLock.writeLock().unlock();
+			this.configLock.unlock();
 		}
+
+		this.metrics.register();
 	}
 
 	public void destroy()
 	{
-		this.configLock.writeLock().lock();
+		this.metrics.unregister();
+
+		if(this.asyncWriter != null)
+		{
+			this.asyncWriter.shutdown();
+			try
+			{
+				this.asyncWriter.awaitTermination(30L, TimeUnit.SECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			this.asyncWriter = null;
+		}
+
+		// increments made only in memory must reach the journal before it is checkpointed and closed
+		this.flushDirtyCounters();
+
+		if(this.journalCompactor != null)
+		{
+			this.journalCompactor.shutdown();
+			this.journalCompactor = null;
+		}
+
+		this.compactJournal();
+
+		this.lockConfiguration();
 
 		try
 		{
@@ -419,10 +884,13 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 				this.configFileWatcher.stop();
 				this.configFileWatcher = null;
 			}
+
+			this.journal.close();
+			this.counterStore.close();
 		}
 		finally
 		{
-			this.configLock.writeLock().unlock();
+			this.configLock.unlock();
 		}
 	}
 
@@ -456,7 +924,7 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 					this.getClass(), PluginConfigurationServiceDefault.DIST_CONFIG_XML_FILE_NAME
 			);
 
-			this.configFileHeader = Collections.unmodifiableList(lines.subList(0, 22));
+			this.configFileWriter = new ConfigurationFileWriter(this.configFile, lines.subList(0, 22));
 		}
 		catch(Exception e)
 		{
@@ -464,6 +932,27 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 		}
 	}
 
+	/**
+	 * Restores the configuration file from an interrupted save, so that a crash during a save never makes the plugin
+	 * start over with the default configuration.
+	 */
+	protected void recoverConfigFile()
+	{
+		try
+		{
+			if(this.configFileWriter.recover())
+			{
+				PluginConfigurationServiceDefault.logger.warn(
+						"Recovered the configuration file from a save that was interrupted."
+				);
+			}
+		}
+		catch(IOException e)
+		{
+			throw new FatalBeanException("Could not recover the configuration file from an interrupted save", e);
+		}
+	}
+
 	protected void copyDefaultConfigFileToDestination()
 	{
 		PluginConfigurationServiceDefault.logger.info("Coping distributed config file to TeamCity config directory.");
@@ -480,19 +969,22 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 		}
 	}
 
-	protected void initializeXmlDigesterLoader()
+	/**
+	 * Compiles the configuration XML schema once, so that it can be reused for every validation, and recalls the
+	 * checksum of the last configuration file validated against this same schema.
+	 */
+	protected void initializeSchema()
 	{
 		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
-			PluginConfigurationServiceDefault.logger.debug("Initializing the XML digester.");
+			PluginConfigurationServiceDefault.logger.debug("Compiling the configuration XML schema.");
 
-		Schema schema;
-		FileInputStream stream = null;
 		try
 		{
-			stream = FileUtils.openInputStream(this.xsdFile);
-			schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
-					new StreamSource(stream)
+			byte[] xsd = FileUtils.readFileToByteArray(this.xsdFile);
+			this.schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
+					new StreamSource(new ByteArrayInputStream(xsd))
 			);
+			this.schemaChecksum = ConfigurationFileWatcher.checksum(xsd);
 		}
 		catch(SAXException e)
 		{
@@ -502,46 +994,92 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 		{
 			throw new FatalBeanException("Could not parse plugin configuration XSD", e);
 		}
-		finally
+
+		this.validatedChecksum = this.readValidatedChecksum();
+	}
+
+	/**
+	 * Loads the configuration from the binary snapshot if it was made from the current content of the XML file, or
+	 * parses the XML file and writes a new snapshot otherwise. Called before the service is in use, so the snapshot is
+	 * written without the save lock.
+	 */
+	protected void loadConfiguration()
+	{
+		long start = System.nanoTime();
+
+		byte[] content = this.readConfigurationFile();
+		long checksum = ConfigurationFileWatcher.checksum(content);
+
+		ConfigurationEntity configuration = this.snapshot.read(checksum, content.length);
+		if(configuration != null)
+		{
+			PluginConfigurationServiceDefault.logger.info("Loaded the plugin configuration from the snapshot.");
+		}
+		else
+		{
+			configuration = this.parseConfiguration(content, checksum);
+			this.writeSnapshot(configuration, checksum, content.length);
+		}
+
+		if(this.counterStore.isOpen())
 		{
 			try
 			{
-				if(stream != null)
-					stream.close();
+				this.mergeStoredCounters(configuration);
 			}
 			catch(IOException e)
 			{
-				PluginConfigurationServiceDefault.logger.warn("Failed to close XSD file stream.", e);
+				throw new FatalBeanException("Could not merge the stored counters into the configuration", e);
 			}
 		}
 
-		this.digesterLoader.setNamespaceAware(true);
-		this.digesterLoader.setSchema(schema);
-		this.digesterLoader.setErrorHandler(new ConfigurationErrorHandler());
-		this.digesterLoader.setUseContextClassLoader(false);
-		this.digesterLoader.setClassLoader(Digester.class.getClassLoader());
+		this.publishConfiguration(configuration);
 
-		ConvertUtils.register(new JodaXML8601DateTimeConverter(), DateTime.class);
+		this.metrics.setConfigurationBytes(content.length);
+		this.metrics.recordLoadLatency(System.nanoTime() - start);
 	}
 
-	private Digester newDigester() throws SAXException, ParserConfigurationException
+	/**
+	 * @return the content of the configuration file.
+	 * @throws FatalBeanException if the file could not be read.
+	 */
+	protected byte[] readConfigurationFile()
 	{
-		Digester digester = this.digesterLoader.newDigester();
-		digester.setFeature("http://xml.org/sax/features/validation", true);
-		digester.setFeature("http://apache.org/xml/features/validation/schema", true);
-		digester.setFeature("http://apache.org/xml/features/validation/schema-full-checking", true);
-		return digester;
+		try
+		{
+			return FileUtils.readFileToByteArray(this.configFile);
+		}
+		catch(IOException e)
+		{
+			throw new FatalBeanException("Could not read plugin configuration XML file", e);
+		}
 	}
 
-	protected void loadConfiguration()
+	/**
+	 * Parses the content of the configuration file into a new, unpublished snapshot. The content is validated against
+	 * the schema first, unless exactly the same content was already validated successfully. Does not need the lock.
+	 *
+	 * @param content The content of the configuration file
+	 * @param checksum The {@link ConfigurationFileWatcher#checksum(byte[]) checksum} of the content
+	 * @return the parsed configuration.
+	 * @throws FatalBeanException if the content is not a valid configuration.
+	 */
+	protected ConfigurationEntity parseConfiguration(byte[] content, long checksum)
 	{
 		PluginConfigurationServiceDefault.logger.info("Loading the plugin configuration from the XML file.");
 
-		FileInputStream stream = null;
 		try
 		{
-			stream = FileUtils.openInputStream(this.configFile);
-			this.configuration = this.newDigester().parse(stream);
+			boolean validate = checksum != this.validatedChecksum;
+			if(validate)
+				this.validateConfiguration(content);
+
+			ConfigurationEntity configuration = this.configFileReader.read(new ByteArrayInputStream(content));
+
+			if(validate)
+				this.writeValidatedChecksum(checksum);
+
+			return configuration;
 		}
 		catch(IOException e)
 		{
@@ -551,21 +1089,152 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 		{
 			throw new FatalBeanException("Could not parse plugin configuration XML", e);
 		}
-		catch(ParserConfigurationException e)
+	}
+
+	protected void validateConfiguration(byte[] content) throws IOException, SAXException
+	{
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+			PluginConfigurationServiceDefault.logger.debug("Validating the plugin configuration against the XSD.");
+
+		Validator validator = this.schema.newValidator();
+		validator.setErrorHandler(new ConfigurationErrorHandler());
+		validator.validate(new StreamSource(new ByteArrayInputStream(content)));
+	}
+
+	private long readValidatedChecksum()
+	{
+		if(!this.validatedFile.exists())
+			return -1L;
+
+		try
 		{
-			throw new FatalBeanException("Could not configure the configuration XML parser", e);
+			String[] checksums = FileUtils.readFileToString(this.validatedFile).trim().split(" ");
+			if(checksums.length == 2 && Long.parseLong(checksums[1], 16) == this.schemaChecksum)
+				return Long.parseLong(checksums[0], 16);
 		}
-		finally
+		catch(IOException e)
 		{
-			try
+			PluginConfigurationServiceDefault.logger.warn("Could not read the last validated configuration.", e);
+		}
+		catch(NumberFormatException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn("Ignoring the malformed last validated configuration.", e);
+		}
+
+		return -1L;
+	}
+
+	/**
+	 * Remembers that the configuration file with the given checksum passed validation against the current schema,
+	 * across restarts, so it is not validated again until either changes.
+	 */
+	private void writeValidatedChecksum(long checksum)
+	{
+		this.validatedChecksum = checksum;
+
+		try
+		{
+			FileUtils.writeStringToFile(
+					this.validatedFile, Long.toHexString(checksum) + " " + Long.toHexString(this.schemaChecksum)
+			);
+		}
+		catch(IOException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn("Could not record the last validated configuration.", e);
+		}
+	}
+
+	/**
+	 * Replaces the current configuration snapshot with the given one, which must not be modified afterwards. Every
+	 * shared build number that is still present keeps sharing its counter with the previous snapshot, as does the ID
+	 * sequence, so increments made through a reader's older snapshot are never lost or repeated. Also advances the
+	 * {@link #getConfigurationGeneration() configuration generation} and the {@link #getLastModified() last modified
+	 * time}. Must be called while holding the lock.
+	 *
+	 * @param configuration The new configuration snapshot
+	 */
+	protected void publishConfiguration(ConfigurationEntity configuration)
+	{
+		ConfigurationEntity previous = this.configuration;
+		if(previous != null)
+		{
+			if(previous.getSettings() != null && configuration.getSettings() != null &&
+			   previous.getSettings() != configuration.getSettings())
+				configuration.getSettings().shareBuildNumberIdSequenceWith(previous.getSettings());
+
+			for(SharedBuildNumberEntity buildNumber : configuration.getBuildNumbers())
 			{
-				if(stream != null)
-					stream.close();
+				SharedBuildNumberEntity existing = previous.getBuildNumber(buildNumber.getId());
+				if(existing != null && existing != buildNumber)
+					buildNumber.shareCounterWith(existing);
 			}
-			catch(IOException e)
+		}
+
+		this.configuration = configuration;
+		// advanced after the new snapshot is visible, so a reader that sees the new generation also sees the snapshot
+		this.configurationGeneration++;
+		this.lastModified = System.currentTimeMillis();
+		this.metrics.setConfigurationEntries(configuration.getBuildNumbers().size());
+	}
+
+	protected void initializeCounterStore()
+	{
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+			PluginConfigurationServiceDefault.logger.debug("Opening the counter store.");
+
+		try
+		{
+			this.counterStore.open();
+
+			if(this.counterStore.wasCreated())
 			{
-				PluginConfigurationServiceDefault.logger.warn("Failed to close configuration XML file.", e);
+				PluginConfigurationServiceDefault.logger.info(
+						"Importing the counters from the configuration XML file into the new counter store."
+				);
 			}
+
+			this.mergeStoredCounters(this.configuration);
+		}
+		catch(IOException e)
+		{
+			throw new FatalBeanException("Could not open the counter store", e);
+		}
+	}
+
+	/**
+	 * Reconciles the counters just loaded from the XML configuration with the counter store. Whichever is higher wins:
+	 * stored counters are applied to the configuration, and counters present in the XML file (from an older version
+	 * of this plugin, or increased by hand) are imported into the store. Counters whose slots are damaged are left
+	 * for {@link #replayJournal()} to repair. Must be called before the configuration is published or while holding
+	 * the lock.
+	 *
+	 * @param configuration The configuration just loaded
+	 * @throws IOException if the counter store could not be updated.
+	 */
+	protected void mergeStoredCounters(ConfigurationEntity configuration) throws IOException
+	{
+		Set<Integer> damagedIds = this.counterStore.getDamagedIds();
+
+		int imported = 0;
+		for(SharedBuildNumberEntity buildNumber : configuration.getBuildNumbers())
+		{
+			if(damagedIds.contains(buildNumber.getId()))
+				continue;
+
+			int stored = this.counterStore.get(buildNumber.getId());
+			if(stored > buildNumber.getCounter())
+				buildNumber.advanceCounter(stored);
+			else if(this.counterStore.advance(buildNumber.getId(), buildNumber.getCounter()))
+				imported++;
+		}
+
+		if(imported > 0)
+		{
+			this.counterStore.force();
+
+			PluginConfigurationServiceDefault.logger.info(
+					"Imported " + imported + " counters from the configuration XML file into the counter store."
+			);
 		}
 	}
 
@@ -574,98 +1243,500 @@ public class PluginConfigurationServiceDefault implements PluginConfigurationSer
 		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
 			PluginConfigurationServiceDefault.logger.debug("Watching " + this.configFile.getPath() + " for changes.");
 
-		this.configFileWatcher = new FileWatcher(this.configFile);
-		this.configFileWatcher.setSleepingPeriod(10000);
-		this.configFileWatcher.registerListener(this);
+		// one watcher lives as long as the plugin; saves announce their own writes to it instead of restarting it
+		if(this.configFileWatcher == null)
+		{
+			long pollInterval = TeamCityProperties.getLong(
+					PluginConfigurationServiceDefault.CONFIG_WATCHER_POLL_INTERVAL_PROPERTY, 100L
+			);
+
+			this.configFileWatcher = new ConfigurationFileWatcher(this.configFile, this);
+			this.configFileWatcher.setPollInterval(pollInterval, TimeUnit.MILLISECONDS);
+		}
+
 		this.configFileWatcher.start();
 	}
 
-	protected void saveConfiguration() throws IOException
+	protected void initializeJournal()
 	{
-		PluginConfigurationServiceDefault.logger.info("Saving the plugin configuration to the XML file.");
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+			PluginConfigurationServiceDefault.logger.debug("Opening and replaying the increment journal.");
 
-		this.configFileWatcher.stop();
+		this.journal.setFlushWindow(
+				TeamCityProperties.getLong(PluginConfigurationServiceDefault.JOURNAL_FLUSH_WINDOW_PROPERTY, 0L),
+				TimeUnit.MICROSECONDS
+		);
+		this.journal.setMaxBatchSize(
+				TeamCityProperties.getInteger(PluginConfigurationServiceDefault.JOURNAL_MAX_BATCH_PROPERTY, 256)
+		);
+		this.readJournalMaxRecords();
 
-		this.configuration.setLastUpdate(new DateTime());
+		try
+		{
+			this.journal.open();
 
-		List<String> lines = new ArrayList<String>(this.configFileHeader);
-		lines.add("");
+			this.replayJournal();
 
-		lines.add(
-				"\t<last-update>" + ISODateTimeFormat.dateTime().print(this.configuration.getLastUpdate()) +
-				"</last-update>"
-		);
-		lines.add("");
+			this.verifyCounterStore();
 
-		this.writeSettings(lines);
+			if(this.journal.getRecordCount() > 0)
+				this.checkpointJournal();
+		}
+		catch(IOException e)
+		{
+			throw new FatalBeanException("Could not open and replay the increment journal", e);
+		}
 
-		this.writeBuildNumbers(lines);
+		long interval = TeamCityProperties.getLong(
+				PluginConfigurationServiceDefault.JOURNAL_COMPACTION_INTERVAL_PROPERTY, 60L
+		);
 
-		lines.add("</shared-build-number-config>");
-		lines.add("");
+		this.journalCompactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(@NotNull Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "SharedBuildNumber-JournalCompactor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.journalCompactor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				PluginConfigurationServiceDefault.this.compactJournal();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
 
+	/**
+	 * Reads the server-wide default durability and the group window, and starts the background writer that journals
+	 * the counters of shared build numbers whose durability is {@link Durability#ASYNC}.
+	 */
+	protected void initializeDurability()
+	{
+		String durability = TeamCityProperties.getProperty(
+				PluginConfigurationServiceDefault.DURABILITY_PROPERTY, Durability.SYNC.name()
+		);
 		try
 		{
-			FileUtils.writeLines(this.configFile, lines);
+			Durability parsed = Durability.parse(durability);
+			this.defaultDurability = parsed == null ? Durability.SYNC : parsed;
 		}
-		finally
+		catch(IllegalArgumentException e)
 		{
-			this.initializeFileWatcher();
+			PluginConfigurationServiceDefault.logger.warn(
+					"Unknown durability [" + durability + "] in property " +
+							PluginConfigurationServiceDefault.DURABILITY_PROPERTY + ". Using SYNC."
+			);
+			this.defaultDurability = Durability.SYNC;
 		}
+
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+		{
+			PluginConfigurationServiceDefault.logger.debug(
+					"Shared build numbers default to " + this.defaultDurability + " durability."
+			);
+		}
+
+		this.journal.setGroupWindow(
+				TeamCityProperties.getLong(PluginConfigurationServiceDefault.GROUP_WINDOW_PROPERTY, 1000L),
+				TimeUnit.MICROSECONDS
+		);
+
+		long interval = Math.max(TeamCityProperties.getLong(
+				PluginConfigurationServiceDefault.ASYNC_FLUSH_INTERVAL_PROPERTY, 1000L
+		), 1L);
+
+		this.asyncWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(@NotNull Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "SharedBuildNumber-AsyncWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.asyncWriter.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				PluginConfigurationServiceDefault.this.flushDirtyCounters();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
 	}
 
-	protected void writeSettings(List<String> lines)
+	/**
+	 * @param buildNumber The shared build number
+	 * @return the shared build number's durability, or the server-wide default if it does not set one.
+	 */
+	protected Durability getDurability(SharedBuildNumberEntity buildNumber)
 	{
-		SettingsEntity settings = this.configuration.getSettings();
-		lines.add("\t<settings>");
-		lines.add("\t\t<buildNumberIdSequence>" + settings.getBuildNumberIdSequence() + "</buildNumberIdSequence>");
-		lines.add("\t</settings>");
-		lines.add("");
+		Durability durability = buildNumber.getDurability();
+		return durability == null ? this.defaultDurability : durability;
 	}
 
-	protected void writeBuildNumbers(List<String> lines)
+	/**
+	 * Applies the counters recorded in the increment journal on top of the currently loaded configuration. Counters
+	 * are only ever moved forward, except that a damaged counter store slot is rebuilt from the replayed counter.
+	 * Must be called while holding the lock.
+	 *
+	 * @return the number of shared build numbers whose counters were advanced.
+	 * @throws IOException if the journal cannot be read.
+	 */
+	protected int replayJournal() throws IOException
 	{
-		lines.add("\t<build-numbers>");
-		int i = 0;
+		if(!this.journal.isOpen())
+			return 0;
+
+		Set<Integer> damagedIds = this.counterStore.isOpen() ? this.counterStore.getDamagedIds() :
+				Collections.<Integer>emptySet();
+
+		int advanced = 0;
+		for(Map.Entry<Integer, Integer> entry : this.journal.replay().entrySet())
+		{
+			SharedBuildNumberEntity buildNumber = this.configuration.getBuildNumber(entry.getKey());
+			if(buildNumber != null && buildNumber.advanceCounter(entry.getValue()))
+				advanced++;
+
+			if(buildNumber != null && damagedIds.contains(entry.getKey()))
+			{
+				this.counterStore.repair(entry.getKey(), buildNumber.getCounter());
+
+				PluginConfigurationServiceDefault.logger.warn(
+						"Rebuilt the damaged counter of shared build number [" + entry.getKey() + "] from the " +
+								"increment journal."
+				);
+			}
+			else if(buildNumber != null && this.counterStore.isOpen())
+				this.counterStore.advance(entry.getKey(), entry.getValue());
+		}
+
+		if(advanced > 0)
+		{
+			PluginConfigurationServiceDefault.logger.info(
+					"Replayed increment journal; advanced " + advanced + " shared build number counters."
+			);
+		}
+
+		return advanced;
+	}
+
+	/**
+	 * Makes sure that no counter is left damaged in the counter store once the increment journal has been replayed.
+	 * The slots of shared build numbers that no longer exist are simply cleared. A damaged counter that the journal
+	 * could not rebuild cannot be trusted to any value, and guessing could hand out duplicate build numbers, so in
+	 * that case the plugin refuses to start. Must be called while holding the lock.
+	 */
+	protected void verifyCounterStore()
+	{
+		if(!this.counterStore.isOpen())
+			return;
+
+		List<Integer> unrecoverable = new ArrayList<Integer>();
+		for(int id : this.counterStore.getDamagedIds())
+		{
+			if(this.configuration.getBuildNumber(id) == null)
+				this.counterStore.clear(id);
+			else
+				unrecoverable.add(id);
+		}
+
+		if(!unrecoverable.isEmpty())
+		{
+			throw new FatalBeanException(
+					"The counters of shared build numbers " + unrecoverable + " are damaged in counter store " +
+							this.counterStore.getFile().getPath() + " and the increment journal holds no record to " +
+							"rebuild them from. Restore the counter store from a backup, or check those counters in the " +
+							"configuration XML file and delete the counter store so that they are imported from it."
+			);
+		}
+	}
+
+	/**
+	 * Durably records a counter increment. Rather than rewriting the whole configuration file, the new counter value
+	 * is written in place to the memory-mapped counter store and appended to the increment journal, which is
+	 * checkpointed in the background once it grows large enough or the compaction interval elapses. Must be called
+	 * without holding the configuration lock; it returns once the group commit containing the increment is durable.
+	 *
+	 * @param id The ID of the shared build number whose counter was incremented
+	 * @param counter The new counter value
+	 * @param grouped Whether to wait the group window so that concurrent increments share the journal flush, which
+	 *                is what {@link Durability#GROUP} asks for
+	 * @throws IOException if the increment could not be journaled.
+	 */
+	protected void persistCounter(int id, int counter, boolean grouped) throws IOException
+	{
+		// the store must be updated before the append so that a checkpoint never truncates a record it did not cover
+		if(this.counterStore.isOpen())
+			this.counterStore.advance(id, counter);
+
+		this.journal.append(id, counter, grouped);
+
+		this.requestCompactionIfFull();
+	}
+
+	/**
+	 * Durably records several counter increments with a single journal append, so that they share one group commit.
+	 * See {@link #persistCounter(int, int, boolean)}.
+	 *
+	 * @param ids The IDs of the shared build numbers whose counters were incremented
+	 * @param counters The new counter values, in the same order as the IDs
+	 * @param count The number of increments to record from the start of the arrays
+	 * @param grouped Whether to wait the group window, which should only be done if every increment's durability is
+	 *                {@link Durability#GROUP}
+	 * @throws IOException if the increments could not be journaled.
+	 */
+	protected void persistCounters(int[] ids, int[] counters, int count, boolean grouped) throws IOException
+	{
+		if(this.counterStore.isOpen())
+		{
+			for(int i = 0; i < count; i++)
+				this.counterStore.advance(ids[i], counters[i]);
+		}
+
+		this.journal.append(ids, counters, count, grouped);
+
+		this.requestCompactionIfFull();
+	}
+
+	/**
+	 * Remembers the new counter of a shared build number whose durability is {@link Durability#ASYNC} until the
+	 * background writer journals it. Only the highest counter of each shared build number is kept, so any number of
+	 * increments between flushes costs one journal record.
+	 *
+	 * @param id The ID of the shared build number whose counter was incremented
+	 * @param counter The new counter value
+	 */
+	protected void markCounterDirty(int id, int counter)
+	{
+		for(;;)
+		{
+			Integer current = this.dirtyCounters.putIfAbsent(id, counter);
+			if(current == null || current >= counter || this.dirtyCounters.replace(id, current, counter))
+				return;
+		}
+	}
+
+	/**
+	 * Journals the latest counters of every shared build number incremented in memory since the last flush, with a
+	 * single journal append. Counters that cannot be journaled are marked dirty again for the next flush.
+	 *
+	 * @return the number of counters journaled.
+	 */
+	protected int flushDirtyCounters()
+	{
+		if(this.dirtyCounters.isEmpty())
+			return 0;
+
+		ConfigurationEntity configuration = this.configuration;
+
+		int[] ids = new int[this.dirtyCounters.size()];
+		int[] counters = new int[ids.length];
+		int count = 0;
+
+		for(Integer id : this.dirtyCounters.keySet())
+		{
+			// increments that arrive after this are marked dirty again and written by the next flush
+			if(count == ids.length)
+				break;
+
+			Integer counter = this.dirtyCounters.remove(id);
+			if(counter == null || configuration.getBuildNumber(id) == null)
+				continue;
+
+			ids[count] = id;
+			counters[count] = counter;
+			count++;
+		}
+
+		if(count == 0)
+			return 0;
+
+		try
+		{
+			this.persistCounters(ids, counters, count, false);
+		}
+		catch(IOException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn(
+					"Failed to journal " + count + " asynchronously incremented counters. Retrying on the next flush.",
+					e
+			);
+
+			for(int i = 0; i < count; i++)
+				this.markCounterDirty(ids[i], counters[i]);
+			return 0;
+		}
+		catch(IllegalStateException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn(
+					"The increment journal was closed before " + count + " asynchronously incremented counters could " +
+							"be journaled.", e
+			);
+			return 0;
+		}
+
+		if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+		{
+			PluginConfigurationServiceDefault.logger.debug(
+					"Journaled " + count + " asynchronously incremented counters."
+			);
+		}
 
-		TreeSet<SharedBuildNumberEntity> set = new TreeSet<SharedBuildNumberEntity>(
-				new Comparator<SharedBuildNumberEntity>()
+		return count;
+	}
+
+	/**
+	 * Reads the number of journal records that triggers a checkpoint, so that increments do not have to look the
+	 * property up. Called when the service is initialized and whenever the configuration is reloaded.
+	 */
+	protected void readJournalMaxRecords()
+	{
+		this.journalMaxRecords = TeamCityProperties.getInteger(
+				PluginConfigurationServiceDefault.JOURNAL_MAX_RECORDS_PROPERTY, 1000
+		);
+	}
+
+	private void requestCompactionIfFull()
+	{
+		if(this.journal.getRecordCount() >= this.journalMaxRecords && this.journalCompactor != null &&
+		   this.journalCompactionPending.compareAndSet(false, true))
+		{
+			this.journalCompactor.execute(new Runnable()
+			{
+				@Override
+				public void run()
 				{
-					@Override
-					public int compare(SharedBuildNumberEntity left, SharedBuildNumberEntity right)
-					{
-						int id1 = left.getId();
-						int id2 = right.getId();
-
-						return id1 < id2 ? -1 : (id2 < id1 ? 1 : 0);
-					}
+					PluginConfigurationServiceDefault.this.compactJournal();
 				}
-		);
-		set.addAll(this.configuration.getBuildNumbers());
+			});
+		}
+	}
 
-		for(SharedBuildNumberEntity number : set)
+	protected void compactJournal()
+	{
+		this.journalCompactionPending.set(false);
+
+		try
 		{
-			if(i > 0)
-				lines.add("");
-			i++;
+			if(this.journal.getRecordCount() > 0 || this.journal.needsCheckpoint())
+			{
+				if(PluginConfigurationServiceDefault.logger.isDebugEnabled())
+				{
+					PluginConfigurationServiceDefault.logger.debug(
+							"Checkpointing " + this.journal.getRecordCount() + " journal records into counter store."
+					);
+				}
 
-			lines.add(
-					"\t\t<build-number id=\"" + number.getId() + "\" incrementOnceForChain=\"" +
-					number.isIncrementOnceForChain() + "\">"
+				this.checkpointJournal();
+			}
+		}
+		catch(IOException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn(
+					"Failed to checkpoint the increment journal into the counter store.", e
 			);
+		}
+	}
 
-			lines.add("\t\t\t<name><![CDATA[" + number.getName() + "]]></name>");
-			lines.add("\t\t\t<description><![CDATA[" + number.getDescription() + "]]></description>");
-			lines.add("\t\t\t<format><![CDATA[" + number.getFormat() + "]]></format>");
-			if(number.getDateFormat() != null && number.getDateFormat().trim().length() > 0)
-				lines.add("\t\t\t<dateFormat>" + number.getDateFormat() + "</dateFormat>");
-			lines.add("\t\t\t<counter>" + number.getCounter() + "</counter>");
+	/**
+	 * Forces the counter store to disk and discards the journaled increments it now covers.
+	 *
+	 * @throws IOException if the journal could not be truncated.
+	 */
+	protected void checkpointJournal() throws IOException
+	{
+		this.journal.checkpoint(new IncrementJournal.Checkpoint()
+		{
+			@Override
+			public void checkpoint()
+			{
+				PluginConfigurationServiceDefault.this.counterStore.force();
+			}
+		});
+	}
+
+	/**
+	 * Writes the current configuration snapshot to the XML file. Saves are serialized with each other, but the
+	 * configuration lock is only held long enough to stamp and publish the snapshot being written, so the disk write
+	 * never holds up other changes to the configuration, and counter increments never wait for it at all. The file is
+	 * replaced atomically, and the write is announced to the file watcher first, so it is not mistaken for an external
+	 * change.
+	 *
+	 * @throws IOException if the configuration file could not be written.
+	 */
+	protected void saveConfiguration() throws IOException
+	{
+		PluginConfigurationServiceDefault.logger.info("Saving the plugin configuration to the XML file.");
+
+		long start = System.nanoTime();
+		boolean saved = false;
+
+		this.saveLock.lock();
+
+		try
+		{
+			// counters are not written to the XML file, so they must be durable before the metadata referencing them
+			this.counterStore.force();
+
+			ConfigurationEntity configuration;
+
+			this.lockConfiguration();
+
+			try
+			{
+				configuration = this.configuration.copy();
+				configuration.setLastUpdate(new DateTime());
+				this.configuration = configuration;
+			}
+			finally
+			{
+				this.configLock.unlock();
+			}
 
-			lines.add("\t\t</build-number>");
+			long checksum = this.configFileWriter.prepare(configuration);
+
+			if(this.configFileWatcher != null)
+				this.configFileWatcher.expectOwnWrite(checksum);
+
+			this.configFileWriter.commit();
+
+			long length = this.configFile.length();
+			this.writeSnapshot(configuration, checksum, length);
+
+			this.metrics.setConfigurationBytes(length);
+			saved = true;
+		}
+		finally
+		{
+			this.saveLock.unlock();
+
+			if(saved)
+				this.metrics.recordSaveLatency(System.nanoTime() - start);
+			else
+				this.metrics.recordFailedSave();
+		}
+	}
+
+	/**
+	 * Replaces the binary snapshot, or deletes it if it cannot be written, which only costs the next start the time
+	 * to parse the XML file. Must be called while holding the save lock, or before the service is in use.
+	 */
+	private void writeSnapshot(ConfigurationEntity configuration, long checksum, long length)
+	{
+		try
+		{
+			this.snapshot.write(configuration, checksum, length);
+		}
+		catch(IOException e)
+		{
+			PluginConfigurationServiceDefault.logger.warn("Could not write the configuration snapshot.", e);
+			this.snapshot.delete();
 		}
-		if(i == 0)
-			lines.add("");
-		lines.add("\t</build-numbers>");
-		lines.add("");
 	}
 }
@@ -1,5 +1,5 @@
 /*
- * PluginFileUtils.java from TeamCityPlugins modified Monday, September 10, 2012 18:39:21 CDT (-0500).
+ * PluginFileUtils.java from TeamCityPlugins modified Saturday, November 3, 2012 11:20:47 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -18,9 +18,11 @@
 
 package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -94,6 +96,50 @@ public class PluginFileUtils
 		}
 	}
 
+	public static boolean contentEquals(Class<?> relativeClass, String resourceName, File file)
+	{
+		InputStream resourceStream = null;
+		InputStream fileStream = null;
+		try
+		{
+			resourceStream = relativeClass.getResourceAsStream(resourceName);
+			if(resourceStream == null)
+			{
+				throw new RuntimeException(
+						"No resource with name [" + resourceName + "] found relative to class [" +
+						relativeClass.getName() + "]."
+				);
+			}
+
+			fileStream = new FileInputStream(file);
+
+			return IOUtils.contentEquals(resourceStream, fileStream);
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException(
+					"Failed to compare resource [" + resourceName + "] relative to class [" + relativeClass.getName() +
+					"] to file [" + file.getAbsolutePath() + "]."
+			);
+		}
+		finally
+		{
+			try
+			{
+				if(fileStream != null)
+					fileStream.close();
+			}
+			catch(IOException ignore) { }
+
+			try
+			{
+				if(resourceStream != null)
+					resourceStream.close();
+			}
+			catch(IOException ignore) { }
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	public static List<String> readLines(Class<?> relativeClass, String resourceName)
 	{
@@ -128,4 +174,85 @@ public class PluginFileUtils
 			catch(IOException ignore) { }
 		}
 	}
+
+	/**
+	 * Replaces a file with a fully written temporary file. The rename is atomic where the platform allows renaming
+	 * over an existing file. Elsewhere, the existing file is first renamed to a {@link #getBackupFile(File) backup},
+	 * which is only deleted once the temporary file has taken its place, so that a crash part way through always leaves
+	 * one of them behind. {@link #recoverReplacedFile(File, File)} finishes a replacement interrupted this way.
+	 *
+	 * @param temporaryFile The fully written and synced replacement
+	 * @param file The file to replace
+	 * @throws IOException if the file could not be replaced.
+	 */
+	public static void replaceFile(File temporaryFile, File file) throws IOException
+	{
+		if(temporaryFile.renameTo(file))
+			return;
+
+		// some platforms cannot rename over an existing file
+		File backupFile = PluginFileUtils.getBackupFile(file);
+		if(backupFile.exists())
+			FileUtils.forceDelete(backupFile);
+
+		if(file.exists() && !file.renameTo(backupFile))
+			throw new IOException("Could not rename [" + file.getPath() + "] to [" + backupFile.getPath() + "].");
+
+		if(!temporaryFile.renameTo(file))
+		{
+			if(!file.exists() && backupFile.exists() && !backupFile.renameTo(file))
+			{
+				throw new IOException(
+						"Could not restore [" + file.getPath() + "] from [" + backupFile.getPath() + "]."
+				);
+			}
+
+			throw new IOException(
+					"Could not rename [" + temporaryFile.getPath() + "] to [" + file.getPath() + "]."
+			);
+		}
+
+		// a backup that cannot be deleted now is deleted by the next recovery
+		backupFile.delete();
+	}
+
+	/**
+	 * Finishes a {@link #replaceFile(File, File) replacement} interrupted by a crash. If the file is missing but its
+	 * backup exists, the crash came after the temporary file was completely written, so the temporary file takes the
+	 * file's place, or the backup does if the temporary file is gone too. A backup left next to an existing file is
+	 * deleted. A temporary file without a backup may be incomplete, and is left alone.
+	 *
+	 * @param temporaryFile The temporary file used to replace the file
+	 * @param file The file to recover
+	 * @return {@code true} if the file was missing and has been recovered.
+	 * @throws IOException if the file could not be recovered.
+	 */
+	public static boolean recoverReplacedFile(File temporaryFile, File file) throws IOException
+	{
+		File backupFile = PluginFileUtils.getBackupFile(file);
+		if(!backupFile.exists())
+			return false;
+
+		if(file.exists())
+		{
+			FileUtils.forceDelete(backupFile);
+			return false;
+		}
+
+		File source = temporaryFile.exists() ? temporaryFile : backupFile;
+		if(!source.renameTo(file))
+			throw new IOException("Could not recover [" + file.getPath() + "] from [" + source.getPath() + "].");
+
+		backupFile.delete();
+		return true;
+	}
+
+	/**
+	 * @param file A file
+	 * @return the backup kept of the file while it is being {@link #replaceFile(File, File) replaced}.
+	 */
+	public static File getBackupFile(File file)
+	{
+		return new File(file.getParentFile(), file.getName() + ".bak");
+	}
 }
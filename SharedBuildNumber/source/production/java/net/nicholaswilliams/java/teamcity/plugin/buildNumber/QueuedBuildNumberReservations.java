@@ -0,0 +1,361 @@
+/*
+ * QueuedBuildNumberReservations.java from TeamCityPlugins modified Saturday, November 3, 2012 15:46:03 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reserves shared build numbers for builds when they enter the queue, so that starting a build only has to take its
+ * numbers from memory instead of waiting for them to be persisted on TeamCity's build start thread. Reservations are
+ * made and persisted in the background, one at a time and in queue order. Only build types whose references are
+ * already {@link ReferencedParameterCache cached} are reserved for, because the parameters of a queued build are not
+ * resolved yet; builds with custom parameters and numbers that increment once for a chain are never reserved for.
+ * Any number a build starts without a reservation for is incremented when the build starts, as before.<br />
+ * <br />
+ * When a build leaves the queue without starting, or starts without referencing a number reserved for it, the
+ * number is skipped and recorded as a gap. Only numbers that allow gaps are therefore reserved for; numbers that do
+ * not are always incremented when the build starts, so that they are never skipped and always handed out in order.
+ * Because a reservation is formatted when it is made, a date in the format is the date the build was queued.<br />
+ * <br />
+ * Reserving is off unless the {@code teamcity.sharedBuildNumber.reserveAtQueueTime} internal property is true.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class QueuedBuildNumberReservations extends BuildServerAdapter
+{
+	private static final Logger logger = Logger.getInstance("jetbrains.buildServer.PLUGIN.sharedBuildNumber.RESERVE");
+
+	private static final String ENABLED_PROPERTY = "teamcity.sharedBuildNumber.reserveAtQueueTime";
+
+	private final PluginConfigurationService configurationService;
+
+	private final ReferencedParameterCache referencedParameterCache;
+
+	private final ConcurrentHashMap<Long, Reservation> reservations = new ConcurrentHashMap<Long, Reservation>();
+
+	private final AtomicLong gaps = new AtomicLong();
+
+	private final ExecutorService executor;
+
+	private volatile boolean enabled;
+
+	public QueuedBuildNumberReservations(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
+										 @NotNull PluginConfigurationService configurationService,
+										 @NotNull ReferencedParameterCache referencedParameterCache)
+	{
+		this.configurationService = configurationService;
+		this.referencedParameterCache = referencedParameterCache;
+		this.enabled = TeamCityProperties.getBoolean(QueuedBuildNumberReservations.ENABLED_PROPERTY);
+
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(@NotNull Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "SharedBuildNumber-Reservations");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		eventDispatcher.addListener(this);
+	}
+
+	public void destroy()
+	{
+		this.executor.shutdown();
+	}
+
+	public boolean isEnabled()
+	{
+		return this.enabled;
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the number of builds that currently have a reservation.
+	 */
+	public int size()
+	{
+		return this.reservations.size();
+	}
+
+	/**
+	 * @return true if no build currently has a reservation, which is much cheaper to check than the size.
+	 */
+	public boolean isEmpty()
+	{
+		return this.reservations.isEmpty();
+	}
+
+	/**
+	 * @return the number of reserved numbers that allowed gaps and were returned.
+	 */
+	public long getGapCount()
+	{
+		return this.gaps.get();
+	}
+
+	/**
+	 * Reserves the given shared build numbers for the given build in the background. A build can only have one
+	 * reservation; a second one for the same build is ignored. Only numbers that allow gaps should be reserved,
+	 * because a reserved number that is not used is skipped.
+	 *
+	 * @param promotionId The promotion ID of the queued build
+	 * @param ids The IDs of the shared build numbers to reserve
+	 */
+	public void reserve(long promotionId, @NotNull Set<Integer> ids)
+	{
+		Reservation reservation = new Reservation(ids);
+
+		if(this.reservations.putIfAbsent(promotionId, reservation) != null)
+			return;
+
+		try
+		{
+			this.executor.execute(reservation);
+		}
+		catch(RejectedExecutionException e)
+		{
+			// the server is shutting down; the build will increment its numbers itself if it ever starts
+			this.reservations.remove(promotionId);
+		}
+	}
+
+	/**
+	 * Takes the shared build numbers reserved for a starting build. A reservation that has not been made yet is
+	 * abandoned rather than waited for, and one that failed is ignored; either way the build increments its numbers
+	 * itself. Reserved numbers the build does not reference are returned.
+	 *
+	 * @param promotionId The promotion ID of the starting build
+	 * @param ids The IDs of the shared build numbers the build references
+	 * @return the reserved build numbers the build references, keyed by ID.
+	 */
+	@NotNull
+	public Map<Integer, String> take(long promotionId, @NotNull Set<Integer> ids)
+	{
+		Reservation reservation = this.reservations.remove(promotionId);
+		if(reservation == null || reservation.abandon())
+			return Collections.emptyMap();
+
+		Map<Integer, String> reserved;
+		try
+		{
+			reserved = reservation.await();
+		}
+		catch(IOException e)
+		{
+			QueuedBuildNumberReservations.logger.warn(
+					"Could not reserve shared build numbers for build " + promotionId + ".", e
+			);
+			return Collections.emptyMap();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return Collections.emptyMap();
+		}
+
+		Map<Integer, String> taken = new HashMap<Integer, String>(reserved.size() * 2);
+		for(Map.Entry<Integer, String> entry : reserved.entrySet())
+		{
+			if(ids.contains(entry.getKey()))
+				taken.put(entry.getKey(), entry.getValue());
+			else
+				this.giveBack(entry.getKey(), entry.getValue());
+		}
+		return taken;
+	}
+
+	/**
+	 * Returns the shared build numbers reserved for a build that left the queue without starting. If the reservation
+	 * is still being made, the numbers are returned once it has been, without waiting for it here.
+	 *
+	 * @param promotionId The promotion ID of the removed build
+	 */
+	public void release(long promotionId)
+	{
+		final Reservation reservation = this.reservations.remove(promotionId);
+		if(reservation == null || reservation.abandon())
+			return;
+
+		// reservations are made in order on the executor, so this runs after the reservation is complete
+		Runnable giveBack = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for(Map.Entry<Integer, String> entry : reservation.await().entrySet())
+						QueuedBuildNumberReservations.this.giveBack(entry.getKey(), entry.getValue());
+				}
+				catch(IOException ignore)
+				{
+					// nothing was reserved, so there is nothing to return
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+
+		try
+		{
+			this.executor.execute(giveBack);
+		}
+		catch(RejectedExecutionException e)
+		{
+			// the server is shutting down; the numbers would only have been recorded as gaps
+		}
+	}
+
+	@Override
+	public void buildTypeAddedToQueue(SQueuedBuild queuedBuild)
+	{
+		if(!this.enabled)
+			return;
+
+		BuildPromotion promotion = queuedBuild.getBuildPromotion();
+		String buildTypeId = promotion.getBuildTypeId();
+		if(buildTypeId == null || !promotion.getCustomParameters().isEmpty())
+			return;
+
+		int[] referenced = this.referencedParameterCache.peek(buildTypeId);
+		if(referenced == null || referenced.length == 0)
+			return;
+
+		Set<Integer> ids = new HashSet<Integer>(referenced.length * 2);
+		for(int id : referenced)
+		{
+			SharedBuildNumber buildNumber = this.configurationService.getSharedBuildNumber(id);
+			if(buildNumber != null && buildNumber.isAllowGaps() && !buildNumber.isIncrementOnceForChain())
+				ids.add(id);
+		}
+
+		if(!ids.isEmpty())
+			this.reserve(promotion.getId(), ids);
+	}
+
+	@Override
+	public void buildRemovedFromQueue(SQueuedBuild queuedBuild, User user, String comment)
+	{
+		if(!this.reservations.isEmpty())
+			this.release(queuedBuild.getBuildPromotion().getId());
+	}
+
+	private void giveBack(int id, String buildNumber)
+	{
+		this.gaps.incrementAndGet();
+		QueuedBuildNumberReservations.logger.info(
+				"Reserved shared build number [" + buildNumber + "] for ID [" + id + "] was not used; it is a gap."
+		);
+	}
+
+	/**
+	 * A reservation is claimed exactly once, either by the executor to make it or by a build that no longer wants it
+	 * before it has been started. A {@link java.util.concurrent.FutureTask} cannot be used for this, because
+	 * cancelling one that is running still succeeds and its numbers would be lost.
+	 */
+	private final class Reservation implements Runnable
+	{
+		private final Set<Integer> ids;
+
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		private final CountDownLatch made = new CountDownLatch(1);
+
+		private volatile Map<Integer, String> buildNumbers = Collections.emptyMap();
+
+		private volatile IOException failure;
+
+		private Reservation(Set<Integer> ids)
+		{
+			this.ids = ids;
+		}
+
+		@Override
+		public void run()
+		{
+			if(!this.claimed.compareAndSet(false, true))
+				return;
+
+			try
+			{
+				PluginConfigurationService service = QueuedBuildNumberReservations.this.configurationService;
+				this.buildNumbers = service.getAndIncrementFormattedSharedBuildNumbers(this.ids);
+			}
+			catch(IOException e)
+			{
+				this.failure = e;
+			}
+			finally
+			{
+				this.made.countDown();
+			}
+		}
+
+		/**
+		 * @return true if the reservation had not been started and now never will be.
+		 */
+		private boolean abandon()
+		{
+			return this.claimed.compareAndSet(false, true);
+		}
+
+		private Map<Integer, String> await() throws IOException, InterruptedException
+		{
+			this.made.await();
+			if(this.failure != null)
+				throw this.failure;
+			return this.buildNumbers;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * ReferencedParameterCache.java from TeamCityPlugins modified Saturday, November 3, 2012 17:36:18 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which shared build numbers the builds of each build type reference, so that starting a build does not
+ * have to scan the build type's parameters and runner parameters again while its settings are unchanged. Only those
+ * settings are ever scanned, because agent and dependency parameters differ from one build to the next. TeamCity
+ * stores build type settings with their project, so an entry is dropped whenever its project is persisted, removed,
+ * archived or restored, whenever its build type is unregistered or moved, and when the server configuration is
+ * reloaded. Every invalidation advances the cache's generation, and a scan is only cached if the generation did not
+ * change while it ran, so that a scan of settings being edited at the same time is never kept.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class ReferencedParameterCache extends BuildServerAdapter
+{
+	private static final Logger logger =
+			Logger.getInstance("jetbrains.buildServer.PLUGIN.sharedBuildNumber.REFERENCES");
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	public ReferencedParameterCache(@NotNull EventDispatcher<BuildServerListener> eventDispatcher)
+	{
+		eventDispatcher.addListener(this);
+	}
+
+	/**
+	 * @return the current generation, which must be read before scanning a build type whose scan will be
+	 *         {@link #put(String, String, int[], long) cached}.
+	 */
+	public long getGeneration()
+	{
+		return this.generation.get();
+	}
+
+	/**
+	 * @param buildTypeId The build type ID
+	 * @return the cached IDs of the shared build numbers referenced by the build type in ascending order, or null if
+	 *         they are not cached. The array is shared and must not be modified.
+	 */
+	@Nullable
+	public int[] get(@NotNull String buildTypeId)
+	{
+		Entry entry = this.entries.get(buildTypeId);
+		if(entry == null)
+		{
+			this.misses.incrementAndGet();
+			return null;
+		}
+
+		this.hits.incrementAndGet();
+		return entry.ids;
+	}
+
+	/**
+	 * Looks up the cached IDs like {@link #get(String)} does, without counting a hit or a miss, for callers that are
+	 * not starting a build.
+	 *
+	 * @param buildTypeId The build type ID
+	 * @return the cached IDs of the shared build numbers referenced by the build type in ascending order, or null if
+	 *         they are not cached. The array is shared and must not be modified.
+	 */
+	@Nullable
+	public int[] peek(@NotNull String buildTypeId)
+	{
+		Entry entry = this.entries.get(buildTypeId);
+		return entry == null ? null : entry.ids;
+	}
+
+	/**
+	 * Caches the IDs of the shared build numbers referenced by a build type, unless the cache has been invalidated
+	 * since the given generation.
+	 *
+	 * @param buildTypeId The build type ID
+	 * @param projectId The ID of the project the build type belongs to
+	 * @param ids The IDs of the referenced shared build numbers, in ascending order
+	 * @param generation The generation read before the build type was scanned
+	 */
+	public void put(@NotNull String buildTypeId, @NotNull String projectId, @NotNull int[] ids, long generation)
+	{
+		this.entries.put(buildTypeId, new Entry(projectId, ids.length == 0 ? ids : ids.clone()));
+
+		// an invalidation that ran after the scan started may have missed this entry, so take it back out
+		if(this.generation.get() != generation)
+			this.entries.remove(buildTypeId);
+	}
+
+	public int size()
+	{
+		return this.entries.size();
+	}
+
+	public long getHitCount()
+	{
+		return this.hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return this.misses.get();
+	}
+
+	public void invalidateProject(@NotNull String projectId)
+	{
+		this.generation.incrementAndGet();
+
+		Iterator<Entry> iterator = this.entries.values().iterator();
+		while(iterator.hasNext())
+		{
+			if(projectId.equals(iterator.next().projectId))
+				iterator.remove();
+		}
+
+		if(ReferencedParameterCache.logger.isDebugEnabled())
+		{
+			ReferencedParameterCache.logger.debug(
+					"Forgot the referenced shared build numbers of the build types in project " + projectId + "."
+			);
+		}
+	}
+
+	public void invalidateBuildType(@NotNull String buildTypeId)
+	{
+		this.generation.incrementAndGet();
+		this.entries.remove(buildTypeId);
+	}
+
+	public void invalidateAll()
+	{
+		this.generation.incrementAndGet();
+		this.entries.clear();
+	}
+
+	@Override
+	public void projectPersisted(String projectId)
+	{
+		this.invalidateProject(projectId);
+	}
+
+	@Override
+	public void projectRemoved(String projectId)
+	{
+		this.invalidateProject(projectId);
+	}
+
+	@Override
+	public void projectArchived(String projectId)
+	{
+		this.invalidateProject(projectId);
+	}
+
+	@Override
+	public void projectDearchived(String projectId)
+	{
+		this.invalidateProject(projectId);
+	}
+
+	@Override
+	public void projectRestored(String projectId)
+	{
+		this.invalidateProject(projectId);
+	}
+
+	@Override
+	public void buildTypeUnregistered(SBuildType buildType)
+	{
+		this.invalidateBuildType(buildType.getBuildTypeId());
+	}
+
+	@Override
+	public void buildTypeMoved(SBuildType buildType, SProject original)
+	{
+		this.invalidateBuildType(buildType.getBuildTypeId());
+	}
+
+	@Override
+	public void serverConfigurationReloaded()
+	{
+		this.invalidateAll();
+	}
+
+	private static final class Entry
+	{
+		private final String projectId;
+
+		private final int[] ids;
+
+		private Entry(String projectId, int[] ids)
+		{
+			this.projectId = projectId;
+			this.ids = ids;
+		}
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * SharedBuildNumberController.java from TeamCityPlugins modified Saturday, September 15, 2012 11:34:17 CDT (-0500).
+ * SharedBuildNumberController.java from TeamCityPlugins modified Saturday, November 3, 2012 17:04:51 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -31,7 +31,11 @@ import jetbrains.buildServer.web.openapi.WebControllerManager;
 import jetbrains.buildServer.web.util.SessionUser;
 import jetbrains.buildServer.web.util.WebAuthUtil;
 import jetbrains.buildServer.web.util.WebUtil;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.apache.commons.lang.BooleanUtils;
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.validation.BeanPropertyBindingResult;
@@ -44,7 +48,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.SortedSet;
+import java.util.List;
 
 /**
  * Handles the UI for managing shared build numbers.
@@ -62,6 +66,10 @@ public class SharedBuildNumberController extends BaseController
 
 	private static final String PREFIX = "sbnParameterPrefix";
 
+	private static final int DEFAULT_PAGE_SIZE = 50;
+
+	private static final int MAX_PAGE_SIZE = 500;
+
 	public static String TAB_ID = "sharedBuildNumbers";
 
 	private PluginConfigurationService configurationService;
@@ -118,6 +126,14 @@ public class SharedBuildNumberController extends BaseController
 			{
 				return this.listBuildNumbers(request);
 			}
+			else if(action.equals("json"))
+			{
+				return this.listBuildNumbersAsJson(request, response);
+			}
+			else if(action.equals("metrics"))
+			{
+				return this.writeMetrics(response);
+			}
 			else if(action.equals("add"))
 			{
 				if(isPost)
@@ -165,28 +181,248 @@ public class SharedBuildNumberController extends BaseController
 		ModelAndView modelAndView = new ModelAndView(this.listJspPagePath);
 
 		boolean descending = "desc".equalsIgnoreCase(request.getParameter("direction"));
+		boolean byName = "name".equalsIgnoreCase(request.getParameter("sort"));
 
-		SortedSet<SharedBuildNumber> set;
-		if("name".equalsIgnoreCase(request.getParameter("sort")))
+		int limit = this.getPageSize(request);
+		int offset = Math.max(NumberUtils.toInt(request.getParameter("offset")), 0);
+
+		List<SharedBuildNumber> buildNumbers;
+		if(byName)
 		{
-			set = this.configurationService.getAllSharedBuildNumbersSortedByName(descending);
+			buildNumbers = this.configurationService.getSharedBuildNumbersSortedByName(descending, offset, limit);
 			modelAndView.getModel().put("sortedBy", "name");
 		}
 		else
 		{
-			set = this.configurationService.getAllSharedBuildNumbersSortedById(descending);
+			buildNumbers = this.configurationService.getSharedBuildNumbersSortedById(descending, offset, limit);
 			modelAndView.getModel().put("sortedBy", "id");
 		}
 
+		int numResults = this.configurationService.getSharedBuildNumberCount();
+
 		modelAndView.getModel().put(SharedBuildNumberController.PREFIX, BuildNumberPropertiesProvider.PARAMETER_PREFIX);
-		modelAndView.getModel().put("numResults", set.size());
-		modelAndView.getModel().put("buildNumbers", set);
+		modelAndView.getModel().put("numResults", numResults);
+		modelAndView.getModel().put("buildNumbers", buildNumbers);
+		modelAndView.getModel().put("offset", offset);
+		modelAndView.getModel().put("limit", limit);
+		modelAndView.getModel().put("previousOffset", offset > 0 ? Math.max(offset - limit, 0) : -1);
+		modelAndView.getModel().put("nextOffset", offset + buildNumbers.size() < numResults ? offset + limit : -1);
 		modelAndView.getModel().put("sortClass", descending ? "sortedDesc" : "sortedAsc");
 		modelAndView.getModel().put("sortChange", descending ? "asc" : "desc");
 
 		return modelAndView;
 	}
 
+	/**
+	 * Writes a page of shared build numbers as JSON for the lazily paged list. Pages are chained with an opaque
+	 * cursor instead of an offset, so that a page does not shift when shared build numbers are added or deleted while
+	 * the list is being scrolled. The entity tag combines the configuration generation with the IDs and counters on
+	 * the page, so a client polling a page that has not changed gets an empty 304 response.
+	 */
+	protected ModelAndView listBuildNumbersAsJson(HttpServletRequest request, HttpServletResponse response)
+			throws IOException
+	{
+		boolean descending = "desc".equalsIgnoreCase(request.getParameter("direction"));
+		boolean byName = "name".equalsIgnoreCase(request.getParameter("sort"));
+		int limit = this.getPageSize(request);
+		String cursor = StringUtils.trimToNull(request.getParameter("cursor"));
+		String prefix = StringUtils.trimToNull(request.getParameter("prefix"));
+		String contains = StringUtils.trimToNull(request.getParameter("contains"));
+
+		Integer afterId = null;
+		String afterName = null;
+		if(cursor != null)
+		{
+			int colon = cursor.indexOf(':');
+			int id = NumberUtils.toInt(colon < 0 ? cursor : cursor.substring(0, colon));
+			if(id > 0)
+			{
+				afterId = id;
+				afterName = colon < 0 ? null : cursor.substring(colon + 1);
+			}
+		}
+
+		// read before the page, so that a change made while the page is read is reported by the next request
+		long generation = this.configurationService.getConfigurationGeneration();
+		long lastModified = this.configurationService.getLastModified();
+
+		// one more than the page is fetched to find out whether there is a next page
+		List<SharedBuildNumber> buildNumbers = byName ?
+				this.configurationService.findSharedBuildNumbersSortedByName(
+						prefix, contains, afterName, afterId, descending, limit + 1
+				) :
+				this.configurationService.findSharedBuildNumbersSortedById(
+						prefix, contains, afterId, descending, limit + 1
+				);
+
+		String next = null;
+		if(buildNumbers.size() > limit)
+		{
+			buildNumbers = buildNumbers.subList(0, limit);
+			next = SharedBuildNumberController.getCursor(buildNumbers.get(limit - 1), byName);
+		}
+
+		String eTag = SharedBuildNumberController.getEntityTag(generation, lastModified, buildNumbers);
+
+		response.setHeader("ETag", eTag);
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Cache-Control", "private, no-cache");
+
+		if(SharedBuildNumberController.isNotModified(request, eTag, lastModified))
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return null;
+		}
+
+		StringBuilder json = new StringBuilder(128 + buildNumbers.size() * 128);
+		json.append("{\"generation\":").append(generation);
+		json.append(",\"total\":").append(this.configurationService.getSharedBuildNumberCount());
+		json.append(",\"parameterPrefix\":");
+		SharedBuildNumberController.appendJson(json, BuildNumberPropertiesProvider.PARAMETER_PREFIX);
+		json.append(",\"buildNumbers\":[");
+		for(int i = 0; i < buildNumbers.size(); i++)
+		{
+			SharedBuildNumber buildNumber = buildNumbers.get(i);
+			if(i > 0)
+				json.append(',');
+			json.append("{\"id\":").append(buildNumber.getId());
+			json.append(",\"name\":");
+			SharedBuildNumberController.appendJson(json, buildNumber.getName());
+			json.append(",\"description\":");
+			SharedBuildNumberController.appendJson(json, buildNumber.getDescription());
+			json.append(",\"format\":");
+			SharedBuildNumberController.appendJson(json, buildNumber.getFormat());
+			json.append(",\"counter\":").append(buildNumber.getCounter()).append('}');
+		}
+		json.append("],\"next\":");
+		SharedBuildNumberController.appendJson(json, next);
+		json.append('}');
+
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(json.toString());
+
+		return null;
+	}
+
+	/**
+	 * Writes the service's metrics as plain text, for metrics collectors that cannot read JMX.
+	 */
+	protected ModelAndView writeMetrics(HttpServletResponse response) throws IOException
+	{
+		StringBuilder text = new StringBuilder(4096);
+		this.configurationService.getMetrics().appendText(text);
+
+		response.setContentType("text/plain; version=0.0.4");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(text.toString());
+
+		return null;
+	}
+
+	private int getPageSize(HttpServletRequest request)
+	{
+		int limit = NumberUtils.toInt(request.getParameter("limit"), SharedBuildNumberController.DEFAULT_PAGE_SIZE);
+		if(limit < 1)
+			return SharedBuildNumberController.DEFAULT_PAGE_SIZE;
+		else if(limit > SharedBuildNumberController.MAX_PAGE_SIZE)
+			return SharedBuildNumberController.MAX_PAGE_SIZE;
+		return limit;
+	}
+
+	/**
+	 * A cursor is the ID of the last shared build number on the page, followed by its name when sorting by name.
+	 */
+	private static String getCursor(SharedBuildNumber last, boolean byName)
+	{
+		if(byName && last.getName() != null)
+			return last.getId() + ":" + last.getName();
+		return Integer.toString(last.getId());
+	}
+
+	/**
+	 * The configuration generation starts over whenever the server restarts, so the entity tag also includes the last
+	 * modification time and every field of the page that is written out; a tag from before a restart can then only
+	 * match a page that is really the same.
+	 */
+	static String getEntityTag(long generation, long lastModified, List<SharedBuildNumber> buildNumbers)
+	{
+		int fingerprint = 1;
+		for(SharedBuildNumber buildNumber : buildNumbers)
+		{
+			fingerprint = 31 * fingerprint + buildNumber.getId();
+			fingerprint = 31 * fingerprint + ObjectUtils.hashCode(buildNumber.getName());
+			fingerprint = 31 * fingerprint + ObjectUtils.hashCode(buildNumber.getDescription());
+			fingerprint = 31 * fingerprint + ObjectUtils.hashCode(buildNumber.getFormat());
+			fingerprint = 31 * fingerprint + buildNumber.getCounter();
+		}
+
+		return "W/\"" + generation + "-" + Long.toHexString(lastModified) + "-" + Integer.toHexString(fingerprint) + "\"";
+	}
+
+	/**
+	 * If-None-Match takes precedence over If-Modified-Since, whose dates only have a resolution of one second.
+	 */
+	private static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified)
+	{
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if(ifNoneMatch != null)
+		{
+			for(String tag : ifNoneMatch.split(","))
+			{
+				tag = tag.trim();
+				if(tag.equals("*") || tag.equals(eTag))
+					return true;
+			}
+			return false;
+		}
+
+		long ifModifiedSince;
+		try
+		{
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		}
+		catch(IllegalArgumentException e)
+		{
+			return false;
+		}
+
+		return ifModifiedSince >= 0 && lastModified / 1000L <= ifModifiedSince / 1000L;
+	}
+
+	private static void appendJson(StringBuilder json, String value)
+	{
+		if(value == null)
+		{
+			json.append("null");
+			return;
+		}
+
+		json.append('"');
+		for(int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+			{
+				json.append('\\').append(c);
+			}
+			else if(c < 0x20 || c == '<' || c == '>' || c == '&' || c == '\u2028' || c == '\u2029')
+			{
+				// markup characters are escaped too, so the JSON can never close a script element it is embedded in
+				String hex = Integer.toHexString(c);
+				json.append("\\u");
+				for(int j = hex.length(); j < 4; j++)
+					json.append('0');
+				json.append(hex);
+			}
+			else
+			{
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
 
 	protected ModelAndView addBuildNumber()
 	{
@@ -266,6 +502,8 @@ public class SharedBuildNumberController extends BaseController
 
 				if(result.hasErrors())
 				{
+					form.setReservedCounter(buildNumber.getReservedCounter());
+
 					ModelAndView modelAndView = new ModelAndView(this.editJspPagePath);
 
 					modelAndView.getModel().put(
@@ -330,6 +568,32 @@ public class SharedBuildNumberController extends BaseController
 			result.rejectValue("counter", "counter.not.integer", "The counter must be a positive integer.");
 		}
 
+		form.setAllowGaps(BooleanUtils.toBoolean(request.getParameter("allowGaps")));
+
+		String blockSizeString = request.getParameter("blockSize");
+		if(blockSizeString != null && blockSizeString.trim().length() > 0)
+		{
+			if(NumberUtils.isDigits(blockSizeString) && NumberUtils.toInt(blockSizeString) > 0)
+			{
+				form.setBlockSize(Integer.parseInt(blockSizeString));
+			}
+			else
+			{
+				result.rejectValue("blockSize", "blockSize.not.integer",
+								   "The block size must be a positive integer.");
+			}
+		}
+
+		String durabilityString = request.getParameter("durability");
+		try
+		{
+			form.setDurability(Durability.parse(durabilityString));
+		}
+		catch(IllegalArgumentException e)
+		{
+			result.rejectValue("durability", "durability.invalid", "The durability must be SYNC, GROUP or ASYNC.");
+		}
+
 		if(form.getName() == null || form.getName().trim().length() < 5 || form.getName().trim().length() > 60)
 		{
 			result.rejectValue("name", "name.length", "The name must be between 5 and 60 characters long.");
@@ -354,6 +618,9 @@ public class SharedBuildNumberController extends BaseController
 		buildNumber.setDescription(form.getDescription());
 		buildNumber.setFormat(form.getFormat());
 		buildNumber.setDateFormat(form.getDateFormat());
+		buildNumber.setAllowGaps(form.isAllowGaps());
+		buildNumber.setBlockSize(form.getBlockSize());
+		buildNumber.setDurability(form.getDurability());
 		buildNumber.setCounter(form.getCounter());
 	}
 
@@ -0,0 +1,138 @@
+/*
+ * SharedBuildNumberIdSet.java from TeamCityPlugins modified Tuesday, October 23, 2012 09:47:26 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import java.util.Arrays;
+
+/**
+ * A set of shared build number IDs stored as primitive ints in an open-addressed hash table, so that collecting the
+ * IDs referenced by a build boxes nothing. Shared build number IDs are always positive, which leaves 0 free to mark
+ * empty slots. This class is not thread safe.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class SharedBuildNumberIdSet
+{
+	private static final int[] EMPTY = new int[0];
+
+	private int[] slots = new int[16];
+
+	private int size;
+
+	/**
+	 * Adds an ID to the set.
+	 *
+	 * @param id The shared build number ID
+	 * @return true if the ID was not in the set yet.
+	 * @throws IllegalArgumentException if the ID is not positive.
+	 */
+	public boolean add(int id)
+	{
+		if(id <= 0)
+			throw new IllegalArgumentException("Shared build number IDs must be positive.");
+
+		int mask = this.slots.length - 1;
+		int slot = SharedBuildNumberIdSet.hash(id) & mask;
+		while(this.slots[slot] != 0)
+		{
+			if(this.slots[slot] == id)
+				return false;
+			slot = (slot + 1) & mask;
+		}
+
+		this.slots[slot] = id;
+		// keep the table at most half full so that probe sequences stay short
+		if(++this.size > this.slots.length >> 1)
+			this.resize();
+		return true;
+	}
+
+	public boolean contains(int id)
+	{
+		if(id <= 0)
+			return false;
+
+		int mask = this.slots.length - 1;
+		int slot = SharedBuildNumberIdSet.hash(id) & mask;
+		while(this.slots[slot] != 0)
+		{
+			if(this.slots[slot] == id)
+				return true;
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+	/**
+	 * @return the IDs in the set in ascending order, in an array the set does not keep.
+	 */
+	public int[] toArray()
+	{
+		if(this.size == 0)
+			return SharedBuildNumberIdSet.EMPTY;
+
+		int[] ids = new int[this.size];
+		int i = 0;
+		for(int id : this.slots)
+		{
+			if(id != 0)
+				ids[i++] = id;
+		}
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	private void resize()
+	{
+		int[] old = this.slots;
+		this.slots = new int[old.length << 1];
+		int mask = this.slots.length - 1;
+		for(int id : old)
+		{
+			if(id == 0)
+				continue;
+
+			int slot = SharedBuildNumberIdSet.hash(id) & mask;
+			while(this.slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			this.slots[slot] = id;
+		}
+	}
+
+	/**
+	 * IDs are handed out sequentially, so they are spread with a multiplicative hash before masking.
+	 */
+	private static int hash(int id)
+	{
+		int hash = id * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * SharedBuildNumberIndex.java from TeamCityPlugins modified Tuesday, October 30, 2012 10:18:52 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps shared build numbers in a sorted array, so that any page of them in either direction can be read without
+ * sorting or copying the rest. The index is kept up to date as shared build numbers are added, replaced and removed,
+ * which costs one binary search and one array shift instead of a sort. An index in {@link #NAME_ORDER name order} can
+ * also be {@link #getNamePrefixRange(String) narrowed} to the shared build numbers whose names start with a prefix,
+ * without copying it. This class is not thread safe: an index must not be changed once a configuration holding it has
+ * been published.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class SharedBuildNumberIndex
+{
+	/**
+	 * Orders shared build numbers by ID.
+	 */
+	public static final Comparator<SharedBuildNumberEntity> ID_ORDER = new Comparator<SharedBuildNumberEntity>()
+	{
+		@Override
+		public int compare(SharedBuildNumberEntity left, SharedBuildNumberEntity right)
+		{
+			int id1 = left.getId();
+			int id2 = right.getId();
+
+			return id1 < id2 ? -1 : (id2 < id1 ? 1 : 0);
+		}
+	};
+
+	/**
+	 * Orders shared build numbers by name ignoring case, with unnamed shared build numbers first and shared build
+	 * numbers with the same name ordered by ID, so that no two shared build numbers are ever considered equal.
+	 */
+	public static final Comparator<SharedBuildNumberEntity> NAME_ORDER = new Comparator<SharedBuildNumberEntity>()
+	{
+		@Override
+		public int compare(SharedBuildNumberEntity left, SharedBuildNumberEntity right)
+		{
+			String name1 = left.getName();
+			String name2 = right.getName();
+
+			if(name1 != name2)
+			{
+				if(name1 == null)
+					return -1;
+				if(name2 == null)
+					return 1;
+
+				int result = String.CASE_INSENSITIVE_ORDER.compare(name1, name2);
+				if(result == 0)
+					result = name1.compareTo(name2);
+				if(result != 0)
+					return result;
+			}
+
+			return SharedBuildNumberIndex.ID_ORDER.compare(left, right);
+		}
+	};
+
+	private final Comparator<SharedBuildNumberEntity> order;
+
+	private final boolean range;
+
+	private SharedBuildNumberEntity[] entries;
+
+	private final int start;
+
+	private int end;
+
+	public SharedBuildNumberIndex(@NotNull Comparator<SharedBuildNumberEntity> order,
+								  @NotNull Collection<SharedBuildNumberEntity> buildNumbers)
+	{
+		this.order = order;
+		this.range = false;
+		this.entries = buildNumbers.toArray(new SharedBuildNumberEntity[Math.max(buildNumbers.size(), 16)]);
+		this.start = 0;
+		this.end = buildNumbers.size();
+		Arrays.sort(this.entries, 0, this.end, order);
+	}
+
+	private SharedBuildNumberIndex(SharedBuildNumberIndex other)
+	{
+		this.order = other.order;
+		this.range = false;
+		this.entries = Arrays.copyOfRange(other.entries, other.start, other.start + other.entries.length);
+		this.start = 0;
+		this.end = other.end - other.start;
+	}
+
+	private SharedBuildNumberIndex(SharedBuildNumberIndex other, int start, int end)
+	{
+		this.order = other.order;
+		this.range = true;
+		this.entries = other.entries;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return a copy of this index that can be changed without changing this index.
+	 */
+	@NotNull
+	public SharedBuildNumberIndex copy()
+	{
+		return new SharedBuildNumberIndex(this);
+	}
+
+	public int size()
+	{
+		return this.end - this.start;
+	}
+
+	/**
+	 * Narrows an index in {@link #NAME_ORDER name order} to the shared build numbers whose names start with the given
+	 * prefix, ignoring case. Names starting with the same prefix are next to each other in name order, so the range is
+	 * found with two binary searches. The range shares this index's entries and cannot be changed.
+	 *
+	 * @param prefix The name prefix
+	 * @return a read-only range of this index.
+	 * @throws IllegalStateException if this index is not in name order.
+	 */
+	@NotNull
+	public SharedBuildNumberIndex getNamePrefixRange(@NotNull String prefix)
+	{
+		if(this.order != SharedBuildNumberIndex.NAME_ORDER)
+			throw new IllegalStateException("Only an index in name order can be narrowed by name.");
+
+		// the first name that is not before the prefix
+		int low = this.start;
+		int high = this.end;
+		while(low < high)
+		{
+			int middle = (low + high) >>> 1;
+			String name = this.entries[middle].getName();
+			if(name == null || String.CASE_INSENSITIVE_ORDER.compare(name, prefix) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		int first = low;
+
+		// the first name after it that does not start with the prefix
+		high = this.end;
+		while(low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if(this.entries[middle].getName().regionMatches(true, 0, prefix, 0, prefix.length()))
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return new SharedBuildNumberIndex(this, first, low);
+	}
+
+	/**
+	 * Adds a shared build number to the index, replacing the entry it is ordered equally to if there is one.
+	 *
+	 * @param buildNumber The shared build number to add
+	 */
+	public void add(@NotNull SharedBuildNumberEntity buildNumber)
+	{
+		this.checkChangeable();
+
+		int position = Arrays.binarySearch(this.entries, 0, this.end, buildNumber, this.order);
+		if(position >= 0)
+		{
+			this.entries[position] = buildNumber;
+			return;
+		}
+
+		position = -position - 1;
+		if(this.end == this.entries.length)
+			this.entries = Arrays.copyOf(this.entries, this.entries.length << 1);
+
+		System.arraycopy(this.entries, position, this.entries, position + 1, this.end - position);
+		this.entries[position] = buildNumber;
+		this.end++;
+	}
+
+	/**
+	 * Removes the entry ordered equally to the given shared build number from the index.
+	 *
+	 * @param buildNumber The shared build number to remove
+	 * @return true if there was such an entry.
+	 */
+	public boolean remove(@NotNull SharedBuildNumberEntity buildNumber)
+	{
+		this.checkChangeable();
+
+		int position = Arrays.binarySearch(this.entries, 0, this.end, buildNumber, this.order);
+		if(position < 0)
+			return false;
+
+		System.arraycopy(this.entries, position + 1, this.entries, position, this.end - position - 1);
+		this.entries[--this.end] = null;
+		return true;
+	}
+
+	/**
+	 * @param descending Whether to read the index from the end
+	 * @param offset The number of entries to skip
+	 * @param limit The maximum number of entries to return
+	 * @return the entries of the requested page, in the requested direction.
+	 * @throws IllegalArgumentException if the offset or limit is negative.
+	 */
+	@NotNull
+	public List<SharedBuildNumberEntity> getPage(boolean descending, int offset, int limit)
+	{
+		if(offset < 0 || limit < 0)
+			throw new IllegalArgumentException("The offset and limit cannot be negative.");
+
+		if(offset >= this.size())
+			return Collections.emptyList();
+
+		return descending ? this.readDown(this.end - 1 - offset, limit) : this.readUp(this.start + offset, limit);
+	}
+
+	/**
+	 * Returns the entries that follow the given key in the requested direction. The key does not have to be in the
+	 * index, so a page can still be continued after the entry it ended with has been removed.
+	 *
+	 * @param key The last entry of the previous page, or any entry ordered the same way
+	 * @param descending Whether to read the index towards its start
+	 * @param limit The maximum number of entries to return
+	 * @return the entries of the requested page, in the requested direction.
+	 * @throws IllegalArgumentException if the limit is negative.
+	 */
+	@NotNull
+	public List<SharedBuildNumberEntity> getPageAfter(@NotNull SharedBuildNumberEntity key, boolean descending,
+													  int limit)
+	{
+		if(limit < 0)
+			throw new IllegalArgumentException("The limit cannot be negative.");
+
+		int position = Arrays.binarySearch(this.entries, this.start, this.end, key, this.order);
+		if(descending)
+			return this.readDown(position >= 0 ? position - 1 : -position - 2, limit);
+		else
+			return this.readUp(position >= 0 ? position + 1 : -position - 1, limit);
+	}
+
+	private void checkChangeable()
+	{
+		if(this.range)
+			throw new UnsupportedOperationException("A range of an index cannot be changed.");
+	}
+
+	private List<SharedBuildNumberEntity> readUp(int start, int limit)
+	{
+		int end = (int)Math.min((long)start + limit, this.end);
+		if(start >= end)
+			return Collections.emptyList();
+
+		return new ArrayList<SharedBuildNumberEntity>(Arrays.asList(this.entries).subList(start, end));
+	}
+
+	private List<SharedBuildNumberEntity> readDown(int start, int limit)
+	{
+		int end = Math.max(start - limit, this.start - 1);
+		if(start <= end)
+			return Collections.emptyList();
+
+		List<SharedBuildNumberEntity> page = new ArrayList<SharedBuildNumberEntity>(start - end);
+		for(int i = start; i > end; i--)
+			page.add(this.entries[i]);
+		return page;
+	}
+}
@@ -0,0 +1,461 @@
+/*
+ * SharedBuildNumberMetrics.java from TeamCityPlugins modified Wednesday, October 31, 2012 16:42:05 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects what the shared build number service is doing: how long increments, formatting, saves, loads and reloads
+ * take, how long callers wait for the configuration lock, how often each shared build number is incremented, how often
+ * the configuration file is reloaded and how often saving it fails, and how large the configuration is. Recording never
+ * allocates (except for the increments of shared build numbers with IDs of 65,536 or more) and never
+ * locks, so the metrics are always collected. They are published as an MXBean and as plain text.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public class SharedBuildNumberMetrics implements SharedBuildNumberMetricsMXBean
+{
+	private static final Logger logger = Logger.getInstance("jetbrains.buildServer.PLUGIN.sharedBuildNumber.METRICS");
+
+	public static final String OBJECT_NAME =
+			"net.nicholaswilliams.java.teamcity.plugin.buildNumber:type=SharedBuildNumberService";
+
+	private static final int CHUNK_BITS = 8;
+
+	private static final int CHUNK_SIZE = 1 << SharedBuildNumberMetrics.CHUNK_BITS;
+
+	private static final int CHUNKS = 256;
+
+	private static final int MAX_CHUNKED_ID = SharedBuildNumberMetrics.CHUNKS * SharedBuildNumberMetrics.CHUNK_SIZE;
+
+	private final ConcurrentLatencyHistogram incrementLatency = new ConcurrentLatencyHistogram();
+
+	private final ConcurrentLatencyHistogram formatLatency = new ConcurrentLatencyHistogram();
+
+	private final ConcurrentLatencyHistogram saveLatency = new ConcurrentLatencyHistogram();
+
+	private final ConcurrentLatencyHistogram loadLatency = new ConcurrentLatencyHistogram();
+
+	private final ConcurrentLatencyHistogram reloadLatency = new ConcurrentLatencyHistogram();
+
+	private final ConcurrentLatencyHistogram configurationLockWait = new ConcurrentLatencyHistogram();
+
+	/**
+	 * Increments of shared build numbers with small IDs, which are handed out sequentially, are counted in chunks of
+	 * counters created the first time a shared build number in them is incremented.
+	 */
+	private final AtomicReferenceArray<AtomicLongArray> incrementChunks =
+			new AtomicReferenceArray<AtomicLongArray>(SharedBuildNumberMetrics.CHUNKS);
+
+	private final ConcurrentHashMap<Integer, AtomicLong> largeIdIncrements =
+			new ConcurrentHashMap<Integer, AtomicLong>();
+
+	private final AtomicLong increments = new AtomicLong();
+
+	private final AtomicLong reloads = new AtomicLong();
+
+	private final AtomicLong failedSaves = new AtomicLong();
+
+	private volatile int configurationEntries;
+
+	private volatile long configurationBytes;
+
+	private ObjectName registeredName;
+
+	/**
+	 * Registers these metrics with the platform MBean server, replacing metrics registered by an earlier instance of
+	 * the plugin that was not unregistered.
+	 */
+	public synchronized void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(SharedBuildNumberMetrics.OBJECT_NAME);
+			if(server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(this, name);
+			this.registeredName = name;
+		}
+		catch(JMException e)
+		{
+			SharedBuildNumberMetrics.logger.warn("Could not register the shared build number metrics MBean.", e);
+		}
+	}
+
+	public synchronized void unregister()
+	{
+		if(this.registeredName == null)
+			return;
+
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(this.registeredName))
+				server.unregisterMBean(this.registeredName);
+		}
+		catch(JMException e)
+		{
+			SharedBuildNumberMetrics.logger.warn("Could not unregister the shared build number metrics MBean.", e);
+		}
+		finally
+		{
+			this.registeredName = null;
+		}
+	}
+
+	/**
+	 * Counts one increment of a shared build number.
+	 *
+	 * @param id The shared build number ID
+	 */
+	public void recordIncrement(int id)
+	{
+		if(id <= 0)
+			return;
+
+		this.increments.incrementAndGet();
+
+		if(id < SharedBuildNumberMetrics.MAX_CHUNKED_ID)
+		{
+			int chunkIndex = id >>> SharedBuildNumberMetrics.CHUNK_BITS;
+			AtomicLongArray chunk = this.incrementChunks.get(chunkIndex);
+			if(chunk == null)
+			{
+				this.incrementChunks.compareAndSet(
+						chunkIndex, null, new AtomicLongArray(SharedBuildNumberMetrics.CHUNK_SIZE)
+				);
+				chunk = this.incrementChunks.get(chunkIndex);
+			}
+			chunk.incrementAndGet(id & (SharedBuildNumberMetrics.CHUNK_SIZE - 1));
+		}
+		else
+		{
+			AtomicLong count = this.largeIdIncrements.get(id);
+			if(count == null)
+			{
+				AtomicLong created = new AtomicLong();
+				count = this.largeIdIncrements.putIfAbsent(id, created);
+				if(count == null)
+					count = created;
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Forgets the increments of a deleted shared build number.
+	 *
+	 * @param id The shared build number ID
+	 */
+	public void forgetBuildNumber(int id)
+	{
+		if(id <= 0)
+			return;
+
+		if(id < SharedBuildNumberMetrics.MAX_CHUNKED_ID)
+		{
+			AtomicLongArray chunk = this.incrementChunks.get(id >>> SharedBuildNumberMetrics.CHUNK_BITS);
+			if(chunk != null)
+				chunk.set(id & (SharedBuildNumberMetrics.CHUNK_SIZE - 1), 0L);
+		}
+		else
+		{
+			this.largeIdIncrements.remove(id);
+		}
+	}
+
+	/**
+	 * @param nanoseconds How long a call that incremented one or more shared build numbers took
+	 */
+	public void recordIncrementLatency(long nanoseconds)
+	{
+		this.incrementLatency.record(nanoseconds);
+	}
+
+	public void recordFormatLatency(long nanoseconds)
+	{
+		this.formatLatency.record(nanoseconds);
+	}
+
+	public void recordSaveLatency(long nanoseconds)
+	{
+		this.saveLatency.record(nanoseconds);
+	}
+
+	public void recordFailedSave()
+	{
+		this.failedSaves.incrementAndGet();
+	}
+
+	public void recordLoadLatency(long nanoseconds)
+	{
+		this.loadLatency.record(nanoseconds);
+	}
+
+	/**
+	 * Counts one reload of the configuration file after the file watcher saw it change.
+	 *
+	 * @param nanoseconds How long the reload took
+	 */
+	public void recordReload(long nanoseconds)
+	{
+		this.reloads.incrementAndGet();
+		this.reloadLatency.record(nanoseconds);
+	}
+
+	public void recordConfigurationLockWait(long nanoseconds)
+	{
+		this.configurationLockWait.record(nanoseconds);
+	}
+
+	public void setConfigurationEntries(int entries)
+	{
+		this.configurationEntries = entries;
+	}
+
+	public void setConfigurationBytes(long bytes)
+	{
+		this.configurationBytes = bytes;
+	}
+
+	@Override
+	public LatencySummary getIncrementLatency()
+	{
+		return LatencySummary.of(this.incrementLatency);
+	}
+
+	@Override
+	public LatencySummary getFormatLatency()
+	{
+		return LatencySummary.of(this.formatLatency);
+	}
+
+	@Override
+	public LatencySummary getSaveLatency()
+	{
+		return LatencySummary.of(this.saveLatency);
+	}
+
+	@Override
+	public LatencySummary getLoadLatency()
+	{
+		return LatencySummary.of(this.loadLatency);
+	}
+
+	@Override
+	public LatencySummary getReloadLatency()
+	{
+		return LatencySummary.of(this.reloadLatency);
+	}
+
+	@Override
+	public LatencySummary getConfigurationLockWait()
+	{
+		return LatencySummary.of(this.configurationLockWait);
+	}
+
+	@Override
+	public long getIncrementCount()
+	{
+		return this.increments.get();
+	}
+
+	@Override
+	public Map<Integer, Long> getIncrementCountsById()
+	{
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+
+		for(int i = 0; i < this.incrementChunks.length(); i++)
+		{
+			AtomicLongArray chunk = this.incrementChunks.get(i);
+			if(chunk == null)
+				continue;
+
+			for(int j = 0; j < chunk.length(); j++)
+			{
+				long count = chunk.get(j);
+				if(count > 0)
+					counts.put((i << SharedBuildNumberMetrics.CHUNK_BITS) | j, count);
+			}
+		}
+
+		for(Map.Entry<Integer, AtomicLong> entry : this.largeIdIncrements.entrySet())
+			counts.put(entry.getKey(), entry.getValue().get());
+
+		return counts;
+	}
+
+	@Override
+	public long getReloadCount()
+	{
+		return this.reloads.get();
+	}
+
+	@Override
+	public long getFailedSaveCount()
+	{
+		return this.failedSaves.get();
+	}
+
+	@Override
+	public int getConfigurationEntries()
+	{
+		return this.configurationEntries;
+	}
+
+	@Override
+	public long getConfigurationBytes()
+	{
+		return this.configurationBytes;
+	}
+
+	/**
+	 * Writes the metrics in the plain text format understood by Prometheus and most other metrics collectors. Latencies
+	 * are written in seconds.
+	 *
+	 * @param text The builder to write to
+	 */
+	public void appendText(@NotNull StringBuilder text)
+	{
+		SharedBuildNumberMetrics.appendSummary(text, "sharedbuildnumber_increment_seconds", this.incrementLatency);
+		SharedBuildNumberMetrics.appendSummary(text, "sharedbuildnumber_format_seconds", this.formatLatency);
+		SharedBuildNumberMetrics.appendSummary(text, "sharedbuildnumber_save_seconds", this.saveLatency);
+		SharedBuildNumberMetrics.appendSummary(text, "sharedbuildnumber_load_seconds", this.loadLatency);
+		SharedBuildNumberMetrics.appendSummary(text, "sharedbuildnumber_reload_seconds", this.reloadLatency);
+		SharedBuildNumberMetrics.appendSummary(
+				text, "sharedbuildnumber_config_lock_wait_seconds", this.configurationLockWait
+		);
+
+		text.append("# TYPE sharedbuildnumber_increments_total counter\n");
+		text.append("sharedbuildnumber_increments_total ").append(this.getIncrementCount()).append('\n');
+		for(Map.Entry<Integer, Long> entry : this.getIncrementCountsById().entrySet())
+		{
+			text.append("sharedbuildnumber_increments_total{id=\"").append(entry.getKey()).append("\"} ")
+				.append(entry.getValue()).append('\n');
+		}
+
+		text.append("# TYPE sharedbuildnumber_reloads_total counter\n");
+		text.append("sharedbuildnumber_reloads_total ").append(this.getReloadCount()).append('\n');
+		text.append("# TYPE sharedbuildnumber_failed_saves_total counter\n");
+		text.append("sharedbuildnumber_failed_saves_total ").append(this.getFailedSaveCount()).append('\n');
+		text.append("# TYPE sharedbuildnumber_config_entries gauge\n");
+		text.append("sharedbuildnumber_config_entries ").append(this.getConfigurationEntries()).append('\n');
+		text.append("# TYPE sharedbuildnumber_config_bytes gauge\n");
+		text.append("sharedbuildnumber_config_bytes ").append(this.getConfigurationBytes()).append('\n');
+	}
+
+	private static void appendSummary(StringBuilder text, String name, ConcurrentLatencyHistogram histogram)
+	{
+		text.append("# TYPE ").append(name).append(" summary\n");
+		for(String quantile : new String[] { "0.5", "0.9", "0.99", "0.999" })
+		{
+			long nanoseconds = histogram.getPercentile(Double.parseDouble(quantile) * 100.0D);
+			text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+				.append(nanoseconds / 1.0E9D).append('\n');
+		}
+		text.append(name).append("_sum ").append(histogram.getTotal() / 1.0E9D).append('\n');
+		text.append(name).append("_count ").append(histogram.getCount()).append('\n');
+	}
+
+	/**
+	 * A point-in-time summary of a latency histogram, in nanoseconds, which the MXBean exposes as composite data.
+	 */
+	public static final class LatencySummary
+	{
+		private final long count;
+
+		private final long mean;
+
+		private final long median;
+
+		private final long percentile99;
+
+		private final long percentile999;
+
+		private final long maximum;
+
+		@ConstructorProperties({ "count", "mean", "median", "percentile99", "percentile999", "maximum" })
+		public LatencySummary(long count, long mean, long median, long percentile99, long percentile999,
+							  long maximum)
+		{
+			this.count = count;
+			this.mean = mean;
+			this.median = median;
+			this.percentile99 = percentile99;
+			this.percentile999 = percentile999;
+			this.maximum = maximum;
+		}
+
+		private static LatencySummary of(ConcurrentLatencyHistogram histogram)
+		{
+			long count = histogram.getCount();
+			return new LatencySummary(
+					count, count == 0 ? 0L : histogram.getTotal() / count, histogram.getPercentile(50.0D),
+					histogram.getPercentile(99.0D), histogram.getPercentile(99.9D), histogram.getMaximum()
+			);
+		}
+
+		public long getCount()
+		{
+			return this.count;
+		}
+
+		public long getMean()
+		{
+			return this.mean;
+		}
+
+		public long getMedian()
+		{
+			return this.median;
+		}
+
+		public long getPercentile99()
+		{
+			return this.percentile99;
+		}
+
+		public long getPercentile999()
+		{
+			return this.percentile999;
+		}
+
+		public long getMaximum()
+		{
+			return this.maximum;
+		}
+	}
+}
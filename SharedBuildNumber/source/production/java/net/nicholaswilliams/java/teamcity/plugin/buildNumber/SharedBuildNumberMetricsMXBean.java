@@ -0,0 +1,57 @@
+/*
+ * SharedBuildNumberMetricsMXBean.java from TeamCityPlugins modified Wednesday, October 31, 2012 16:42:05 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import java.util.Map;
+
+/**
+ * The management interface of the shared build number service's metrics, registered with the platform MBean server
+ * as {@value SharedBuildNumberMetrics#OBJECT_NAME}. Latencies are summarized in nanoseconds.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public interface SharedBuildNumberMetricsMXBean
+{
+	public SharedBuildNumberMetrics.LatencySummary getIncrementLatency();
+
+	public SharedBuildNumberMetrics.LatencySummary getFormatLatency();
+
+	public SharedBuildNumberMetrics.LatencySummary getSaveLatency();
+
+	public SharedBuildNumberMetrics.LatencySummary getLoadLatency();
+
+	public SharedBuildNumberMetrics.LatencySummary getReloadLatency();
+
+	public SharedBuildNumberMetrics.LatencySummary getConfigurationLockWait();
+
+	public long getIncrementCount();
+
+	public Map<Integer, Long> getIncrementCountsById();
+
+	public long getReloadCount();
+
+	public long getFailedSaveCount();
+
+	public int getConfigurationEntries();
+
+	public long getConfigurationBytes();
+}
@@ -0,0 +1,123 @@
+/*
+ * SharedBuildNumberReferenceScanner.java from TeamCityPlugins modified Tuesday, October 23, 2012 09:47:26 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Finds the shared build numbers referenced by parameter values without tokenizing them. A value that does not
+ * contain {@code %sharedBuildNumber.id} is rejected with a single {@link String#indexOf(String)}. Only the values that
+ * do contain it are walked, pairing percent signs the same way TeamCity's reference resolver does ({@code %%} is an
+ * escaped percent sign, and every other percent sign opens or closes a reference), and the digits of each shared build
+ * number reference are parsed where they are, without creating any strings.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class SharedBuildNumberReferenceScanner
+{
+	private static final String REFERENCE_START = "%" + BuildNumberPropertiesProvider.PARAMETER_PREFIX;
+
+	private static final int PREFIX_LENGTH = BuildNumberPropertiesProvider.PARAMETER_PREFIX.length();
+
+	private SharedBuildNumberReferenceScanner()
+	{
+
+	}
+
+	/**
+	 * Adds the IDs of the shared build numbers referenced by the given values to the given set.
+	 *
+	 * @param values The parameter values to scan
+	 * @param ids The set to add the referenced IDs to
+	 */
+	public static void scan(@NotNull Collection<String> values, @NotNull SharedBuildNumberIdSet ids)
+	{
+		for(String value : values)
+		{
+			if(value != null)
+				SharedBuildNumberReferenceScanner.scan(value, ids);
+		}
+	}
+
+	/**
+	 * Adds the IDs of the shared build numbers referenced by the given value to the given set.
+	 *
+	 * @param value The parameter value to scan
+	 * @param ids The set to add the referenced IDs to
+	 */
+	public static void scan(@NotNull String value, @NotNull SharedBuildNumberIdSet ids)
+	{
+		if(value.indexOf(SharedBuildNumberReferenceScanner.REFERENCE_START) < 0)
+			return;
+
+		// the match may be the second half of an escaped %% or the closing % of another reference, so the percent
+		// signs have to be paired from the start of the value
+		int opening = value.indexOf('%');
+		while(opening >= 0)
+		{
+			int closing = value.indexOf('%', opening + 1);
+			if(closing < 0)
+				return;
+
+			if(closing > opening + 1)
+			{
+				int id = SharedBuildNumberReferenceScanner.parseId(value, opening + 1, closing);
+				if(id > 0)
+					ids.add(id);
+			}
+
+			opening = value.indexOf('%', closing + 1);
+		}
+	}
+
+	/**
+	 * @param parameterName The parameter name, for example {@code sharedBuildNumber.id12}
+	 * @return the ID of the shared build number the parameter name refers to, or 0 if it does not name one.
+	 */
+	public static int parseId(@NotNull String parameterName)
+	{
+		return SharedBuildNumberReferenceScanner.parseId(parameterName, 0, parameterName.length());
+	}
+
+	/**
+	 * IDs are written without leading zeros, and a name whose digits would overflow an int names no shared build
+	 * number.
+	 */
+	private static int parseId(String value, int start, int end)
+	{
+		int digits = start + SharedBuildNumberReferenceScanner.PREFIX_LENGTH;
+		if(digits >= end || value.charAt(digits) == '0' ||
+		   !value.startsWith(BuildNumberPropertiesProvider.PARAMETER_PREFIX, start))
+			return 0;
+
+		int id = 0;
+		for(int i = digits; i < end; i++)
+		{
+			int digit = value.charAt(i) - '0';
+			if(digit < 0 || digit > 9 || id > (Integer.MAX_VALUE - digit) / 10)
+				return 0;
+			id = id * 10 + digit;
+		}
+		return id;
+	}
+}
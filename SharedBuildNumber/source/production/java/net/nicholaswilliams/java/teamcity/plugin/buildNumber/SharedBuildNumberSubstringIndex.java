@@ -0,0 +1,193 @@
+/*
+ * SharedBuildNumberSubstringIndex.java from TeamCityPlugins modified Tuesday, October 30, 2012 10:18:52 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the shared build numbers whose names contain a string, ignoring case, without reading every name. Every
+ * three-character sequence (trigram) of every lower-cased name is mapped to the shared build numbers whose names
+ * contain it, so a search only has to intersect the lists of the trigrams of the string it is looking for and then
+ * check the few names left. Strings shorter than three characters have no trigrams and are looked for in every name.
+ * The index is immutable once built.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public final class SharedBuildNumberSubstringIndex
+{
+	private static final int[] EMPTY = new int[0];
+
+	private final SharedBuildNumberEntity[] buildNumbers;
+
+	private final String[] names;
+
+	private final Map<Long, int[]> trigrams;
+
+	public SharedBuildNumberSubstringIndex(@NotNull Collection<SharedBuildNumberEntity> buildNumbers)
+	{
+		this.buildNumbers = buildNumbers.toArray(new SharedBuildNumberEntity[buildNumbers.size()]);
+		Arrays.sort(this.buildNumbers, SharedBuildNumberIndex.ID_ORDER);
+
+		this.names = new String[this.buildNumbers.length];
+
+		Map<Long, Postings> postings = new HashMap<Long, Postings>();
+		for(int i = 0; i < this.buildNumbers.length; i++)
+		{
+			String name = this.buildNumbers[i].getName();
+			if(name == null)
+				continue;
+
+			name = name.toLowerCase(Locale.ROOT);
+			this.names[i] = name;
+
+			for(int j = 0; j + 3 <= name.length(); j++)
+			{
+				Long trigram = SharedBuildNumberSubstringIndex.trigram(name, j);
+				Postings list = postings.get(trigram);
+				if(list == null)
+					postings.put(trigram, list = new Postings());
+				list.add(i);
+			}
+		}
+
+		this.trigrams = new HashMap<Long, int[]>(postings.size() * 2);
+		for(Map.Entry<Long, Postings> entry : postings.entrySet())
+			this.trigrams.put(entry.getKey(), entry.getValue().toArray());
+	}
+
+	/**
+	 * @param substring The string to look for, which must not be empty
+	 * @return the shared build numbers whose names contain the string ignoring case, in ID order.
+	 */
+	@NotNull
+	public List<SharedBuildNumberEntity> find(@NotNull String substring)
+	{
+		String lowerCase = substring.toLowerCase(Locale.ROOT);
+
+		List<SharedBuildNumberEntity> found = new ArrayList<SharedBuildNumberEntity>();
+		if(lowerCase.length() < 3)
+		{
+			for(int i = 0; i < this.names.length; i++)
+			{
+				if(this.names[i] != null && this.names[i].contains(lowerCase))
+					found.add(this.buildNumbers[i]);
+			}
+			return found;
+		}
+
+		int[][] lists = new int[lowerCase.length() - 2][];
+		for(int j = 0; j < lists.length; j++)
+		{
+			lists[j] = this.trigrams.get(SharedBuildNumberSubstringIndex.trigram(lowerCase, j));
+			if(lists[j] == null)
+				return found;
+		}
+
+		// intersecting the shortest lists first keeps every intermediate result as small as possible
+		Arrays.sort(lists, new Comparator<int[]>()
+		{
+			@Override
+			public int compare(int[] left, int[] right)
+			{
+				return left.length < right.length ? -1 : (right.length < left.length ? 1 : 0);
+			}
+		});
+
+		int[] candidates = lists[0];
+		for(int j = 1; j < lists.length && candidates.length > 0; j++)
+			candidates = SharedBuildNumberSubstringIndex.intersect(candidates, lists[j]);
+
+		// sharing every trigram does not mean the trigrams are in the right order, so each name is still checked
+		for(int i : candidates)
+		{
+			if(this.names[i].contains(lowerCase))
+				found.add(this.buildNumbers[i]);
+		}
+		return found;
+	}
+
+	private static Long trigram(String value, int start)
+	{
+		return ((long)value.charAt(start) << 32) | ((long)value.charAt(start + 1) << 16) | value.charAt(start + 2);
+	}
+
+	private static int[] intersect(int[] left, int[] right)
+	{
+		int[] result = new int[Math.min(left.length, right.length)];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while(i < left.length && j < right.length)
+		{
+			if(left[i] < right[j])
+			{
+				i++;
+			}
+			else if(right[j] < left[i])
+			{
+				j++;
+			}
+			else
+			{
+				result[count++] = left[i];
+				i++;
+				j++;
+			}
+		}
+		return count == 0 ? SharedBuildNumberSubstringIndex.EMPTY : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * A growable list of ascending positions that ignores a position added twice in a row, which happens when a name
+	 * contains the same trigram more than once.
+	 */
+	private static final class Postings
+	{
+		private int[] positions = new int[4];
+
+		private int size;
+
+		void add(int position)
+		{
+			if(this.size > 0 && this.positions[this.size - 1] == position)
+				return;
+
+			if(this.size == this.positions.length)
+				this.positions = Arrays.copyOf(this.positions, this.size << 1);
+			this.positions[this.size++] = position;
+		}
+
+		int[] toArray()
+		{
+			return Arrays.copyOf(this.positions, this.size);
+		}
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Config.java from TeamCityPlugins modified Saturday, September 8, 2012 12:51:02 CDT (-0500).
+ * Config.java from TeamCityPlugins modified Tuesday, October 30, 2012 10:18:52 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -18,14 +18,24 @@
 
 package net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo;
 
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.SharedBuildNumberIndex;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.SharedBuildNumberSubstringIndex;
 import org.joda.time.DateTime;
 
 import java.util.Collection;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Holds the plugin configuration.
+ * Holds the plugin configuration. Once a configuration has been published by the configuration service it is treated
+ * as an immutable snapshot: writers {@link #copy() copy} it, change the copy and publish the copy in its place. Only
+ * the counters held in the entities' atomics change in a published snapshot. The {@link SharedBuildNumberIndex sorted
+ * indexes} of a snapshot are built the first time they are needed and are then carried over to every copy, which
+ * keeps them up to date as shared build numbers are added, replaced and removed. The {@link
+ * SharedBuildNumberSubstringIndex substring index} is also built the first time it is needed and carried over to
+ * copies, but it is dropped rather than updated when a shared build number changes, since searching by name is much
+ * rarer than changing the configuration.
  *
  * @author Nick Williams
  * @version 1.0.0
@@ -37,7 +47,13 @@ public class ConfigurationEntity
 
 	private SettingsEntity settings;
 
-	private Map<Integer, SharedBuildNumberEntity> buildNumbers = new Hashtable<Integer, SharedBuildNumberEntity>();
+	private Map<Integer, SharedBuildNumberEntity> buildNumbers = new HashMap<Integer, SharedBuildNumberEntity>();
+
+	private volatile SharedBuildNumberIndex idIndex;
+
+	private volatile SharedBuildNumberIndex nameIndex;
+
+	private volatile SharedBuildNumberSubstringIndex substringIndex;
 
 	public DateTime getLastUpdate()
 	{
@@ -61,7 +77,7 @@ public class ConfigurationEntity
 
 	public Collection<SharedBuildNumberEntity> getBuildNumbers()
 	{
-		return this.buildNumbers.values();
+		return Collections.unmodifiableCollection(this.buildNumbers.values());
 	}
 
 	public SharedBuildNumberEntity getBuildNumber(int id)
@@ -69,13 +85,106 @@ public class ConfigurationEntity
 		return this.buildNumbers.get(id);
 	}
 
+	/**
+	 * @return the shared build numbers in ID order. The index must not be changed.
+	 */
+	public SharedBuildNumberIndex getBuildNumbersById()
+	{
+		SharedBuildNumberIndex index = this.idIndex;
+		if(index == null)
+		{
+			// building it twice when two readers race is harmless, since both indexes are the same
+			index = new SharedBuildNumberIndex(SharedBuildNumberIndex.ID_ORDER, this.buildNumbers.values());
+			this.idIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * @return the shared build numbers in name order. The index must not be changed.
+	 */
+	public SharedBuildNumberIndex getBuildNumbersByName()
+	{
+		SharedBuildNumberIndex index = this.nameIndex;
+		if(index == null)
+		{
+			index = new SharedBuildNumberIndex(SharedBuildNumberIndex.NAME_ORDER, this.buildNumbers.values());
+			this.nameIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * @return the index for finding shared build numbers by a part of their names.
+	 */
+	public SharedBuildNumberSubstringIndex getBuildNumbersByNameSubstring()
+	{
+		SharedBuildNumberSubstringIndex index = this.substringIndex;
+		if(index == null)
+		{
+			index = new SharedBuildNumberSubstringIndex(this.buildNumbers.values());
+			this.substringIndex = index;
+		}
+		return index;
+	}
+
 	public void addOrUpdateBuildNumber(SharedBuildNumberEntity sharedBuildNumber)
 	{
-		this.buildNumbers.put(sharedBuildNumber.getId(), sharedBuildNumber);
+		this.substringIndex = null;
+
+		SharedBuildNumberEntity previous = this.buildNumbers.put(sharedBuildNumber.getId(), sharedBuildNumber);
+
+		if(this.idIndex != null)
+			this.idIndex.add(sharedBuildNumber);
+
+		if(this.nameIndex != null)
+		{
+			// the name may have changed, which moves the shared build number
+			if(previous != null)
+				this.nameIndex.remove(previous);
+			this.nameIndex.add(sharedBuildNumber);
+		}
 	}
 
 	public void removeBuildNumber(int id)
 	{
-		this.buildNumbers.remove(id);
+		this.substringIndex = null;
+
+		SharedBuildNumberEntity previous = this.buildNumbers.remove(id);
+		if(previous == null)
+			return;
+
+		if(this.idIndex != null)
+			this.idIndex.remove(previous);
+
+		if(this.nameIndex != null)
+			this.nameIndex.remove(previous);
+	}
+
+	/**
+	 * Returns a shallow copy of this configuration. The copy shares the settings and shared build number entities with
+	 * this configuration, so an entity that is going to change must be replaced in the copy, not modified.
+	 *
+	 * @return a copy of this configuration.
+	 */
+	public ConfigurationEntity copy()
+	{
+		ConfigurationEntity copy = new ConfigurationEntity();
+		copy.lastUpdate = this.lastUpdate;
+		copy.settings = this.settings;
+		copy.buildNumbers = new HashMap<Integer, SharedBuildNumberEntity>(this.buildNumbers);
+
+		SharedBuildNumberIndex index = this.idIndex;
+		if(index != null)
+			copy.idIndex = index.copy();
+
+		index = this.nameIndex;
+		if(index != null)
+			copy.nameIndex = index.copy();
+
+		// immutable, so it can be shared until a shared build number changes
+		copy.substringIndex = this.substringIndex;
+
+		return copy;
 	}
 }
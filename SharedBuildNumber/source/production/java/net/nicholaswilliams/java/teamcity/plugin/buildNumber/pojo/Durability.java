@@ -0,0 +1,67 @@
+/*
+ * Durability.java from TeamCityPlugins modified Friday, November 2, 2012 15:42:08 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo;
+
+import java.util.Locale;
+
+/**
+ * How durably the counter of a shared build number is persisted when it is incremented. The server-wide default is
+ * set with the {@code teamcity.sharedBuildNumber.durability} internal property, and each shared build number can
+ * override it.
+ *
+ * @author Nick Williams
+ * @version 1.0.0
+ * @since 1.0.0
+ */
+public enum Durability
+{
+	/**
+	 * Every increment is journaled and synced to disk before the build number is returned. Increments that arrive
+	 * while another flush is in progress are written together by the next flush.
+	 */
+	SYNC,
+
+	/**
+	 * Every increment is journaled and synced to disk before the build number is returned, but the flush waits a short
+	 * group window for concurrent increments, so that they all share one write and one sync.
+	 */
+	GROUP,
+
+	/**
+	 * The increment only happens in memory. A single background writer journals the latest counters of every changed
+	 * shared build number at a bounded interval, so starting a build does no disk I/O, but the increments made since
+	 * the last flush are lost in a hard crash, and the numbers they handed out may be handed out again. Everything is
+	 * flushed when the plugin shuts down.
+	 */
+	ASYNC;
+
+	/**
+	 * @param value The name of a durability, in any case, or null or blank
+	 * @return the durability with the given name, or null if the value is null or blank.
+	 * @throws IllegalArgumentException if the value is not the name of a durability.
+	 */
+	public static Durability parse(String value)
+	{
+		if(value == null || value.trim().length() == 0)
+			return null;
+
+		return Durability.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Settings.java from TeamCityPlugins modified Saturday, September 8, 2012 12:49:52 CDT (-0500).
+ * Settings.java from TeamCityPlugins modified Monday, October 15, 2012 09:47:26 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -45,4 +45,24 @@ public class SettingsEntity
 	{
 		return this.buildNumberIdSequence.getAndIncrement();
 	}
+
+	/**
+	 * Makes these settings, which are replacing the given settings in a new configuration snapshot, share the previous
+	 * settings' build number ID sequence, first advancing it to this sequence if that is higher. IDs handed out
+	 * through either snapshot then come from the same sequence, so none can be handed out twice.
+	 *
+	 * @param previous The settings these settings are replacing
+	 */
+	public void shareBuildNumberIdSequenceWith(SettingsEntity previous)
+	{
+		int sequence = this.buildNumberIdSequence.get();
+		for(;;)
+		{
+			int current = previous.buildNumberIdSequence.get();
+			if(current >= sequence || previous.buildNumberIdSequence.compareAndSet(current, sequence))
+				break;
+		}
+
+		this.buildNumberIdSequence = previous.buildNumberIdSequence;
+	}
 }
@@ -1,5 +1,5 @@
 /*
- * SharedBuildNumber.java from TeamCityPlugins modified Monday, September 10, 2012 13:08:52 CDT (-0500).
+ * SharedBuildNumber.java from TeamCityPlugins modified Friday, November 2, 2012 15:42:08 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -39,8 +39,16 @@ public class SharedBuildNumber
 
 	private boolean incrementOnceForChain;
 
+	private boolean allowGaps;
+
+	private int blockSize = SharedBuildNumberEntity.DEFAULT_BLOCK_SIZE;
+
+	private Durability durability;
+
 	private int counter = 1;
 
+	private int reservedCounter;
+
 	public SharedBuildNumber(int id)
 	{
 		this.id = id;
@@ -54,7 +62,11 @@ public class SharedBuildNumber
 		this.format = entity.getFormat();
 		this.dateFormat = entity.getDateFormat();
 		this.incrementOnceForChain = entity.isIncrementOnceForChain();
+		this.allowGaps = entity.isAllowGaps();
+		this.blockSize = entity.getBlockSize();
+		this.durability = entity.getDurability();
 		this.counter = entity.getCounter();
+		this.reservedCounter = entity.getReservedCounter();
 	}
 
 	public int getId()
@@ -112,6 +124,36 @@ public class SharedBuildNumber
 		this.incrementOnceForChain = incrementOnceForChain;
 	}
 
+	public boolean isAllowGaps()
+	{
+		return this.allowGaps;
+	}
+
+	public void setAllowGaps(boolean allowGaps)
+	{
+		this.allowGaps = allowGaps;
+	}
+
+	public int getBlockSize()
+	{
+		return this.blockSize;
+	}
+
+	public void setBlockSize(int blockSize)
+	{
+		this.blockSize = blockSize;
+	}
+
+	public Durability getDurability()
+	{
+		return this.durability;
+	}
+
+	public void setDurability(Durability durability)
+	{
+		this.durability = durability;
+	}
+
 	public int getCounter()
 	{
 		return this.counter;
@@ -121,4 +163,14 @@ public class SharedBuildNumber
 	{
 		this.counter = counter;
 	}
+
+	public int getReservedCounter()
+	{
+		return this.reservedCounter;
+	}
+
+	public void setReservedCounter(int reservedCounter)
+	{
+		this.reservedCounter = reservedCounter;
+	}
 }
@@ -1,5 +1,5 @@
 /*
- * BuildNumber.java from TeamCityPlugins modified Saturday, September 8, 2012 12:40:46 CDT (-0500).
+ * BuildNumber.java from TeamCityPlugins modified Friday, November 2, 2012 15:42:08 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -18,6 +18,8 @@
 
 package net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo;
 
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.BuildNumberTemplate;
+
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -29,6 +31,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class SharedBuildNumberEntity
 {
+	public static final int DEFAULT_BLOCK_SIZE = 100;
+
 	private int id;
 
 	private String name;
@@ -41,8 +45,18 @@ public class SharedBuildNumberEntity
 
 	private boolean incrementOnceForChain;
 
+	private boolean allowGaps;
+
+	private int blockSize = SharedBuildNumberEntity.DEFAULT_BLOCK_SIZE;
+
+	private Durability durability;
+
 	private AtomicInteger counter = new AtomicInteger(1);
 
+	private AtomicInteger reservedCounter = new AtomicInteger(0);
+
+	private volatile BuildNumberTemplate template;
+
 	public int getId()
 	{
 		return this.id;
@@ -81,6 +95,7 @@ public class SharedBuildNumberEntity
 	public void setFormat(String format)
 	{
 		this.format = format;
+		this.template = null;
 	}
 
 	public String getDateFormat()
@@ -91,6 +106,26 @@ public class SharedBuildNumberEntity
 	public void setDateFormat(String dateFormat)
 	{
 		this.dateFormat = dateFormat;
+		this.template = null;
+	}
+
+	/**
+	 * Returns the format and date format compiled into a template, compiling them the first time they are needed
+	 * after being loaded or changed.
+	 *
+	 * @return the compiled build number template.
+	 * @throws IllegalArgumentException if the format uses a date and the date format is missing or invalid.
+	 */
+	public BuildNumberTemplate getTemplate()
+	{
+		BuildNumberTemplate template = this.template;
+		if(template == null)
+		{
+			// compiling is idempotent, so threads racing to compile the same template do no harm
+			template = BuildNumberTemplate.compile(this.format, this.dateFormat);
+			this.template = template;
+		}
+		return template;
 	}
 
 	public boolean isIncrementOnceForChain()
@@ -103,6 +138,44 @@ public class SharedBuildNumberEntity
 		this.incrementOnceForChain = incrementOnceForChain;
 	}
 
+	/**
+	 * @return {@code true} if this build number may skip counter values after a server restart, in exchange for
+	 * 		   reserving counter values in blocks instead of persisting every increment.
+	 */
+	public boolean isAllowGaps()
+	{
+		return this.allowGaps;
+	}
+
+	public void setAllowGaps(boolean allowGaps)
+	{
+		this.allowGaps = allowGaps;
+	}
+
+	public int getBlockSize()
+	{
+		return this.blockSize;
+	}
+
+	public void setBlockSize(int blockSize)
+	{
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return how durably this build number's counter is persisted when it is incremented, or null if it uses the
+	 * 		   server-wide default.
+	 */
+	public Durability getDurability()
+	{
+		return this.durability;
+	}
+
+	public void setDurability(Durability durability)
+	{
+		this.durability = durability;
+	}
+
 	public int getCounter()
 	{
 		return this.counter.get();
@@ -117,4 +190,65 @@ public class SharedBuildNumberEntity
 	{
 		return this.counter.getAndIncrement();
 	}
+
+	/**
+	 * Moves the counter forward to the given value. Never moves it backwards.
+	 *
+	 * @param counter The new counter value
+	 * @return {@code true} if the counter was advanced.
+	 */
+	public boolean advanceCounter(int counter)
+	{
+		return SharedBuildNumberEntity.advance(this.counter, counter);
+	}
+
+	/**
+	 * @return the high-water mark of the block of counter values reserved for this build number when it allows gaps;
+	 * 		   every counter value below it is already durable. Zero if no block has been reserved since the
+	 * 		   configuration was loaded.
+	 */
+	public int getReservedCounter()
+	{
+		return this.reservedCounter.get();
+	}
+
+	/**
+	 * Moves the reserved high-water mark forward to the given value. Never moves it backwards.
+	 *
+	 * @param reservedCounter The new high-water mark
+	 * @return {@code true} if the high-water mark was advanced.
+	 */
+	public boolean advanceReservedCounter(int reservedCounter)
+	{
+		return SharedBuildNumberEntity.advance(this.reservedCounter, reservedCounter);
+	}
+
+	/**
+	 * Makes this entity, which is replacing the given entity in a new configuration snapshot, share the previous
+	 * entity's counter and reserved block, first advancing them to this entity's values if those are higher.
+	 * Increments made through either snapshot then go to the same counter, so none can be lost while the snapshots
+	 * are swapped.
+	 *
+	 * @param previous The entity this entity is replacing
+	 */
+	public void shareCounterWith(SharedBuildNumberEntity previous)
+	{
+		previous.advanceCounter(this.counter.get());
+		this.counter = previous.counter;
+
+		previous.advanceReservedCounter(this.reservedCounter.get());
+		this.reservedCounter = previous.reservedCounter;
+	}
+
+	private static boolean advance(AtomicInteger atomic, int value)
+	{
+		for(;;)
+		{
+			int current = atomic.get();
+			if(current >= value)
+				return false;
+			if(atomic.compareAndSet(current, value))
+				return true;
+		}
+	}
 }
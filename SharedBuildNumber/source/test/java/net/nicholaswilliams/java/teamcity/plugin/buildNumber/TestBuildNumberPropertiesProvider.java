@@ -1,5 +1,5 @@
 /*
- * TestBuildNumberPropertiesProvider.java from TeamCityPlugins modified Friday, September 21, 2012 23:40:20 CDT (-0500).
+ * TestBuildNumberPropertiesProvider.java from TeamCityPlugins modified Saturday, November 3, 2012 17:36:18 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -21,6 +21,8 @@ package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.agent.ServerProvidedProperties;
 import jetbrains.buildServer.parameters.ParametersProvider;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.BuildStartContext;
 import jetbrains.buildServer.serverSide.BuildStartContextProcessor;
 import jetbrains.buildServer.serverSide.SBuild;
@@ -29,6 +31,8 @@ import jetbrains.buildServer.serverSide.SRunnerContext;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.parameters.BuildParametersProvider;
 import jetbrains.buildServer.serverSide.parameters.ParameterDescriptionProvider;
+import jetbrains.buildServer.util.EventDispatcher;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
 import org.easymock.Capture;
 import org.easymock.IAnswer;
 import org.junit.After;
@@ -39,9 +43,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
@@ -55,6 +63,10 @@ public class TestBuildNumberPropertiesProvider
 
 	private PluginConfigurationService service;
 
+	private ReferencedParameterCache referencedParameterCache;
+
+	private QueuedBuildNumberReservations reservations;
+
 	private BuildNumberPropertiesProvider provider;
 
 	@Before
@@ -75,7 +87,16 @@ public class TestBuildNumberPropertiesProvider
 
 		replay(this.holder);
 
-		this.provider = new BuildNumberPropertiesProvider(this.holder, this.service);
+		@SuppressWarnings("unchecked")
+		EventDispatcher<BuildServerListener> dispatcher = createNiceMock(EventDispatcher.class);
+		replay(dispatcher);
+
+		this.referencedParameterCache = new ReferencedParameterCache(dispatcher);
+		this.reservations = new QueuedBuildNumberReservations(dispatcher, this.service, this.referencedParameterCache);
+		this.provider = new BuildNumberPropertiesProvider(
+				this.holder, this.service, new ChainBuildNumberCache(dispatcher), this.referencedParameterCache,
+				this.reservations
+		);
 
 		assertSame("The BuildParametersProvider capture is not correct.", this.provider, c1.getValue());
 		assertSame("The ParameterDescriptionProvider capture is not correct.", this.provider, c2.getValue());
@@ -85,6 +106,7 @@ public class TestBuildNumberPropertiesProvider
 	@After
 	public void tearDown()
 	{
+		this.reservations.destroy();
 		verify(this.holder, this.service);
 	}
 
@@ -93,6 +115,7 @@ public class TestBuildNumberPropertiesProvider
 	{
 		SBuild build = createStrictMock(SBuild.class);
 
+		expect(this.service.getConfigurationGeneration()).andReturn(1L);
 		expect(this.service.getAllSharedBuildNumberIds()).andReturn(new int[] { });
 
 		replay(this.service, build);
@@ -101,7 +124,6 @@ public class TestBuildNumberPropertiesProvider
 
 		assertNotNull("The list of parameters should not be null.", parameters);
 		assertEquals("The parameter list size is not correct.", 0, parameters.size());
-		assertSame("The list type is not correct.", TreeSet.class, parameters.getClass());
 
 		verify(build);
 	}
@@ -111,7 +133,11 @@ public class TestBuildNumberPropertiesProvider
 	{
 		SBuild build = createStrictMock(SBuild.class);
 
-		expect(this.service.getAllSharedBuildNumberIds()).andReturn(new int[] { 1, 5, 6 });
+		expect(this.service.getConfigurationGeneration()).andReturn(1L);
+		expect(this.service.getAllSharedBuildNumberIds()).andReturn(new int[] { 6, 1, 5 });
+		expect(this.service.getSharedBuildNumberName(1)).andReturn("One");
+		expect(this.service.getSharedBuildNumberName(5)).andReturn("Five");
+		expect(this.service.getSharedBuildNumberName(6)).andReturn("Six");
 
 		replay(this.service, build);
 
@@ -119,7 +145,6 @@ public class TestBuildNumberPropertiesProvider
 
 		assertNotNull("The list of parameters should not be null.", parameters);
 		assertEquals("The parameter list size is not correct.", 3, parameters.size());
-		assertSame("The list type is not correct.", TreeSet.class, parameters.getClass());
 
 		String[] values = new String[] { "sharedBuildNumber.id1", "sharedBuildNumber.id5", "sharedBuildNumber.id6" };
 
@@ -131,6 +156,47 @@ public class TestBuildNumberPropertiesProvider
 			i++;
 		}
 
+		try
+		{
+			parameters.add("sharedBuildNumber.id7");
+			fail("Expected UnsupportedOperationException, got no exception.");
+		}
+		catch(UnsupportedOperationException e)
+		{
+			assertEquals("The parameter list size should not have changed.", 3, parameters.size());
+		}
+
+		verify(build);
+	}
+
+	@Test
+	public void testGetParametersAvailableOnAgentCached01()
+	{
+		SBuild build = createStrictMock(SBuild.class);
+
+		expect(this.service.getConfigurationGeneration()).andReturn(4L);
+		expect(this.service.getAllSharedBuildNumberIds()).andReturn(new int[] { 1 });
+		expect(this.service.getSharedBuildNumberName(1)).andReturn("One");
+		expect(this.service.getConfigurationGeneration()).andReturn(4L);
+		expect(this.service.getConfigurationGeneration()).andReturn(4L);
+		expect(this.service.getConfigurationGeneration()).andReturn(5L);
+		expect(this.service.getAllSharedBuildNumberIds()).andReturn(new int[] { 1, 2 });
+		expect(this.service.getSharedBuildNumberName(1)).andReturn("One");
+		expect(this.service.getSharedBuildNumberName(2)).andReturn("Two");
+
+		replay(this.service, build);
+
+		Collection<String> first = this.provider.getParametersAvailableOnAgent(build);
+
+		assertSame("The parameters should have been reused.", first,
+				   this.provider.getParametersAvailableOnAgent(build));
+		assertEquals("The description is not correct.", "One", this.provider.describe("sharedBuildNumber.id1"));
+
+		Collection<String> second = this.provider.getParametersAvailableOnAgent(build);
+
+		assertEquals("The first parameter list size is not correct.", 1, first.size());
+		assertEquals("The second parameter list size is not correct.", 2, second.size());
+
 		verify(build);
 	}
 
@@ -167,6 +233,8 @@ public class TestBuildNumberPropertiesProvider
 	@Test
 	public void testDescribe04()
 	{
+		expect(this.service.getConfigurationGeneration()).andReturn(1L);
+		expect(this.service.getAllSharedBuildNumberIds()).andReturn(new int[] { 12 });
 		expect(this.service.getSharedBuildNumberName(12)).andReturn("My Cool Name");
 
 		replay(this.service);
@@ -180,6 +248,9 @@ public class TestBuildNumberPropertiesProvider
 	@Test
 	public void testDescribe05()
 	{
+		expect(this.service.getConfigurationGeneration()).andReturn(1L);
+		expect(this.service.getAllSharedBuildNumberIds()).andReturn(new int[] { 83221, 12 });
+		expect(this.service.getSharedBuildNumberName(12)).andReturn("My Cool Name");
 		expect(this.service.getSharedBuildNumberName(83221)).andReturn("Something Else");
 
 		replay(this.service);
@@ -190,6 +261,20 @@ public class TestBuildNumberPropertiesProvider
 		assertEquals("The build name is not correct.", "Something Else", description);
 	}
 
+	@Test
+	public void testDescribe06()
+	{
+		expect(this.service.getConfigurationGeneration()).andReturn(1L);
+		expect(this.service.getAllSharedBuildNumberIds()).andReturn(new int[] { 12 });
+		expect(this.service.getSharedBuildNumberName(12)).andReturn("My Cool Name");
+
+		replay(this.service);
+
+		String description = this.provider.describe("sharedBuildNumber.id13");
+
+		assertNull("The description should be null.", description);
+	}
+
 	@Test
 	public void testIsVisible01()
 	{
@@ -242,7 +327,7 @@ public class TestBuildNumberPropertiesProvider
 		expect(context.getBuild()).andReturn(runningBuild);
 		expect(runningBuild.getFullName()).andReturn("name");
 		expect(runningBuild.getBuildType()).andReturn(type);
-		expect(runningBuild.getParametersProvider()).andReturn(parametersProvider);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, "bt1", parametersProvider);
 		expect(parametersProvider.getAll()).andReturn(new Hashtable<String, String>());
 		context.getRunnerContexts();
 		expectLastCall().andAnswer(new IAnswer<Object>()
@@ -254,11 +339,11 @@ public class TestBuildNumberPropertiesProvider
 			}
 		});
 
-		replay(this.service, context, runningBuild, type, parametersProvider);
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
 
 		this.provider.updateParameters(context);
 
-		verify(context, runningBuild, type, parametersProvider);
+		verify(context, runningBuild, type, parametersProvider, promotion);
 	}
 
 	@Test
@@ -275,7 +360,7 @@ public class TestBuildNumberPropertiesProvider
 		expect(context.getBuild()).andReturn(runningBuild);
 		expect(runningBuild.getFullName()).andReturn("name");
 		expect(runningBuild.getBuildType()).andReturn(type);
-		expect(runningBuild.getParametersProvider()).andReturn(parametersProvider);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, "bt1", parametersProvider);
 		expect(parametersProvider.getAll()).andReturn(parameters);
 		context.getRunnerContexts();
 		expectLastCall().andAnswer(new IAnswer<Object>()
@@ -287,11 +372,11 @@ public class TestBuildNumberPropertiesProvider
 			}
 		});
 
-		replay(this.service, context, runningBuild, type, parametersProvider);
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
 
 		this.provider.updateParameters(context);
 
-		verify(context, runningBuild, type, parametersProvider);
+		verify(context, runningBuild, type, parametersProvider, promotion);
 	}
 
 	@Test
@@ -305,12 +390,10 @@ public class TestBuildNumberPropertiesProvider
 		Map<String, String> parameters = new Hashtable<String, String>();
 		parameters.put("someParameter", "someValue %sharedBuildNumber.id%");
 
-		Map<String, String> sharedParameters = new Hashtable<String, String>();
-
 		expect(context.getBuild()).andReturn(runningBuild);
 		expect(runningBuild.getFullName()).andReturn("name");
 		expect(runningBuild.getBuildType()).andReturn(type);
-		expect(runningBuild.getParametersProvider()).andReturn(parametersProvider);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, "bt1", parametersProvider);
 		expect(parametersProvider.getAll()).andReturn(parameters);
 		context.getRunnerContexts();
 		expectLastCall().andAnswer(new IAnswer<Object>()
@@ -321,15 +404,12 @@ public class TestBuildNumberPropertiesProvider
 				return new ArrayList<SRunnerContext>();
 			}
 		});
-		expect(context.getSharedParameters()).andReturn(sharedParameters);
-		expect(runningBuild.getRawBuildNumber()).andReturn("1.0.1.{0}");
-		expect(runningBuild.getFullName()).andReturn("name");
 
-		replay(this.service, context, runningBuild, type, parametersProvider);
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
 
 		this.provider.updateParameters(context);
 
-		verify(context, runningBuild, type, parametersProvider);
+		verify(context, runningBuild, type, parametersProvider, promotion);
 	}
 
 	@Test
@@ -348,7 +428,8 @@ public class TestBuildNumberPropertiesProvider
 		expect(context.getBuild()).andReturn(runningBuild);
 		expect(runningBuild.getFullName()).andReturn("name");
 		expect(runningBuild.getBuildType()).andReturn(type);
-		expect(runningBuild.getParametersProvider()).andReturn(parametersProvider);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, "bt1", parametersProvider);
+		expect(promotion.getId()).andReturn(17L);
 		expect(parametersProvider.getAll()).andReturn(parameters);
 		context.getRunnerContexts();
 		expectLastCall().andAnswer(new IAnswer<Object>()
@@ -359,16 +440,18 @@ public class TestBuildNumberPropertiesProvider
 				return new ArrayList<SRunnerContext>();
 			}
 		});
-		expect(this.service.getAndIncrementFormattedSharedBuildNumber(2)).andReturn(null);
+		expect(this.service.getSharedBuildNumber(2)).andReturn(null);
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)))
+				.andReturn(new HashMap<Integer, String>());
 		expect(context.getSharedParameters()).andReturn(sharedParameters);
 		expect(runningBuild.getRawBuildNumber()).andReturn("3.1.2.{0}");
 		expect(runningBuild.getFullName()).andReturn("name");
 
-		replay(this.service, context, runningBuild, type, parametersProvider);
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
 
 		this.provider.updateParameters(context);
 
-		verify(context, runningBuild, type, parametersProvider);
+		verify(context, runningBuild, type, parametersProvider, promotion);
 	}
 
 	@Test
@@ -387,7 +470,8 @@ public class TestBuildNumberPropertiesProvider
 		expect(context.getBuild()).andReturn(runningBuild);
 		expect(runningBuild.getFullName()).andReturn("name");
 		expect(runningBuild.getBuildType()).andReturn(type);
-		expect(runningBuild.getParametersProvider()).andReturn(parametersProvider);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, "bt1", parametersProvider);
+		expect(promotion.getId()).andReturn(17L);
 		expect(parametersProvider.getAll()).andReturn(parameters);
 		context.getRunnerContexts();
 		expectLastCall().andAnswer(new IAnswer<Object>()
@@ -398,7 +482,10 @@ public class TestBuildNumberPropertiesProvider
 				return new ArrayList<SRunnerContext>();
 			}
 		});
-		expect(this.service.getAndIncrementFormattedSharedBuildNumber(2)).andReturn("1.1.5.20120912.176");
+		expect(this.service.getSharedBuildNumber(2))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(2, false));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)))
+				.andReturn(Collections.singletonMap(2, "1.1.5.20120912.176"));
 		context.addSharedParameter("sharedBuildNumber.id2", "1.1.5.20120912.176");
 		expectLastCall().andAnswer(new IAnswer<Void>()
 		{
@@ -413,11 +500,11 @@ public class TestBuildNumberPropertiesProvider
 		expect(runningBuild.getRawBuildNumber()).andReturn("3.1.2.{0}");
 		expect(runningBuild.getFullName()).andReturn("name");
 
-		replay(this.service, context, runningBuild, type, parametersProvider);
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
 
 		this.provider.updateParameters(context);
 
-		verify(context, runningBuild, type, parametersProvider);
+		verify(context, runningBuild, type, parametersProvider, promotion);
 	}
 
 	@Test
@@ -436,7 +523,8 @@ public class TestBuildNumberPropertiesProvider
 		expect(context.getBuild()).andReturn(runningBuild);
 		expect(runningBuild.getFullName()).andReturn("name");
 		expect(runningBuild.getBuildType()).andReturn(type);
-		expect(runningBuild.getParametersProvider()).andReturn(parametersProvider);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, "bt1", parametersProvider);
+		expect(promotion.getId()).andReturn(17L);
 		expect(parametersProvider.getAll()).andReturn(parameters);
 		context.getRunnerContexts();
 		expectLastCall().andAnswer(new IAnswer<Object>()
@@ -447,7 +535,10 @@ public class TestBuildNumberPropertiesProvider
 				return new ArrayList<SRunnerContext>();
 			}
 		});
-		expect(this.service.getAndIncrementFormattedSharedBuildNumber(7682)).andReturn("7.2.8.1539");
+		expect(this.service.getSharedBuildNumber(7682))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(7682, false));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(7682)))
+				.andReturn(Collections.singletonMap(7682, "7.2.8.1539"));
 		context.addSharedParameter("sharedBuildNumber.id7682", "7.2.8.1539");
 		expectLastCall().andAnswer(new IAnswer<Void>()
 		{
@@ -467,11 +558,11 @@ public class TestBuildNumberPropertiesProvider
 		context.addSharedParameter(ServerProvidedProperties.ENV_BUILD_NUMBER, "7.2.8.1539");
 		expectLastCall();
 
-		replay(this.service, context, runningBuild, type, parametersProvider);
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
 
 		this.provider.updateParameters(context);
 
-		verify(context, runningBuild, type, parametersProvider);
+		verify(context, runningBuild, type, parametersProvider, promotion);
 	}
 
 	@Test
@@ -499,7 +590,8 @@ public class TestBuildNumberPropertiesProvider
 		expect(context.getBuild()).andReturn(runningBuild);
 		expect(runningBuild.getFullName()).andReturn("name");
 		expect(runningBuild.getBuildType()).andReturn(type);
-		expect(runningBuild.getParametersProvider()).andReturn(parametersProvider);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, "bt1", parametersProvider);
+		expect(promotion.getId()).andReturn(17L);
 		expect(parametersProvider.getAll()).andReturn(parameters);
 		context.getRunnerContexts();
 		expectLastCall().andAnswer(new IAnswer<Object>()
@@ -512,8 +604,17 @@ public class TestBuildNumberPropertiesProvider
 		});
 		expect(runnerContext1.getParameters()).andReturn(rc1parameters);
 		expect(runnerContext2.getParameters()).andReturn(rc2parameters);
-		expect(this.service.getAndIncrementFormattedSharedBuildNumber(15)).andReturn("1.0.1.20120915036671");
-		expect(this.service.getAndIncrementFormattedSharedBuildNumber(17)).andReturn("23907");
+		Map<Integer, String> buildNumbers = new HashMap<Integer, String>();
+		buildNumbers.put(15, "1.0.1.20120915036671");
+		buildNumbers.put(17, "23907");
+
+		checkOrder(this.service, false);
+		expect(this.service.getSharedBuildNumber(15))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(15, false));
+		expect(this.service.getSharedBuildNumber(17))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(17, false));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(new HashSet<Integer>(Arrays.asList(15, 17))))
+				.andReturn(buildNumbers);
 		context.addSharedParameter("sharedBuildNumber.id15", "1.0.1.20120915036671");
 		expectLastCall().andAnswer(new IAnswer<Void>()
 		{
@@ -545,10 +646,632 @@ public class TestBuildNumberPropertiesProvider
 		context.addSharedParameter(ServerProvidedProperties.ENV_BUILD_NUMBER, "23907");
 		expectLastCall();
 
-		replay(this.service, context, runningBuild, type, parametersProvider, runnerContext1, runnerContext2);
+		replay(
+				this.service, context, runningBuild, type, parametersProvider, promotion, runnerContext1, runnerContext2
+		);
+
+		this.provider.updateParameters(context);
+
+		verify(context, runningBuild, type, parametersProvider, promotion, runnerContext1, runnerContext2);
+	}
+
+	@Test
+	public void testUpdateParameters09() throws IOException
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		ParametersProvider parametersProvider = createStrictMock(ParametersProvider.class);
+
+		Map<String, String> parameters = new Hashtable<String, String>();
+		parameters.put("first", "%sharedBuildNumber.id4%");
+		parameters.put("second", "%sharedBuildNumber.id9%");
+
+		Map<String, String> sharedParameters = new Hashtable<String, String>();
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, "bt1", parametersProvider);
+		expect(promotion.getId()).andReturn(17L);
+		expect(parametersProvider.getAll()).andReturn(parameters);
+		context.getRunnerContexts();
+		expectLastCall().andAnswer(new IAnswer<Object>()
+		{
+			@Override
+			public Object answer() throws Throwable
+			{
+				return new ArrayList<SRunnerContext>();
+			}
+		});
+		checkOrder(this.service, false);
+		expect(this.service.getSharedBuildNumber(4))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(4, false));
+		expect(this.service.getSharedBuildNumber(9))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(9, false));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(new HashSet<Integer>(Arrays.asList(4, 9))))
+				.andThrow(new IOException("The journal could not be written."));
+		expect(context.getSharedParameters()).andReturn(sharedParameters);
+		expect(runningBuild.getRawBuildNumber()).andReturn("3.1.2.{0}");
+		expect(runningBuild.getFullName()).andReturn("name");
+
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
+
+		this.provider.updateParameters(context);
+
+		verify(context, runningBuild, type, parametersProvider, promotion);
+	}
+
+	@Test
+	public void testUpdateParametersCached01()
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		ParametersProvider parametersProvider = createStrictMock(ParametersProvider.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		Map<String, String> parameters = new Hashtable<String, String>();
+		parameters.put("someParameter", "someValue %mySubstitution%");
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(type.getBuildTypeId()).andReturn("bt1");
+		expect(type.getParametersProvider()).andReturn(parametersProvider);
+		expect(parametersProvider.getAll()).andReturn(parameters);
+		context.getRunnerContexts();
+		expectLastCall().andAnswer(new IAnswer<Object>()
+		{
+			@Override
+			public Object answer() throws Throwable
+			{
+				return new ArrayList<SRunnerContext>();
+			}
+		});
+		expect(type.getProjectId()).andReturn("project1");
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(type.getBuildTypeId()).andReturn("bt1");
+
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
+
+		this.provider.updateParameters(context);
+		this.provider.updateParameters(context);
+
+		assertEquals("The miss count is not correct.", 1L, this.referencedParameterCache.getMissCount());
+		assertEquals("The hit count is not correct.", 1L, this.referencedParameterCache.getHitCount());
+
+		verify(context, runningBuild, type, parametersProvider, promotion);
+	}
+
+	@Test
+	public void testUpdateParametersCached02() throws IOException
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		this.referencedParameterCache.put(
+				"bt1", "project1", new int[] { 2 }, this.referencedParameterCache.getGeneration()
+		);
+
+		final Map<String, String> sharedParameters = new Hashtable<String, String>();
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(promotion.getId()).andReturn(17L);
+		expect(type.getBuildTypeId()).andReturn("bt1");
+		context.getRunnerContexts();
+		expectLastCall().andAnswer(new IAnswer<Object>()
+		{
+			@Override
+			public Object answer() throws Throwable
+			{
+				return new ArrayList<SRunnerContext>();
+			}
+		});
+		expect(this.service.getSharedBuildNumber(2))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(2, false));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)))
+				.andReturn(Collections.singletonMap(2, "1.1.5.177"));
+		context.addSharedParameter("sharedBuildNumber.id2", "1.1.5.177");
+		expectLastCall().andAnswer(new IAnswer<Void>()
+		{
+			@Override
+			public Void answer() throws Throwable
+			{
+				sharedParameters.put("sharedBuildNumber.id2", "1.1.5.177");
+				return null;
+			}
+		});
+		expect(context.getSharedParameters()).andReturn(sharedParameters);
+		expect(runningBuild.getRawBuildNumber()).andReturn("%sharedBuildNumber.id2%");
+		runningBuild.setBuildNumber("1.1.5.177");
+		expectLastCall();
+		context.addSharedParameter(ServerProvidedProperties.SYSTEM_BUILD_NUMBER, "1.1.5.177");
+		expectLastCall();
+		context.addSharedParameter(ServerProvidedProperties.ENV_BUILD_NUMBER, "1.1.5.177");
+		expectLastCall();
+
+		replay(this.service, context, runningBuild, type, promotion);
+
+		this.provider.updateParameters(context);
+
+		assertEquals("The hit count is not correct.", 1L, this.referencedParameterCache.getHitCount());
+
+		verify(context, runningBuild, type, promotion);
+	}
+
+	@Test
+	public void testUpdateParametersCachedAcrossAgents01() throws IOException
+	{
+		expect(this.service.getSharedBuildNumber(2))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(2, false));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)))
+				.andReturn(Collections.singletonMap(2, "1.1.5.177"));
+		expect(this.service.getSharedBuildNumber(2))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(2, false));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)))
+				.andReturn(Collections.singletonMap(2, "1.1.5.178"));
+
+		replay(this.service);
+
+		this.updateAgentBuild("%sharedBuildNumber.id5%", false, "1.1.5.177");
+
+		assertArrayEquals("The cached references are not correct.", new int[] { 2 },
+						  this.referencedParameterCache.peek("bt1"));
+
+		this.updateAgentBuild("%sharedBuildNumber.id7%", true, "1.1.5.178");
+
+		assertArrayEquals("The cached references are not correct.", new int[] { 2 },
+						  this.referencedParameterCache.peek("bt1"));
+		assertEquals("The hit count is not correct.", 1L, this.referencedParameterCache.getHitCount());
+	}
+
+	@Test
+	public void testUpdateParametersReserved01() throws Exception
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		this.referencedParameterCache.put(
+				"bt1", "project1", new int[] { 2 }, this.referencedParameterCache.getGeneration()
+		);
+
+		final Map<String, String> sharedParameters = new Hashtable<String, String>();
+
+		final CountDownLatch reserved = new CountDownLatch(1);
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)))
+				.andAnswer(new IAnswer<Map<Integer, String>>()
+				{
+					@Override
+					public Map<Integer, String> answer() throws Throwable
+					{
+						reserved.countDown();
+						return Collections.singletonMap(2, "1.1.5.177");
+					}
+				});
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(promotion.getId()).andReturn(17L);
+		expect(type.getBuildTypeId()).andReturn("bt1");
+		context.getRunnerContexts();
+		expectLastCall().andAnswer(new IAnswer<Object>()
+		{
+			@Override
+			public Object answer() throws Throwable
+			{
+				return new ArrayList<SRunnerContext>();
+			}
+		});
+		context.addSharedParameter("sharedBuildNumber.id2", "1.1.5.177");
+		expectLastCall().andAnswer(new IAnswer<Void>()
+		{
+			@Override
+			public Void answer() throws Throwable
+			{
+				sharedParameters.put("sharedBuildNumber.id2", "1.1.5.177");
+				return null;
+			}
+		});
+		expect(context.getSharedParameters()).andReturn(sharedParameters);
+		expect(runningBuild.getRawBuildNumber()).andReturn("%sharedBuildNumber.id2%");
+		runningBuild.setBuildNumber("1.1.5.177");
+		expectLastCall();
+		context.addSharedParameter(ServerProvidedProperties.SYSTEM_BUILD_NUMBER, "1.1.5.177");
+		expectLastCall();
+		context.addSharedParameter(ServerProvidedProperties.ENV_BUILD_NUMBER, "1.1.5.177");
+		expectLastCall();
+
+		replay(this.service, context, runningBuild, type, promotion);
+
+		this.reservations.reserve(17L, Collections.singleton(2));
+		assertTrue("The reservation was not made.", reserved.await(5L, TimeUnit.SECONDS));
+
+		this.provider.updateParameters(context);
+
+		assertEquals("The reservation should have been taken.", 0, this.reservations.size());
+
+		verify(context, runningBuild, type, promotion);
+	}
+
+	@Test
+	public void testUpdateParametersReservedIncrementFailed01() throws Exception
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		this.referencedParameterCache.put(
+				"bt1", "project1", new int[] { 2, 4 }, this.referencedParameterCache.getGeneration()
+		);
+
+		final Map<String, String> sharedParameters = new Hashtable<String, String>();
+
+		final CountDownLatch reserved = new CountDownLatch(1);
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)))
+				.andAnswer(new IAnswer<Map<Integer, String>>()
+				{
+					@Override
+					public Map<Integer, String> answer() throws Throwable
+					{
+						reserved.countDown();
+						return Collections.singletonMap(2, "1.1.5.177");
+					}
+				});
+		expect(this.service.getSharedBuildNumber(4))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(4, false));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(4)))
+				.andThrow(new IOException("The journal could not be written."));
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(promotion.getId()).andReturn(17L);
+		expect(type.getBuildTypeId()).andReturn("bt1");
+		context.getRunnerContexts();
+		expectLastCall().andAnswer(new IAnswer<Object>()
+		{
+			@Override
+			public Object answer() throws Throwable
+			{
+				return new ArrayList<SRunnerContext>();
+			}
+		});
+		// the reserved number was taken before the increment failed, so the build must still get it
+		context.addSharedParameter("sharedBuildNumber.id2", "1.1.5.177");
+		expectLastCall().andAnswer(new IAnswer<Void>()
+		{
+			@Override
+			public Void answer() throws Throwable
+			{
+				sharedParameters.put("sharedBuildNumber.id2", "1.1.5.177");
+				return null;
+			}
+		});
+		expect(context.getSharedParameters()).andReturn(sharedParameters);
+		expect(runningBuild.getRawBuildNumber()).andReturn("%sharedBuildNumber.id2%");
+		runningBuild.setBuildNumber("1.1.5.177");
+		expectLastCall();
+		context.addSharedParameter(ServerProvidedProperties.SYSTEM_BUILD_NUMBER, "1.1.5.177");
+		expectLastCall();
+		context.addSharedParameter(ServerProvidedProperties.ENV_BUILD_NUMBER, "1.1.5.177");
+		expectLastCall();
+
+		replay(this.service, context, runningBuild, type, promotion);
+
+		this.reservations.reserve(17L, Collections.singleton(2));
+		assertTrue("The reservation was not made.", reserved.await(5L, TimeUnit.SECONDS));
+
+		this.provider.updateParameters(context);
+
+		assertEquals("The reservation should have been taken.", 0, this.reservations.size());
+		assertEquals("The reserved number should not have been skipped.", 0L, this.reservations.getGapCount());
+
+		verify(context, runningBuild, type, promotion);
+	}
+
+	@Test
+	public void testUpdateParametersReservedUnreferenced01() throws Exception
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		// the build type stopped referencing the number after the build was queued
+		this.referencedParameterCache.put(
+				"bt1", "project1", new int[0], this.referencedParameterCache.getGeneration()
+		);
+
+		final CountDownLatch reserved = new CountDownLatch(1);
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)))
+				.andAnswer(new IAnswer<Map<Integer, String>>()
+				{
+					@Override
+					public Map<Integer, String> answer() throws Throwable
+					{
+						reserved.countDown();
+						return Collections.singletonMap(2, "1.1.5.177");
+					}
+				});
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(promotion.getId()).andReturn(17L);
+		expect(type.getBuildTypeId()).andReturn("bt1");
+
+		replay(this.service, context, runningBuild, type, promotion);
+
+		this.reservations.reserve(17L, Collections.singleton(2));
+		assertTrue("The reservation was not made.", reserved.await(5L, TimeUnit.SECONDS));
+
+		this.provider.updateParameters(context);
+
+		assertEquals("The reservation should have been released.", 0, this.reservations.size());
+
+		long deadline = System.currentTimeMillis() + 5000L;
+		while(this.reservations.getGapCount() == 0L && System.currentTimeMillis() < deadline)
+			Thread.sleep(5L);
+
+		assertEquals("The unused number should have been recorded as a gap.", 1L, this.reservations.getGapCount());
+
+		verify(context, runningBuild, type, promotion);
+	}
+
+	@Test
+	public void testUpdateParametersCustomParameters01()
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		ParametersProvider parametersProvider = createStrictMock(ParametersProvider.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		this.referencedParameterCache.put(
+				"bt1", "project1", new int[0], this.referencedParameterCache.getGeneration()
+		);
+
+		Map<String, String> parameters = new Hashtable<String, String>();
+		parameters.put("someParameter", "someValue %mySubstitution%");
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(Collections.singletonMap("someParameter", "someValue"));
+		expect(type.getParametersProvider()).andReturn(parametersProvider);
+		expect(parametersProvider.getAll()).andReturn(parameters);
+		context.getRunnerContexts();
+		expectLastCall().andAnswer(new IAnswer<Object>()
+		{
+			@Override
+			public Object answer() throws Throwable
+			{
+				return new ArrayList<SRunnerContext>();
+			}
+		});
+
+		replay(this.service, context, runningBuild, type, parametersProvider, promotion);
+
+		this.provider.updateParameters(context);
+
+		assertEquals("The cache should not have been consulted.", 0L,
+					 this.referencedParameterCache.getHitCount() + this.referencedParameterCache.getMissCount());
+
+		verify(context, runningBuild, type, parametersProvider, promotion);
+	}
+
+	@Test
+	public void testUpdateParametersIncrementOnceForChain01() throws IOException
+	{
+		expect(this.service.getSharedBuildNumber(3))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(3, true));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.41"));
+		expect(this.service.getSharedBuildNumber(3))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(3, true));
+
+		replay(this.service);
+
+		this.updateChainBuild("bt1", true, "3.0.41");
+		this.updateChainBuild("bt2", true, "3.0.41");
+	}
+
+	@Test
+	public void testUpdateParametersIncrementOnceForChain02() throws IOException
+	{
+		expect(this.service.getSharedBuildNumber(3))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(3, true));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.41"));
+		expect(this.service.getSharedBuildNumber(3))
+				.andReturn(TestBuildNumberPropertiesProvider.getBuildNumber(3, true));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.42"));
+
+		replay(this.service);
+
+		this.updateChainBuild("bt1", false, "3.0.41");
+		this.updateChainBuild("bt2", false, "3.0.42");
+	}
+
+	/**
+	 * Starts a build, which references shared build number 3 and belongs to the chain topped by promotion 900 when it
+	 * is part of a chain, and verifies the shared build number it is given.
+	 */
+	private void updateChainBuild(String buildTypeId, boolean partOfChain, final String expected)
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		ParametersProvider parametersProvider = createStrictMock(ParametersProvider.class);
+		BuildPromotion top = createStrictMock(BuildPromotion.class);
+
+		Map<String, String> parameters = new Hashtable<String, String>();
+		parameters.put("version", "%sharedBuildNumber.id3%");
+
+		final Map<String, String> sharedParameters = new Hashtable<String, String>();
+
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		BuildPromotion promotion = this.expectPromotion(runningBuild, type, buildTypeId, parametersProvider);
+		expect(promotion.getId()).andReturn(17L);
+		expect(parametersProvider.getAll()).andReturn(parameters);
+		context.getRunnerContexts();
+		expectLastCall().andAnswer(new IAnswer<Object>()
+		{
+			@Override
+			public Object answer() throws Throwable
+			{
+				return new ArrayList<SRunnerContext>();
+			}
+		});
+		expect(promotion.isPartOfBuildChain()).andReturn(partOfChain);
+		if(partOfChain)
+		{
+			expect(promotion.getId()).andReturn(17L);
+			expect(promotion.findTops()).andReturn(new BuildPromotion[] { top });
+			expect(top.getId()).andReturn(900L);
+		}
+		context.addSharedParameter("sharedBuildNumber.id3", expected);
+		expectLastCall().andAnswer(new IAnswer<Void>()
+		{
+			@Override
+			public Void answer() throws Throwable
+			{
+				sharedParameters.put("sharedBuildNumber.id3", expected);
+				return null;
+			}
+		});
+		expect(context.getSharedParameters()).andReturn(sharedParameters);
+		expect(runningBuild.getRawBuildNumber()).andReturn("3.1.2.{0}");
+		expect(runningBuild.getFullName()).andReturn("name");
+
+		replay(context, runningBuild, type, parametersProvider, promotion, top);
+
+		this.provider.updateParameters(context);
+
+		verify(context, runningBuild, type, parametersProvider, promotion, top);
+	}
+
+	/**
+	 * Starts a build of build type bt1, which references shared build number 2, on an agent whose parameters reference
+	 * another shared build number, and verifies that only number 2 is given to the build.
+	 */
+	private void updateAgentBuild(String agentReference, boolean cached, final String expected)
+	{
+		BuildStartContext context = createStrictMock(BuildStartContext.class);
+		SRunningBuild runningBuild = createStrictMock(SRunningBuild.class);
+		SBuildType type = createStrictMock(SBuildType.class);
+		ParametersProvider parametersProvider = createStrictMock(ParametersProvider.class);
+		ParametersProvider agentParametersProvider = createStrictMock(ParametersProvider.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		Map<String, String> parameters = new Hashtable<String, String>();
+		parameters.put("version", "%sharedBuildNumber.id2%");
+
+		Map<String, String> agentParameters = new Hashtable<String, String>(parameters);
+		agentParameters.put("env.AGENT_VERSION", agentReference);
+
+		final Map<String, String> sharedParameters = new Hashtable<String, String>();
+
+		expect(runningBuild.getParametersProvider()).andStubReturn(agentParametersProvider);
+		expect(agentParametersProvider.getAll()).andStubReturn(agentParameters);
+		expect(context.getBuild()).andReturn(runningBuild);
+		expect(runningBuild.getFullName()).andReturn("name");
+		expect(runningBuild.getBuildType()).andReturn(type);
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(promotion.getId()).andReturn(17L);
+		expect(type.getBuildTypeId()).andReturn("bt1");
+		if(!cached)
+		{
+			expect(type.getParametersProvider()).andReturn(parametersProvider);
+			expect(parametersProvider.getAll()).andReturn(parameters);
+			expect(type.getProjectId()).andReturn("project1");
+		}
+		context.getRunnerContexts();
+		expectLastCall().andAnswer(new IAnswer<Object>()
+		{
+			@Override
+			public Object answer() throws Throwable
+			{
+				return new ArrayList<SRunnerContext>();
+			}
+		});
+		context.addSharedParameter("sharedBuildNumber.id2", expected);
+		expectLastCall().andAnswer(new IAnswer<Void>()
+		{
+			@Override
+			public Void answer() throws Throwable
+			{
+				sharedParameters.put("sharedBuildNumber.id2", expected);
+				return null;
+			}
+		});
+		expect(context.getSharedParameters()).andReturn(sharedParameters);
+		expect(runningBuild.getRawBuildNumber()).andReturn("%sharedBuildNumber.id2%");
+		runningBuild.setBuildNumber(expected);
+		expectLastCall();
+		context.addSharedParameter(ServerProvidedProperties.SYSTEM_BUILD_NUMBER, expected);
+		expectLastCall();
+		context.addSharedParameter(ServerProvidedProperties.ENV_BUILD_NUMBER, expected);
+		expectLastCall();
+
+		replay(context, runningBuild, type, parametersProvider, agentParametersProvider, promotion);
 
 		this.provider.updateParameters(context);
 
-		verify(context, runningBuild, type, parametersProvider, runnerContext1, runnerContext2);
+		verify(context, runningBuild, type, parametersProvider, agentParametersProvider, promotion);
+	}
+
+	/**
+	 * Expects the build's promotion, without custom parameters, to be looked up, and the build type it belongs to to
+	 * be scanned, using the given parameters, and cached.
+	 */
+	private BuildPromotion expectPromotion(SRunningBuild runningBuild, SBuildType type, String buildTypeId,
+										   ParametersProvider parametersProvider)
+	{
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		expect(runningBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(type.getBuildTypeId()).andReturn(buildTypeId);
+		expect(type.getParametersProvider()).andReturn(parametersProvider);
+		expect(type.getProjectId()).andReturn("project1");
+
+		return promotion;
+	}
+
+	private static SharedBuildNumber getBuildNumber(int id, boolean incrementOnceForChain)
+	{
+		SharedBuildNumber buildNumber = new SharedBuildNumber(id);
+		buildNumber.setIncrementOnceForChain(incrementOnceForChain);
+		return buildNumber;
 	}
-}
\ No newline at end of file
+}
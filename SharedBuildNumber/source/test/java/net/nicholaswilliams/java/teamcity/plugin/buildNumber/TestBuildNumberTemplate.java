@@ -0,0 +1,103 @@
+/*
+ * TestBuildNumberTemplate.java from TeamCityPlugins modified Sunday, October 14, 2012 16:04:12 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for BuildNumberTemplate.
+ */
+public class TestBuildNumberTemplate
+{
+	@Test
+	public void testFormatCounterOnly01()
+	{
+		BuildNumberTemplate template = BuildNumberTemplate.compile("1.0.0.{0}", null);
+
+		assertEquals("The formatted build number is not correct.", "1.0.0.76",
+					 template.format(76, System.currentTimeMillis()));
+	}
+
+	@Test
+	public void testFormatNoPlaceholders01()
+	{
+		BuildNumberTemplate template = BuildNumberTemplate.compile("release-{x}-{0", null);
+
+		assertEquals("The formatted build number is not correct.", "release-{x}-{0",
+					 template.format(5, System.currentTimeMillis()));
+	}
+
+	@Test
+	public void testFormatDateAndCounter01()
+	{
+		Date date = new Date();
+		String formatted = new SimpleDateFormat("yyMMdd").format(date);
+
+		BuildNumberTemplate template = BuildNumberTemplate.compile("7.1.{D}.{0}-{d}", "yyMMdd");
+
+		assertEquals("The formatted build number is not correct.", "7.1." + formatted + ".23-" + formatted,
+					 template.format(23, date.getTime()));
+	}
+
+	@Test
+	public void testFormatAdjacentPlaceholders01()
+	{
+		BuildNumberTemplate template = BuildNumberTemplate.compile("{0}{0}{{0}}", null);
+
+		assertEquals("The formatted build number is not correct.", "1212{12}",
+					 template.format(12, System.currentTimeMillis()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCompileMissingDateFormat01()
+	{
+		BuildNumberTemplate.compile("1.{d}", null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCompileInvalidDateFormat01()
+	{
+		BuildNumberTemplate.compile("1.{d}", "yyyyMMddq");
+	}
+
+	@Test
+	public void testEntityTemplateInvalidated01()
+	{
+		SharedBuildNumberEntity entity = new SharedBuildNumberEntity();
+		entity.setFormat("1.{0}");
+
+		BuildNumberTemplate template = entity.getTemplate();
+
+		assertSame("The template should be cached.", template, entity.getTemplate());
+		assertEquals("The formatted build number is not correct.", "1.3",
+					 template.format(3, System.currentTimeMillis()));
+
+		entity.setFormat("2.{0}");
+
+		assertNotSame("The template should have been recompiled.", template, entity.getTemplate());
+		assertEquals("The formatted build number is not correct.", "2.3",
+					 entity.getTemplate().format(3, System.currentTimeMillis()));
+	}
+}
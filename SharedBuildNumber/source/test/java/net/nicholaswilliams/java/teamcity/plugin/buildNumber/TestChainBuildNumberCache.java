@@ -0,0 +1,256 @@
+/*
+ * TestChainBuildNumberCache.java from TeamCityPlugins modified Saturday, October 20, 2012 14:21:08 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.easymock.Capture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ChainBuildNumberCache.
+ */
+public class TestChainBuildNumberCache
+{
+	private EventDispatcher<BuildServerListener> dispatcher;
+
+	private PluginConfigurationService service;
+
+	private ChainBuildNumberCache cache;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp()
+	{
+		this.dispatcher = createStrictMock(EventDispatcher.class);
+		this.service = createStrictMock(PluginConfigurationService.class);
+
+		Capture<ChainBuildNumberCache> listener = new Capture<ChainBuildNumberCache>();
+		this.dispatcher.addListener(capture(listener));
+		expectLastCall();
+
+		replay(this.dispatcher);
+
+		this.cache = new ChainBuildNumberCache(this.dispatcher);
+
+		assertSame("The cache should have registered itself.", this.cache, listener.getValue());
+	}
+
+	@After
+	public void tearDown()
+	{
+		verify(this.dispatcher, this.service);
+	}
+
+	@Test
+	public void testReuseWithinChain01() throws IOException
+	{
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.41"));
+
+		replay(this.service);
+
+		assertEquals("The first build number is not correct.", Collections.singletonMap(3, "3.0.41"),
+					 this.get(900L, 3));
+		assertEquals("The second build number is not correct.", Collections.singletonMap(3, "3.0.41"),
+					 this.get(900L, 3));
+		assertEquals("The number of chains is not correct.", 1, this.cache.size());
+	}
+
+	@Test
+	public void testSeparateChains01() throws IOException
+	{
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.41"));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.42"));
+
+		replay(this.service);
+
+		assertEquals("The first chain's build number is not correct.", Collections.singletonMap(3, "3.0.41"),
+					 this.get(900L, 3));
+		assertEquals("The second chain's build number is not correct.", Collections.singletonMap(3, "3.0.42"),
+					 this.get(901L, 3));
+		assertEquals("The number of chains is not correct.", 2, this.cache.size());
+	}
+
+	@Test
+	public void testIncrementOnlyMissing01() throws IOException
+	{
+		Map<Integer, String> first = new HashMap<Integer, String>();
+		first.put(3, "3.0.41");
+		first.put(5, "5.2");
+
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(new HashSet<Integer>(Arrays.asList(3, 5))))
+				.andReturn(first);
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(8)))
+				.andReturn(new HashMap<Integer, String>());
+
+		replay(this.service);
+
+		this.cache.getAndIncrementFormattedSharedBuildNumbers(
+				900L, new HashSet<Integer>(Arrays.asList(3, 5)), this.service
+		);
+		Map<Integer, String> second = this.cache.getAndIncrementFormattedSharedBuildNumbers(
+				900L, new HashSet<Integer>(Arrays.asList(5, 8)), this.service
+		);
+
+		assertEquals("The build numbers are not correct.", Collections.singletonMap(5, "5.2"), second);
+	}
+
+	@Test
+	public void testFailureNotCached01() throws IOException
+	{
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andThrow(new IOException("The journal could not be written."));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.41"));
+
+		replay(this.service);
+
+		try
+		{
+			this.get(900L, 3);
+			fail("Expected IOException, got no exception.");
+		}
+		catch(IOException e)
+		{
+			assertEquals("The message is not correct.", "The journal could not be written.", e.getMessage());
+		}
+
+		assertEquals("The build number is not correct.", Collections.singletonMap(3, "3.0.41"),
+					 this.get(900L, 3));
+	}
+
+	@Test
+	public void testEvictOnTopFinished01() throws IOException
+	{
+		SRunningBuild build = createStrictMock(SRunningBuild.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.41"));
+		expect(build.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getId()).andReturn(900L);
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.42"));
+
+		replay(this.service, build, promotion);
+
+		this.get(900L, 3);
+		this.cache.buildFinished(build);
+
+		assertEquals("The number of chains is not correct.", 0, this.cache.size());
+		assertEquals("The build number is not correct.", Collections.singletonMap(3, "3.0.42"),
+					 this.get(900L, 3));
+
+		verify(build, promotion);
+	}
+
+	@Test
+	public void testFinishedWithEmptyCache01()
+	{
+		SRunningBuild build = createStrictMock(SRunningBuild.class);
+
+		replay(this.service, build);
+
+		this.cache.buildInterrupted(build);
+
+		verify(build);
+	}
+
+	@Test
+	public void testTimeToLive01() throws Exception
+	{
+		this.cache.setTimeToLive(1L, TimeUnit.MILLISECONDS);
+
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.41"));
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+				.andReturn(Collections.singletonMap(3, "3.0.42"));
+
+		replay(this.service);
+
+		this.get(900L, 3);
+		Thread.sleep(10L);
+
+		assertEquals("The build number is not correct.", Collections.singletonMap(3, "3.0.42"),
+					 this.get(900L, 3));
+		assertEquals("The number of chains is not correct.", 1, this.cache.size());
+	}
+
+	@Test
+	public void testMaxChains01() throws IOException
+	{
+		this.cache.setMaxChains(2);
+
+		for(int i = 41; i <= 44; i++)
+		{
+			expect(this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(3)))
+					.andReturn(Collections.singletonMap(3, "3.0." + i));
+		}
+
+		replay(this.service);
+
+		this.get(900L, 3);
+		this.get(901L, 3);
+		this.get(902L, 3);
+
+		assertEquals("The number of chains is not correct.", 2, this.cache.size());
+		assertEquals("The oldest chain should have been forgotten.", Collections.singletonMap(3, "3.0.44"),
+					 this.get(900L, 3));
+		assertEquals("The number of chains is not correct.", 2, this.cache.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetTimeToLiveZero01()
+	{
+		replay(this.service);
+
+		this.cache.setTimeToLive(0L, TimeUnit.MINUTES);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetMaxChainsZero01()
+	{
+		replay(this.service);
+
+		this.cache.setMaxChains(0);
+	}
+
+	private Map<Integer, String> get(long chainId, int id) throws IOException
+	{
+		return this.cache.getAndIncrementFormattedSharedBuildNumbers(chainId, Collections.singleton(id), this.service);
+	}
+}
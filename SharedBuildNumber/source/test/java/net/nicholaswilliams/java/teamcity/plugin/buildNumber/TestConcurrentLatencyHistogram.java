@@ -0,0 +1,101 @@
+/*
+ * TestConcurrentLatencyHistogram.java from TeamCityPlugins modified Wednesday, October 31, 2012 16:42:05 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ConcurrentLatencyHistogram.
+ */
+public class TestConcurrentLatencyHistogram
+{
+	@Test
+	public void testEmpty01()
+	{
+		ConcurrentLatencyHistogram histogram = new ConcurrentLatencyHistogram();
+
+		assertEquals("The count is not correct.", 0L, histogram.getCount());
+		assertEquals("The total is not correct.", 0L, histogram.getTotal());
+		assertEquals("The maximum is not correct.", 0L, histogram.getMaximum());
+		assertEquals("The percentile is not correct.", 0L, histogram.getPercentile(50.0D));
+	}
+
+	@Test
+	public void testRecord01()
+	{
+		ConcurrentLatencyHistogram histogram = new ConcurrentLatencyHistogram();
+		for(int i = 1; i <= 100; i++)
+			histogram.record(i * 1000L);
+		histogram.record(-5L);
+
+		assertEquals("The count is not correct.", 101L, histogram.getCount());
+		assertEquals("The total is not correct.", 5050000L, histogram.getTotal());
+		assertEquals("The maximum is not correct.", 100000L, histogram.getMaximum());
+		assertEquals("The minimum is not correct.", 0L, histogram.getPercentile(0.0D));
+
+		long median = histogram.getPercentile(50.0D);
+		assertTrue("The median " + median + " is not within 7% of 50000.", median >= 50000L && median <= 53500L);
+		assertEquals("The 100th percentile is not correct.", 100000L, histogram.getPercentile(100.0D));
+	}
+
+	@Test
+	public void testConcurrentRecord01() throws InterruptedException
+	{
+		final ConcurrentLatencyHistogram histogram = new ConcurrentLatencyHistogram();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++)
+		{
+			final long value = (i + 1) * 100L;
+			threads[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch(InterruptedException e)
+					{
+						return;
+					}
+
+					for(int j = 0; j < 10000; j++)
+						histogram.record(value);
+				}
+			});
+			threads[i].start();
+		}
+
+		start.countDown();
+		for(Thread thread : threads)
+			thread.join();
+
+		assertEquals("The count is not correct.", 40000L, histogram.getCount());
+		assertEquals("The total is not correct.", 10000L * (100L + 200L + 300L + 400L), histogram.getTotal());
+		assertEquals("The maximum is not correct.", 400L, histogram.getMaximum());
+	}
+}
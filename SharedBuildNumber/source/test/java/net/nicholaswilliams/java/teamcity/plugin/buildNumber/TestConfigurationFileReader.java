@@ -0,0 +1,209 @@
+/*
+ * TestConfigurationFileReader.java from TeamCityPlugins modified Friday, November 2, 2012 15:42:08 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ConfigurationFileReader.
+ */
+public class TestConfigurationFileReader
+{
+	private static final String ROOT =
+			"<shared-build-number-config " +
+			"xmlns=\"http://java.nicholaswilliams.net/schema/teamcity/plugin/shared-build-number-config\">";
+
+	private final ConfigurationFileReader reader = new ConfigurationFileReader();
+
+	@Test
+	public void testReadDistributedFile01() throws Exception
+	{
+		InputStream stream = this.getClass().getResourceAsStream("shared-build-number-config.xml.dist");
+		ConfigurationEntity configuration;
+		try
+		{
+			configuration = this.reader.read(stream);
+		}
+		finally
+		{
+			stream.close();
+		}
+
+		assertEquals("The last update date is not correct.",
+					 ISODateTimeFormat.dateTime().parseDateTime("2012-09-09T16:44:48.431-06:00").getMillis(),
+					 configuration.getLastUpdate().getMillis());
+		assertEquals("The sequence setting is not correct.", 3,
+					 configuration.getSettings().getBuildNumberIdSequence());
+		assertEquals("The collection is the wrong size.", 2, configuration.getBuildNumbers().size());
+
+		SharedBuildNumberEntity n1 = configuration.getBuildNumber(1);
+		assertNotNull("Build number 1 should not be null.", n1);
+		assertEquals("The name is not correct (1).", "Sample Counter-Based Build Number", n1.getName());
+		assertEquals("The format is not correct (1).", "1.0.0.{0}", n1.getFormat());
+		assertNull("The date format should be null (1).", n1.getDateFormat());
+		assertEquals("The counter is not correct (1).", 123, n1.getCounter());
+		assertFalse("Increment once for chain should be false (1).", n1.isIncrementOnceForChain());
+
+		SharedBuildNumberEntity n2 = configuration.getBuildNumber(2);
+		assertNotNull("Build number 2 should not be null.", n2);
+		assertEquals("The name is not correct (2).", "Sample Date-Based Build Number", n2.getName());
+		assertEquals("The description is not correct (2).",
+					 "This sample build number exists when the plugin in installed. It can be safely removed or used " +
+					 "for testing purposes.",
+					 n2.getDescription());
+		assertEquals("The date format is not correct (2).", "yyyyMMddHHmmss", n2.getDateFormat());
+		assertEquals("The counter is not correct (2).", 1, n2.getCounter());
+	}
+
+	@Test
+	public void testReadWrittenFile01() throws Exception
+	{
+		SettingsEntity settings = new SettingsEntity();
+		settings.setBuildNumberIdSequence(9);
+
+		ConfigurationEntity original = new ConfigurationEntity();
+		original.setLastUpdate(new DateTime());
+		original.setSettings(settings);
+
+		SharedBuildNumberEntity number = new SharedBuildNumberEntity();
+		number.setId(8);
+		number.setName("Tricky ]]> name");
+		number.setDescription("Line one\nline two & <three>");
+		number.setFormat("8.{D}.{0}");
+		number.setDateFormat("yyyy'<'MM");
+		number.setIncrementOnceForChain(true);
+		number.setAllowGaps(true);
+		number.setBlockSize(25);
+		number.setDurability(Durability.GROUP);
+		original.addOrUpdateBuildNumber(number);
+
+		File file = File.createTempFile("sharedBuildNumber", ".xml");
+		try
+		{
+			ConfigurationFileWriter writer = new ConfigurationFileWriter(
+					file,
+					PluginFileUtils.readLines(this.getClass(), "shared-build-number-config.xml.dist").subList(0, 22)
+			);
+			writer.prepare(original);
+			writer.commit();
+
+			ConfigurationEntity configuration;
+			FileInputStream stream = FileUtils.openInputStream(file);
+			try
+			{
+				configuration = this.reader.read(stream);
+			}
+			finally
+			{
+				stream.close();
+			}
+
+			assertEquals("The last update date is not correct.", original.getLastUpdate().getMillis(),
+						 configuration.getLastUpdate().getMillis());
+			assertEquals("The sequence setting is not correct.", 9,
+						 configuration.getSettings().getBuildNumberIdSequence());
+
+			SharedBuildNumberEntity read = configuration.getBuildNumber(8);
+			assertNotNull("The build number should not be null.", read);
+			assertEquals("The name is not correct.", "Tricky ]]> name", read.getName());
+			assertEquals("The description is not correct.", "Line one\nline two & <three>", read.getDescription());
+			assertEquals("The format is not correct.", "8.{D}.{0}", read.getFormat());
+			assertEquals("The date format is not correct.", "yyyy'<'MM", read.getDateFormat());
+			assertTrue("Increment once for chain should be true.", read.isIncrementOnceForChain());
+			assertTrue("Allow gaps should be true.", read.isAllowGaps());
+			assertEquals("The block size is not correct.", 25, read.getBlockSize());
+			assertEquals("The durability is not correct.", Durability.GROUP, read.getDurability());
+		}
+		finally
+		{
+			FileUtils.forceDelete(file);
+		}
+	}
+
+	@Test
+	public void testReadIgnoresUnknownElements01() throws Exception
+	{
+		ConfigurationEntity configuration = this.read(
+				TestConfigurationFileReader.ROOT + "<last-update>2012-10-17T09:48:20-05:00</last-update>" +
+				"<settings><buildNumberIdSequence>2</buildNumberIdSequence><future>x</future></settings>" +
+				"<build-numbers><build-number id=\"1\" allowGaps=\"1\"><name>Number</name><extra><name>No</name>" +
+				"</extra><format>{0}</format></build-number></build-numbers></shared-build-number-config>"
+		);
+
+		assertEquals("The sequence setting is not correct.", 2,
+					 configuration.getSettings().getBuildNumberIdSequence());
+		assertEquals("The name is not correct.", "Number", configuration.getBuildNumber(1).getName());
+		assertTrue("Allow gaps should be true.", configuration.getBuildNumber(1).isAllowGaps());
+		assertNull("The durability should be null.", configuration.getBuildNumber(1).getDurability());
+	}
+
+	@Test(expected = SAXException.class)
+	public void testReadInvalidId01() throws Exception
+	{
+		this.read(
+				TestConfigurationFileReader.ROOT + "<build-numbers><build-number id=\"one\"><name>Number</name>" +
+				"</build-number></build-numbers></shared-build-number-config>"
+		);
+	}
+
+	@Test(expected = SAXException.class)
+	public void testReadMissingId01() throws Exception
+	{
+		this.read(
+				TestConfigurationFileReader.ROOT + "<build-numbers><build-number><name>Number</name>" +
+				"</build-number></build-numbers></shared-build-number-config>"
+		);
+	}
+
+	@Test(expected = SAXException.class)
+	public void testReadInvalidLastUpdate01() throws Exception
+	{
+		this.read(
+				TestConfigurationFileReader.ROOT + "<last-update>yesterday</last-update>" +
+				"</shared-build-number-config>"
+		);
+	}
+
+	@Test(expected = SAXException.class)
+	public void testReadWrongRoot01() throws Exception
+	{
+		this.read("<configuration />");
+	}
+
+	private ConfigurationEntity read(String content) throws IOException, SAXException
+	{
+		return this.reader.read(new ByteArrayInputStream(content.getBytes("UTF-8")));
+	}
+}
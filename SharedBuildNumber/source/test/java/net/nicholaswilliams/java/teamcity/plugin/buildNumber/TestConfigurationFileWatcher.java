@@ -0,0 +1,166 @@
+/*
+ * TestConfigurationFileWatcher.java from TeamCityPlugins modified Monday, October 15, 2012 14:31:05 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.configuration.ChangeListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ConfigurationFileWatcher.
+ */
+public class TestConfigurationFileWatcher
+{
+	private File file;
+
+	private AtomicInteger changes;
+
+	private CountDownLatch changed;
+
+	private ConfigurationFileWatcher watcher;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.file = File.createTempFile("sharedBuildNumber", ".xml");
+		FileUtils.writeStringToFile(this.file, "<original />");
+
+		this.changes = new AtomicInteger();
+		this.changed = new CountDownLatch(1);
+
+		this.watcher = new ConfigurationFileWatcher(this.file, new ChangeListener()
+		{
+			@Override
+			public void changeOccured(String requester)
+			{
+				TestConfigurationFileWatcher.this.changes.incrementAndGet();
+				TestConfigurationFileWatcher.this.changed.countDown();
+			}
+		});
+		this.watcher.setPollInterval(10L, TimeUnit.MILLISECONDS);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		this.watcher.stop();
+
+		if(this.file.exists())
+			FileUtils.forceDelete(this.file);
+	}
+
+	@Test
+	public void testExternalChange01() throws Exception
+	{
+		this.watcher.start();
+
+		this.write("<external change=\"true\" />");
+
+		assertTrue("The change should have been reported.", this.changed.await(5L, TimeUnit.SECONDS));
+		assertEquals("The number of changes is not correct.", 1, this.changes.get());
+	}
+
+	@Test
+	public void testOwnWriteIgnored01() throws Exception
+	{
+		// checked by hand, so the watcher thread must not get there first
+		this.watcher.setPollInterval(1L, TimeUnit.HOURS);
+		this.watcher.start();
+
+		String content = "<own write=\"true\" />";
+		this.watcher.expectOwnWrite(ConfigurationFileWatcher.checksum(content.getBytes()));
+		this.write(content);
+
+		assertFalse("The plugin's own write should not have been reported.", this.watcher.check());
+		assertEquals("The number of changes is not correct.", 0, this.changes.get());
+
+		this.write("<external change=\"true\" />");
+
+		assertTrue("The external change should have been reported.", this.watcher.check());
+		assertEquals("The number of changes is not correct.", 1, this.changes.get());
+	}
+
+	@Test
+	public void testOlderOwnWriteIgnored01() throws Exception
+	{
+		// checked by hand, so the watcher thread must not get there first
+		this.watcher.setPollInterval(1L, TimeUnit.HOURS);
+		this.watcher.start();
+
+		String first = "<own write=\"1\" />";
+		this.watcher.expectOwnWrite(ConfigurationFileWatcher.checksum(first.getBytes()));
+		this.watcher.expectOwnWrite(ConfigurationFileWatcher.checksum("<own write=\"2\" />".getBytes()));
+		this.write(first);
+
+		assertFalse("An earlier own write should not have been reported.", this.watcher.check());
+		assertEquals("The number of changes is not correct.", 0, this.changes.get());
+	}
+
+	@Test
+	public void testTouchWithoutChangeIgnored01() throws Exception
+	{
+		// checked by hand, so the watcher thread must not get there first
+		this.watcher.setPollInterval(1L, TimeUnit.HOURS);
+		this.watcher.start();
+
+		this.write("<original />");
+
+		assertFalse("Unchanged content should not have been reported.", this.watcher.check());
+		assertEquals("The number of changes is not correct.", 0, this.changes.get());
+	}
+
+	@Test
+	public void testStop01() throws Exception
+	{
+		this.watcher.start();
+
+		assertTrue("The watcher should be running.", this.watcher.isRunning());
+
+		this.watcher.stop();
+
+		assertFalse("The watcher should not be running.", this.watcher.isRunning());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetPollIntervalZero01()
+	{
+		this.watcher.setPollInterval(0L, TimeUnit.MILLISECONDS);
+	}
+
+	private void write(String content) throws IOException
+	{
+		long lastModified = this.file.lastModified();
+
+		FileUtils.writeStringToFile(this.file, content);
+
+		// make sure the change is visible even on file systems with coarse modification times
+		if(this.file.lastModified() == lastModified && !this.file.setLastModified(lastModified + 1000L))
+			fail("Could not change the modification time of the test file.");
+	}
+}
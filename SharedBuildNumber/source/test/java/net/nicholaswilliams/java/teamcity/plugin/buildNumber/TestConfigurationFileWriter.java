@@ -0,0 +1,273 @@
+/*
+ * TestConfigurationFileWriter.java from TeamCityPlugins modified Saturday, November 3, 2012 11:20:47 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.joda.time.DateTime;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.SchemaFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ConfigurationFileWriter.
+ */
+public class TestConfigurationFileWriter
+{
+	private static final String XSD = "shared-build-number-config-1.0.xsd";
+
+	private File directory;
+
+	private File file;
+
+	private List<String> header;
+
+	private ConfigurationFileWriter writer;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = File.createTempFile("sharedBuildNumber", "");
+		FileUtils.forceDelete(this.directory);
+		FileUtils.forceMkdir(this.directory);
+		this.file = new File(this.directory, "shared-build-number-config.xml");
+
+		this.header = PluginFileUtils.readLines(this.getClass(), "shared-build-number-config.xml.dist").subList(0, 22);
+
+		this.writer = new ConfigurationFileWriter(this.file, this.header);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	@Test
+	public void testWriteEmpty01() throws Exception
+	{
+		ConfigurationEntity configuration = this.getConfiguration(1);
+
+		this.writer.prepare(configuration);
+		this.writer.commit();
+
+		StringBuilder expected = new StringBuilder();
+		for(String line : this.header)
+			expected.append(line).append(IOUtils.LINE_SEPARATOR);
+		this.append(expected, "", "\t<last-update>" +
+								  ISODateTimeFormat.dateTime().print(configuration.getLastUpdate()) +
+								  "</last-update>", "", "\t<settings>",
+					"\t\t<buildNumberIdSequence>1</buildNumberIdSequence>", "\t</settings>", "",
+					"\t<build-numbers>", "", "\t</build-numbers>", "", "</shared-build-number-config>", "");
+
+		assertEquals("The file content is not correct.", expected.toString(),
+					 FileUtils.readFileToString(this.file, "UTF-8"));
+		this.validate();
+	}
+
+	@Test
+	public void testWriteSortedById01() throws Exception
+	{
+		ConfigurationEntity configuration = this.getConfiguration(4);
+		configuration.addOrUpdateBuildNumber(this.getBuildNumber(3, "Third", "3.{0}", null));
+		configuration.addOrUpdateBuildNumber(this.getBuildNumber(1, "First", "1.{d}.{0}", "yyyyMMdd"));
+
+		long checksum = this.writer.prepare(configuration);
+		this.writer.commit();
+
+		StringBuilder expected = new StringBuilder();
+		for(String line : this.header)
+			expected.append(line).append(IOUtils.LINE_SEPARATOR);
+		this.append(expected, "", "\t<last-update>" +
+								  ISODateTimeFormat.dateTime().print(configuration.getLastUpdate()) +
+								  "</last-update>", "", "\t<settings>",
+					"\t\t<buildNumberIdSequence>4</buildNumberIdSequence>", "\t</settings>", "",
+					"\t<build-numbers>",
+					"\t\t<build-number id=\"1\" incrementOnceForChain=\"false\" allowGaps=\"false\" blockSize=\"100\">",
+					"\t\t\t<name><![CDATA[First]]></name>",
+					"\t\t\t<description><![CDATA[First description]]></description>",
+					"\t\t\t<format><![CDATA[1.{d}.{0}]]></format>",
+					"\t\t\t<dateFormat>yyyyMMdd</dateFormat>",
+					"\t\t</build-number>", "",
+					"\t\t<build-number id=\"3\" incrementOnceForChain=\"false\" allowGaps=\"false\" blockSize=\"100\">",
+					"\t\t\t<name><![CDATA[Third]]></name>",
+					"\t\t\t<description><![CDATA[Third description]]></description>",
+					"\t\t\t<format><![CDATA[3.{0}]]></format>",
+					"\t\t</build-number>",
+					"\t</build-numbers>", "", "</shared-build-number-config>", "");
+
+		String content = FileUtils.readFileToString(this.file, "UTF-8");
+		assertEquals("The file content is not correct.", expected.toString(), content);
+		assertEquals("The checksum is not correct.", ConfigurationFileWatcher.checksum(content.getBytes("UTF-8")),
+					 checksum);
+		assertFalse("The temporary file should not remain.", new File(this.directory, this.file.getName() + ".tmp")
+				.exists());
+		this.validate();
+	}
+
+	@Test
+	public void testWriteCDataTerminator01() throws Exception
+	{
+		ConfigurationEntity configuration = this.getConfiguration(2);
+		SharedBuildNumberEntity number = this.getBuildNumber(1, "a]]>b]]]]>c", "1.{0}]]>", null);
+		number.setDescription("<![CDATA[nested]]> & more");
+		configuration.addOrUpdateBuildNumber(number);
+
+		this.writer.prepare(configuration);
+		this.writer.commit();
+		this.validate();
+
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setCoalescing(true);
+		Document document = factory.newDocumentBuilder().parse(this.file);
+
+		assertEquals("The name is not correct.", "a]]>b]]]]>c", this.getText(document, "name"));
+		assertEquals("The description is not correct.", "<![CDATA[nested]]> & more",
+					 this.getText(document, "description"));
+		assertEquals("The format is not correct.", "1.{0}]]>", this.getText(document, "format"));
+	}
+
+	@Test
+	public void testWriteReplacesFile01() throws Exception
+	{
+		FileUtils.writeStringToFile(this.file, "<old />");
+
+		ConfigurationEntity configuration = this.getConfiguration(3);
+		configuration.addOrUpdateBuildNumber(this.getBuildNumber(2, "Second", "{0}", null));
+
+		this.writer.prepare(configuration);
+		this.writer.commit();
+		this.validate();
+
+		configuration.removeBuildNumber(2);
+		this.writer.prepare(configuration);
+		this.writer.commit();
+		this.validate();
+
+		assertFalse("The build number should have been removed.",
+					FileUtils.readFileToString(this.file, "UTF-8").contains("Second"));
+	}
+
+	@Test
+	public void testRecoverFromTemporaryFile01() throws IOException
+	{
+		FileUtils.writeStringToFile(PluginFileUtils.getBackupFile(this.file), "<old />");
+		FileUtils.writeStringToFile(new File(this.directory, this.file.getName() + ".tmp"), "<new />");
+
+		assertTrue("The file should have been recovered.", this.writer.recover());
+		assertEquals("The file should have been recovered from the temporary file.", "<new />",
+					 FileUtils.readFileToString(this.file));
+		assertFalse("The backup file should not remain.", PluginFileUtils.getBackupFile(this.file).exists());
+	}
+
+	@Test
+	public void testRecoverFromBackupFile01() throws IOException
+	{
+		FileUtils.writeStringToFile(PluginFileUtils.getBackupFile(this.file), "<old />");
+
+		assertTrue("The file should have been recovered.", this.writer.recover());
+		assertEquals("The file should have been recovered from the backup file.", "<old />",
+					 FileUtils.readFileToString(this.file));
+		assertFalse("The backup file should not remain.", PluginFileUtils.getBackupFile(this.file).exists());
+	}
+
+	@Test
+	public void testRecoverExistingFile01() throws IOException
+	{
+		FileUtils.writeStringToFile(this.file, "<current />");
+		FileUtils.writeStringToFile(PluginFileUtils.getBackupFile(this.file), "<old />");
+
+		assertFalse("The file should not have needed recovery.", this.writer.recover());
+		assertEquals("The file should not have changed.", "<current />", FileUtils.readFileToString(this.file));
+		assertFalse("The backup file should not remain.", PluginFileUtils.getBackupFile(this.file).exists());
+	}
+
+	@Test
+	public void testRecoverIgnoresTemporaryFileWithoutBackup01() throws IOException
+	{
+		FileUtils.writeStringToFile(new File(this.directory, this.file.getName() + ".tmp"), "<partial");
+
+		assertFalse("The file should not have been recovered.", this.writer.recover());
+		assertFalse("A possibly incomplete temporary file should not be used.", this.file.exists());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testCommitUnprepared01() throws IOException
+	{
+		this.writer.commit();
+	}
+
+	private void validate() throws Exception
+	{
+		SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
+				new StreamSource(this.getClass().getResourceAsStream(TestConfigurationFileWriter.XSD))
+		).newValidator().validate(new StreamSource(this.file));
+	}
+
+	private String getText(Document document, String element)
+	{
+		NodeList nodes = document.getElementsByTagName(element);
+		assertEquals("There should be one <" + element + "> element.", 1, nodes.getLength());
+		return nodes.item(0).getTextContent();
+	}
+
+	private void append(StringBuilder builder, String... lines)
+	{
+		for(String line : lines)
+			builder.append(line).append(IOUtils.LINE_SEPARATOR);
+	}
+
+	private ConfigurationEntity getConfiguration(int sequence)
+	{
+		SettingsEntity settings = new SettingsEntity();
+		settings.setBuildNumberIdSequence(sequence);
+
+		ConfigurationEntity configuration = new ConfigurationEntity();
+		configuration.setLastUpdate(new DateTime());
+		configuration.setSettings(settings);
+		return configuration;
+	}
+
+	private SharedBuildNumberEntity getBuildNumber(int id, String name, String format, String dateFormat)
+	{
+		SharedBuildNumberEntity number = new SharedBuildNumberEntity();
+		number.setId(id);
+		number.setName(name);
+		number.setDescription(name + " description");
+		number.setFormat(format);
+		number.setDateFormat(dateFormat);
+		return number;
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * TestConfigurationSnapshot.java from TeamCityPlugins modified Saturday, November 3, 2012 13:02:19 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ConfigurationSnapshot.
+ */
+public class TestConfigurationSnapshot
+{
+	private File directory;
+
+	private File source;
+
+	private File file;
+
+	private ConfigurationSnapshot snapshot;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = File.createTempFile("sharedBuildNumber", "");
+		FileUtils.forceDelete(this.directory);
+		FileUtils.forceMkdir(this.directory);
+
+		this.source = new File(this.directory, "shared-build-number-config.xml");
+		FileUtils.writeStringToFile(this.source, "<shared-build-number-config />");
+		if(!this.source.setLastModified(this.source.lastModified() - 10000L))
+			fail("Could not change the modification time of the source file.");
+
+		this.file = new File(this.directory, "shared-build-number-config.snapshot");
+		this.snapshot = new ConfigurationSnapshot(this.file);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	@Test
+	public void testRoundTrip01() throws IOException
+	{
+		ConfigurationEntity original = this.getConfiguration();
+
+		this.write(original);
+
+		assertTrue("The snapshot file should exist.", this.file.exists());
+		assertFalse("The temporary file should not remain.", new File(this.directory, this.file.getName() + ".tmp")
+				.exists());
+
+		ConfigurationEntity configuration = this.read();
+
+		assertNotNull("The configuration should not be null.", configuration);
+		assertEquals("The last update is not correct.", original.getLastUpdate(), configuration.getLastUpdate());
+		assertEquals("The sequence setting is not correct.", 12,
+					 configuration.getSettings().getBuildNumberIdSequence());
+		assertEquals("The collection is the wrong size.", 2, configuration.getBuildNumbers().size());
+
+		SharedBuildNumberEntity n1 = configuration.getBuildNumber(4);
+		assertNotNull("Build number 4 should not be null.", n1);
+		assertEquals("The name is not correct (4).", "Fourth build number \u00e9\u4e2d", n1.getName());
+		assertNull("The description should be null (4).", n1.getDescription());
+		assertEquals("The format is not correct (4).", "4.{d}.{0}", n1.getFormat());
+		assertEquals("The date format is not correct (4).", "yyyyMMdd", n1.getDateFormat());
+		assertTrue("Increment once for chain should be true (4).", n1.isIncrementOnceForChain());
+		assertFalse("Allow gaps should be false (4).", n1.isAllowGaps());
+		assertNull("The durability should be null (4).", n1.getDurability());
+		assertEquals("The counter is not correct (4).", 41, n1.getCounter());
+
+		SharedBuildNumberEntity n2 = configuration.getBuildNumber(11);
+		assertNotNull("Build number 11 should not be null.", n2);
+		assertEquals("The description is not correct (11).", "", n2.getDescription());
+		assertNull("The date format should be null (11).", n2.getDateFormat());
+		assertFalse("Increment once for chain should be false (11).", n2.isIncrementOnceForChain());
+		assertTrue("Allow gaps should be true (11).", n2.isAllowGaps());
+		assertEquals("The block size is not correct (11).", 7, n2.getBlockSize());
+		assertEquals("The durability is not correct (11).", Durability.ASYNC, n2.getDurability());
+		assertEquals("The counter is not correct (11).", 1100, n2.getCounter());
+	}
+
+	@Test
+	public void testReadMissing01() throws IOException
+	{
+		assertNull("There should be no configuration.", this.read());
+	}
+
+	@Test
+	public void testReadSourceChanged01() throws IOException
+	{
+		this.write(this.getConfiguration());
+
+		FileUtils.writeStringToFile(this.source, "<shared-build-number-config></shared-build-number-config>");
+
+		assertNull("The stale snapshot should not have been read.", this.read());
+	}
+
+	@Test
+	public void testReadSourceChangedWithinTimestampGranularity01() throws IOException
+	{
+		this.write(this.getConfiguration());
+		long lastModified = this.source.lastModified();
+
+		FileUtils.writeStringToFile(this.source, "<shared-build-number-config/> ");
+		if(!this.source.setLastModified(lastModified))
+			fail("Could not change the modification time of the source file.");
+
+		assertNull("A same-length edit should have made the snapshot stale.", this.read());
+	}
+
+	@Test
+	public void testReadOlderThanSource01() throws IOException
+	{
+		this.write(this.getConfiguration());
+
+		if(!this.source.setLastModified(this.file.lastModified() + 10000L))
+			fail("Could not change the modification time of the source file.");
+
+		assertNotNull("A snapshot of unchanged content should still be read.", this.read());
+	}
+
+	@Test
+	public void testReadRecoversInterruptedWrite01() throws IOException
+	{
+		this.write(this.getConfiguration());
+
+		// simulate a crash after the old snapshot was moved aside, before the new one was renamed into place
+		File temporary = new File(this.directory, this.file.getName() + ".tmp");
+		FileUtils.copyFile(this.file, PluginFileUtils.getBackupFile(this.file));
+		assertTrue("The snapshot file could not be moved.", this.file.renameTo(temporary));
+
+		assertNotNull("The snapshot should have been recovered.", this.read());
+		assertTrue("The snapshot file should exist again.", this.file.exists());
+		assertFalse("The backup file should not remain.", PluginFileUtils.getBackupFile(this.file).exists());
+	}
+
+	@Test
+	public void testReadCorrupt01() throws IOException
+	{
+		this.write(this.getConfiguration());
+
+		RandomAccessFile corrupt = new RandomAccessFile(this.file, "rw");
+		try
+		{
+			corrupt.seek(corrupt.length() - 3L);
+			corrupt.write('X');
+		}
+		finally
+		{
+			corrupt.close();
+		}
+
+		assertNull("The corrupt snapshot should not have been read.", this.read());
+	}
+
+	@Test
+	public void testReadTruncated01() throws IOException
+	{
+		this.write(this.getConfiguration());
+
+		RandomAccessFile truncated = new RandomAccessFile(this.file, "rw");
+		try
+		{
+			truncated.setLength(truncated.length() - 10L);
+		}
+		finally
+		{
+			truncated.close();
+		}
+
+		assertNull("The truncated snapshot should not have been read.", this.read());
+	}
+
+	private void write(ConfigurationEntity configuration) throws IOException
+	{
+		byte[] content = FileUtils.readFileToByteArray(this.source);
+		this.snapshot.write(configuration, ConfigurationFileWatcher.checksum(content), content.length);
+	}
+
+	private ConfigurationEntity read() throws IOException
+	{
+		byte[] content = FileUtils.readFileToByteArray(this.source);
+		return this.snapshot.read(ConfigurationFileWatcher.checksum(content), content.length);
+	}
+
+	private ConfigurationEntity getConfiguration()
+	{
+		SettingsEntity settings = new SettingsEntity();
+		settings.setBuildNumberIdSequence(12);
+
+		ConfigurationEntity configuration = new ConfigurationEntity();
+		configuration.setLastUpdate(new DateTime(2012, 10, 18, 11, 2, 37, 120, DateTimeZone.forOffsetHours(-5)));
+		configuration.setSettings(settings);
+
+		SharedBuildNumberEntity n1 = new SharedBuildNumberEntity();
+		n1.setId(4);
+		n1.setName("Fourth build number \u00e9\u4e2d");
+		n1.setFormat("4.{d}.{0}");
+		n1.setDateFormat("yyyyMMdd");
+		n1.setIncrementOnceForChain(true);
+		n1.setCounter(41);
+		configuration.addOrUpdateBuildNumber(n1);
+
+		SharedBuildNumberEntity n2 = new SharedBuildNumberEntity();
+		n2.setId(11);
+		n2.setName("Eleventh build number");
+		n2.setDescription("");
+		n2.setFormat("11.{0}");
+		n2.setAllowGaps(true);
+		n2.setBlockSize(7);
+		n2.setDurability(Durability.ASYNC);
+		n2.setCounter(1100);
+		configuration.addOrUpdateBuildNumber(n2);
+
+		return configuration;
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * TestCounterStore.java from TeamCityPlugins modified Saturday, November 3, 2012 16:32:14 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for CounterStore.
+ */
+public class TestCounterStore
+{
+	private File file;
+
+	private CounterStore store;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.file = File.createTempFile("sharedBuildNumber", ".dat");
+		FileUtils.forceDelete(this.file);
+
+		this.store = new CounterStore(this.file);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		this.store.close();
+
+		if(this.file.exists())
+			FileUtils.forceDelete(this.file);
+	}
+
+	@Test
+	public void testOpenNewStore01() throws IOException
+	{
+		assertFalse("The store should not be open yet.", this.store.isOpen());
+
+		this.store.open();
+
+		assertTrue("The store should be open.", this.store.isOpen());
+		assertTrue("The store should have been created.", this.store.wasCreated());
+		assertTrue("The store file should exist.", this.file.exists());
+		assertEquals("Counter 1 should not be stored.", 0, this.store.get(1));
+	}
+
+	@Test
+	public void testAdvance01() throws IOException
+	{
+		this.store.open();
+
+		assertTrue("Counter 1 should have advanced.", this.store.advance(1, 124));
+		assertTrue("Counter 2 should have advanced.", this.store.advance(2, 16));
+		assertTrue("Counter 1 should have advanced again.", this.store.advance(1, 125));
+		assertFalse("Counter 1 should not move backwards.", this.store.advance(1, 100));
+
+		assertEquals("Counter 1 is not correct.", 125, this.store.get(1));
+		assertEquals("Counter 2 is not correct.", 16, this.store.get(2));
+		assertEquals("Counter 3 should not be stored.", 0, this.store.get(3));
+	}
+
+	@Test
+	public void testAdvanceGrowsStore01() throws IOException
+	{
+		this.store.open();
+
+		assertTrue("Counter 5000 should have advanced.", this.store.advance(5000, 42));
+		assertEquals("Counter 5000 is not correct.", 42, this.store.get(5000));
+		assertTrue("The store file should have grown.",
+				   this.file.length() >= CounterStore.HEADER_LENGTH + 5001 * CounterStore.SLOT_LENGTH);
+	}
+
+	@Test
+	public void testReopen01() throws IOException
+	{
+		this.store.open();
+		this.store.advance(3, 19);
+		this.store.advance(700, 8);
+		this.store.close();
+
+		CounterStore reopened = new CounterStore(this.file);
+		try
+		{
+			reopened.open();
+
+			assertFalse("The store should not have been created.", reopened.wasCreated());
+			assertEquals("Counter 3 is not correct.", 19, reopened.get(3));
+			assertEquals("Counter 700 is not correct.", 8, reopened.get(700));
+		}
+		finally
+		{
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testClear01() throws IOException
+	{
+		this.store.open();
+		this.store.advance(4, 88);
+		this.store.clear(4);
+
+		assertEquals("Counter 4 should have been cleared.", 0, this.store.get(4));
+		assertTrue("Counter 4 should advance again.", this.store.advance(4, 1));
+	}
+
+	@Test
+	public void testDamagedSlot01() throws IOException
+	{
+		this.store.open();
+		this.store.advance(6, 31);
+		this.store.advance(7, 12);
+		this.store.close();
+
+		this.damageSlot(6);
+
+		this.store.open();
+
+		assertEquals("The damaged slot should be reported.", Collections.singleton(6), this.store.getDamagedIds());
+		assertEquals("Counter 7 is not correct.", 12, this.store.get(7));
+
+		try
+		{
+			this.store.get(6);
+			fail("Expected IOException, got no exception.");
+		}
+		catch(IOException e)
+		{
+			assertTrue("The message should name the damaged slot.", e.getMessage().contains("[6]"));
+		}
+
+		try
+		{
+			this.store.advance(6, 40);
+			fail("Expected IOException, got no exception.");
+		}
+		catch(IOException e)
+		{
+			assertTrue("The message should name the damaged slot.", e.getMessage().contains("[6]"));
+		}
+	}
+
+	@Test
+	public void testRepairDamagedSlot01() throws IOException
+	{
+		this.store.open();
+		this.store.advance(6, 31);
+		this.store.close();
+
+		this.damageSlot(6);
+
+		this.store.open();
+		this.store.repair(6, 35);
+
+		assertTrue("The slot should no longer be reported damaged.", this.store.getDamagedIds().isEmpty());
+		assertEquals("Counter 6 is not correct.", 35, this.store.get(6));
+
+		this.store.close();
+		this.store.open();
+
+		assertTrue("The repaired slot should be intact after reopening.", this.store.getDamagedIds().isEmpty());
+		assertEquals("Counter 6 is not correct after reopening.", 35, this.store.get(6));
+	}
+
+	@Test(expected = IOException.class)
+	public void testOpenInvalidFile01() throws IOException
+	{
+		FileUtils.writeStringToFile(this.file, "This is not a counter store.");
+
+		this.store.open();
+	}
+
+	@Test
+	public void testOpenTruncatedFile01() throws IOException
+	{
+		this.store.open();
+		this.store.advance(2, 9);
+		this.store.close();
+
+		// a crash while the store was being created can leave only part of the header behind
+		RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+		try
+		{
+			raw.setLength(CounterStore.HEADER_LENGTH - 9);
+		}
+		finally
+		{
+			raw.close();
+		}
+
+		try
+		{
+			this.store.open();
+			fail("Expected IOException, got no exception.");
+		}
+		catch(IOException e)
+		{
+			assertTrue("The message is not correct.", e.getMessage().endsWith("is not a valid counter store."));
+		}
+
+		assertFalse("The store should have been closed.", this.store.isOpen());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testGetNotOpen01() throws IOException
+	{
+		this.store.get(1);
+	}
+
+	private void damageSlot(int id) throws IOException
+	{
+		RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+		try
+		{
+			raw.seek(CounterStore.HEADER_LENGTH + id * CounterStore.SLOT_LENGTH);
+			raw.writeInt(32);
+		}
+		finally
+		{
+			raw.close();
+		}
+	}
+}
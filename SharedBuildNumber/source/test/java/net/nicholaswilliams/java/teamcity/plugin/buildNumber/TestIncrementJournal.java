@@ -0,0 +1,514 @@
+/*
+ * TestIncrementJournal.java from TeamCityPlugins modified Saturday, November 3, 2012 10:05:31 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for IncrementJournal.
+ */
+public class TestIncrementJournal
+{
+	private File file;
+
+	private IncrementJournal journal;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.file = File.createTempFile("sharedBuildNumber", ".journal");
+		FileUtils.forceDelete(this.file);
+
+		this.journal = new IncrementJournal(this.file);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		this.journal.close();
+
+		if(this.file.exists())
+			FileUtils.forceDelete(this.file);
+	}
+
+	@Test
+	public void testOpenNewJournal01() throws IOException
+	{
+		assertFalse("The journal should not be open yet.", this.journal.isOpen());
+
+		this.journal.open();
+
+		assertTrue("The journal should be open.", this.journal.isOpen());
+		assertTrue("The journal file should exist.", this.file.exists());
+		assertEquals("The journal file length is not correct.", IncrementJournal.HEADER_LENGTH, this.file.length());
+		assertEquals("The record count is not correct.", 0, this.journal.getRecordCount());
+		assertTrue("The replayed map should be empty.", this.journal.replay().isEmpty());
+	}
+
+	@Test
+	public void testAppendAndReplay01() throws IOException
+	{
+		this.journal.open();
+		this.journal.append(1, 124);
+		this.journal.append(2, 16);
+		this.journal.append(1, 125);
+
+		assertEquals("The record count is not correct.", 3, this.journal.getRecordCount());
+		assertEquals("The journal file length is not correct.",
+					 IncrementJournal.HEADER_LENGTH + 3 * IncrementJournal.RECORD_LENGTH, this.file.length());
+
+		this.journal.close();
+
+		IncrementJournal reopened = new IncrementJournal(this.file);
+		try
+		{
+			reopened.open();
+			Map<Integer, Integer> counters = reopened.replay();
+
+			assertEquals("The record count is not correct.", 3, reopened.getRecordCount());
+			assertEquals("The number of counters is not correct.", 2, counters.size());
+			assertEquals("Counter 1 is not correct.", Integer.valueOf(125), counters.get(1));
+			assertEquals("Counter 2 is not correct.", Integer.valueOf(16), counters.get(2));
+		}
+		finally
+		{
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testReplayDiscardsTornRecord01() throws IOException
+	{
+		this.journal.open();
+		this.journal.append(5, 33);
+		this.journal.append(5, 34);
+		this.journal.close();
+
+		RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+		try
+		{
+			raw.setLength(raw.length() - 7);
+		}
+		finally
+		{
+			raw.close();
+		}
+
+		this.journal.open();
+		Map<Integer, Integer> counters = this.journal.replay();
+
+		assertEquals("The record count is not correct.", 1, this.journal.getRecordCount());
+		assertEquals("Counter 5 is not correct.", Integer.valueOf(33), counters.get(5));
+		assertEquals("The torn record should have been truncated.",
+					 IncrementJournal.HEADER_LENGTH + IncrementJournal.RECORD_LENGTH, this.file.length());
+
+		this.journal.append(5, 35);
+
+		assertEquals("Counter 5 is not correct after the append.", Integer.valueOf(35), this.journal.replay().get(5));
+	}
+
+	@Test
+	public void testReplayDiscardsCorruptRecord01() throws IOException
+	{
+		this.journal.open();
+		this.journal.append(7, 10);
+		this.journal.append(7, 11);
+		this.journal.close();
+
+		RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+		try
+		{
+			raw.seek(IncrementJournal.HEADER_LENGTH + IncrementJournal.RECORD_LENGTH + 4);
+			raw.writeInt(999);
+		}
+		finally
+		{
+			raw.close();
+		}
+
+		this.journal.open();
+		Map<Integer, Integer> counters = this.journal.replay();
+
+		assertEquals("The record count is not correct.", 1, this.journal.getRecordCount());
+		assertEquals("Counter 7 is not correct.", Integer.valueOf(10), counters.get(7));
+	}
+
+	@Test
+	public void testTruncate01() throws IOException
+	{
+		this.journal.open();
+		this.journal.append(3, 4);
+		this.journal.truncate();
+
+		assertEquals("The record count is not correct.", 0, this.journal.getRecordCount());
+		assertEquals("The journal file length is not correct.", IncrementJournal.HEADER_LENGTH, this.file.length());
+		assertTrue("The replayed map should be empty.", this.journal.replay().isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void testOpenInvalidFile01() throws IOException
+	{
+		FileUtils.writeStringToFile(this.file, "This is not a journal.");
+
+		this.journal.open();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAppendNotOpen01() throws IOException
+	{
+		this.journal.append(1, 2);
+	}
+
+	@Test
+	public void testGroupCommit01() throws Exception
+	{
+		final int threads = 8;
+		final int appendsPerThread = 200;
+
+		this.journal.setFlushWindow(200L, TimeUnit.MICROSECONDS);
+		this.journal.open();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[threads];
+		for(int i = 0; i < threads; i++)
+		{
+			final int id = i + 1;
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						for(int j = 1; j <= appendsPerThread; j++)
+							TestIncrementJournal.this.journal.append(id, j);
+					}
+					catch(Throwable e)
+					{
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			workers[i].start();
+		}
+
+		start.countDown();
+		for(Thread worker : workers)
+			worker.join();
+
+		assertNull("No append should have failed.", failure.get());
+		assertEquals("The record count is not correct.", threads * appendsPerThread, this.journal.getRecordCount());
+		assertEquals("The flushed record count is not correct.",
+					 threads * appendsPerThread, this.journal.getFlushedRecordCount());
+		assertTrue("Concurrent appends should have shared flushes.",
+				   this.journal.getFlushCount() < threads * appendsPerThread);
+
+		Map<Integer, Integer> counters = this.journal.replay();
+
+		assertEquals("The number of counters is not correct.", threads, counters.size());
+		for(int i = 1; i <= threads; i++)
+			assertEquals("Counter " + i + " is not correct.", Integer.valueOf(appendsPerThread), counters.get(i));
+	}
+
+	@Test
+	public void testGroupedAppend01() throws Exception
+	{
+		this.journal.setGroupWindow(300L, TimeUnit.MILLISECONDS);
+		this.journal.open();
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread leader = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				try
+				{
+					TestIncrementJournal.this.journal.append(1, 5, true);
+				}
+				catch(Throwable e)
+				{
+					failure.compareAndSet(null, e);
+				}
+			}
+		});
+		leader.start();
+
+		Thread.sleep(50L);
+		this.journal.append(new int[] { 2, 3 }, new int[] { 7, 9 }, 2);
+		leader.join();
+
+		assertNull("No append should have failed.", failure.get());
+		assertEquals("The appends should have shared one flush.", 1L, this.journal.getFlushCount());
+		assertEquals("The flushed record count is not correct.", 3L, this.journal.getFlushedRecordCount());
+	}
+
+	@Test
+	public void testUngroupedAppendIgnoresGroupWindow01() throws IOException
+	{
+		this.journal.setGroupWindow(1L, TimeUnit.MINUTES);
+		this.journal.open();
+
+		long start = System.nanoTime();
+		this.journal.append(1, 2);
+		this.journal.append(new int[] { 1 }, new int[] { 3 }, 1, false);
+
+		assertTrue("The appends should not have waited the group window.",
+				   System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30L));
+		assertEquals("The flush count is not correct.", 2L, this.journal.getFlushCount());
+	}
+
+	@Test
+	public void testGroupCommitMaxBatchSize01() throws IOException
+	{
+		this.journal.setMaxBatchSize(1);
+		this.journal.open();
+		this.journal.append(1, 1);
+		this.journal.append(1, 2);
+
+		assertEquals("The flush count is not correct.", 2, this.journal.getFlushCount());
+		assertEquals("The flushed record count is not correct.", 2, this.journal.getFlushedRecordCount());
+	}
+
+	@Test
+	public void testAppendBatch01() throws IOException
+	{
+		this.journal.open();
+		this.journal.append(new int[] { 3, 5, 8, 13 }, new int[] { 31, 52, 87, 130 }, 3);
+
+		assertEquals("The record count is not correct.", 3, this.journal.getRecordCount());
+		assertEquals("The flush count is not correct.", 1, this.journal.getFlushCount());
+
+		Map<Integer, Integer> counters = this.journal.replay();
+
+		assertEquals("The number of counters is not correct.", 3, counters.size());
+		assertEquals("Counter 3 is not correct.", Integer.valueOf(31), counters.get(3));
+		assertEquals("Counter 5 is not correct.", Integer.valueOf(52), counters.get(5));
+		assertEquals("Counter 8 is not correct.", Integer.valueOf(87), counters.get(8));
+		assertNull("Counter 13 should not have been appended.", counters.get(13));
+	}
+
+	@Test
+	public void testAppendBatchMaxBatchSize01() throws IOException
+	{
+		this.journal.setMaxBatchSize(2);
+		this.journal.open();
+		this.journal.append(new int[] { 1, 2, 3, 4, 5 }, new int[] { 10, 20, 30, 40, 50 }, 5);
+
+		assertEquals("The record count is not correct.", 5, this.journal.getRecordCount());
+		assertEquals("The flush count is not correct.", 3, this.journal.getFlushCount());
+		assertEquals("The flushed record count is not correct.", 5, this.journal.getFlushedRecordCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAppendBatchCountOutOfRange01() throws IOException
+	{
+		this.journal.open();
+		this.journal.append(new int[] { 1 }, new int[] { 10 }, 2);
+	}
+
+	@Test
+	public void testFailedWriteIsRolledBack01() throws IOException
+	{
+		this.journal = new FailingJournal(this.file, 2);
+		this.journal.open();
+		this.journal.append(1, 10);
+
+		try
+		{
+			this.journal.append(1, 11);
+			fail("Expected IOException, got no exception.");
+		}
+		catch(IOException e)
+		{
+			assertNotNull("The cause should not be null.", e.getCause());
+		}
+
+		assertFalse("The failed write should have been rolled back.", this.journal.needsCheckpoint());
+		assertEquals("The torn batch should have been truncated away.",
+					 IncrementJournal.HEADER_LENGTH + IncrementJournal.RECORD_LENGTH, this.file.length());
+
+		this.journal.append(1, 12);
+
+		assertEquals("The record count is not correct.", 2, this.journal.getRecordCount());
+		this.journal.close();
+
+		IncrementJournal reopened = new IncrementJournal(this.file);
+		try
+		{
+			reopened.open();
+			Map<Integer, Integer> counters = reopened.replay();
+
+			assertEquals("The record count is not correct.", 2, reopened.getRecordCount());
+			assertEquals("Counter 1 is not correct.", Integer.valueOf(12), counters.get(1));
+		}
+		finally
+		{
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testFailedFlushFailsEveryAppendInIt01() throws Exception
+	{
+		final int threads = 4;
+
+		this.journal = new FailingJournal(this.file, 1, 2);
+		this.journal.setFlushWindow(5L, TimeUnit.SECONDS);
+		this.journal.setMaxBatchSize(threads);
+		this.journal.open();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger failures = new AtomicInteger();
+		final AtomicReference<Throwable> unexpected = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[threads];
+		for(int i = 0; i < threads; i++)
+		{
+			final int id = i + 1;
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						TestIncrementJournal.this.journal.append(id, 1);
+					}
+					catch(IOException e)
+					{
+						failures.incrementAndGet();
+					}
+					catch(Throwable e)
+					{
+						unexpected.compareAndSet(null, e);
+					}
+				}
+			});
+			workers[i].start();
+		}
+
+		start.countDown();
+		for(Thread worker : workers)
+			worker.join();
+
+		assertNull("No append should have failed unexpectedly.", unexpected.get());
+		assertEquals("Every append in the failed flush should have failed.", threads, failures.get());
+
+		this.journal.setFlushWindow(0L, TimeUnit.MILLISECONDS);
+
+		try
+		{
+			this.journal.append(9, 1);
+			fail("Expected IOException, got no exception.");
+		}
+		catch(IOException e)
+		{
+			assertNotNull("The cause should not be null.", e.getCause());
+		}
+
+		this.journal.append(9, 2);
+
+		assertEquals("The record count is not correct.", 1, this.journal.getRecordCount());
+		assertEquals("The journal should only contain the successful append.",
+					 Integer.valueOf(2), this.journal.replay().get(9));
+	}
+
+	@Test
+	public void testSetFlushWindow01()
+	{
+		this.journal.setFlushWindow(3L, TimeUnit.MILLISECONDS);
+
+		assertEquals("The flush window is not correct.", 3000L, this.journal.getFlushWindow(TimeUnit.MICROSECONDS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetFlushWindowNegative01()
+	{
+		this.journal.setFlushWindow(-1L, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testSetGroupWindow01()
+	{
+		this.journal.setGroupWindow(2L, TimeUnit.MILLISECONDS);
+
+		assertEquals("The group window is not correct.", 2000L, this.journal.getGroupWindow(TimeUnit.MICROSECONDS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetGroupWindowNegative01()
+	{
+		this.journal.setGroupWindow(-1L, TimeUnit.MILLISECONDS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetMaxBatchSizeZero01()
+	{
+		this.journal.setMaxBatchSize(0);
+	}
+
+	/**
+	 * A journal whose writes with the given numbers, counted from one, write half of the batch and then fail.
+	 */
+	private static class FailingJournal extends IncrementJournal
+	{
+		private final int[] failingWrites;
+
+		private int writes;
+
+		public FailingJournal(File file, int... failingWrites)
+		{
+			super(file);
+			this.failingWrites = failingWrites;
+		}
+
+		@Override
+		protected void write(FileChannel channel, ByteBuffer batch) throws IOException
+		{
+			this.writes++;
+			if(Arrays.binarySearch(this.failingWrites, this.writes) < 0)
+			{
+				super.write(channel, batch);
+				return;
+			}
+
+			ByteBuffer half = batch.duplicate();
+			half.limit(half.position() + half.remaining() / 2);
+			channel.write(half);
+			throw new IOException("Simulated write failure " + this.writes + ".");
+		}
+	}
+}
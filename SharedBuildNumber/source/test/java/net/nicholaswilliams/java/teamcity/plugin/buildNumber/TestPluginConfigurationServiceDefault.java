@@ -1,5 +1,5 @@
 /*
- * TestPluginConfigurationServiceDefault.java from TeamCityPlugins modified Friday, September 21, 2012 23:37:46 CDT (-0500).
+ * TestPluginConfigurationServiceDefault.java from TeamCityPlugins modified Saturday, November 3, 2012 14:41:09 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -20,6 +20,7 @@ package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
 
 import jetbrains.buildServer.serverSide.ServerPaths;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.ConfigurationEntity;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SettingsEntity;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
@@ -35,11 +36,20 @@ import org.springframework.beans.FatalBeanException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.SortedSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
@@ -62,13 +72,23 @@ public class TestPluginConfigurationServiceDefault
 				.withConstructor(ServerPaths.class)
 				.withArgs(serverPaths)
 				.addMockedMethod("saveConfiguration")
+				.addMockedMethod("persistCounter")
+				.addMockedMethod("persistCounters")
 				.createStrictMock();
 	}
 
 	@After
-	public void tearDown()
+	public void tearDown() throws IOException
 	{
-
+		File validated = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								  PluginConfigurationService.CONFIG_VALIDATED_FILE_NAME);
+		if(validated.exists())
+			FileUtils.forceDelete(validated);
+
+		File snapshot = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_SNAPSHOT_FILE_NAME);
+		if(snapshot.exists())
+			FileUtils.forceDelete(snapshot);
 	}
 
 	private ConfigurationEntity getConfiguration()
@@ -156,6 +176,52 @@ public class TestPluginConfigurationServiceDefault
 		verify(this.service);
 	}
 
+	@Test
+	public void testGetNextBuildNumberIdConcurrent01() throws Exception
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+		final int threads = 8;
+		final int idsPerThread = 25;
+
+		this.service.saveConfiguration();
+		expectLastCall().times(threads * idsPerThread);
+
+		replay(this.service);
+
+		final Set<Integer> ids = Collections.synchronizedSet(new HashSet<Integer>());
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[threads];
+		for(int i = 0; i < threads; i++)
+		{
+			workers[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for(int j = 0; j < idsPerThread; j++)
+							ids.add(TestPluginConfigurationServiceDefault.this.service.getNextBuildNumberId());
+					}
+					catch(Throwable e)
+					{
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			workers[i].start();
+		}
+		for(Thread worker : workers)
+			worker.join();
+
+		assertNull("No call should have failed.", failure.get());
+		assertEquals("Every build number ID should be unique.", threads * idsPerThread, ids.size());
+		assertEquals("The new sequence value is not correct.", threads * idsPerThread + 1,
+					 configuration.getSettings().getBuildNumberIdSequence());
+
+		verify(this.service);
+	}
+
 	@Test
 	public void testGetAllSharedBuildNumberIds01()
 	{
@@ -186,7 +252,7 @@ public class TestPluginConfigurationServiceDefault
 	}
 
 	@Test
-	public void testGetAllSharedBuildNumbersSortedById01()
+	public void testGetSharedBuildNumbersSortedById01()
 	{
 		final ConfigurationEntity configuration = this.getConfiguration();
 
@@ -204,17 +270,17 @@ public class TestPluginConfigurationServiceDefault
 
 		replay(this.service);
 
-		SortedSet<SharedBuildNumber> set = this.service.getAllSharedBuildNumbersSortedById(false);
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedById(false, 0, 50);
 
-		assertNotNull("The set should not be null.", set);
-		assertEquals("The set is the wrong size.", 3, set.size());
+		assertNotNull("The list should not be null.", list);
+		assertEquals("The list is the wrong size.", 3, list.size());
 
 		SharedBuildNumberEntity[] values = new SharedBuildNumberEntity[] {
 				sharedBuildNumber3, sharedBuildNumber1, sharedBuildNumber2
 		};
 
 		int i = 0;
-		for(SharedBuildNumber sharedBuildNumber : set)
+		for(SharedBuildNumber sharedBuildNumber : list)
 		{
 			assertEquals("The build number is not correct.", values[i].getId(), sharedBuildNumber.getId());
 
@@ -225,7 +291,7 @@ public class TestPluginConfigurationServiceDefault
 	}
 
 	@Test
-	public void testGetAllSharedBuildNumbersSortedById02()
+	public void testGetSharedBuildNumbersSortedById02()
 	{
 		final ConfigurationEntity configuration = this.getConfiguration();
 
@@ -243,17 +309,17 @@ public class TestPluginConfigurationServiceDefault
 
 		replay(this.service);
 
-		SortedSet<SharedBuildNumber> set = this.service.getAllSharedBuildNumbersSortedById(true);
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedById(true, 0, 50);
 
-		assertNotNull("The set should not be null.", set);
-		assertEquals("The set is the wrong size.", 3, set.size());
+		assertNotNull("The list should not be null.", list);
+		assertEquals("The list is the wrong size.", 3, list.size());
 
 		SharedBuildNumberEntity[] values = new SharedBuildNumberEntity[] {
 				sharedBuildNumber2, sharedBuildNumber1, sharedBuildNumber3
 		};
 
 		int i = 0;
-		for(SharedBuildNumber sharedBuildNumber : set)
+		for(SharedBuildNumber sharedBuildNumber : list)
 		{
 			assertEquals("The build number is not correct.", values[i].getId(), sharedBuildNumber.getId());
 
@@ -264,7 +330,7 @@ public class TestPluginConfigurationServiceDefault
 	}
 
 	@Test
-	public void testGetAllSharedBuildNumbersSortedByName01()
+	public void testGetSharedBuildNumbersSortedByName01()
 	{
 		final ConfigurationEntity configuration = this.getConfiguration();
 
@@ -285,17 +351,17 @@ public class TestPluginConfigurationServiceDefault
 
 		replay(this.service);
 
-		SortedSet<SharedBuildNumber> set = this.service.getAllSharedBuildNumbersSortedByName(false);
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedByName(false, 0, 50);
 
-		assertNotNull("The set should not be null.", set);
-		assertEquals("The set is the wrong size.", 3, set.size());
+		assertNotNull("The list should not be null.", list);
+		assertEquals("The list is the wrong size.", 3, list.size());
 
 		SharedBuildNumberEntity[] values = new SharedBuildNumberEntity[] {
 				sharedBuildNumber2, sharedBuildNumber3, sharedBuildNumber1
 		};
 
 		int i = 0;
-		for(SharedBuildNumber sharedBuildNumber : set)
+		for(SharedBuildNumber sharedBuildNumber : list)
 		{
 			assertEquals("The build number is not correct.", values[i].getId(), sharedBuildNumber.getId());
 
@@ -306,7 +372,7 @@ public class TestPluginConfigurationServiceDefault
 	}
 
 	@Test
-	public void testGetAllSharedBuildNumbersSortedByName02()
+	public void testGetSharedBuildNumbersSortedByName02()
 	{
 		final ConfigurationEntity configuration = this.getConfiguration();
 
@@ -327,17 +393,17 @@ public class TestPluginConfigurationServiceDefault
 
 		replay(this.service);
 
-		SortedSet<SharedBuildNumber> set = this.service.getAllSharedBuildNumbersSortedByName(true);
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedByName(true, 0, 50);
 
-		assertNotNull("The set should not be null.", set);
-		assertEquals("The set is the wrong size.", 3, set.size());
+		assertNotNull("The list should not be null.", list);
+		assertEquals("The list is the wrong size.", 3, list.size());
 
 		SharedBuildNumberEntity[] values = new SharedBuildNumberEntity[] {
 				sharedBuildNumber1, sharedBuildNumber3, sharedBuildNumber2
 		};
 
 		int i = 0;
-		for(SharedBuildNumber sharedBuildNumber : set)
+		for(SharedBuildNumber sharedBuildNumber : list)
 		{
 			assertEquals("The build number is not correct.", values[i].getId(), sharedBuildNumber.getId());
 
@@ -347,6 +413,341 @@ public class TestPluginConfigurationServiceDefault
 		verify(this.service);
 	}
 
+	@Test
+	public void testGetSharedBuildNumbersSortedById03()
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		for(int id = 1; id <= 7; id++)
+		{
+			SharedBuildNumberEntity sharedBuildNumber = new SharedBuildNumberEntity();
+			sharedBuildNumber.setId(id * 3);
+			configuration.addOrUpdateBuildNumber(sharedBuildNumber);
+		}
+
+		replay(this.service);
+
+		assertEquals("The count is not correct.", 7, this.service.getSharedBuildNumberCount());
+
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedById(false, 2, 3);
+		assertEquals("The list is the wrong size.", 3, list.size());
+		assertEquals("The first build number is not correct.", 9, list.get(0).getId());
+		assertEquals("The last build number is not correct.", 15, list.get(2).getId());
+
+		list = this.service.getSharedBuildNumbersSortedById(true, 5, 3);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("The first build number is not correct.", 6, list.get(0).getId());
+		assertEquals("The last build number is not correct.", 3, list.get(1).getId());
+
+		list = this.service.getSharedBuildNumbersSortedById(false, 7, 3);
+		assertEquals("The list should be empty.", 0, list.size());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetSharedBuildNumbersSortedByIdAfter01()
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		for(int id = 1; id <= 7; id++)
+		{
+			SharedBuildNumberEntity sharedBuildNumber = new SharedBuildNumberEntity();
+			sharedBuildNumber.setId(id * 3);
+			configuration.addOrUpdateBuildNumber(sharedBuildNumber);
+		}
+
+		replay(this.service);
+
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedByIdAfter(9, false, 2);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("The first build number is not correct.", 12, list.get(0).getId());
+		assertEquals("The last build number is not correct.", 15, list.get(1).getId());
+
+		list = this.service.getSharedBuildNumbersSortedByIdAfter(10, true, 5);
+		assertEquals("The list is the wrong size.", 3, list.size());
+		assertEquals("The first build number is not correct.", 9, list.get(0).getId());
+		assertEquals("The last build number is not correct.", 3, list.get(2).getId());
+
+		list = this.service.getSharedBuildNumbersSortedByIdAfter(21, false, 5);
+		assertEquals("The list should be empty.", 0, list.size());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetSharedBuildNumbersSortedByName03()
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setName("Same Name");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		SharedBuildNumberEntity sharedBuildNumber3 = new SharedBuildNumberEntity();
+		sharedBuildNumber3.setId(3);
+		sharedBuildNumber3.setName("Same Name");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber3);
+
+		SharedBuildNumberEntity sharedBuildNumber4 = new SharedBuildNumberEntity();
+		sharedBuildNumber4.setId(4);
+		sharedBuildNumber4.setName("Another Name");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber4);
+
+		SharedBuildNumberEntity sharedBuildNumber5 = new SharedBuildNumberEntity();
+		sharedBuildNumber5.setId(5);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber5);
+
+		replay(this.service);
+
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedByName(false, 0, 50);
+		assertEquals("The list is the wrong size.", 5, list.size());
+		int[] expected = new int[] { 2, 5, 4, 1, 3 };
+		for(int i = 0; i < expected.length; i++)
+			assertEquals("The build number is not correct.", expected[i], list.get(i).getId());
+
+		list = this.service.getSharedBuildNumbersSortedByName(true, 0, 50);
+		assertEquals("The list is the wrong size.", 5, list.size());
+		expected = new int[] { 3, 1, 4, 5, 2 };
+		for(int i = 0; i < expected.length; i++)
+			assertEquals("The build number is not correct.", expected[i], list.get(i).getId());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetSharedBuildNumbersSortedByNameAfter01()
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setName("Same Name");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		SharedBuildNumberEntity sharedBuildNumber3 = new SharedBuildNumberEntity();
+		sharedBuildNumber3.setId(3);
+		sharedBuildNumber3.setName("Same Name");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber3);
+
+		SharedBuildNumberEntity sharedBuildNumber4 = new SharedBuildNumberEntity();
+		sharedBuildNumber4.setId(4);
+		sharedBuildNumber4.setName("Another Name");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber4);
+
+		replay(this.service);
+
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedByNameAfter("Same Name", 1, false, 5);
+		assertEquals("The list is the wrong size.", 1, list.size());
+		assertEquals("The build number is not correct.", 3, list.get(0).getId());
+
+		list = this.service.getSharedBuildNumbersSortedByNameAfter(null, 2, false, 2);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("The first build number is not correct.", 4, list.get(0).getId());
+		assertEquals("The last build number is not correct.", 1, list.get(1).getId());
+
+		list = this.service.getSharedBuildNumbersSortedByNameAfter("Bad Name", 10, true, 5);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("The first build number is not correct.", 4, list.get(0).getId());
+		assertEquals("The last build number is not correct.", 2, list.get(1).getId());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetSharedBuildNumbersSortedByName04() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setName("Bravo");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setName("Charlie");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		SharedBuildNumberEntity sharedBuildNumber3 = new SharedBuildNumberEntity();
+		sharedBuildNumber3.setId(3);
+		sharedBuildNumber3.setName("Delta");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber3);
+
+		this.service.saveConfiguration();
+		expectLastCall().times(2);
+
+		replay(this.service);
+
+		// builds the indexes, which every later snapshot then keeps up to date
+		assertEquals("The list is the wrong size.", 3,
+					 this.service.getSharedBuildNumbersSortedByName(false, 0, 50).size());
+		assertEquals("The list is the wrong size.", 3,
+					 this.service.getSharedBuildNumbersSortedById(false, 0, 50).size());
+
+		SharedBuildNumber renamed = new SharedBuildNumber(sharedBuildNumber3);
+		renamed.setName("Alpha");
+		this.service.saveSharedBuildNumber(renamed);
+		this.service.deleteSharedBuildNumber(1);
+
+		List<SharedBuildNumber> list = this.service.getSharedBuildNumbersSortedByName(false, 0, 50);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("The first build number is not correct.", 3, list.get(0).getId());
+		assertEquals("The first build number name is not correct.", "Alpha", list.get(0).getName());
+		assertEquals("The last build number is not correct.", 2, list.get(1).getId());
+
+		list = this.service.getSharedBuildNumbersSortedById(false, 0, 50);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("The first build number is not correct.", 2, list.get(0).getId());
+		assertEquals("The last build number is not correct.", 3, list.get(1).getId());
+		assertEquals("The last build number name is not correct.", "Alpha", list.get(1).getName());
+
+		assertEquals("The original snapshot should not have changed.", "Delta",
+					 configuration.getBuildNumbersByName().getPage(true, 0, 1).get(0).getName());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testFindSharedBuildNumbersSortedById01()
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setName("Release Web");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setName("Nightly Web");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		SharedBuildNumberEntity sharedBuildNumber3 = new SharedBuildNumberEntity();
+		sharedBuildNumber3.setId(3);
+		sharedBuildNumber3.setName("release mobile");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber3);
+
+		SharedBuildNumberEntity sharedBuildNumber4 = new SharedBuildNumberEntity();
+		sharedBuildNumber4.setId(4);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber4);
+
+		SharedBuildNumberEntity sharedBuildNumber5 = new SharedBuildNumberEntity();
+		sharedBuildNumber5.setId(5);
+		sharedBuildNumber5.setName("Releases Web");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber5);
+
+		replay(this.service);
+
+		List<SharedBuildNumber> list = this.service.findSharedBuildNumbersSortedById(null, null, null, false, 10);
+		assertEquals("The list is the wrong size.", 5, list.size());
+		assertEquals("Build number 1 is not correct.", 1, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 2, list.get(1).getId());
+		assertEquals("Build number 3 is not correct.", 3, list.get(2).getId());
+		assertEquals("Build number 4 is not correct.", 4, list.get(3).getId());
+		assertEquals("Build number 5 is not correct.", 5, list.get(4).getId());
+
+		list = this.service.findSharedBuildNumbersSortedById("release", null, null, false, 10);
+		assertEquals("The list is the wrong size.", 3, list.size());
+		assertEquals("Build number 1 is not correct.", 1, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 3, list.get(1).getId());
+		assertEquals("Build number 3 is not correct.", 5, list.get(2).getId());
+
+		list = this.service.findSharedBuildNumbersSortedById("release", "WEB", null, true, 10);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("Build number 1 is not correct.", 5, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 1, list.get(1).getId());
+
+		list = this.service.findSharedBuildNumbersSortedById(null, "web", 1, false, 10);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("Build number 1 is not correct.", 2, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 5, list.get(1).getId());
+
+		list = this.service.findSharedBuildNumbersSortedById(null, "web", null, false, 1);
+		assertEquals("The list is the wrong size.", 1, list.size());
+		assertEquals("Build number 1 is not correct.", 1, list.get(0).getId());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testFindSharedBuildNumbersSortedByName01()
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setName("Release Web");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setName("Nightly Web");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		SharedBuildNumberEntity sharedBuildNumber3 = new SharedBuildNumberEntity();
+		sharedBuildNumber3.setId(3);
+		sharedBuildNumber3.setName("release mobile");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber3);
+
+		SharedBuildNumberEntity sharedBuildNumber4 = new SharedBuildNumberEntity();
+		sharedBuildNumber4.setId(4);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber4);
+
+		SharedBuildNumberEntity sharedBuildNumber5 = new SharedBuildNumberEntity();
+		sharedBuildNumber5.setId(5);
+		sharedBuildNumber5.setName("Releases Web");
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber5);
+
+		replay(this.service);
+
+		List<SharedBuildNumber> list =
+				this.service.findSharedBuildNumbersSortedByName(null, null, null, null, false, 10);
+		assertEquals("The list is the wrong size.", 5, list.size());
+		assertEquals("Build number 1 is not correct.", 4, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 2, list.get(1).getId());
+		assertEquals("Build number 3 is not correct.", 3, list.get(2).getId());
+		assertEquals("Build number 4 is not correct.", 1, list.get(3).getId());
+		assertEquals("Build number 5 is not correct.", 5, list.get(4).getId());
+
+		list = this.service.findSharedBuildNumbersSortedByName("rel", null, null, null, false, 2);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("Build number 1 is not correct.", 3, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 1, list.get(1).getId());
+
+		list = this.service.findSharedBuildNumbersSortedByName("rel", null, "Release Web", 1, false, 2);
+		assertEquals("The list is the wrong size.", 1, list.size());
+		assertEquals("Build number 1 is not correct.", 5, list.get(0).getId());
+
+		list = this.service.findSharedBuildNumbersSortedByName("rel", "web", null, null, true, 10);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("Build number 1 is not correct.", 5, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 1, list.get(1).getId());
+
+		list = this.service.findSharedBuildNumbersSortedByName(null, "web", "Nightly Web", 2, false, 10);
+		assertEquals("The list is the wrong size.", 2, list.size());
+		assertEquals("Build number 1 is not correct.", 1, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 5, list.get(1).getId());
+
+		list = this.service.findSharedBuildNumbersSortedByName(null, null, null, 4, false, 10);
+		assertEquals("The list is the wrong size.", 4, list.size());
+		assertEquals("Build number 1 is not correct.", 2, list.get(0).getId());
+		assertEquals("Build number 2 is not correct.", 3, list.get(1).getId());
+		assertEquals("Build number 3 is not correct.", 1, list.get(2).getId());
+		assertEquals("Build number 4 is not correct.", 5, list.get(3).getId());
+
+		verify(this.service);
+	}
+
 	@Test
 	public void testGetSharedBuildNumber01()
 	{
@@ -559,9 +960,13 @@ public class TestPluginConfigurationServiceDefault
 			@Override
 			public Void answer() throws Throwable
 			{
-				assertEquals("The number of build numbers is not correct.", 1, configuration.getBuildNumbers().size());
+				ConfigurationEntity current = TestPluginConfigurationServiceDefault.this.getExistingConfiguration();
+
+				assertNotSame("The configuration should have been copied.", configuration, current);
+				assertEquals("The number of build numbers is not correct.", 1, current.getBuildNumbers().size());
 				assertTrue("The remaining shared build number is not correct.",
-						   configuration.getBuildNumbers().contains(sharedBuildNumber2));
+						   current.getBuildNumbers().contains(sharedBuildNumber2));
+				assertEquals("The original snapshot should not have changed.", 2, configuration.getBuildNumbers().size());
 
 				return null;
 			}
@@ -593,9 +998,13 @@ public class TestPluginConfigurationServiceDefault
 			@Override
 			public Void answer() throws Throwable
 			{
-				assertEquals("The number of build numbers is not correct.", 1, configuration.getBuildNumbers().size());
+				ConfigurationEntity current = TestPluginConfigurationServiceDefault.this.getExistingConfiguration();
+
+				assertNotSame("The configuration should have been copied.", configuration, current);
+				assertEquals("The number of build numbers is not correct.", 1, current.getBuildNumbers().size());
 				assertTrue("The remaining shared build number is not correct.",
-						   configuration.getBuildNumbers().contains(sharedBuildNumber1));
+						   current.getBuildNumbers().contains(sharedBuildNumber1));
+				assertEquals("The original snapshot should not have changed.", 2, configuration.getBuildNumbers().size());
 
 				return null;
 			}
@@ -609,122 +1018,212 @@ public class TestPluginConfigurationServiceDefault
 	}
 
 	@Test
-	public void testGetAnIncrementFormattedSharedBuildNumber01() throws IOException
+	public void testGetConfigurationGeneration01() throws IOException
 	{
-		final ConfigurationEntity configuration = this.getConfiguration();
+		ConfigurationEntity configuration = this.getConfiguration();
 
-		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
 		sharedBuildNumber1.setId(1);
 		sharedBuildNumber1.setFormat("1.0.0.{0}");
 		sharedBuildNumber1.setCounter(76);
 		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
 
-		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
 		sharedBuildNumber2.setId(2);
-		sharedBuildNumber2.setFormat("1.0.0.{d}-beta");
-		sharedBuildNumber2.setDateFormat("yyyyMMdd");
-		sharedBuildNumber2.setCounter(15);
 		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
 
+		this.service.persistCounter(1, 77, false);
+		expectLastCall();
 		this.service.saveConfiguration();
-		expectLastCall().andAnswer(new IAnswer<Void>()
-		{
-			@Override
-			public Void answer() throws Throwable
-			{
-				assertEquals("The new counter value is not correct.", 77, sharedBuildNumber1.getCounter());
-
-				return null;
-			}
-		});
+		expectLastCall();
 
 		replay(this.service);
 
-		String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(1);
+		long generation = this.service.getConfigurationGeneration();
 
-		assertNotNull("The formatted build number should not be null.", buildNumber);
-		assertEquals("The formatted build number is not correct.", "1.0.0.76", buildNumber);
+		this.service.getAndIncrementFormattedSharedBuildNumber(1);
+
+		assertEquals("Incrementing should not change the generation.", generation,
+					 this.service.getConfigurationGeneration());
+
+		this.service.deleteSharedBuildNumber(2);
+
+		assertTrue("Deleting should change the generation.", this.service.getConfigurationGeneration() != generation);
 
 		verify(this.service);
 	}
 
 	@Test
-	public void testGetAnIncrementFormattedSharedBuildNumber02() throws IOException
+	public void testGetMetrics01() throws IOException
 	{
-		final ConfigurationEntity configuration = this.getConfiguration();
+		ConfigurationEntity configuration = this.getConfiguration();
 
-		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
 		sharedBuildNumber1.setId(1);
 		sharedBuildNumber1.setFormat("1.0.0.{0}");
 		sharedBuildNumber1.setCounter(76);
 		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
 
-		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
 		sharedBuildNumber2.setId(2);
-		sharedBuildNumber2.setFormat("1.0.0.{d}-beta");
-		sharedBuildNumber2.setDateFormat("yyyyMMdd");
-		sharedBuildNumber2.setCounter(15);
+		sharedBuildNumber2.setFormat("2.0.{0}");
 		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
 
+		this.service.persistCounter(1, 77, false);
+		expectLastCall();
+		this.service.persistCounters(aryEq(new int[] { 1, 2, 0 }), aryEq(new int[] { 78, 2, 0 }), eq(2),
+									 eq(false));
+		expectLastCall();
 		this.service.saveConfiguration();
-		expectLastCall().andAnswer(new IAnswer<Void>()
-		{
-			@Override
-			public Void answer() throws Throwable
-			{
-				assertEquals("The new counter value is not correct.", 16, sharedBuildNumber2.getCounter());
-
-				return null;
-			}
-		});
+		expectLastCall();
 
 		replay(this.service);
 
-		String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(2);
+		SharedBuildNumberMetrics metrics = this.service.getMetrics();
 
-		assertNotNull("The formatted build number should not be null.", buildNumber);
-		assertEquals("The formatted build number is not correct.",
-					 "1.0.0." + (new SimpleDateFormat("yyyyMMdd").format(new Date())) + "-beta",
-					 buildNumber);
+		this.service.getAndIncrementFormattedSharedBuildNumber(1);
+		this.service.getAndIncrementFormattedSharedBuildNumbers(new TreeSet<Integer>(Arrays.asList(1, 2, 3)));
+
+		assertEquals("The increment count is not correct.", 3L, metrics.getIncrementCount());
+		assertEquals("The increments of 1 are not correct.", Long.valueOf(2L), metrics.getIncrementCountsById().get(1));
+		assertEquals("The increment latency count is not correct.", 2L, metrics.getIncrementLatency().getCount());
+		assertEquals("The format latency count is not correct.", 3L, metrics.getFormatLatency().getCount());
+
+		this.service.deleteSharedBuildNumber(1);
+
+		assertNull("The increments of 1 should be forgotten.", metrics.getIncrementCountsById().get(1));
+		assertEquals("The entry count is not correct.", 1, metrics.getConfigurationEntries());
+		assertEquals("The lock wait count is not correct.", 1L, metrics.getConfigurationLockWait().getCount());
 
 		verify(this.service);
 	}
 
 	@Test
-	public void testGetAnIncrementFormattedSharedBuildNumber03() throws IOException
+	public void testGetLastModified01() throws IOException, InterruptedException
 	{
-		final ConfigurationEntity configuration = this.getConfiguration();
+		ConfigurationEntity configuration = this.getConfiguration();
 
-		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
 		sharedBuildNumber1.setId(1);
-		sharedBuildNumber1.setFormat("2.4.3.{0}-alpha");
-		sharedBuildNumber1.setCounter(1966);
+		sharedBuildNumber1.setFormat("1.0.0.{0}");
+		sharedBuildNumber1.setCounter(76);
 		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
 
-		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
-		sharedBuildNumber2.setId(2);
-		sharedBuildNumber2.setFormat("7.1.{D}.{0}");
-		sharedBuildNumber2.setDateFormat("yyMMdd");
-		sharedBuildNumber2.setCounter(23);
-		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
-
+		this.service.persistCounter(1, 77, false);
+		expectLastCall();
 		this.service.saveConfiguration();
-		expectLastCall().andAnswer(new IAnswer<Void>()
-		{
-			@Override
-			public Void answer() throws Throwable
-			{
-				assertEquals("The new counter value is not correct.", 1967, sharedBuildNumber1.getCounter());
-
-				return null;
-			}
-		});
+		expectLastCall();
 
 		replay(this.service);
 
-		String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(1);
+		long lastModified = this.service.getLastModified();
+		Thread.sleep(5L);
 
-		assertNotNull("The formatted build number should not be null.", buildNumber);
+		this.service.getAndIncrementFormattedSharedBuildNumber(1);
+
+		assertTrue("Incrementing should change the last modified time.",
+				   this.service.getLastModified() > lastModified);
+
+		lastModified = this.service.getLastModified();
+		Thread.sleep(5L);
+
+		this.service.deleteSharedBuildNumber(1);
+
+		assertTrue("Deleting should change the last modified time.", this.service.getLastModified() > lastModified);
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAnIncrementFormattedSharedBuildNumber01() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("1.0.0.{0}");
+		sharedBuildNumber1.setCounter(76);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setFormat("1.0.0.{d}-beta");
+		sharedBuildNumber2.setDateFormat("yyyyMMdd");
+		sharedBuildNumber2.setCounter(15);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		this.service.persistCounter(1, 77, false);
+		expectLastCall();
+
+		replay(this.service);
+
+		String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(1);
+
+		assertNotNull("The formatted build number should not be null.", buildNumber);
+		assertEquals("The formatted build number is not correct.", "1.0.0.76", buildNumber);
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAnIncrementFormattedSharedBuildNumber02() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("1.0.0.{0}");
+		sharedBuildNumber1.setCounter(76);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setFormat("1.0.0.{d}-beta");
+		sharedBuildNumber2.setDateFormat("yyyyMMdd");
+		sharedBuildNumber2.setCounter(15);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		this.service.persistCounter(2, 16, false);
+		expectLastCall();
+
+		replay(this.service);
+
+		String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(2);
+
+		assertNotNull("The formatted build number should not be null.", buildNumber);
+		assertEquals("The formatted build number is not correct.",
+					 "1.0.0." + (new SimpleDateFormat("yyyyMMdd").format(new Date())) + "-beta",
+					 buildNumber);
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAnIncrementFormattedSharedBuildNumber03() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("2.4.3.{0}-alpha");
+		sharedBuildNumber1.setCounter(1966);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setFormat("7.1.{D}.{0}");
+		sharedBuildNumber2.setDateFormat("yyMMdd");
+		sharedBuildNumber2.setCounter(23);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		this.service.persistCounter(1, 1967, false);
+		expectLastCall();
+
+		replay(this.service);
+
+		String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(1);
+
+		assertNotNull("The formatted build number should not be null.", buildNumber);
 		assertEquals("The formatted build number is not correct.", "2.4.3.1966-alpha", buildNumber);
 
 		verify(this.service);
@@ -748,17 +1247,8 @@ public class TestPluginConfigurationServiceDefault
 		sharedBuildNumber2.setCounter(23);
 		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
 
-		this.service.saveConfiguration();
-		expectLastCall().andAnswer(new IAnswer<Void>()
-		{
-			@Override
-			public Void answer() throws Throwable
-			{
-				assertEquals("The new counter value is not correct.", 24, sharedBuildNumber2.getCounter());
-
-				return null;
-			}
-		});
+		this.service.persistCounter(2, 24, false);
+		expectLastCall();
 
 		replay(this.service);
 
@@ -772,6 +1262,223 @@ public class TestPluginConfigurationServiceDefault
 		verify(this.service);
 	}
 
+	@Test
+	public void testGetAnIncrementFormattedSharedBuildNumberAllowGaps01() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("1.0.0.{0}");
+		sharedBuildNumber1.setCounter(76);
+		sharedBuildNumber1.setAllowGaps(true);
+		sharedBuildNumber1.setBlockSize(10);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		this.service.persistCounter(1, 86, false);
+		expectLastCall();
+		this.service.persistCounter(1, 96, false);
+		expectLastCall();
+
+		replay(this.service);
+
+		for(int i = 76; i <= 86; i++)
+		{
+			String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(1);
+
+			assertEquals("The formatted build number is not correct.", "1.0.0." + i, buildNumber);
+		}
+
+		assertEquals("The counter is not correct.", 87, sharedBuildNumber1.getCounter());
+		assertEquals("The reserved counter is not correct.", 96, sharedBuildNumber1.getReservedCounter());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAnIncrementFormattedSharedBuildNumberAllowGaps02() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("1.0.0.{0}");
+		sharedBuildNumber1.setCounter(150);
+		sharedBuildNumber1.setAllowGaps(true);
+		sharedBuildNumber1.setBlockSize(10);
+		sharedBuildNumber1.advanceReservedCounter(120);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		this.service.persistCounter(1, 160, false);
+		expectLastCall();
+
+		replay(this.service);
+
+		String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(1);
+
+		assertEquals("The formatted build number is not correct.", "1.0.0.150", buildNumber);
+		assertEquals("The reserved counter is not correct.", 160, sharedBuildNumber1.getReservedCounter());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAnIncrementFormattedSharedBuildNumberGroup01() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("1.0.0.{0}");
+		sharedBuildNumber1.setCounter(76);
+		sharedBuildNumber1.setDurability(Durability.GROUP);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		this.service.persistCounter(1, 77, true);
+		expectLastCall();
+
+		replay(this.service);
+
+		String buildNumber = this.service.getAndIncrementFormattedSharedBuildNumber(1);
+
+		assertEquals("The formatted build number is not correct.", "1.0.0.76", buildNumber);
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAnIncrementFormattedSharedBuildNumberAsync01() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("1.0.0.{0}");
+		sharedBuildNumber1.setCounter(76);
+		sharedBuildNumber1.setDurability(Durability.ASYNC);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setFormat("2.{0}");
+		sharedBuildNumber2.setCounter(15);
+		sharedBuildNumber2.setDurability(Durability.ASYNC);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		replay(this.service);
+
+		assertEquals("The first build number is not correct.", "1.0.0.76",
+					 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+		assertEquals("The second build number is not correct.", "1.0.0.77",
+					 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+		assertEquals("The third build number is not correct.", "2.15",
+					 this.service.getAndIncrementFormattedSharedBuildNumbers(Collections.singleton(2)).get(2));
+
+		verify(this.service);
+		reset(this.service);
+
+		// the increments above were only made in memory; one flush journals the latest counter of each
+		this.service.persistCounters(aryEq(new int[] { 1, 2 }), aryEq(new int[] { 78, 16 }), eq(2), eq(false));
+		expectLastCall();
+
+		replay(this.service);
+
+		assertEquals("The number of counters flushed is not correct.", 2, this.service.flushDirtyCounters());
+		assertEquals("Nothing should be left to flush.", 0, this.service.flushDirtyCounters());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAndIncrementFormattedSharedBuildNumbers01() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("2.4.3.{0}-alpha");
+		sharedBuildNumber1.setCounter(1966);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setFormat("7.1.{0}");
+		sharedBuildNumber2.setCounter(23);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		this.service.persistCounters(aryEq(new int[] { 1, 2, 0 }), aryEq(new int[] { 1967, 24, 0 }), eq(2),
+									 eq(false));
+		expectLastCall();
+
+		replay(this.service);
+
+		Map<Integer, String> buildNumbers = this.service.getAndIncrementFormattedSharedBuildNumbers(
+				new TreeSet<Integer>(Arrays.asList(1, 2, 3))
+		);
+
+		assertNotNull("The build numbers should not be null.", buildNumbers);
+		assertEquals("The number of build numbers is not correct.", 2, buildNumbers.size());
+		assertEquals("Build number 1 is not correct.", "2.4.3.1966-alpha", buildNumbers.get(1));
+		assertEquals("Build number 2 is not correct.", "7.1.23", buildNumbers.get(2));
+		assertFalse("Build number 3 should not be present.", buildNumbers.containsKey(3));
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAndIncrementFormattedSharedBuildNumbers02() throws IOException
+	{
+		final ConfigurationEntity configuration = this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setFormat("1.0.0.{0}");
+		sharedBuildNumber1.setCounter(76);
+		sharedBuildNumber1.setAllowGaps(true);
+		sharedBuildNumber1.setBlockSize(10);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		final SharedBuildNumberEntity sharedBuildNumber2 = new SharedBuildNumberEntity();
+		sharedBuildNumber2.setId(2);
+		sharedBuildNumber2.setFormat("7.1.{0}");
+		sharedBuildNumber2.setCounter(23);
+		configuration.addOrUpdateBuildNumber(sharedBuildNumber2);
+
+		this.service.persistCounter(1, 86, false);
+		expectLastCall();
+		this.service.persistCounters(aryEq(new int[] { 2, 0 }), aryEq(new int[] { 24, 0 }), eq(1), eq(false));
+		expectLastCall();
+
+		replay(this.service);
+
+		Map<Integer, String> buildNumbers = this.service.getAndIncrementFormattedSharedBuildNumbers(
+				new TreeSet<Integer>(Arrays.asList(1, 2))
+		);
+
+		assertEquals("The number of build numbers is not correct.", 2, buildNumbers.size());
+		assertEquals("Build number 1 is not correct.", "1.0.0.76", buildNumbers.get(1));
+		assertEquals("Build number 2 is not correct.", "7.1.23", buildNumbers.get(2));
+		assertEquals("The reserved counter is not correct.", 86, sharedBuildNumber1.getReservedCounter());
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testGetAndIncrementFormattedSharedBuildNumbers03() throws IOException
+	{
+		this.getConfiguration();
+
+		replay(this.service);
+
+		Map<Integer, String> buildNumbers = this.service.getAndIncrementFormattedSharedBuildNumbers(
+				new TreeSet<Integer>(Arrays.asList(5, 6))
+		);
+
+		assertTrue("There should be no build numbers.", buildNumbers.isEmpty());
+
+		verify(this.service);
+	}
+
 	@Test
 	public void testSaveSharedBuildNumber01() throws IOException
 	{
@@ -793,9 +1500,12 @@ public class TestPluginConfigurationServiceDefault
 			@Override
 			public Void answer() throws Throwable
 			{
-				assertEquals("The number of build numbers is not correct.", 2, configuration.getBuildNumbers().size());
+				ConfigurationEntity current = TestPluginConfigurationServiceDefault.this.getExistingConfiguration();
+
+				assertEquals("The number of build numbers is not correct.", 2, current.getBuildNumbers().size());
+				assertNull("The original snapshot should not have changed.", configuration.getBuildNumber(12));
 
-				SharedBuildNumberEntity entity = configuration.getBuildNumber(12);
+				SharedBuildNumberEntity entity = current.getBuildNumber(12);
 				assertEquals("The name is not correct.", "Hello, World.", entity.getName());
 				assertEquals("The description is not correct.", "This is another description.",
 							 entity.getDescription());
@@ -803,6 +1513,8 @@ public class TestPluginConfigurationServiceDefault
 				assertEquals("The date format is not correct.", "anotherFormat02", entity.getDateFormat());
 				assertTrue("The increment once flag should be true.", entity.isIncrementOnceForChain());
 				assertEquals("The counter is not correct.", 76, entity.getCounter());
+				assertTrue("The allow gaps flag should be true.", entity.isAllowGaps());
+				assertEquals("The block size is not correct.", 25, entity.getBlockSize());
 
 				return null;
 			}
@@ -816,6 +1528,8 @@ public class TestPluginConfigurationServiceDefault
 		number.setFormat("anotherFormat01");
 		number.setDateFormat("anotherFormat02");
 		number.setIncrementOnceForChain(true);
+		number.setAllowGaps(true);
+		number.setBlockSize(25);
 		number.setCounter(76);
 
 		this.service.saveSharedBuildNumber(number);
@@ -844,15 +1558,22 @@ public class TestPluginConfigurationServiceDefault
 			@Override
 			public Void answer() throws Throwable
 			{
-				assertEquals("The number of build numbers is not correct.", 1, configuration.getBuildNumbers().size());
+				ConfigurationEntity current = TestPluginConfigurationServiceDefault.this.getExistingConfiguration();
 
-				assertEquals("The name is not correct.", "Changed Name", sharedBuildNumber1.getName());
+				assertEquals("The number of build numbers is not correct.", 1, current.getBuildNumbers().size());
+
+				SharedBuildNumberEntity entity = current.getBuildNumber(1);
+				assertEquals("The name is not correct.", "Changed Name", entity.getName());
 				assertEquals("The description is not correct.", "This is the last description.",
-							 sharedBuildNumber1.getDescription());
-				assertEquals("The format is not correct.", "coolFormat01", sharedBuildNumber1.getFormat());
-				assertEquals("The date format is not correct.", "coolFormat02", sharedBuildNumber1.getDateFormat());
-				assertTrue("The increment once flag should be true.", sharedBuildNumber1.isIncrementOnceForChain());
-				assertEquals("The counter is not correct.", 17, sharedBuildNumber1.getCounter());
+							 entity.getDescription());
+				assertEquals("The format is not correct.", "coolFormat01", entity.getFormat());
+				assertEquals("The date format is not correct.", "coolFormat02", entity.getDateFormat());
+				assertTrue("The increment once flag should be true.", entity.isIncrementOnceForChain());
+				assertEquals("The counter is not correct.", 17, entity.getCounter());
+
+				assertEquals("The original snapshot should not have changed.", "This is a killer name!",
+							 sharedBuildNumber1.getName());
+				assertEquals("The original snapshot should share the counter.", 17, sharedBuildNumber1.getCounter());
 
 				return null;
 			}
@@ -913,12 +1634,69 @@ public class TestPluginConfigurationServiceDefault
 		verify(this.service);
 	}
 
-	private ConfigurationEntity getExistingConfiguration()
+	@Test
+	public void testSaveSharedBuildNumberOtherNumberLocked01() throws Exception
 	{
-		try
-		{
-			Field field = PluginConfigurationServiceDefault.class.getDeclaredField("configuration");
-			field.setAccessible(true);
+		this.getConfiguration();
+
+		final SharedBuildNumberEntity sharedBuildNumber1 = new SharedBuildNumberEntity();
+		sharedBuildNumber1.setId(1);
+		sharedBuildNumber1.setCounter(12);
+		this.getExistingConfiguration().addOrUpdateBuildNumber(sharedBuildNumber1);
+
+		this.service.saveConfiguration();
+		expectLastCall();
+
+		replay(this.service);
+
+		ReentrantLock lock = this.service.getBuildNumberLock(1);
+		assertNotSame("Numbers 1 and 2 should not share a lock.", lock, this.service.getBuildNumberLock(2));
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread saver = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					SharedBuildNumber number = new SharedBuildNumber(2);
+					number.setName("Unrelated");
+					number.setFormat("{0}");
+					TestPluginConfigurationServiceDefault.this.service.saveSharedBuildNumber(number);
+				}
+				catch(Throwable e)
+				{
+					failure.compareAndSet(null, e);
+				}
+			}
+		});
+
+		lock.lock();
+		try
+		{
+			saver.start();
+			saver.join(10000L);
+
+			assertFalse("Saving number 2 should not wait for number 1's lock.", saver.isAlive());
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		assertNull("The save should not have failed.", failure.get());
+		assertNotNull("Number 2 should have been saved.", this.service.getSharedBuildNumber(2));
+
+		verify(this.service);
+	}
+
+	private ConfigurationEntity getExistingConfiguration()
+	{
+		try
+		{
+			Field field = PluginConfigurationServiceDefault.class.getDeclaredField("configuration");
+			field.setAccessible(true);
 			return (ConfigurationEntity)field.get(this.service);
 		}
 		catch(IllegalAccessException e)
@@ -938,6 +1716,10 @@ public class TestPluginConfigurationServiceDefault
 							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
 		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
 							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
 
 		assertFalse("The XSD file [" + xsd.getCanonicalPath() + "] should not exist yet.", xsd.exists());
 		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
@@ -1020,6 +1802,10 @@ public class TestPluginConfigurationServiceDefault
 				FileUtils.forceDelete(xsd);
 			if(xml.exists())
 				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
 		}
 	}
 
@@ -1030,6 +1816,10 @@ public class TestPluginConfigurationServiceDefault
 							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
 		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
 							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
 
 		assertFalse("The XSD file [" + xsd.getCanonicalPath() + "] should not exist yet.", xsd.exists());
 		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
@@ -1049,16 +1839,11 @@ public class TestPluginConfigurationServiceDefault
 
 			FileUtils.forceDelete(xml);
 
-			try
-			{
-				this.service.changeOccured("");
-				fail("Expected exception org.springframework.beans.FatalBeanException, got no exception.");
-			}
-			catch(FatalBeanException e)
-			{
-				assertTrue("The error message [" + e.getMessage() + "] is not correct.",
-						   e.getMessage().startsWith("Could not read plugin configuration XML file;"));
-			}
+			// the reload fails, but the configuration already loaded stays in place
+			this.service.changeOccured("");
+
+			assertSame("The configuration should not have changed.", configuration,
+					   this.getExistingConfiguration());
 
 			this.service.destroy();
 
@@ -1070,6 +1855,10 @@ public class TestPluginConfigurationServiceDefault
 				FileUtils.forceDelete(xsd);
 			if(xml.exists())
 				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
 		}
 	}
 
@@ -1080,6 +1869,10 @@ public class TestPluginConfigurationServiceDefault
 							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
 		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
 							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
 
 		assertFalse("The XSD file [" + xsd.getCanonicalPath() + "] should not exist yet.", xsd.exists());
 		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
@@ -1099,16 +1892,72 @@ public class TestPluginConfigurationServiceDefault
 
 			PluginFileUtils.copyResource(this.getClass(), "testInvalidLastUpdateDate.xml", xml);
 
-			try
-			{
-				this.service.changeOccured("");
-				fail("Expected exception org.springframework.beans.FatalBeanException, got no exception.");
-			}
-			catch(FatalBeanException e)
-			{
-				assertTrue("The error message [" + e.getMessage() + "] is not correct.",
-						   e.getMessage().startsWith("Could not parse plugin configuration XML;"));
-			}
+			// the reload fails, but the configuration already loaded stays in place
+			this.service.changeOccured("");
+
+			assertSame("The configuration should not have changed.", configuration,
+					   this.getExistingConfiguration());
+
+			this.service.destroy();
+
+			verify(this.service);
+		}
+		finally
+		{
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	@Test
+	public void testInitializeRecordsValidation01() throws IOException
+	{
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+		File validated = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								  PluginConfigurationService.CONFIG_VALIDATED_FILE_NAME);
+
+		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
+		assertFalse("The validated file should not exist yet.", validated.exists());
+
+		replay(this.service);
+
+		try
+		{
+			this.service.initialize();
+
+			assertTrue("The validated file should exist now.", validated.exists());
+			assertTrue("The validated checksum is not correct.", FileUtils.readFileToString(validated).startsWith(
+					Long.toHexString(ConfigurationFileWatcher.checksum(FileUtils.readFileToByteArray(xml))) + " "
+			));
+
+			this.service.destroy();
+
+			verify(this.service);
+
+			// without the snapshot, the second start parses the file again but skips validation
+			FileUtils.forceDelete(new File(TestPluginConfigurationServiceDefault.workingDirectory,
+										   PluginConfigurationService.CONFIG_SNAPSHOT_FILE_NAME));
+			this.setUp();
+			replay(this.service);
+
+			this.service.initialize();
+
+			ConfigurationEntity configuration = this.getExistingConfiguration();
+			assertNotNull("The configuration should not be null.", configuration);
+			assertEquals("The collection is the wrong size.", 2, configuration.getBuildNumbers().size());
 
 			this.service.destroy();
 
@@ -1120,6 +1969,101 @@ public class TestPluginConfigurationServiceDefault
 				FileUtils.forceDelete(xsd);
 			if(xml.exists())
 				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	@Test
+	public void testInitializeFromSnapshot01() throws IOException
+	{
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+		File snapshot = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_SNAPSHOT_FILE_NAME);
+
+		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
+		assertFalse("The snapshot file should not exist yet.", snapshot.exists());
+
+		replay(this.service);
+
+		try
+		{
+			this.service.initialize();
+
+			assertTrue("The snapshot file should exist now.", snapshot.exists());
+
+			this.service.destroy();
+
+			verify(this.service);
+
+			// the XML file must not be parsed while the snapshot is current
+			ServerPaths serverPaths = new ServerPaths("bad/path1", workingDirectory.getPath(), "bad/path2");
+			this.service = createMockBuilder(PluginConfigurationServiceDefault.class)
+					.withConstructor(ServerPaths.class)
+					.withArgs(serverPaths)
+					.addMockedMethod("saveConfiguration")
+					.addMockedMethod("persistCounter")
+					.addMockedMethod("persistCounters")
+				.addMockedMethod("persistCounters")
+					.addMockedMethod("parseConfiguration")
+					.createStrictMock();
+			replay(this.service);
+
+			this.service.initialize();
+
+			ConfigurationEntity configuration = this.getExistingConfiguration();
+			assertNotNull("The configuration should not be null.", configuration);
+			assertEquals("The sequence setting is not correct.", 3,
+						 configuration.getSettings().getBuildNumberIdSequence());
+			assertEquals("The collection is the wrong size.", 2, configuration.getBuildNumbers().size());
+			assertEquals("The counter is not correct.", 123, configuration.getBuildNumber(1).getCounter());
+			assertEquals("The format is not correct.", "2.0.0.{d}", configuration.getBuildNumber(2).getFormat());
+
+			this.service.destroy();
+
+			verify(this.service);
+
+			// once the XML content changes, the snapshot is stale and the file is parsed again, even if the edit keeps
+			// the file's length and modification time
+			long lastModified = xml.lastModified();
+			String contents = FileUtils.readFileToString(xml);
+			assertTrue("The XML file should contain the sample name.", contents.contains("Sample Date-Based"));
+			FileUtils.writeStringToFile(xml, contents.replace("Sample Date-Based", "Edited Date-Based"));
+			if(!xml.setLastModified(lastModified))
+				fail("Could not change the modification time of the XML file.");
+			this.setUp();
+			replay(this.service);
+
+			this.service.initialize();
+
+			ConfigurationEntity edited = this.getExistingConfiguration();
+			assertEquals("The collection is the wrong size.", 2, edited.getBuildNumbers().size());
+			assertEquals("The edit should have been loaded.", "Edited Date-Based Build Number",
+						 edited.getBuildNumber(2).getName());
+
+			this.service.destroy();
+
+			verify(this.service);
+		}
+		finally
+		{
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
 		}
 	}
 
@@ -1134,6 +2078,10 @@ public class TestPluginConfigurationServiceDefault
 							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
 		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
 							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
 
 		assertFalse("The XSD file [" + xsd.getCanonicalPath() + "] should not exist yet.", xsd.exists());
 		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
@@ -1163,6 +2111,12 @@ public class TestPluginConfigurationServiceDefault
 
 			assertFalse("The file contents should have changed.",
 						originalContents.equals(FileUtils.readFileToString(xml)));
+			assertFalse("The counters should no longer be written to the XML file.",
+						FileUtils.readFileToString(xml).contains("<counter>"));
+
+			assertEquals("The original snapshot should not have changed.", 2, configuration.getBuildNumbers().size());
+
+			configuration = this.getExistingConfiguration();
 
 			assertEquals("There should be three build numbers now.", 3, configuration.getBuildNumbers().size());
 
@@ -1198,6 +2152,479 @@ public class TestPluginConfigurationServiceDefault
 				FileUtils.forceDelete(xsd);
 			if(xml.exists())
 				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	@Test
+	public void testInitializeRecoversInterruptedSave01() throws IOException
+	{
+		ServerPaths serverPaths = new ServerPaths("bad/path1", workingDirectory.getPath(), "bad/path2");
+
+		this.service = new PluginConfigurationServiceDefault(serverPaths);
+
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File temporary = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								  PluginConfigurationService.CONFIG_XML_FILE_NAME + ".tmp");
+		File backup = PluginFileUtils.getBackupFile(xml);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+
+		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
+
+		PluginConfigurationServiceDefault recovered = new PluginConfigurationServiceDefault(serverPaths);
+
+		try
+		{
+			this.service.initialize();
+
+			FileUtils.copyFile(xml, backup);
+
+			SharedBuildNumber number = new SharedBuildNumber(12);
+			number.setName("Saved Before The Crash");
+			number.setFormat("7.1.0.{0}");
+			this.service.saveSharedBuildNumber(number);
+
+			this.service.destroy();
+
+			// simulate a crash after the old file was moved aside, before the new one was renamed into place
+			assertTrue("The XML file could not be moved.", xml.renameTo(temporary));
+
+			recovered.initialize();
+
+			SharedBuildNumber returned = recovered.getSharedBuildNumber(12);
+			assertNotNull("The build number saved before the crash should have been recovered.", returned);
+			assertEquals("The name is not correct.", "Saved Before The Crash", returned.getName());
+			assertEquals("There should be three build numbers.", 3, recovered.getSharedBuildNumberCount());
+			assertFalse("The temporary file should not remain.", temporary.exists());
+			assertFalse("The backup file should not remain.", backup.exists());
+		}
+		finally
+		{
+			recovered.destroy();
+
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(temporary.exists())
+				FileUtils.forceDelete(temporary);
+			if(backup.exists())
+				FileUtils.forceDelete(backup);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	@Test
+	public void testInitializeAndIncrement01() throws IOException
+	{
+		ServerPaths serverPaths = new ServerPaths("bad/path1", workingDirectory.getPath(), "bad/path2");
+
+		this.service = new PluginConfigurationServiceDefault(serverPaths);
+
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+
+		assertFalse("The XSD file [" + xsd.getCanonicalPath() + "] should not exist yet.", xsd.exists());
+		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
+
+		PluginConfigurationServiceDefault recovered = new PluginConfigurationServiceDefault(serverPaths);
+
+		try
+		{
+			this.service.initialize();
+
+			assertTrue("The journal file should exist now.", journal.exists());
+
+			String originalContents = FileUtils.readFileToString(xml);
+
+			assertEquals("The first build number is not correct.", "1.0.0.123",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+			assertEquals("The second build number is not correct.", "1.0.0.124",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+
+			assertEquals("The configuration file should not have been rewritten.",
+						 originalContents, FileUtils.readFileToString(xml));
+			assertEquals("The journal length is not correct.",
+						 IncrementJournal.HEADER_LENGTH + 2 * IncrementJournal.RECORD_LENGTH, journal.length());
+
+			// simulate a crash: the first service is never destroyed, so the journal is never folded
+			recovered.initialize();
+
+			SharedBuildNumber returned = recovered.getSharedBuildNumber(1);
+			assertNotNull("The build number should not be null.", returned);
+			assertEquals("The counter was not recovered from the journal.", 125, returned.getCounter());
+
+			assertEquals("The configuration file should not have been rewritten.",
+						 originalContents, FileUtils.readFileToString(xml));
+			assertEquals("The journal should have been checkpointed.",
+						 IncrementJournal.HEADER_LENGTH, journal.length());
+			assertTrue("The counter store file should exist.", counters.exists());
+		}
+		finally
+		{
+			this.service.destroy();
+			recovered.destroy();
+
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	@Test
+	public void testInitializeRebuildsDamagedCounter01() throws IOException
+	{
+		ServerPaths serverPaths = new ServerPaths("bad/path1", workingDirectory.getPath(), "bad/path2");
+
+		this.service = new PluginConfigurationServiceDefault(serverPaths);
+
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+
+		PluginConfigurationServiceDefault recovered = new PluginConfigurationServiceDefault(serverPaths);
+
+		try
+		{
+			this.service.initialize();
+
+			assertEquals("The first build number is not correct.", "1.0.0.123",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+			assertEquals("The second build number is not correct.", "1.0.0.124",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+
+			// simulate a crash that also damaged the counter's slot; the journal still holds its increments
+			TestPluginConfigurationServiceDefault.damageCounterSlot(counters, 1);
+
+			recovered.initialize();
+
+			SharedBuildNumber returned = recovered.getSharedBuildNumber(1);
+			assertNotNull("The build number should not be null.", returned);
+			assertEquals("The counter was not rebuilt from the journal.", 125, returned.getCounter());
+			assertEquals("The next build number is not correct.", "1.0.0.125",
+						 recovered.getAndIncrementFormattedSharedBuildNumber(1));
+		}
+		finally
+		{
+			this.service.destroy();
+			recovered.destroy();
+
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	@Test
+	public void testInitializeRefusesUnrecoverableDamagedCounter01() throws IOException
+	{
+		ServerPaths serverPaths = new ServerPaths("bad/path1", workingDirectory.getPath(), "bad/path2");
+
+		this.service = new PluginConfigurationServiceDefault(serverPaths);
+
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+
+		PluginConfigurationServiceDefault recovered = new PluginConfigurationServiceDefault(serverPaths);
+
+		try
+		{
+			this.service.initialize();
+
+			assertEquals("The first build number is not correct.", "1.0.0.123",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+
+			// a clean shutdown checkpoints the journal, so nothing is left to rebuild the counter from
+			this.service.destroy();
+
+			assertEquals("The journal should have been checkpointed.",
+						 IncrementJournal.HEADER_LENGTH, journal.length());
+
+			TestPluginConfigurationServiceDefault.damageCounterSlot(counters, 1);
+
+			try
+			{
+				recovered.initialize();
+				fail("Expected FatalBeanException, got no exception.");
+			}
+			catch(FatalBeanException e)
+			{
+				assertTrue("The message should name the damaged counter.", e.getMessage().contains("[1]"));
+			}
+		}
+		finally
+		{
+			this.service.destroy();
+			recovered.destroy();
+
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	private static void damageCounterSlot(File counters, int id) throws IOException
+	{
+		RandomAccessFile raw = new RandomAccessFile(counters, "rw");
+		try
+		{
+			long offset = CounterStore.HEADER_LENGTH + id * CounterStore.SLOT_LENGTH;
+			raw.seek(offset);
+			int counter = raw.readInt();
+			raw.seek(offset);
+			raw.writeInt(counter + 1000);
+		}
+		finally
+		{
+			raw.close();
+		}
+	}
+
+	@Test
+	public void testInitializeAndIncrementAsync01() throws IOException
+	{
+		ServerPaths serverPaths = new ServerPaths("bad/path1", workingDirectory.getPath(), "bad/path2");
+
+		this.service = new PluginConfigurationServiceDefault(serverPaths);
+
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+
+		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
+
+		PluginConfigurationServiceDefault restarted = new PluginConfigurationServiceDefault(serverPaths);
+
+		// the background writer must not flush while the test is looking at the journal
+		System.setProperty("teamcity.sharedBuildNumber.durability.asyncFlushIntervalMilliseconds", "600000");
+
+		try
+		{
+			this.service.initialize();
+
+			SharedBuildNumber number = this.service.getSharedBuildNumber(1);
+			assertNotNull("The build number should not be null.", number);
+			number.setDurability(Durability.ASYNC);
+			this.service.saveSharedBuildNumber(number);
+
+			assertTrue("The durability should have been written to the XML file.",
+					   FileUtils.readFileToString(xml).contains("durability=\"ASYNC\""));
+			assertTrue("The configuration should have been reloaded.", this.service.reloadConfiguration());
+
+			long length = journal.length();
+
+			assertEquals("The first build number is not correct.", "1.0.0.123",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+			assertEquals("The second build number is not correct.", "1.0.0.124",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+
+			assertEquals("The increments should not have been journaled yet.", length, journal.length());
+
+			// shutting down flushes the increments that were only made in memory
+			this.service.destroy();
+
+			restarted.initialize();
+
+			SharedBuildNumber returned = restarted.getSharedBuildNumber(1);
+			assertNotNull("The build number should not be null.", returned);
+			assertEquals("The durability is not correct.", Durability.ASYNC, returned.getDurability());
+			assertEquals("The counter was not flushed on shutdown.", 125, returned.getCounter());
+		}
+		finally
+		{
+			System.clearProperty("teamcity.sharedBuildNumber.durability.asyncFlushIntervalMilliseconds");
+
+			this.service.destroy();
+			restarted.destroy();
+
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	@Test
+	public void testInitializeAndReload01() throws IOException
+	{
+		ServerPaths serverPaths = new ServerPaths("bad/path1", workingDirectory.getPath(), "bad/path2");
+
+		this.service = new PluginConfigurationServiceDefault(serverPaths);
+
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+
+		assertFalse("The XSD file [" + xsd.getCanonicalPath() + "] should not exist yet.", xsd.exists());
+		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
+
+		try
+		{
+			this.service.initialize();
+
+			assertEquals("The first build number is not correct.", "1.0.0.123",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+			assertEquals("The second build number is not correct.", "1.0.0.124",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+
+			ConfigurationEntity configuration = this.getExistingConfiguration();
+
+			// an external edit that renames the build number and sets its counter back
+			FileUtils.writeStringToFile(xml, FileUtils.readFileToString(xml).replace(
+					"Sample Counter-Based Build Number", "Renamed Build Number"
+			).replace("<counter>123</counter>", "<counter>50</counter>"));
+
+			assertTrue("The configuration should have been reloaded.", this.service.reloadConfiguration());
+
+			assertNotSame("A new configuration should have been published.", configuration,
+						  this.getExistingConfiguration());
+
+			SharedBuildNumber returned = this.service.getSharedBuildNumber(1);
+			assertNotNull("The build number should not be null.", returned);
+			assertEquals("The name is not correct.", "Renamed Build Number", returned.getName());
+			assertEquals("The counter should not have gone backwards.", 125, returned.getCounter());
+
+			assertEquals("The next build number is not correct.", "1.0.0.125",
+						 this.service.getAndIncrementFormattedSharedBuildNumber(1));
+			assertEquals("The old snapshot should share the counter.", 126,
+						 configuration.getBuildNumber(1).getCounter());
+		}
+		finally
+		{
+			this.service.destroy();
+
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
+		}
+	}
+
+	@Test
+	public void testInitializeMigratesCounters01() throws IOException
+	{
+		ServerPaths serverPaths = new ServerPaths("bad/path1", workingDirectory.getPath(), "bad/path2");
+
+		this.service = new PluginConfigurationServiceDefault(serverPaths);
+
+		File xsd = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XSD_FILE_NAME);
+		File xml = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+							PluginConfigurationService.CONFIG_XML_FILE_NAME);
+		File journal = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								PluginConfigurationService.CONFIG_JOURNAL_FILE_NAME);
+		File counters = new File(TestPluginConfigurationServiceDefault.workingDirectory,
+								 PluginConfigurationService.CONFIG_COUNTERS_FILE_NAME);
+
+		assertFalse("The XML file [" + xml.getCanonicalPath() + "] should not exist yet.", xml.exists());
+		assertFalse("The counter store [" + counters.getCanonicalPath() + "] should not exist yet.", counters.exists());
+
+		PluginConfigurationServiceDefault restarted = new PluginConfigurationServiceDefault(serverPaths);
+
+		try
+		{
+			PluginFileUtils.copyResource(
+					this.getClass(), "./" + PluginConfigurationService.CONFIG_XML_FILE_NAME + ".dist", xml
+			);
+
+			this.service.initialize();
+
+			assertTrue("The counter store file should exist now.", counters.exists());
+
+			SharedBuildNumber number = this.service.getSharedBuildNumber(1);
+			assertNotNull("The build number should not be null.", number);
+			assertEquals("The counter is not correct.", 123, number.getCounter());
+
+			number.setName("Renamed Build Number");
+			this.service.saveSharedBuildNumber(number);
+
+			assertFalse("The counters should no longer be written to the XML file.",
+						FileUtils.readFileToString(xml).contains("<counter>"));
+
+			this.service.destroy();
+
+			restarted.initialize();
+
+			SharedBuildNumber returned = restarted.getSharedBuildNumber(1);
+			assertNotNull("The build number should not be null.", returned);
+			assertEquals("The name is not correct.", "Renamed Build Number", returned.getName());
+			assertEquals("The counter was not kept by the counter store.", 123, returned.getCounter());
+		}
+		finally
+		{
+			this.service.destroy();
+			restarted.destroy();
+
+			if(xsd.exists())
+				FileUtils.forceDelete(xsd);
+			if(xml.exists())
+				FileUtils.forceDelete(xml);
+			if(journal.exists())
+				FileUtils.forceDelete(journal);
+			if(counters.exists())
+				FileUtils.forceDelete(counters);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,489 @@
+/*
+ * TestPluginConfigurationServiceDefaultConcurrency.java from TeamCityPlugins modified Friday, November 2, 2012 10:14:37 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress tests for the concurrency of PluginConfigurationServiceDefault. Each test runs a real service and journal in
+ * a temporary directory and starts several kinds of actors at the same moment for a number of rounds: incrementers,
+ * which increment shared build numbers singly and in batches and record every counter they are issued; savers, which
+ * save changes to shared build numbers from copies that may be stale; a deleter, which creates shared build numbers
+ * and deletes them while they are being incremented; and a reloader, which makes the service reload its
+ * configuration file, in one test after editing the file the way an administrator might. Afterward, no counter may
+ * have been issued twice, and no thread may have seen a counter go backward.
+ */
+public class TestPluginConfigurationServiceDefaultConcurrency
+{
+	private static final int ROUNDS = 4;
+
+	private static final int INCREMENTERS = 8;
+
+	private static final int INCREMENTS = 250;
+
+	private static final int SAVERS = 2;
+
+	private static final int SAVES = 25;
+
+	private static final int DELETES = 10;
+
+	private static final int RELOADS = 15;
+
+	private static final int STABLE_BUILD_NUMBERS = 4;
+
+	private static final int DOOMED_BUILD_NUMBERS = 2;
+
+	private File directory;
+
+	private PluginConfigurationServiceDefault service;
+
+	private int[] stableIds;
+
+	private AtomicIntegerArray doomedIds;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = new File(System.getProperty("java.io.tmpdir"), "sharedBuildNumberStress" + System.nanoTime());
+		FileUtils.forceMkdir(this.directory);
+
+		this.service = new PluginConfigurationServiceDefault(
+				new ServerPaths(this.directory.getPath(), this.directory.getPath(), this.directory.getPath())
+		);
+		this.service.initialize();
+
+		// the sample shared build number from the distributed configuration is left out of the stress
+		this.stableIds = new int[TestPluginConfigurationServiceDefaultConcurrency.STABLE_BUILD_NUMBERS];
+		for(int i = 0; i < this.stableIds.length; i++)
+			this.stableIds[i] = this.createBuildNumber("Stable " + i, i == this.stableIds.length - 1);
+
+		this.doomedIds = new AtomicIntegerArray(TestPluginConfigurationServiceDefaultConcurrency.DOOMED_BUILD_NUMBERS);
+		for(int i = 0; i < this.doomedIds.length(); i++)
+			this.doomedIds.set(i, this.createBuildNumber("Doomed " + i, false));
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		this.service.destroy();
+
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	private int createBuildNumber(String name, boolean allowGaps) throws IOException
+	{
+		SharedBuildNumber buildNumber = new SharedBuildNumber(this.service.getNextBuildNumberId());
+		buildNumber.setName(name);
+		buildNumber.setFormat("1.0.{0}");
+		buildNumber.setAllowGaps(allowGaps);
+		buildNumber.setBlockSize(7);
+		this.service.saveSharedBuildNumber(buildNumber);
+		return buildNumber.getId();
+	}
+
+	@Test
+	public void testIncrementsSavesDeletesAndReloads01() throws Throwable
+	{
+		List<Incrementer> incrementers = this.run(true, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				TestPluginConfigurationServiceDefaultConcurrency.this.reload(false);
+			}
+		});
+
+		this.assertNoDuplicates(incrementers);
+	}
+
+	@Test
+	public void testIncrementsDuringExternalEdits01() throws Throwable
+	{
+		List<Incrementer> incrementers = this.run(false, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				TestPluginConfigurationServiceDefaultConcurrency.this.reload(true);
+			}
+		});
+
+		Map<Integer, List<Integer>> issued = this.assertNoDuplicates(incrementers);
+
+		// nothing raised these counters, so every value from 1 up to the counter was issued exactly once; the last
+		// stable shared build number allows gaps, and a reload may skip the rest of its reserved block
+		for(int i = 0; i < this.stableIds.length - 1; i++)
+		{
+			int id = this.stableIds[i];
+			List<Integer> counters = issued.get(id);
+			assertNotNull("Shared build number " + id + " should have been incremented.", counters);
+			for(int j = 0; j < counters.size(); j++)
+				assertEquals("Shared build number " + id + " lost a counter.", j + 1, (int)counters.get(j));
+
+			SharedBuildNumber buildNumber = this.service.getSharedBuildNumber(id);
+			assertNotNull("Shared build number " + id + " should still exist.", buildNumber);
+			assertEquals("The counter of shared build number " + id + " is not correct.", counters.size() + 1,
+						 buildNumber.getCounter());
+		}
+	}
+
+	/**
+	 * Starts every actor of every round at the same moment and waits for them to finish.
+	 *
+	 * @param churn Whether savers raise counters and the deleter deletes and creates shared build numbers
+	 * @param reloader The reloader's action, which is repeated {@value #RELOADS} times per round
+	 * @return the incrementers, with the counters they were issued.
+	 */
+	private List<Incrementer> run(final boolean churn, final Runnable reloader) throws Throwable
+	{
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Incrementer> incrementers = new ArrayList<Incrementer>();
+		for(int i = 0; i < TestPluginConfigurationServiceDefaultConcurrency.INCREMENTERS; i++)
+			incrementers.add(new Incrementer(new Random(i)));
+
+		for(int round = 0; round < TestPluginConfigurationServiceDefaultConcurrency.ROUNDS; round++)
+		{
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Thread> threads = new ArrayList<Thread>();
+
+			for(Incrementer incrementer : incrementers)
+				threads.add(this.newActor(start, failure, incrementer));
+
+			for(int i = 0; i < TestPluginConfigurationServiceDefaultConcurrency.SAVERS; i++)
+				threads.add(this.newActor(start, failure, new Saver(new Random(round * 100 + i), churn)));
+
+			if(churn)
+				threads.add(this.newActor(start, failure, new Deleter()));
+
+			threads.add(this.newActor(start, failure, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for(int i = 0; i < TestPluginConfigurationServiceDefaultConcurrency.RELOADS; i++)
+						reloader.run();
+				}
+			}));
+
+			for(Thread thread : threads)
+				thread.start();
+			start.countDown();
+			for(Thread thread : threads)
+				thread.join();
+
+			if(failure.get() != null)
+				throw failure.get();
+		}
+
+		return incrementers;
+	}
+
+	private Thread newActor(final CountDownLatch start, final AtomicReference<Throwable> failure,
+							final Runnable actor)
+	{
+		return new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					start.await();
+					actor.run();
+				}
+				catch(Throwable e)
+				{
+					failure.compareAndSet(null, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Makes the service reload its configuration file, which the file watcher would also do when the file changes.
+	 * An external edit sets every counter in the file back to 1 and changes the description of the first stable
+	 * shared build number; the edit is lost if the service saves the file at the same moment, as it would be on a
+	 * real server.
+	 */
+	private void reload(boolean edit)
+	{
+		try
+		{
+			if(edit)
+			{
+				File file = new File(this.directory, PluginConfigurationService.CONFIG_XML_FILE_NAME);
+				String content = FileUtils.readFileToString(file, "UTF-8");
+				content = content.replace("</build-number>", "<counter>1</counter></build-number>");
+				content = content.replace("Stable 0", "Stable 0 edited " + System.nanoTime());
+				FileUtils.writeStringToFile(file, content, "UTF-8");
+			}
+
+			this.service.changeOccured("stress test");
+			Thread.sleep(2L);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Map<Integer, List<Integer>> assertNoDuplicates(List<Incrementer> incrementers)
+	{
+		Map<Integer, List<Integer>> issued = new HashMap<Integer, List<Integer>>();
+		for(Incrementer incrementer : incrementers)
+		{
+			for(Map.Entry<Integer, List<Integer>> entry : incrementer.issued.entrySet())
+			{
+				List<Integer> counters = issued.get(entry.getKey());
+				if(counters == null)
+				{
+					counters = new ArrayList<Integer>();
+					issued.put(entry.getKey(), counters);
+				}
+				counters.addAll(entry.getValue());
+			}
+		}
+
+		for(Map.Entry<Integer, List<Integer>> entry : issued.entrySet())
+		{
+			List<Integer> counters = entry.getValue();
+			Collections.sort(counters);
+			for(int i = 1; i < counters.size(); i++)
+			{
+				if(counters.get(i).equals(counters.get(i - 1)))
+				{
+					fail("Counter " + counters.get(i) + " of shared build number " + entry.getKey() +
+						 " was issued twice.");
+				}
+			}
+
+			SharedBuildNumber buildNumber = this.service.getSharedBuildNumber(entry.getKey());
+			if(buildNumber != null)
+			{
+				assertTrue("The counter of shared build number " + entry.getKey() + " is behind the counters issued.",
+						   buildNumber.getCounter() > counters.get(counters.size() - 1));
+			}
+		}
+
+		return issued;
+	}
+
+	/**
+	 * Increments random shared build numbers, singly and in batches, and records the counters it is issued, checking
+	 * that the counters of each shared build number only ever increase on this thread.
+	 */
+	private final class Incrementer implements Runnable
+	{
+		private final Random random;
+
+		private final Map<Integer, List<Integer>> issued = new HashMap<Integer, List<Integer>>();
+
+		private Incrementer(Random random)
+		{
+			this.random = random;
+		}
+
+		@Override
+		public void run()
+		{
+			TestPluginConfigurationServiceDefaultConcurrency test =
+					TestPluginConfigurationServiceDefaultConcurrency.this;
+
+			try
+			{
+				for(int i = 0; i < TestPluginConfigurationServiceDefaultConcurrency.INCREMENTS; i++)
+				{
+					if(this.random.nextInt(4) == 0)
+					{
+						Set<Integer> ids = new HashSet<Integer>();
+						ids.add(this.pickId());
+						ids.add(this.pickId());
+						ids.add(this.pickId());
+						for(Map.Entry<Integer, String> entry :
+								test.service.getAndIncrementFormattedSharedBuildNumbers(ids).entrySet())
+							this.record(entry.getKey(), entry.getValue());
+					}
+					else
+					{
+						int id = this.pickId();
+						this.record(id, test.service.getAndIncrementFormattedSharedBuildNumber(id));
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private int pickId()
+		{
+			TestPluginConfigurationServiceDefaultConcurrency test =
+					TestPluginConfigurationServiceDefaultConcurrency.this;
+
+			int choice = this.random.nextInt(test.stableIds.length + test.doomedIds.length());
+			return choice < test.stableIds.length ? test.stableIds[choice] :
+					test.doomedIds.get(choice - test.stableIds.length);
+		}
+
+		private void record(int id, String formatted)
+		{
+			// a doomed shared build number may have been deleted
+			if(formatted == null)
+				return;
+
+			int counter = Integer.parseInt(formatted.substring(formatted.lastIndexOf('.') + 1));
+
+			List<Integer> counters = this.issued.get(id);
+			if(counters == null)
+			{
+				counters = new ArrayList<Integer>();
+				this.issued.put(id, counters);
+			}
+			else if(counters.get(counters.size() - 1) >= counter)
+			{
+				fail("Shared build number " + id + " went from " + counters.get(counters.size() - 1) + " to " +
+					 counter + " on one thread.");
+			}
+			counters.add(counter);
+		}
+	}
+
+	/**
+	 * Saves changes to the stable shared build numbers from copies taken just before, which are stale if the counter
+	 * was incremented in between, and so must be rejected, and checks that the counters it reads never go backward.
+	 * When churning, it also raises the counters it saves.
+	 */
+	private final class Saver implements Runnable
+	{
+		private final Random random;
+
+		private final boolean churn;
+
+		private final Map<Integer, Integer> seen = new HashMap<Integer, Integer>();
+
+		private Saver(Random random, boolean churn)
+		{
+			this.random = random;
+			this.churn = churn;
+		}
+
+		@Override
+		public void run()
+		{
+			TestPluginConfigurationServiceDefaultConcurrency test =
+					TestPluginConfigurationServiceDefaultConcurrency.this;
+
+			try
+			{
+				for(int i = 0; i < TestPluginConfigurationServiceDefaultConcurrency.SAVES; i++)
+				{
+					int id = test.stableIds[this.random.nextInt(test.stableIds.length)];
+
+					SharedBuildNumber buildNumber = test.service.getSharedBuildNumber(id);
+					assertNotNull("Stable shared build number " + id + " should exist.", buildNumber);
+
+					Integer seen = this.seen.get(id);
+					if(seen != null && seen > buildNumber.getCounter())
+					{
+						fail("The counter of shared build number " + id + " went from " + seen + " to " +
+							 buildNumber.getCounter() + ".");
+					}
+					this.seen.put(id, buildNumber.getCounter());
+
+					buildNumber.setDescription("Saved " + i);
+					if(this.churn && this.random.nextBoolean())
+						buildNumber.setCounter(buildNumber.getCounter() + 1 + this.random.nextInt(5));
+
+					try
+					{
+						test.service.saveSharedBuildNumber(buildNumber);
+					}
+					catch(IllegalArgumentException e)
+					{
+						// the copy was stale, which the service must not let decrease the counter
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the doomed shared build numbers one at a time with new ones, deleting each while it may still be in
+	 * use.
+	 */
+	private final class Deleter implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			TestPluginConfigurationServiceDefaultConcurrency test =
+					TestPluginConfigurationServiceDefaultConcurrency.this;
+
+			try
+			{
+				for(int i = 0; i < TestPluginConfigurationServiceDefaultConcurrency.DELETES; i++)
+				{
+					int slot = i % test.doomedIds.length();
+					int id = test.doomedIds.getAndSet(slot, test.createBuildNumber("Doomed " + i, false));
+					test.service.deleteSharedBuildNumber(id);
+					Thread.sleep(5L);
+				}
+			}
+			catch(IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * TestQueuedBuildNumberReservations.java from TeamCityPlugins modified Saturday, November 3, 2012 15:18:26 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.util.EventDispatcher;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
+import org.easymock.Capture;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test class for QueuedBuildNumberReservations.
+ */
+public class TestQueuedBuildNumberReservations
+{
+	private EventDispatcher<BuildServerListener> dispatcher;
+
+	private PluginConfigurationService service;
+
+	private ReferencedParameterCache referencedParameterCache;
+
+	private QueuedBuildNumberReservations reservations;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp()
+	{
+		this.dispatcher = createStrictMock(EventDispatcher.class);
+		this.service = createStrictMock(PluginConfigurationService.class);
+
+		Capture<QueuedBuildNumberReservations> listener = new Capture<QueuedBuildNumberReservations>();
+		this.dispatcher.addListener(capture(listener));
+		expectLastCall();
+
+		replay(this.dispatcher);
+
+		EventDispatcher<BuildServerListener> cacheDispatcher = createNiceMock(EventDispatcher.class);
+		replay(cacheDispatcher);
+
+		this.referencedParameterCache = new ReferencedParameterCache(cacheDispatcher);
+		this.reservations = new QueuedBuildNumberReservations(
+				this.dispatcher, this.service, this.referencedParameterCache
+		);
+
+		assertSame("The reservations should have registered themselves.", this.reservations, listener.getValue());
+		assertFalse("Reserving should be off by default.", this.reservations.isEnabled());
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.reservations.destroy();
+
+		verify(this.service);
+	}
+
+	@Test
+	public void testTake01() throws Exception
+	{
+		Map<Integer, String> reserved = new HashMap<Integer, String>();
+		reserved.put(3, "3.0.41");
+		reserved.put(5, "5.2");
+
+		CountDownLatch incremented = this.expectIncrement(TestQueuedBuildNumberReservations.ids(3, 5), reserved);
+
+		replay(this.service);
+
+		this.reservations.reserve(900L, TestQueuedBuildNumberReservations.ids(3, 5));
+		assertTrue("The reservation was not made.", incremented.await(5L, TimeUnit.SECONDS));
+
+		assertEquals("The build numbers are not correct.", reserved,
+					 this.reservations.take(900L, TestQueuedBuildNumberReservations.ids(3, 5)));
+		assertEquals("The reservation should have been taken.", 0, this.reservations.size());
+		assertTrue("There should be nothing left to take.",
+				   this.reservations.take(900L, TestQueuedBuildNumberReservations.ids(3, 5)).isEmpty());
+	}
+
+	@Test
+	public void testTakeWithoutReservation01()
+	{
+		replay(this.service);
+
+		assertTrue("There should be nothing to take.",
+				   this.reservations.take(900L, TestQueuedBuildNumberReservations.ids(3)).isEmpty());
+	}
+
+	@Test
+	public void testTakeFailedReservation01() throws Exception
+	{
+		final CountDownLatch incremented = new CountDownLatch(1);
+
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(TestQueuedBuildNumberReservations.ids(3)))
+				.andAnswer(new IAnswer<Map<Integer, String>>()
+				{
+					@Override
+					public Map<Integer, String> answer() throws Throwable
+					{
+						incremented.countDown();
+						throw new IOException("The journal could not be written.");
+					}
+				});
+
+		replay(this.service);
+
+		this.reservations.reserve(900L, TestQueuedBuildNumberReservations.ids(3));
+		assertTrue("The reservation was not attempted.", incremented.await(5L, TimeUnit.SECONDS));
+
+		assertTrue("A failed reservation should be ignored.",
+				   this.reservations.take(900L, TestQueuedBuildNumberReservations.ids(3)).isEmpty());
+	}
+
+	@Test
+	public void testTakeUnreferencedGap01() throws Exception
+	{
+		Map<Integer, String> reserved = new HashMap<Integer, String>();
+		reserved.put(3, "3.0.41");
+		reserved.put(5, "5.2");
+
+		CountDownLatch incremented = this.expectIncrement(TestQueuedBuildNumberReservations.ids(3, 5), reserved);
+		CountDownLatch incrementedAgain = this.expectIncrement(
+				TestQueuedBuildNumberReservations.ids(5), Collections.singletonMap(5, "5.3")
+		);
+
+		replay(this.service);
+
+		this.reservations.reserve(900L, TestQueuedBuildNumberReservations.ids(3, 5));
+		assertTrue("The reservation was not made.", incremented.await(5L, TimeUnit.SECONDS));
+
+		assertEquals("The build numbers are not correct.", Collections.singletonMap(3, "3.0.41"),
+					 this.reservations.take(900L, TestQueuedBuildNumberReservations.ids(3)));
+		assertEquals("The unreferenced number should have been recorded as a gap.",
+					 1L, this.reservations.getGapCount());
+
+		// the skipped number is never handed out again, so the next build gets the next one in order
+		this.reservations.reserve(901L, TestQueuedBuildNumberReservations.ids(5));
+		assertTrue("The reservation was not made.", incrementedAgain.await(5L, TimeUnit.SECONDS));
+
+		assertEquals("The build numbers are not correct.", Collections.singletonMap(5, "5.3"),
+					 this.reservations.take(901L, TestQueuedBuildNumberReservations.ids(5)));
+	}
+
+	@Test
+	public void testReleaseGap01() throws Exception
+	{
+		CountDownLatch incremented = this.expectIncrement(
+				TestQueuedBuildNumberReservations.ids(3), Collections.singletonMap(3, "3.0.41")
+		);
+
+		replay(this.service);
+
+		this.reservations.reserve(900L, TestQueuedBuildNumberReservations.ids(3));
+		assertTrue("The reservation was not made.", incremented.await(5L, TimeUnit.SECONDS));
+
+		this.reservations.release(900L);
+
+		long deadline = System.currentTimeMillis() + 5000L;
+		while(this.reservations.getGapCount() == 0L && System.currentTimeMillis() < deadline)
+			Thread.sleep(5L);
+
+		assertEquals("The returned number should have been recorded as a gap.", 1L, this.reservations.getGapCount());
+		assertEquals("The reservation should have been released.", 0, this.reservations.size());
+	}
+
+	@Test
+	public void testBuildTypeAddedToQueueDisabled01()
+	{
+		SQueuedBuild queuedBuild = createStrictMock(SQueuedBuild.class);
+
+		replay(this.service, queuedBuild);
+
+		this.reservations.buildTypeAddedToQueue(queuedBuild);
+
+		assertEquals("Nothing should have been reserved.", 0, this.reservations.size());
+
+		verify(queuedBuild);
+	}
+
+	@Test
+	public void testBuildTypeAddedToQueue01() throws Exception
+	{
+		this.reservations.setEnabled(true);
+		this.referencedParameterCache.put(
+				"bt1", "project1", new int[] { 3, 4, 5 }, this.referencedParameterCache.getGeneration()
+		);
+
+		SQueuedBuild queuedBuild = createStrictMock(SQueuedBuild.class);
+		BuildPromotion promotion = createStrictMock(BuildPromotion.class);
+
+		// numbers that increment once for a chain are left to the chain cache
+		SharedBuildNumber chainNumber = TestQueuedBuildNumberReservations.getBuildNumber(4, true);
+		chainNumber.setIncrementOnceForChain(true);
+
+		expect(queuedBuild.getBuildPromotion()).andReturn(promotion);
+		expect(promotion.getBuildTypeId()).andReturn("bt1");
+		expect(promotion.getCustomParameters()).andReturn(new HashMap<String, String>());
+		expect(this.service.getSharedBuildNumber(3)).andReturn(TestQueuedBuildNumberReservations.getBuildNumber(3, true));
+		expect(this.service.getSharedBuildNumber(4)).andReturn(chainNumber);
+		// numbers that do not allow gaps are never reserved, because an unused reservation would skip one
+		expect(this.service.getSharedBuildNumber(5)).andReturn(TestQueuedBuildNumberReservations.getBuildNumber(5, false));
+		expect(promotion.getId()).andReturn(900L);
+		CountDownLatch incremented = this.expectIncrement(
+				TestQueuedBuildNumberReservations.ids(3), Collections.singletonMap(3, "3.0.41")
+		);
+
+		replay(this.service, queuedBuild, promotion);
+
+		this.reservations.buildTypeAddedToQueue(queuedBuild);
+		assertTrue("The reservation was not made.", incremented.await(5L, TimeUnit.SECONDS));
+
+		assertEquals("The build numbers are not correct.", Collections.singletonMap(3, "3.0.41"),
+					 this.reservations.take(900L, TestQueuedBuildNumberReservations.ids(3)));
+		assertEquals("The peek should not have been counted.", 0L, this.referencedParameterCache.getHitCount());
+
+		verify(queuedBuild, promotion);
+	}
+
+	private CountDownLatch expectIncrement(Set<Integer> ids, final Map<Integer, String> buildNumbers)
+			throws IOException
+	{
+		final CountDownLatch incremented = new CountDownLatch(1);
+
+		expect(this.service.getAndIncrementFormattedSharedBuildNumbers(ids))
+				.andAnswer(new IAnswer<Map<Integer, String>>()
+				{
+					@Override
+					public Map<Integer, String> answer() throws Throwable
+					{
+						incremented.countDown();
+						return buildNumbers;
+					}
+				});
+
+		return incremented;
+	}
+
+	private static Set<Integer> ids(Integer... ids)
+	{
+		return new HashSet<Integer>(Arrays.asList(ids));
+	}
+
+	private static SharedBuildNumber getBuildNumber(int id, boolean allowGaps)
+	{
+		SharedBuildNumber buildNumber = new SharedBuildNumber(id);
+		buildNumber.setAllowGaps(allowGaps);
+		return buildNumber;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * TestReferencedParameterCache.java from TeamCityPlugins modified Tuesday, October 23, 2012 09:47:26 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.easymock.Capture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ReferencedParameterCache.
+ */
+public class TestReferencedParameterCache
+{
+	private EventDispatcher<BuildServerListener> dispatcher;
+
+	private ReferencedParameterCache cache;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp()
+	{
+		this.dispatcher = createStrictMock(EventDispatcher.class);
+
+		Capture<ReferencedParameterCache> listener = new Capture<ReferencedParameterCache>();
+		this.dispatcher.addListener(capture(listener));
+		expectLastCall();
+
+		replay(this.dispatcher);
+
+		this.cache = new ReferencedParameterCache(this.dispatcher);
+
+		assertSame("The cache should have registered itself.", this.cache, listener.getValue());
+	}
+
+	@After
+	public void tearDown()
+	{
+		verify(this.dispatcher);
+	}
+
+	@Test
+	public void testGetAndPut01()
+	{
+		assertNull("Nothing should be cached yet.", this.cache.get("bt1"));
+
+		int[] ids = new int[] { 3, 8 };
+		this.cache.put("bt1", "project1", ids, this.cache.getGeneration());
+		ids[1] = 9;
+
+		assertArrayEquals("The cached IDs are not correct.", new int[] { 3, 8 }, this.cache.get("bt1"));
+		assertEquals("The miss count is not correct.", 1L, this.cache.getMissCount());
+		assertEquals("The hit count is not correct.", 1L, this.cache.getHitCount());
+	}
+
+	@Test
+	public void testPutAfterInvalidation01()
+	{
+		long generation = this.cache.getGeneration();
+
+		this.cache.projectPersisted("project2");
+		this.cache.put("bt1", "project1", new int[0], generation);
+
+		assertNull("A scan that overlapped an invalidation should not be cached.", this.cache.get("bt1"));
+		assertEquals("The cache size is not correct.", 0, this.cache.size());
+	}
+
+	@Test
+	public void testProjectPersisted01()
+	{
+		this.cache.put("bt1", "project1", new int[0], this.cache.getGeneration());
+		this.cache.put("bt2", "project1", new int[0], this.cache.getGeneration());
+		this.cache.put("bt3", "project2", new int[0], this.cache.getGeneration());
+
+		this.cache.projectPersisted("project1");
+
+		assertNull("Build type 1 should have been forgotten.", this.cache.get("bt1"));
+		assertNull("Build type 2 should have been forgotten.", this.cache.get("bt2"));
+		assertNotNull("Build type 3 should still be cached.", this.cache.get("bt3"));
+	}
+
+	@Test
+	public void testBuildTypeMoved01()
+	{
+		SBuildType buildType = createStrictMock(SBuildType.class);
+		SProject project = createStrictMock(SProject.class);
+
+		expect(buildType.getBuildTypeId()).andReturn("bt1");
+
+		replay(buildType, project);
+
+		this.cache.put("bt1", "project1", new int[0], this.cache.getGeneration());
+		this.cache.put("bt2", "project1", new int[0], this.cache.getGeneration());
+
+		this.cache.buildTypeMoved(buildType, project);
+
+		assertNull("Build type 1 should have been forgotten.", this.cache.get("bt1"));
+		assertNotNull("Build type 2 should still be cached.", this.cache.get("bt2"));
+
+		verify(buildType, project);
+	}
+
+	@Test
+	public void testServerConfigurationReloaded01()
+	{
+		this.cache.put("bt1", "project1", new int[0], this.cache.getGeneration());
+		this.cache.put("bt3", "project2", new int[0], this.cache.getGeneration());
+
+		this.cache.serverConfigurationReloaded();
+
+		assertEquals("The cache size is not correct.", 0, this.cache.size());
+	}
+}
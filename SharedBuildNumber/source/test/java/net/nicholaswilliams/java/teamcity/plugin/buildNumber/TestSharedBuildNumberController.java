@@ -1,5 +1,5 @@
 /*
- * TestSharedBuildNumberController.java from TeamCityPlugins modified Saturday, September 15, 2012 11:38:31 CDT (-0500).
+ * TestSharedBuildNumberController.java from TeamCityPlugins modified Saturday, November 3, 2012 17:04:51 CDT (-0500).
  *
  * Copyright 2010-2012 the original author or authors.
  *
@@ -28,8 +28,8 @@ import jetbrains.buildServer.web.openapi.PlaceId;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import jetbrains.buildServer.web.openapi.PositionConstraint;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.Durability;
 import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumber;
-import org.apache.commons.lang.math.NumberUtils;
 import org.easymock.Capture;
 import org.easymock.CaptureType;
 import org.junit.After;
@@ -46,12 +46,13 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Comparator;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
 import java.util.StringTokenizer;
-import java.util.TreeSet;
 
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
@@ -297,13 +298,16 @@ public class TestSharedBuildNumberController
 	{
 		this.setUpSecurity();
 
-		SortedSet<SharedBuildNumber> set = new TreeSet<SharedBuildNumber>();
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
 
 		expect(this.request.getParameter("action")).andReturn(null);
 		expect(this.request.getMethod()).andReturn("GET");
 		expect(this.request.getParameter("direction")).andReturn(null);
 		expect(this.request.getParameter("sort")).andReturn(null);
-		expect(this.service.getAllSharedBuildNumbersSortedById(false)).andReturn(set);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("offset")).andReturn(null);
+		expect(this.service.getSharedBuildNumbersSortedById(false, 0, 50)).andReturn(list);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(list.size());
 
 		replay(this.service, this.request, this.response);
 
@@ -322,7 +326,11 @@ public class TestSharedBuildNumberController
 		assertEquals("sbnParameterPrefix is not correct.", BuildNumberPropertiesProvider.PARAMETER_PREFIX,
 					 model.get("sbnParameterPrefix"));
 		assertEquals("numResults is not correct.", 0, model.get("numResults"));
-		assertSame("buildNumbers is not correct.", set, model.get("buildNumbers"));
+		assertSame("buildNumbers is not correct.", list, model.get("buildNumbers"));
+		assertEquals("offset is not correct.", 0, model.get("offset"));
+		assertEquals("limit is not correct.", 50, model.get("limit"));
+		assertEquals("previousOffset is not correct.", -1, model.get("previousOffset"));
+		assertEquals("nextOffset is not correct.", -1, model.get("nextOffset"));
 	}
 
 	@Test
@@ -330,13 +338,16 @@ public class TestSharedBuildNumberController
 	{
 		this.setUpSecurity();
 
-		SortedSet<SharedBuildNumber> set = new TreeSet<SharedBuildNumber>();
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
 
 		expect(this.request.getParameter("action")).andReturn("");
 		expect(this.request.getMethod()).andReturn("GET");
 		expect(this.request.getParameter("direction")).andReturn(null);
 		expect(this.request.getParameter("sort")).andReturn(null);
-		expect(this.service.getAllSharedBuildNumbersSortedById(false)).andReturn(set);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("offset")).andReturn(null);
+		expect(this.service.getSharedBuildNumbersSortedById(false, 0, 50)).andReturn(list);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(list.size());
 
 		replay(this.service, this.request, this.response);
 
@@ -355,7 +366,11 @@ public class TestSharedBuildNumberController
 		assertEquals("sbnParameterPrefix is not correct.", BuildNumberPropertiesProvider.PARAMETER_PREFIX,
 					 model.get("sbnParameterPrefix"));
 		assertEquals("numResults is not correct.", 0, model.get("numResults"));
-		assertSame("buildNumbers is not correct.", set, model.get("buildNumbers"));
+		assertSame("buildNumbers is not correct.", list, model.get("buildNumbers"));
+		assertEquals("offset is not correct.", 0, model.get("offset"));
+		assertEquals("limit is not correct.", 50, model.get("limit"));
+		assertEquals("previousOffset is not correct.", -1, model.get("previousOffset"));
+		assertEquals("nextOffset is not correct.", -1, model.get("nextOffset"));
 	}
 
 	@Test
@@ -363,13 +378,16 @@ public class TestSharedBuildNumberController
 	{
 		this.setUpSecurity();
 
-		SortedSet<SharedBuildNumber> set = new TreeSet<SharedBuildNumber>();
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
 
 		expect(this.request.getParameter("action")).andReturn("list");
 		expect(this.request.getMethod()).andReturn("POST");
 		expect(this.request.getParameter("direction")).andReturn("asc");
 		expect(this.request.getParameter("sort")).andReturn("id");
-		expect(this.service.getAllSharedBuildNumbersSortedById(false)).andReturn(set);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("offset")).andReturn(null);
+		expect(this.service.getSharedBuildNumbersSortedById(false, 0, 50)).andReturn(list);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(list.size());
 
 		replay(this.service, this.request, this.response);
 
@@ -388,7 +406,11 @@ public class TestSharedBuildNumberController
 		assertEquals("sbnParameterPrefix is not correct.", BuildNumberPropertiesProvider.PARAMETER_PREFIX,
 					 model.get("sbnParameterPrefix"));
 		assertEquals("numResults is not correct.", 0, model.get("numResults"));
-		assertSame("buildNumbers is not correct.", set, model.get("buildNumbers"));
+		assertSame("buildNumbers is not correct.", list, model.get("buildNumbers"));
+		assertEquals("offset is not correct.", 0, model.get("offset"));
+		assertEquals("limit is not correct.", 50, model.get("limit"));
+		assertEquals("previousOffset is not correct.", -1, model.get("previousOffset"));
+		assertEquals("nextOffset is not correct.", -1, model.get("nextOffset"));
 	}
 
 	@Test
@@ -396,14 +418,17 @@ public class TestSharedBuildNumberController
 	{
 		this.setUpSecurity();
 
-		SortedSet<SharedBuildNumber> set = new TreeSet<SharedBuildNumber>();
-		set.add(new SharedBuildNumber(12));
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
+		list.add(new SharedBuildNumber(12));
 
 		expect(this.request.getParameter("action")).andReturn("list");
 		expect(this.request.getMethod()).andReturn("POST");
 		expect(this.request.getParameter("direction")).andReturn("desc");
 		expect(this.request.getParameter("sort")).andReturn("id");
-		expect(this.service.getAllSharedBuildNumbersSortedById(true)).andReturn(set);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("offset")).andReturn(null);
+		expect(this.service.getSharedBuildNumbersSortedById(true, 0, 50)).andReturn(list);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(list.size());
 
 		replay(this.service, this.request, this.response);
 
@@ -422,7 +447,11 @@ public class TestSharedBuildNumberController
 		assertEquals("sbnParameterPrefix is not correct.", BuildNumberPropertiesProvider.PARAMETER_PREFIX,
 					 model.get("sbnParameterPrefix"));
 		assertEquals("numResults is not correct.", 1, model.get("numResults"));
-		assertSame("buildNumbers is not correct.", set, model.get("buildNumbers"));
+		assertSame("buildNumbers is not correct.", list, model.get("buildNumbers"));
+		assertEquals("offset is not correct.", 0, model.get("offset"));
+		assertEquals("limit is not correct.", 50, model.get("limit"));
+		assertEquals("previousOffset is not correct.", -1, model.get("previousOffset"));
+		assertEquals("nextOffset is not correct.", -1, model.get("nextOffset"));
 	}
 
 	@Test
@@ -436,22 +465,18 @@ public class TestSharedBuildNumberController
 		SharedBuildNumber bn2 = new SharedBuildNumber(22);
 		bn2.setName("world");
 
-		SortedSet<SharedBuildNumber> set = new TreeSet<SharedBuildNumber>(new Comparator<SharedBuildNumber>()
-		{
-			@Override
-			public int compare(SharedBuildNumber left, SharedBuildNumber right)
-			{
-				return left.getName().compareTo(right.getName());
-			}
-		});
-		set.add(bn1);
-		set.add(bn2);
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
+		list.add(bn1);
+		list.add(bn2);
 
 		expect(this.request.getParameter("action")).andReturn("list");
 		expect(this.request.getMethod()).andReturn("POST");
 		expect(this.request.getParameter("direction")).andReturn("asc");
 		expect(this.request.getParameter("sort")).andReturn("name");
-		expect(this.service.getAllSharedBuildNumbersSortedByName(false)).andReturn(set);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("offset")).andReturn(null);
+		expect(this.service.getSharedBuildNumbersSortedByName(false, 0, 50)).andReturn(list);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(list.size());
 
 		replay(this.service, this.request, this.response);
 
@@ -470,7 +495,11 @@ public class TestSharedBuildNumberController
 		assertEquals("sbnParameterPrefix is not correct.", BuildNumberPropertiesProvider.PARAMETER_PREFIX,
 					 model.get("sbnParameterPrefix"));
 		assertEquals("numResults is not correct.", 2, model.get("numResults"));
-		assertSame("buildNumbers is not correct.", set, model.get("buildNumbers"));
+		assertSame("buildNumbers is not correct.", list, model.get("buildNumbers"));
+		assertEquals("offset is not correct.", 0, model.get("offset"));
+		assertEquals("limit is not correct.", 50, model.get("limit"));
+		assertEquals("previousOffset is not correct.", -1, model.get("previousOffset"));
+		assertEquals("nextOffset is not correct.", -1, model.get("nextOffset"));
 	}
 
 	@Test
@@ -478,23 +507,19 @@ public class TestSharedBuildNumberController
 	{
 		this.setUpSecurity();
 
-		SortedSet<SharedBuildNumber> set = new TreeSet<SharedBuildNumber>(new Comparator<SharedBuildNumber>()
-		{
-			@Override
-			public int compare(SharedBuildNumber left, SharedBuildNumber right)
-			{
-				return NumberUtils.compare(left.getId(), right.getCounter());
-			}
-		});
-		set.add(new SharedBuildNumber(12));
-		set.add(new SharedBuildNumber(22));
-		set.add(new SharedBuildNumber(15));
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
+		list.add(new SharedBuildNumber(12));
+		list.add(new SharedBuildNumber(22));
+		list.add(new SharedBuildNumber(15));
 
 		expect(this.request.getParameter("action")).andReturn("list");
 		expect(this.request.getMethod()).andReturn("POST");
 		expect(this.request.getParameter("direction")).andReturn("desc");
 		expect(this.request.getParameter("sort")).andReturn("name");
-		expect(this.service.getAllSharedBuildNumbersSortedByName(true)).andReturn(set);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("offset")).andReturn(null);
+		expect(this.service.getSharedBuildNumbersSortedByName(true, 0, 50)).andReturn(list);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(list.size());
 
 		replay(this.service, this.request, this.response);
 
@@ -513,7 +538,322 @@ public class TestSharedBuildNumberController
 		assertEquals("sbnParameterPrefix is not correct.", BuildNumberPropertiesProvider.PARAMETER_PREFIX,
 					 model.get("sbnParameterPrefix"));
 		assertEquals("numResults is not correct.", 3, model.get("numResults"));
-		assertSame("buildNumbers is not correct.", set, model.get("buildNumbers"));
+		assertSame("buildNumbers is not correct.", list, model.get("buildNumbers"));
+		assertEquals("offset is not correct.", 0, model.get("offset"));
+		assertEquals("limit is not correct.", 50, model.get("limit"));
+		assertEquals("previousOffset is not correct.", -1, model.get("previousOffset"));
+		assertEquals("nextOffset is not correct.", -1, model.get("nextOffset"));
+	}
+
+	@Test
+	public void testDoHandleListPage07() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
+		list.add(new SharedBuildNumber(3));
+		list.add(new SharedBuildNumber(4));
+
+		expect(this.request.getParameter("action")).andReturn("list");
+		expect(this.request.getMethod()).andReturn("GET");
+		expect(this.request.getParameter("direction")).andReturn(null);
+		expect(this.request.getParameter("sort")).andReturn(null);
+		expect(this.request.getParameter("limit")).andReturn("2");
+		expect(this.request.getParameter("offset")).andReturn("2");
+		expect(this.service.getSharedBuildNumbersSortedById(false, 2, 2)).andReturn(list);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(5);
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNotNull("The model and view should not be null.", modelAndView);
+
+		Map<String, Object> model = modelAndView.getModel();
+
+		assertNotNull("The model should not be null.", model);
+		assertEquals("numResults is not correct.", 5, model.get("numResults"));
+		assertSame("buildNumbers is not correct.", list, model.get("buildNumbers"));
+		assertEquals("offset is not correct.", 2, model.get("offset"));
+		assertEquals("limit is not correct.", 2, model.get("limit"));
+		assertEquals("previousOffset is not correct.", 0, model.get("previousOffset"));
+		assertEquals("nextOffset is not correct.", 4, model.get("nextOffset"));
+	}
+
+	@Test
+	public void testDoHandleListPage08() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
+
+		expect(this.request.getParameter("action")).andReturn("list");
+		expect(this.request.getMethod()).andReturn("GET");
+		expect(this.request.getParameter("direction")).andReturn("desc");
+		expect(this.request.getParameter("sort")).andReturn("name");
+		expect(this.request.getParameter("limit")).andReturn("100000");
+		expect(this.request.getParameter("offset")).andReturn("-3");
+		expect(this.service.getSharedBuildNumbersSortedByName(true, 0, 500)).andReturn(list);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(0);
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNotNull("The model and view should not be null.", modelAndView);
+
+		Map<String, Object> model = modelAndView.getModel();
+
+		assertNotNull("The model should not be null.", model);
+		assertEquals("offset is not correct.", 0, model.get("offset"));
+		assertEquals("limit is not correct.", 500, model.get("limit"));
+		assertEquals("previousOffset is not correct.", -1, model.get("previousOffset"));
+		assertEquals("nextOffset is not correct.", -1, model.get("nextOffset"));
+	}
+
+	@Test
+	public void testDoHandleJsonPage01() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
+		SharedBuildNumber buildNumber1 = new SharedBuildNumber(8);
+		buildNumber1.setName("Al\"pha <b>");
+		buildNumber1.setFormat("1.0.{0}");
+		buildNumber1.setCounter(14);
+		list.add(buildNumber1);
+		SharedBuildNumber buildNumber2 = new SharedBuildNumber(5);
+		buildNumber2.setName("Alpine");
+		buildNumber2.setDescription("Line 1\nLine 2");
+		list.add(buildNumber2);
+		list.add(new SharedBuildNumber(2));
+
+		StringWriter writer = new StringWriter();
+		Capture<String> eTag = new Capture<String>();
+
+		expect(this.request.getParameter("action")).andReturn("json");
+		expect(this.request.getMethod()).andReturn("GET");
+		expect(this.request.getParameter("direction")).andReturn(null);
+		expect(this.request.getParameter("sort")).andReturn("name");
+		expect(this.request.getParameter("limit")).andReturn("2");
+		expect(this.request.getParameter("cursor")).andReturn("3:Al");
+		expect(this.request.getParameter("prefix")).andReturn(" al ");
+		expect(this.request.getParameter("contains")).andReturn("");
+		expect(this.service.getConfigurationGeneration()).andReturn(7L);
+		expect(this.service.getLastModified()).andReturn(1351000000000L);
+		expect(this.service.findSharedBuildNumbersSortedByName("al", null, "Al", 3, false, 3)).andReturn(list);
+		this.response.setHeader(eq("ETag"), capture(eTag));
+		expectLastCall();
+		this.response.setDateHeader("Last-Modified", 1351000000000L);
+		expectLastCall();
+		this.response.setHeader("Cache-Control", "private, no-cache");
+		expectLastCall();
+		expect(this.request.getHeader("If-None-Match")).andReturn(null);
+		expect(this.request.getDateHeader("If-Modified-Since")).andReturn(-1L);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(12);
+		this.response.setContentType("application/json");
+		expectLastCall();
+		this.response.setCharacterEncoding("UTF-8");
+		expectLastCall();
+		expect(this.response.getWriter()).andReturn(new PrintWriter(writer));
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNull("The model and view should be null.", modelAndView);
+		assertTrue("The entity tag is not correct.", eTag.getValue().startsWith("W/\"7-"));
+		assertEquals("The JSON is not correct.",
+					 "{\"generation\":7,\"total\":12,\"parameterPrefix\":\"sharedBuildNumber.id\",\"buildNumbers\":[" +
+					 "{\"id\":8,\"name\":\"Al\\\"pha \\u003cb\\u003e\",\"description\":null," +
+					 "\"format\":\"1.0.{0}\",\"counter\":14}," +
+					 "{\"id\":5,\"name\":\"Alpine\",\"description\":\"Line 1\\u000aLine 2\",\"format\":null," +
+					 "\"counter\":1}],\"next\":\"5:Alpine\"}",
+					 writer.toString());
+	}
+
+	@Test
+	public void testDoHandleJsonPage02() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		List<SharedBuildNumber> list = new ArrayList<SharedBuildNumber>();
+		SharedBuildNumber buildNumber1 = new SharedBuildNumber(4);
+		buildNumber1.setCounter(9);
+		list.add(buildNumber1);
+
+		StringWriter writer = new StringWriter();
+
+		expect(this.request.getParameter("action")).andReturn("json");
+		expect(this.request.getMethod()).andReturn("GET");
+		expect(this.request.getParameter("direction")).andReturn("desc");
+		expect(this.request.getParameter("sort")).andReturn(null);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("cursor")).andReturn("bad");
+		expect(this.request.getParameter("prefix")).andReturn(null);
+		expect(this.request.getParameter("contains")).andReturn("web");
+		expect(this.service.getConfigurationGeneration()).andReturn(3L);
+		expect(this.service.getLastModified()).andReturn(1351000000000L);
+		expect(this.service.findSharedBuildNumbersSortedById(null, "web", null, true, 51)).andReturn(list);
+		this.response.setHeader(eq("ETag"), isA(String.class));
+		expectLastCall();
+		this.response.setDateHeader("Last-Modified", 1351000000000L);
+		expectLastCall();
+		this.response.setHeader("Cache-Control", "private, no-cache");
+		expectLastCall();
+		expect(this.request.getHeader("If-None-Match")).andReturn(null);
+		expect(this.request.getDateHeader("If-Modified-Since")).andReturn(1350999999000L);
+		expect(this.service.getSharedBuildNumberCount()).andReturn(1);
+		this.response.setContentType("application/json");
+		expectLastCall();
+		this.response.setCharacterEncoding("UTF-8");
+		expectLastCall();
+		expect(this.response.getWriter()).andReturn(new PrintWriter(writer));
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNull("The model and view should be null.", modelAndView);
+		assertTrue("The JSON is not correct.", writer.toString().endsWith(
+				"\"buildNumbers\":[{\"id\":4,\"name\":null,\"description\":null,\"format\":null,\"counter\":9}]," +
+				"\"next\":null}"
+		));
+	}
+
+	@Test
+	public void testDoHandleJsonPageNotModified01() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		expect(this.request.getParameter("action")).andReturn("json");
+		expect(this.request.getMethod()).andReturn("GET");
+		expect(this.request.getParameter("direction")).andReturn(null);
+		expect(this.request.getParameter("sort")).andReturn(null);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("cursor")).andReturn(null);
+		expect(this.request.getParameter("prefix")).andReturn(null);
+		expect(this.request.getParameter("contains")).andReturn(null);
+		expect(this.service.getConfigurationGeneration()).andReturn(7L);
+		expect(this.service.getLastModified()).andReturn(1351000000000L);
+		expect(this.service.findSharedBuildNumbersSortedById(null, null, null, false, 51))
+				.andReturn(new ArrayList<SharedBuildNumber>());
+		this.response.setHeader("ETag", "W/\"7-13a8de00600-1\"");
+		expectLastCall();
+		this.response.setDateHeader("Last-Modified", 1351000000000L);
+		expectLastCall();
+		this.response.setHeader("Cache-Control", "private, no-cache");
+		expectLastCall();
+		expect(this.request.getHeader("If-None-Match")).andReturn("W/\"6-13a8de00600-1\", W/\"7-13a8de00600-1\"");
+		this.response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		expectLastCall();
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNull("The model and view should be null.", modelAndView);
+	}
+
+	@Test
+	public void testDoHandleJsonPageNotModified02() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		expect(this.request.getParameter("action")).andReturn("json");
+		expect(this.request.getMethod()).andReturn("GET");
+		expect(this.request.getParameter("direction")).andReturn(null);
+		expect(this.request.getParameter("sort")).andReturn(null);
+		expect(this.request.getParameter("limit")).andReturn(null);
+		expect(this.request.getParameter("cursor")).andReturn(null);
+		expect(this.request.getParameter("prefix")).andReturn(null);
+		expect(this.request.getParameter("contains")).andReturn(null);
+		expect(this.service.getConfigurationGeneration()).andReturn(7L);
+		expect(this.service.getLastModified()).andReturn(1351000000750L);
+		expect(this.service.findSharedBuildNumbersSortedById(null, null, null, false, 51))
+				.andReturn(new ArrayList<SharedBuildNumber>());
+		this.response.setHeader("ETag", "W/\"7-13a8de008ee-1\"");
+		expectLastCall();
+		this.response.setDateHeader("Last-Modified", 1351000000750L);
+		expectLastCall();
+		this.response.setHeader("Cache-Control", "private, no-cache");
+		expectLastCall();
+		expect(this.request.getHeader("If-None-Match")).andReturn(null);
+		expect(this.request.getDateHeader("If-Modified-Since")).andReturn(1351000000000L);
+		this.response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		expectLastCall();
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNull("The model and view should be null.", modelAndView);
+	}
+
+	@Test
+	public void testGetEntityTag01()
+	{
+		replay(this.service, this.request, this.response, this.user);
+
+		SharedBuildNumber original = new SharedBuildNumber(4);
+		original.setName("Original");
+		original.setCounter(9);
+
+		SharedBuildNumber renamed = new SharedBuildNumber(4);
+		renamed.setName("Renamed");
+		renamed.setCounter(9);
+
+		SharedBuildNumber reformatted = new SharedBuildNumber(4);
+		reformatted.setName("Original");
+		reformatted.setFormat("2.{0}");
+		reformatted.setCounter(9);
+
+		String tag = SharedBuildNumberController.getEntityTag(7L, 1351000000000L, Arrays.asList(original));
+
+		assertEquals("The same page should have the same tag.", tag,
+					 SharedBuildNumberController.getEntityTag(7L, 1351000000000L, Arrays.asList(original)));
+		// the generation starts over when the server restarts, so it alone cannot tell two pages apart
+		assertFalse("A renamed entry should change the tag.", tag.equals(
+				SharedBuildNumberController.getEntityTag(7L, 1351000000000L, Arrays.asList(renamed))
+		));
+		assertFalse("A changed format should change the tag.", tag.equals(
+				SharedBuildNumberController.getEntityTag(7L, 1351000000000L, Arrays.asList(reformatted))
+		));
+		assertFalse("A later modification time should change the tag.", tag.equals(
+				SharedBuildNumberController.getEntityTag(7L, 1351000360000L, Arrays.asList(original))
+		));
+	}
+
+	@Test
+	public void testDoHandleMetrics01() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		SharedBuildNumberMetrics metrics = new SharedBuildNumberMetrics();
+		metrics.recordIncrement(4);
+		metrics.setConfigurationEntries(2);
+
+		StringWriter writer = new StringWriter();
+
+		expect(this.request.getParameter("action")).andReturn("metrics");
+		expect(this.request.getMethod()).andReturn("GET");
+		expect(this.service.getMetrics()).andReturn(metrics);
+		this.response.setContentType("text/plain; version=0.0.4");
+		expectLastCall();
+		this.response.setCharacterEncoding("UTF-8");
+		expectLastCall();
+		this.response.setHeader("Cache-Control", "no-cache");
+		expectLastCall();
+		expect(this.response.getWriter()).andReturn(new PrintWriter(writer));
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNull("The model and view should be null.", modelAndView);
+		assertTrue("The increments are missing.",
+				   writer.toString().contains("\nsharedbuildnumber_increments_total{id=\"4\"} 1\n"));
+		assertTrue("The entries are missing.", writer.toString().contains("\nsharedbuildnumber_config_entries 2\n"));
 	}
 
 	@Test
@@ -557,6 +897,9 @@ public class TestSharedBuildNumberController
 		expect(this.request.getParameter("format")).andReturn("{0");
 		expect(this.request.getParameter("dateFormat")).andReturn("Ym");
 		expect(this.request.getParameter("counter")).andReturn("15.1");
+		expect(this.request.getParameter("allowGaps")).andReturn(null);
+		expect(this.request.getParameter("blockSize")).andReturn(null);
+		expect(this.request.getParameter("durability")).andReturn(null);
 
 		replay(this.service, this.request, this.response);
 
@@ -616,6 +959,9 @@ public class TestSharedBuildNumberController
 		expect(this.request.getParameter("format")).andReturn("1.0.0.{D}");
 		expect(this.request.getParameter("dateFormat")).andReturn("Ym");
 		expect(this.request.getParameter("counter")).andReturn("-16");
+		expect(this.request.getParameter("allowGaps")).andReturn(null);
+		expect(this.request.getParameter("blockSize")).andReturn(null);
+		expect(this.request.getParameter("durability")).andReturn(null);
 
 		replay(this.service, this.request, this.response);
 
@@ -673,6 +1019,9 @@ public class TestSharedBuildNumberController
 		expect(this.request.getParameter("format")).andReturn("2.3.0.{d}.{0}");
 		expect(this.request.getParameter("dateFormat")).andReturn("YMdHms");
 		expect(this.request.getParameter("counter")).andReturn("19");
+		expect(this.request.getParameter("allowGaps")).andReturn(null);
+		expect(this.request.getParameter("blockSize")).andReturn(null);
+		expect(this.request.getParameter("durability")).andReturn(null);
 		expect(this.service.getNextBuildNumberId()).andReturn(71);
 		this.service.saveSharedBuildNumber(capture(capture));
 		expectLastCall();
@@ -700,6 +1049,43 @@ public class TestSharedBuildNumberController
 		assertEquals("The counter is not correct.", 19, number.getCounter());
 	}
 
+	@Test
+	public void testDoHandleAddBuildNumberPost04() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		Capture<SharedBuildNumber> capture = new Capture<SharedBuildNumber>();
+
+		expect(this.request.getParameter("action")).andReturn("add");
+		expect(this.request.getMethod()).andReturn("POST");
+		expect(this.request.getParameter("name")).andReturn("Gaps Allowed");
+		expect(this.request.getParameter("description")).andReturn("This one may skip values.");
+		expect(this.request.getParameter("format")).andReturn("3.1.{0}");
+		expect(this.request.getParameter("dateFormat")).andReturn("");
+		expect(this.request.getParameter("counter")).andReturn("5");
+		expect(this.request.getParameter("allowGaps")).andReturn("true");
+		expect(this.request.getParameter("blockSize")).andReturn("250");
+		expect(this.request.getParameter("durability")).andReturn("async");
+		expect(this.service.getNextBuildNumberId()).andReturn(72);
+		this.service.saveSharedBuildNumber(capture(capture));
+		expectLastCall();
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNotNull("The model and view should not be null.", modelAndView);
+		assertTrue("The view should be a redirect view.", modelAndView.getView() instanceof RedirectView);
+
+		SharedBuildNumber number = capture.getValue();
+		assertNotNull("The shared build number should not be null.", number);
+		assertEquals("The ID is not correct.", 72, number.getId());
+		assertEquals("The counter is not correct.", 5, number.getCounter());
+		assertTrue("The allow gaps flag should be true.", number.isAllowGaps());
+		assertEquals("The block size is not correct.", 250, number.getBlockSize());
+		assertEquals("The durability is not correct.", Durability.ASYNC, number.getDurability());
+	}
+
 	@Test
 	public void testDoHandleEditBuildNumberGet01() throws IOException, ServletException
 	{
@@ -799,6 +1185,9 @@ public class TestSharedBuildNumberController
 		expect(this.request.getParameter("format")).andReturn("{0");
 		expect(this.request.getParameter("dateFormat")).andReturn("Ym");
 		expect(this.request.getParameter("counter")).andReturn("15.1");
+		expect(this.request.getParameter("allowGaps")).andReturn(null);
+		expect(this.request.getParameter("blockSize")).andReturn(null);
+		expect(this.request.getParameter("durability")).andReturn(null);
 
 		replay(this.service, this.request, this.response);
 
@@ -864,6 +1253,9 @@ public class TestSharedBuildNumberController
 		expect(this.request.getParameter("format")).andReturn("1.0.0.{D}");
 		expect(this.request.getParameter("dateFormat")).andReturn("Ym");
 		expect(this.request.getParameter("counter")).andReturn("-16");
+		expect(this.request.getParameter("allowGaps")).andReturn(null);
+		expect(this.request.getParameter("blockSize")).andReturn(null);
+		expect(this.request.getParameter("durability")).andReturn(null);
 
 		replay(this.service, this.request, this.response);
 
@@ -927,6 +1319,9 @@ public class TestSharedBuildNumberController
 		expect(this.request.getParameter("format")).andReturn("2.3.0.{d}.{0}");
 		expect(this.request.getParameter("dateFormat")).andReturn("YMdHms");
 		expect(this.request.getParameter("counter")).andReturn("0");
+		expect(this.request.getParameter("allowGaps")).andReturn(null);
+		expect(this.request.getParameter("blockSize")).andReturn(null);
+		expect(this.request.getParameter("durability")).andReturn(null);
 		this.service.saveSharedBuildNumber(capture(capture));
 		expectLastCall();
 
@@ -954,6 +1349,96 @@ public class TestSharedBuildNumberController
 		assertEquals("The counter is not correct.", 1, number.getCounter());
 	}
 
+	@Test
+	public void testDoHandleEditBuildNumberPost05() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		SharedBuildNumber originalNumber = new SharedBuildNumber(46);
+		originalNumber.setAllowGaps(true);
+		originalNumber.setReservedCounter(301);
+
+		expect(this.request.getParameter("action")).andReturn("edit");
+		expect(this.request.getMethod()).andReturn("POST");
+		expect(this.request.getParameter("id")).andReturn("46");
+		expect(this.service.getSharedBuildNumber(46)).andReturn(originalNumber);
+		expect(this.request.getParameter("name")).andReturn("Gaps Allowed");
+		expect(this.request.getParameter("description")).andReturn("");
+		expect(this.request.getParameter("format")).andReturn("3.1.{0}");
+		expect(this.request.getParameter("dateFormat")).andReturn("");
+		expect(this.request.getParameter("counter")).andReturn("201");
+		expect(this.request.getParameter("allowGaps")).andReturn("true");
+		expect(this.request.getParameter("blockSize")).andReturn("0");
+		expect(this.request.getParameter("durability")).andReturn(null);
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNotNull("The model and view should not be null.", modelAndView);
+		assertEquals("The view is not correct.", "/plugin/" + testNum + "/jsp/editBuildNumber.jsp",
+					 modelAndView.getViewName());
+
+		Map<String, Object> model = modelAndView.getModel();
+		assertNotNull("The model should not be null.", model);
+
+		BindingResult result = (BindingResult)model.get(BindingResult.MODEL_KEY_PREFIX + "sharedBuildNumberForm");
+		assertNotNull("The binding result attribute should not be null.", result);
+		assertEquals("The binding result should have 1 error.", 1, result.getErrorCount());
+		assertEquals("The error is not correct.", "blockSize", result.getFieldErrors().get(0).getField());
+		assertEquals("The error has the wrong message.", "The block size must be a positive integer.",
+					 result.getFieldErrors().get(0).getDefaultMessage());
+
+		SharedBuildNumber form = (SharedBuildNumber)model.get("sharedBuildNumberForm");
+		assertNotNull("sharedBuildNumberForm should not be null.", form);
+		assertTrue("The allow gaps flag should be true.", form.isAllowGaps());
+		assertEquals("The counter is not correct.", 201, form.getCounter());
+		assertEquals("The reserved counter is not correct.", 301, form.getReservedCounter());
+	}
+
+	@Test
+	public void testDoHandleEditBuildNumberPost06() throws IOException, ServletException
+	{
+		this.setUpSecurity();
+
+		SharedBuildNumber originalNumber = new SharedBuildNumber(47);
+
+		expect(this.request.getParameter("action")).andReturn("edit");
+		expect(this.request.getMethod()).andReturn("POST");
+		expect(this.request.getParameter("id")).andReturn("47");
+		expect(this.service.getSharedBuildNumber(47)).andReturn(originalNumber);
+		expect(this.request.getParameter("name")).andReturn("Eventually Durable");
+		expect(this.request.getParameter("description")).andReturn("");
+		expect(this.request.getParameter("format")).andReturn("3.2.{0}");
+		expect(this.request.getParameter("dateFormat")).andReturn("");
+		expect(this.request.getParameter("counter")).andReturn("12");
+		expect(this.request.getParameter("allowGaps")).andReturn(null);
+		expect(this.request.getParameter("blockSize")).andReturn("");
+		expect(this.request.getParameter("durability")).andReturn("eventually");
+
+		replay(this.service, this.request, this.response);
+
+		ModelAndView modelAndView = this.controller.doHandle(this.request, this.response);
+
+		assertNotNull("The model and view should not be null.", modelAndView);
+		assertEquals("The view is not correct.", "/plugin/" + testNum + "/jsp/editBuildNumber.jsp",
+					 modelAndView.getViewName());
+
+		Map<String, Object> model = modelAndView.getModel();
+		assertNotNull("The model should not be null.", model);
+
+		BindingResult result = (BindingResult)model.get(BindingResult.MODEL_KEY_PREFIX + "sharedBuildNumberForm");
+		assertNotNull("The binding result attribute should not be null.", result);
+		assertEquals("The binding result should have 1 error.", 1, result.getErrorCount());
+		assertEquals("The error is not correct.", "durability", result.getFieldErrors().get(0).getField());
+		assertEquals("The error has the wrong message.", "The durability must be SYNC, GROUP or ASYNC.",
+					 result.getFieldErrors().get(0).getDefaultMessage());
+
+		SharedBuildNumber form = (SharedBuildNumber)model.get("sharedBuildNumberForm");
+		assertNotNull("sharedBuildNumberForm should not be null.", form);
+		assertNull("The durability should not be set.", form.getDurability());
+	}
+
 	@Test
 	public void testDoHandleDeleteBuildNumberPost01() throws IOException, ServletException
 	{
@@ -0,0 +1,83 @@
+/*
+ * TestSharedBuildNumberIdSet.java from TeamCityPlugins modified Tuesday, October 23, 2012 09:47:26 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for SharedBuildNumberIdSet.
+ */
+public class TestSharedBuildNumberIdSet
+{
+	@Test
+	public void testEmpty01()
+	{
+		SharedBuildNumberIdSet ids = new SharedBuildNumberIdSet();
+
+		assertTrue("The set should be empty.", ids.isEmpty());
+		assertEquals("The size is not correct.", 0, ids.size());
+		assertFalse("The set should not contain 1.", ids.contains(1));
+		assertArrayEquals("The array is not correct.", new int[0], ids.toArray());
+	}
+
+	@Test
+	public void testAdd01()
+	{
+		SharedBuildNumberIdSet ids = new SharedBuildNumberIdSet();
+
+		assertTrue("The first add should change the set.", ids.add(17));
+		assertTrue("The second add should change the set.", ids.add(4));
+		assertFalse("The duplicate add should not change the set.", ids.add(17));
+
+		assertEquals("The size is not correct.", 2, ids.size());
+		assertTrue("The set should contain 4.", ids.contains(4));
+		assertTrue("The set should contain 17.", ids.contains(17));
+		assertFalse("The set should not contain 5.", ids.contains(5));
+		assertArrayEquals("The array is not correct.", new int[] { 4, 17 }, ids.toArray());
+	}
+
+	@Test
+	public void testAddMany01()
+	{
+		SharedBuildNumberIdSet ids = new SharedBuildNumberIdSet();
+
+		for(int i = 5000; i >= 1; i--)
+			ids.add(i * 16);
+
+		assertEquals("The size is not correct.", 5000, ids.size());
+		for(int i = 1; i <= 5000; i++)
+		{
+			assertTrue("The set should contain " + (i * 16) + ".", ids.contains(i * 16));
+			assertFalse("The set should not contain " + (i * 16 + 1) + ".", ids.contains(i * 16 + 1));
+		}
+
+		int[] array = ids.toArray();
+		assertEquals("The array length is not correct.", 5000, array.length);
+		for(int i = 0; i < array.length; i++)
+			assertEquals("The array element is not correct.", (i + 1) * 16, array[i]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddZero01()
+	{
+		new SharedBuildNumberIdSet().add(0);
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * TestSharedBuildNumberIndex.java from TeamCityPlugins modified Tuesday, October 30, 2012 10:18:52 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for SharedBuildNumberIndex.
+ */
+public class TestSharedBuildNumberIndex
+{
+	private static SharedBuildNumberEntity getBuildNumber(int id, String name)
+	{
+		SharedBuildNumberEntity buildNumber = new SharedBuildNumberEntity();
+		buildNumber.setId(id);
+		buildNumber.setName(name);
+		return buildNumber;
+	}
+
+	private static int[] ids(List<SharedBuildNumberEntity> buildNumbers)
+	{
+		int[] ids = new int[buildNumbers.size()];
+		for(int i = 0; i < ids.length; i++)
+			ids[i] = buildNumbers.get(i).getId();
+		return ids;
+	}
+
+	@Test
+	public void testEmpty01()
+	{
+		SharedBuildNumberIndex index = new SharedBuildNumberIndex(
+				SharedBuildNumberIndex.ID_ORDER, Collections.<SharedBuildNumberEntity>emptyList()
+		);
+
+		assertEquals("The size is not correct.", 0, index.size());
+		assertTrue("The page should be empty.", index.getPage(false, 0, 10).isEmpty());
+		assertTrue("The page should be empty.", index.getPage(true, 0, 10).isEmpty());
+		assertTrue("The page should be empty.",
+				   index.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(1, null), true, 10).isEmpty());
+	}
+
+	@Test
+	public void testGetPage01()
+	{
+		SharedBuildNumberIndex index = new SharedBuildNumberIndex(SharedBuildNumberIndex.ID_ORDER, Arrays.asList(
+				TestSharedBuildNumberIndex.getBuildNumber(4, null), TestSharedBuildNumberIndex.getBuildNumber(1, null),
+				TestSharedBuildNumberIndex.getBuildNumber(3, null), TestSharedBuildNumberIndex.getBuildNumber(2, null)
+		));
+
+		assertArrayEquals("The page is not correct.", new int[] { 1, 2, 3, 4 },
+						  TestSharedBuildNumberIndex.ids(index.getPage(false, 0, Integer.MAX_VALUE)));
+		assertArrayEquals("The page is not correct.", new int[] { 2, 3 },
+						  TestSharedBuildNumberIndex.ids(index.getPage(false, 1, 2)));
+		assertArrayEquals("The page is not correct.", new int[] { 3, 2 },
+						  TestSharedBuildNumberIndex.ids(index.getPage(true, 1, 2)));
+		assertArrayEquals("The page is not correct.", new int[] { 1 },
+						  TestSharedBuildNumberIndex.ids(index.getPage(true, 3, Integer.MAX_VALUE)));
+		assertArrayEquals("The page is not correct.", new int[0],
+						  TestSharedBuildNumberIndex.ids(index.getPage(true, 4, 2)));
+		assertArrayEquals("The page is not correct.", new int[0],
+						  TestSharedBuildNumberIndex.ids(index.getPage(false, 1, 0)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetPageNegativeOffset01()
+	{
+		new SharedBuildNumberIndex(
+				SharedBuildNumberIndex.ID_ORDER, Collections.<SharedBuildNumberEntity>emptyList()
+		).getPage(false, -1, 10);
+	}
+
+	@Test
+	public void testGetPageAfter01()
+	{
+		SharedBuildNumberIndex index = new SharedBuildNumberIndex(SharedBuildNumberIndex.ID_ORDER, Arrays.asList(
+				TestSharedBuildNumberIndex.getBuildNumber(10, null),
+				TestSharedBuildNumberIndex.getBuildNumber(20, null),
+				TestSharedBuildNumberIndex.getBuildNumber(30, null),
+				TestSharedBuildNumberIndex.getBuildNumber(40, null)
+		));
+
+		assertArrayEquals("The page is not correct.", new int[] { 30, 40 }, TestSharedBuildNumberIndex.ids(
+				index.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(20, null), false, 5)
+		));
+		assertArrayEquals("The page is not correct.", new int[] { 30 }, TestSharedBuildNumberIndex.ids(
+				index.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(25, null), false, 1)
+		));
+		assertArrayEquals("The page is not correct.", new int[] { 10 }, TestSharedBuildNumberIndex.ids(
+				index.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(20, null), true, 5)
+		));
+		assertArrayEquals("The page is not correct.", new int[] { 20, 10 }, TestSharedBuildNumberIndex.ids(
+				index.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(25, null), true, 5)
+		));
+		assertArrayEquals("The page is not correct.", new int[] { 40, 30 }, TestSharedBuildNumberIndex.ids(
+				index.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(50, null), true, 2)
+		));
+		assertArrayEquals("The page is not correct.", new int[0], TestSharedBuildNumberIndex.ids(
+				index.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(10, null), true, 2)
+		));
+	}
+
+	@Test
+	public void testNameOrder01()
+	{
+		SharedBuildNumberIndex index = new SharedBuildNumberIndex(SharedBuildNumberIndex.NAME_ORDER, Arrays.asList(
+				TestSharedBuildNumberIndex.getBuildNumber(1, "beta"),
+				TestSharedBuildNumberIndex.getBuildNumber(2, null),
+				TestSharedBuildNumberIndex.getBuildNumber(3, "alpha"),
+				TestSharedBuildNumberIndex.getBuildNumber(4, "beta"),
+				TestSharedBuildNumberIndex.getBuildNumber(5, null)
+		));
+
+		assertEquals("The size is not correct.", 5, index.size());
+		assertArrayEquals("The page is not correct.", new int[] { 2, 5, 3, 1, 4 },
+						  TestSharedBuildNumberIndex.ids(index.getPage(false, 0, 10)));
+		assertArrayEquals("The page is not correct.", new int[] { 4, 1, 3, 5, 2 },
+						  TestSharedBuildNumberIndex.ids(index.getPage(true, 0, 10)));
+	}
+
+	@Test
+	public void testNameOrderIgnoresCase01()
+	{
+		SharedBuildNumberIndex index = new SharedBuildNumberIndex(SharedBuildNumberIndex.NAME_ORDER, Arrays.asList(
+				TestSharedBuildNumberIndex.getBuildNumber(1, "beta"),
+				TestSharedBuildNumberIndex.getBuildNumber(2, "Alpha"),
+				TestSharedBuildNumberIndex.getBuildNumber(3, "alpha"),
+				TestSharedBuildNumberIndex.getBuildNumber(4, "Beta")
+		));
+
+		assertArrayEquals("The page is not correct.", new int[] { 2, 3, 4, 1 },
+						  TestSharedBuildNumberIndex.ids(index.getPage(false, 0, 10)));
+	}
+
+	@Test
+	public void testGetNamePrefixRange01()
+	{
+		SharedBuildNumberIndex index = new SharedBuildNumberIndex(SharedBuildNumberIndex.NAME_ORDER, Arrays.asList(
+				TestSharedBuildNumberIndex.getBuildNumber(1, "Release 2.0"),
+				TestSharedBuildNumberIndex.getBuildNumber(2, null),
+				TestSharedBuildNumberIndex.getBuildNumber(3, "release 1.0"),
+				TestSharedBuildNumberIndex.getBuildNumber(4, "Nightly"),
+				TestSharedBuildNumberIndex.getBuildNumber(5, "Releases"),
+				TestSharedBuildNumberIndex.getBuildNumber(6, "Reporting")
+		));
+
+		SharedBuildNumberIndex range = index.getNamePrefixRange("RELEASE");
+		assertEquals("The size is not correct.", 3, range.size());
+		assertArrayEquals("The page is not correct.", new int[] { 3, 1, 5 },
+						  TestSharedBuildNumberIndex.ids(range.getPage(false, 0, 10)));
+		assertArrayEquals("The page is not correct.", new int[] { 5, 1 },
+						  TestSharedBuildNumberIndex.ids(range.getPage(true, 0, 2)));
+		assertArrayEquals("The page is not correct.", new int[] { 5 }, TestSharedBuildNumberIndex.ids(
+				range.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(1, "Release 2.0"), false, 10)
+		));
+		assertArrayEquals("The page is not correct.", new int[0], TestSharedBuildNumberIndex.ids(
+				range.getPageAfter(TestSharedBuildNumberIndex.getBuildNumber(3, "release 1.0"), true, 10)
+		));
+
+		assertEquals("The size is not correct.", 0, index.getNamePrefixRange("Zulu").size());
+		assertEquals("The size is not correct.", 0, index.getNamePrefixRange("A").size());
+		assertEquals("The size is not correct.", 5, index.getNamePrefixRange("").size());
+		assertArrayEquals("The page is not correct.", new int[] { 4 }, TestSharedBuildNumberIndex.ids(
+				index.getNamePrefixRange("n").getPage(false, 0, 10)
+		));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testGetNamePrefixRangeIdOrder01()
+	{
+		new SharedBuildNumberIndex(
+				SharedBuildNumberIndex.ID_ORDER, Collections.<SharedBuildNumberEntity>emptyList()
+		).getNamePrefixRange("a");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testAddToRange01()
+	{
+		new SharedBuildNumberIndex(
+				SharedBuildNumberIndex.NAME_ORDER, Collections.<SharedBuildNumberEntity>emptyList()
+		).getNamePrefixRange("a").add(TestSharedBuildNumberIndex.getBuildNumber(1, "alpha"));
+	}
+
+	@Test
+	public void testAddAndRemove01()
+	{
+		SharedBuildNumberIndex index = new SharedBuildNumberIndex(
+				SharedBuildNumberIndex.NAME_ORDER, Collections.<SharedBuildNumberEntity>emptyList()
+		);
+
+		index.add(TestSharedBuildNumberIndex.getBuildNumber(1, "charlie"));
+		index.add(TestSharedBuildNumberIndex.getBuildNumber(2, "alpha"));
+		index.add(TestSharedBuildNumberIndex.getBuildNumber(3, "bravo"));
+
+		SharedBuildNumberIndex copy = index.copy();
+
+		SharedBuildNumberEntity replacement = TestSharedBuildNumberIndex.getBuildNumber(2, "alpha");
+		copy.add(replacement);
+		assertTrue("The entry should have been removed.",
+				   copy.remove(TestSharedBuildNumberIndex.getBuildNumber(1, "charlie")));
+		assertFalse("The entry should not exist.", copy.remove(TestSharedBuildNumberIndex.getBuildNumber(3, "zulu")));
+
+		assertEquals("The copy size is not correct.", 2, copy.size());
+		assertSame("The entry should have been replaced.", replacement, copy.getPage(false, 0, 1).get(0));
+		assertArrayEquals("The copy is not correct.", new int[] { 2, 3 },
+						  TestSharedBuildNumberIndex.ids(copy.getPage(false, 0, 10)));
+		assertArrayEquals("The original should not have changed.", new int[] { 2, 3, 1 },
+						  TestSharedBuildNumberIndex.ids(index.getPage(false, 0, 10)));
+	}
+
+	@Test
+	public void testAddAndRemoveMany01()
+	{
+		SharedBuildNumberIndex index = new SharedBuildNumberIndex(
+				SharedBuildNumberIndex.ID_ORDER, Collections.<SharedBuildNumberEntity>emptyList()
+		);
+
+		List<Integer> ids = new ArrayList<Integer>();
+		for(int id = 1; id <= 500; id++)
+			ids.add(id);
+		Collections.shuffle(ids, new Random(42L));
+
+		for(int id : ids)
+			index.add(TestSharedBuildNumberIndex.getBuildNumber(id, null));
+		for(int id : ids.subList(0, 250))
+		{
+			assertTrue("The entry should have been removed.",
+					   index.remove(TestSharedBuildNumberIndex.getBuildNumber(id, null)));
+		}
+
+		List<Integer> remaining = new ArrayList<Integer>(ids.subList(250, 500));
+		Collections.sort(remaining);
+
+		List<SharedBuildNumberEntity> page = index.getPage(false, 0, 500);
+		assertEquals("The size is not correct.", 250, index.size());
+		assertEquals("The page size is not correct.", 250, page.size());
+		for(int i = 0; i < page.size(); i++)
+			assertEquals("The entry is not correct.", (int)remaining.get(i), page.get(i).getId());
+	}
+}
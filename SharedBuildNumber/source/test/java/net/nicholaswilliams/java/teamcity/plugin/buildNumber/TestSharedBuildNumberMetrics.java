@@ -0,0 +1,147 @@
+/*
+ * TestSharedBuildNumberMetrics.java from TeamCityPlugins modified Wednesday, October 31, 2012 16:42:05 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for SharedBuildNumberMetrics.
+ */
+public class TestSharedBuildNumberMetrics
+{
+	private SharedBuildNumberMetrics metrics;
+
+	@Before
+	public void setUp()
+	{
+		this.metrics = new SharedBuildNumberMetrics();
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.metrics.unregister();
+	}
+
+	@Test
+	public void testRecordIncrement01()
+	{
+		this.metrics.recordIncrement(3);
+		this.metrics.recordIncrement(3);
+		this.metrics.recordIncrement(300);
+		this.metrics.recordIncrement(70000);
+		this.metrics.recordIncrement(70000);
+		this.metrics.recordIncrement(0);
+
+		assertEquals("The increment count is not correct.", 5L, this.metrics.getIncrementCount());
+
+		Map<Integer, Long> counts = this.metrics.getIncrementCountsById();
+		assertEquals("The map is the wrong size.", 3, counts.size());
+		assertEquals("The count for 3 is not correct.", Long.valueOf(2L), counts.get(3));
+		assertEquals("The count for 300 is not correct.", Long.valueOf(1L), counts.get(300));
+		assertEquals("The count for 70000 is not correct.", Long.valueOf(2L), counts.get(70000));
+
+		this.metrics.forgetBuildNumber(3);
+		this.metrics.forgetBuildNumber(70000);
+
+		counts = this.metrics.getIncrementCountsById();
+		assertEquals("The map is the wrong size.", 1, counts.size());
+		assertEquals("The count for 300 is not correct.", Long.valueOf(1L), counts.get(300));
+	}
+
+	@Test
+	public void testLatencySummary01()
+	{
+		this.metrics.recordSaveLatency(1000L);
+		this.metrics.recordSaveLatency(3000L);
+
+		SharedBuildNumberMetrics.LatencySummary summary = this.metrics.getSaveLatency();
+		assertEquals("The count is not correct.", 2L, summary.getCount());
+		assertEquals("The mean is not correct.", 2000L, summary.getMean());
+		assertEquals("The maximum is not correct.", 3000L, summary.getMaximum());
+		assertEquals("The 99th percentile is not correct.", 3000L, summary.getPercentile99());
+
+		assertEquals("The empty count is not correct.", 0L, this.metrics.getLoadLatency().getCount());
+		assertEquals("The empty mean is not correct.", 0L, this.metrics.getLoadLatency().getMean());
+	}
+
+	@Test
+	public void testAppendText01()
+	{
+		this.metrics.recordIncrement(12);
+		this.metrics.recordIncrementLatency(2000000L);
+		this.metrics.recordReload(5000000L);
+		this.metrics.recordFailedSave();
+		this.metrics.setConfigurationEntries(4);
+		this.metrics.setConfigurationBytes(2048L);
+
+		StringBuilder builder = new StringBuilder();
+		this.metrics.appendText(builder);
+		String text = builder.toString();
+
+		assertTrue("The increment latency is missing.",
+				   text.contains("\nsharedbuildnumber_increment_seconds_count 1\n"));
+		assertTrue("The increment latency median is missing.",
+				   text.contains("\nsharedbuildnumber_increment_seconds{quantile=\"0.5\"} 0.002\n"));
+		assertTrue("The increments are missing.", text.contains("\nsharedbuildnumber_increments_total 1\n"));
+		assertTrue("The increments by ID are missing.",
+				   text.contains("\nsharedbuildnumber_increments_total{id=\"12\"} 1\n"));
+		assertTrue("The reloads are missing.", text.contains("\nsharedbuildnumber_reloads_total 1\n"));
+		assertTrue("The failed saves are missing.", text.contains("\nsharedbuildnumber_failed_saves_total 1\n"));
+		assertTrue("The entries are missing.", text.contains("\nsharedbuildnumber_config_entries 4\n"));
+		assertTrue("The bytes are missing.", text.contains("\nsharedbuildnumber_config_bytes 2048\n"));
+	}
+
+	@Test
+	public void testRegister01() throws Exception
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(SharedBuildNumberMetrics.OBJECT_NAME);
+
+		this.metrics.register();
+		this.metrics.recordIncrement(5);
+		this.metrics.recordConfigurationLockWait(750L);
+
+		assertTrue("The MBean should be registered.", server.isRegistered(name));
+		assertEquals("The increment count is not correct.", 1L, server.getAttribute(name, "IncrementCount"));
+
+		CompositeData lockWait = (CompositeData)server.getAttribute(name, "ConfigurationLockWait");
+		assertEquals("The lock wait count is not correct.", 1L, lockWait.get("count"));
+		assertEquals("The lock wait maximum is not correct.", 750L, lockWait.get("maximum"));
+
+		SharedBuildNumberMetrics replacement = new SharedBuildNumberMetrics();
+		replacement.register();
+		assertEquals("The replacement should have been registered.", 0L,
+					 server.getAttribute(name, "IncrementCount"));
+
+		replacement.unregister();
+		assertFalse("The MBean should not be registered.", server.isRegistered(name));
+	}
+}
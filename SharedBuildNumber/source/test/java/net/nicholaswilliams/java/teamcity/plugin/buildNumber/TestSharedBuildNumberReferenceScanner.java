@@ -0,0 +1,110 @@
+/*
+ * TestSharedBuildNumberReferenceScanner.java from TeamCityPlugins modified Tuesday, October 23, 2012 09:47:26 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for SharedBuildNumberReferenceScanner.
+ */
+public class TestSharedBuildNumberReferenceScanner
+{
+	@Test
+	public void testScanNoReferences01()
+	{
+		assertArrayEquals("There should be no IDs.", new int[0],
+						  TestSharedBuildNumberReferenceScanner.scan("plain value", "%env.JAVA_HOME%/bin", ""));
+	}
+
+	@Test
+	public void testScanReferences01()
+	{
+		assertArrayEquals("The IDs are not correct.", new int[] { 1, 7, 15 },
+						  TestSharedBuildNumberReferenceScanner.scan(
+								  "pre %sharedBuildNumber.id15% post", "%sharedBuildNumber.id7%%sharedBuildNumber.id1%",
+								  "%sharedBuildNumber.id15%"
+						  ));
+	}
+
+	@Test
+	public void testScanOtherReferences01()
+	{
+		assertArrayEquals("The IDs are not correct.", new int[] { 3, 4 },
+						  TestSharedBuildNumberReferenceScanner.scan(
+								  "%a%%sharedBuildNumber.id3%", "%a%b%sharedBuildNumber.id4%"
+						  ));
+	}
+
+	@Test
+	public void testScanEscaped01()
+	{
+		assertArrayEquals("Escaped percent signs should not open references.", new int[] { 4 },
+						  TestSharedBuildNumberReferenceScanner.scan(
+								  "a%%sharedBuildNumber.id2%%b", "%%%%sharedBuildNumber.id3%",
+								  "%%%sharedBuildNumber.id4%"
+						  ));
+	}
+
+	@Test
+	public void testScanUnpaired01()
+	{
+		assertArrayEquals("Unpaired percent signs should not open references.", new int[0],
+						  TestSharedBuildNumberReferenceScanner.scan(
+								  "50% done %sharedBuildNumber.id1%", "x %sharedBuildNumber.id5 y"
+						  ));
+	}
+
+	@Test
+	public void testScanMalformed01()
+	{
+		assertArrayEquals("Malformed references should be ignored.", new int[0],
+						  TestSharedBuildNumberReferenceScanner.scan(
+								  "%sharedBuildNumber.id%", "%sharedBuildNumber.id8x%", "%sharedBuildNumber.id01%",
+								  "%sharedBuildNumber.id-3%", "%sharedBuildNumber.id2147483648%"
+						  ));
+	}
+
+	@Test
+	public void testParseId01()
+	{
+		assertEquals("The ID is not correct.", 12, SharedBuildNumberReferenceScanner.parseId("sharedBuildNumber.id12"));
+		assertEquals("The ID is not correct.", Integer.MAX_VALUE,
+					 SharedBuildNumberReferenceScanner.parseId("sharedBuildNumber.id2147483647"));
+	}
+
+	@Test
+	public void testParseIdInvalid01()
+	{
+		assertEquals("The ID is not correct.", 0, SharedBuildNumberReferenceScanner.parseId("bad.parameter"));
+		assertEquals("The ID is not correct.", 0, SharedBuildNumberReferenceScanner.parseId("sharedBuildNumber.id"));
+		assertEquals("The ID is not correct.", 0, SharedBuildNumberReferenceScanner.parseId("sharedBuildNumber.idAbc"));
+		assertEquals("The ID is not correct.", 0, SharedBuildNumberReferenceScanner.parseId("sharedBuildNumber.id0"));
+	}
+
+	private static int[] scan(String... values)
+	{
+		SharedBuildNumberIdSet ids = new SharedBuildNumberIdSet();
+		SharedBuildNumberReferenceScanner.scan(Arrays.asList(values), ids);
+		return ids.toArray();
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * TestSharedBuildNumberSubstringIndex.java from TeamCityPlugins modified Tuesday, October 30, 2012 10:18:52 CDT (-0500).
+ *
+ * Copyright 2010-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.nicholaswilliams.java.teamcity.plugin.buildNumber;
+
+import net.nicholaswilliams.java.teamcity.plugin.buildNumber.pojo.SharedBuildNumberEntity;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for SharedBuildNumberSubstringIndex.
+ */
+public class TestSharedBuildNumberSubstringIndex
+{
+	private static SharedBuildNumberEntity getBuildNumber(int id, String name)
+	{
+		SharedBuildNumberEntity buildNumber = new SharedBuildNumberEntity();
+		buildNumber.setId(id);
+		buildNumber.setName(name);
+		return buildNumber;
+	}
+
+	private static int[] ids(List<SharedBuildNumberEntity> buildNumbers)
+	{
+		int[] ids = new int[buildNumbers.size()];
+		for(int i = 0; i < ids.length; i++)
+			ids[i] = buildNumbers.get(i).getId();
+		return ids;
+	}
+
+	@Test
+	public void testEmpty01()
+	{
+		SharedBuildNumberSubstringIndex index = new SharedBuildNumberSubstringIndex(
+				Collections.<SharedBuildNumberEntity>emptyList()
+		);
+
+		assertTrue("Nothing should be found.", index.find("a").isEmpty());
+		assertTrue("Nothing should be found.", index.find("abcdef").isEmpty());
+	}
+
+	@Test
+	public void testFind01()
+	{
+		SharedBuildNumberSubstringIndex index = new SharedBuildNumberSubstringIndex(Arrays.asList(
+				TestSharedBuildNumberSubstringIndex.getBuildNumber(5, "Mobile Release"),
+				TestSharedBuildNumberSubstringIndex.getBuildNumber(2, "Web Releases"),
+				TestSharedBuildNumberSubstringIndex.getBuildNumber(9, null),
+				TestSharedBuildNumberSubstringIndex.getBuildNumber(3, "Nightly"),
+				TestSharedBuildNumberSubstringIndex.getBuildNumber(7, "Release Candidates")
+		));
+
+		assertArrayEquals("The matches are not correct.", new int[] { 2, 5, 7 },
+						  TestSharedBuildNumberSubstringIndex.ids(index.find("RELEASE")));
+		assertArrayEquals("The matches are not correct.", new int[] { 2 },
+						  TestSharedBuildNumberSubstringIndex.ids(index.find("eb rel")));
+		assertArrayEquals("The matches are not correct.", new int[] { 3 },
+						  TestSharedBuildNumberSubstringIndex.ids(index.find("ig")));
+		assertArrayEquals("The matches are not correct.", new int[] { 2, 5, 7 },
+						  TestSharedBuildNumberSubstringIndex.ids(index.find("e")));
+		assertArrayEquals("The matches are not correct.", new int[0],
+						  TestSharedBuildNumberSubstringIndex.ids(index.find("release notes")));
+		assertArrayEquals("The matches are not correct.", new int[0],
+						  TestSharedBuildNumberSubstringIndex.ids(index.find("xyz")));
+	}
+
+	@Test
+	public void testFindRepeatedTrigrams01()
+	{
+		SharedBuildNumberSubstringIndex index = new SharedBuildNumberSubstringIndex(Arrays.asList(
+				TestSharedBuildNumberSubstringIndex.getBuildNumber(1, "aaaa"),
+				TestSharedBuildNumberSubstringIndex.getBuildNumber(2, "aaab"),
+				TestSharedBuildNumberSubstringIndex.getBuildNumber(3, "baaa")
+		));
+
+		assertArrayEquals("The matches are not correct.", new int[] { 1 },
+						  TestSharedBuildNumberSubstringIndex.ids(index.find("aaaa")));
+		assertArrayEquals("The matches are not correct.", new int[] { 1, 2, 3 },
+						  TestSharedBuildNumberSubstringIndex.ids(index.find("aaa")));
+	}
+
+	@Test
+	public void testFindMatchesScan01()
+	{
+		Random random = new Random(17L);
+		List<SharedBuildNumberEntity> buildNumbers = new ArrayList<SharedBuildNumberEntity>();
+		for(int id = 1; id <= 1000; id++)
+		{
+			char[] name = new char[4 + random.nextInt(8)];
+			for(int i = 0; i < name.length; i++)
+				name[i] = (char)('a' + random.nextInt(4));
+			buildNumbers.add(TestSharedBuildNumberSubstringIndex.getBuildNumber(id, new String(name)));
+		}
+		Collections.shuffle(buildNumbers, random);
+
+		SharedBuildNumberSubstringIndex index = new SharedBuildNumberSubstringIndex(buildNumbers);
+
+		for(String substring : new String[] { "ab", "abc", "dcba", "aabbc", "bdbdb" })
+		{
+			List<Integer> expected = new ArrayList<Integer>();
+			for(SharedBuildNumberEntity buildNumber : buildNumbers)
+			{
+				if(buildNumber.getName().contains(substring))
+					expected.add(buildNumber.getId());
+			}
+			Collections.sort(expected);
+
+			List<SharedBuildNumberEntity> found = index.find(substring);
+			assertEquals("The number of matches is not correct.", expected.size(), found.size());
+			for(int i = 0; i < found.size(); i++)
+				assertEquals("The match is not correct.", (int)expected.get(i), found.get(i).getId());
+		}
+	}
+}